@@ -130,6 +130,13 @@ public class CtsBuildHelper {
         return new File(getRepositoryDir(), "logs");
     }
 
+    /**
+     * @return a {@link File} representing the directory to store host-side caches.
+     */
+    public File getCacheDir() {
+        return new File(getRepositoryDir(), "cache");
+    }
+
     /**
      * @return a {@link File} representing the test cases directory
      */
@@ -19,10 +19,11 @@ import com.android.cts.tradefed.build.CtsBuildHelper;
 import com.android.cts.tradefed.build.CtsBuildProvider;
 import com.android.cts.tradefed.result.ITestResultRepo;
 import com.android.cts.tradefed.result.ITestSummary;
+import com.android.cts.tradefed.result.LogStore;
 import com.android.cts.tradefed.result.PlanCreator;
 import com.android.cts.tradefed.result.TestResultRepo;
+import com.android.cts.tradefed.testtype.CtsBuildModel;
 import com.android.cts.tradefed.testtype.ITestPackageRepo;
-import com.android.cts.tradefed.testtype.TestPackageRepo;
 import com.android.tradefed.command.Console;
 import com.android.tradefed.config.ArgsOptionParser;
 import com.android.tradefed.config.ConfigurationException;
@@ -33,6 +34,7 @@ import com.android.tradefed.util.TableFormatter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -45,6 +47,7 @@ import java.util.Map;
 public class CtsConsole extends Console {
 
     protected static final String ADD_PATTERN = "a(?:dd)?";
+    protected static final String EXTRACT_PATTERN = "e(?:xtract)?";
 
     private CtsBuildHelper mCtsBuild = null;
 
@@ -123,6 +126,23 @@ public class CtsConsole extends Console {
                 "%s help:" + LINE_SEPARATOR +
                 "\tderivedplan      Add a derived plan" + LINE_SEPARATOR,
                 ADD_PATTERN));
+
+        ArgRunnable<CaptureList> extractLogsCommand = new ArgRunnable<CaptureList>() {
+            @Override
+            public void run(CaptureList args) {
+                CtsBuildHelper ctsBuild = getCtsBuild();
+                if (ctsBuild != null) {
+                    extractLogs(ctsBuild, Integer.parseInt(args.get(2).get(0)),
+                            new File(args.get(3).get(0)));
+                }
+            }
+        };
+        trie.put(extractLogsCommand, EXTRACT_PATTERN, "l(?:ogs)?", "(\\d+)", "(.+)");
+        commandHelp.put(EXTRACT_PATTERN, String.format(
+                "%s help:" + LINE_SEPARATOR +
+                "\tlogs session_id dir  Extract the logs of a session stored with " +
+                "--dedup-logs" + LINE_SEPARATOR,
+                EXTRACT_PATTERN));
     }
 
     @Override
@@ -171,6 +191,9 @@ public class CtsConsole extends Console {
         helpBuilder.append("  add derivedplan --plan plane_name --session/-s session_id -r ");
         helpBuilder.append("[pass/fail/notExecuted/timeout]: derive a plan from the given ");
         helpBuilder.append("session\n");
+        helpBuilder.append("Extract:\n");
+        helpBuilder.append("  e/extract l/logs session_id dir: extract the logs of a session ");
+        helpBuilder.append("run with --dedup-logs into separate files in dir\n");
         helpBuilder.append("Dump:\n");
         helpBuilder.append("  d/dump l/logs: dump the tradefed logs for all running invocations\n");
         helpBuilder.append("Options:\n");
@@ -191,9 +214,14 @@ public class CtsConsole extends Console {
     }
 
     private void listPackages(CtsBuildHelper ctsBuild) {
-        ITestPackageRepo testCaseRepo = new TestPackageRepo(ctsBuild.getTestCasesDir(), false);
-        for (String packageUri : testCaseRepo.getPackageNames()) {
-            printLine(packageUri);
+        CtsBuildModel buildModel = CtsBuildModel.acquire(ctsBuild, false);
+        try {
+            ITestPackageRepo testCaseRepo = buildModel.getTestPackageRepo();
+            for (String packageUri : testCaseRepo.getPackageNames()) {
+                printLine(packageUri);
+            }
+        } finally {
+            buildModel.release();
         }
     }
 
@@ -227,6 +255,23 @@ public class CtsConsole extends Console {
         }
     }
 
+    private void extractLogs(CtsBuildHelper ctsBuild, int sessionId, File destDir) {
+        ITestResultRepo testResultRepo = new TestResultRepo(ctsBuild.getResultsDir());
+        File reportDir = testResultRepo.getReportDir(sessionId);
+        if (reportDir == null) {
+            printLine(String.format("Could not find session %d", sessionId));
+            return;
+        }
+        File logDir = new File(ctsBuild.getLogsDir(), reportDir.getName());
+        try {
+            int numLogs = LogStore.extractLogs(logDir, destDir);
+            printLine(String.format("Extracted %d logs to %s", numLogs, destDir));
+        } catch (IOException e) {
+            printLine(String.format("Failed to extract logs of session %d: %s", sessionId,
+                    e.getMessage()));
+        }
+    }
+
     private CtsBuildHelper getCtsBuild() {
         if (mCtsBuild == null) {
             String ctsInstallPath = System.getProperty("CTS_ROOT");
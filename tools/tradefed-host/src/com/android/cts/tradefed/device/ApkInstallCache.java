@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.device;
+
+import com.android.cts.tradefed.util.DigestCache;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Installs apks on a device, skipping the install if the identical apk is already installed.
+ * <p/>
+ * When an apk is installed, a marker file holding the apk's sha1sum is written to the device.
+ * A later install of an apk with the same digest, in the same or a later session, is skipped as
+ * long as the package is still installed.
+ */
+public class ApkInstallCache {
+
+    private static final String MARKER_DIR = "/data/local/tmp/cts-apk-cache";
+
+    private final ITestDevice mDevice;
+    private final boolean mInvalidate;
+    /** the digests of host apk files */
+    private final DigestCache mDigestCache;
+    /** packages installed or verified by this cache */
+    private final Set<String> mVerifiedPackages = new HashSet<String>();
+
+    /**
+     * Create a {@link ApkInstallCache}.
+     *
+     * @param device the {@link ITestDevice} to install on
+     * @param invalidate if <code>true</code>, ignore the apks already on the device, and
+     *            reinstall each package the first time it is requested
+     */
+    public ApkInstallCache(ITestDevice device, boolean invalidate) {
+        this(device, invalidate, DigestCache.getCache(null));
+    }
+
+    /**
+     * Create a {@link ApkInstallCache} that gets the digests of the apks from the given
+     * {@link DigestCache}.
+     *
+     * @param device the {@link ITestDevice} to install on
+     * @param invalidate if <code>true</code>, ignore the apks already on the device, and
+     *            reinstall each package the first time it is requested
+     * @param digestCache the {@link DigestCache} of the host apk files
+     */
+    public ApkInstallCache(ITestDevice device, boolean invalidate, DigestCache digestCache) {
+        mDevice = device;
+        mInvalidate = invalidate;
+        mDigestCache = digestCache;
+    }
+
+    /**
+     * Install the given apk, unless the identical apk is already installed.
+     *
+     * @param apkFile the apk {@link File}
+     * @param packageName the Android package name of the apk
+     * @return <code>null</code> on success, or the install failure reason
+     * @throws DeviceNotAvailableException
+     */
+    public synchronized String installPackage(File apkFile, String packageName)
+            throws DeviceNotAvailableException {
+        String digest = mDigestCache.getDigest(apkFile);
+        boolean trustDevice = !mInvalidate || mVerifiedPackages.contains(packageName);
+        if (digest != null && trustDevice && isInstalled(packageName, digest)) {
+            CLog.d("Skipping install of %s on %s, already installed", apkFile.getName(),
+                    mDevice.getSerialNumber());
+            mVerifiedPackages.add(packageName);
+            return null;
+        }
+        // remove the marker first, so an interrupted install is never trusted
+        String markerPath = getMarkerPath(packageName);
+        mDevice.executeShellCommand(String.format("rm %s", markerPath));
+        String result = mDevice.installPackage(apkFile, true);
+        if (result == null && digest != null) {
+            mDevice.executeShellCommand(String.format("mkdir -p %s; echo %s > %s", MARKER_DIR,
+                    digest, markerPath));
+            mVerifiedPackages.add(packageName);
+        }
+        return result;
+    }
+
+    /**
+     * Determine if the apk with given digest is installed on the device.
+     */
+    private boolean isInstalled(String packageName, String digest)
+            throws DeviceNotAvailableException {
+        String output = mDevice.executeShellCommand(String.format("pm path %s; cat %s",
+                packageName, getMarkerPath(packageName)));
+        return output != null && output.contains("package:") && output.contains(digest);
+    }
+
+    private String getMarkerPath(String packageName) {
+        return String.format("%s/%s", MARKER_DIR, packageName);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.device;
+
+import com.android.ddmlib.Log;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.IRunUtil;
+import com.android.tradefed.util.RunUtil;
+
+/**
+ * Waits for a freshly booted device to become usable for testing.
+ * <p/>
+ * A device is considered ready once boot has completed, the package manager responds, a window
+ * other than an error dialog has focus, and the CPU is no longer busy with post-boot work.
+ */
+public class DeviceReadinessProbe {
+
+    private static final String LOG_TAG = "DeviceReadinessProbe";
+    private static final long POLL_INTERVAL_MS = 1000;
+    /** the fraction of CPU time below which the CPU is considered settled */
+    private static final float CPU_SETTLED_THRESHOLD = 0.5f;
+
+    private final ITestDevice mDevice;
+    // the last cpu sample read from /proc/stat, used to compute usage between polls
+    private long mLastCpuTotal = -1;
+    private long mLastCpuIdle = -1;
+
+    /**
+     * Create a {@link DeviceReadinessProbe}.
+     *
+     * @param device the {@link ITestDevice} to probe
+     */
+    public DeviceReadinessProbe(ITestDevice device) {
+        mDevice = device;
+    }
+
+    /**
+     * Wait for the device to become ready.
+     *
+     * @param timeoutMs the maximum time to wait in ms
+     * @return <code>true</code> if the device became ready, <code>false</code> if the timeout
+     *         expired first
+     * @throws DeviceNotAvailableException
+     */
+    public boolean waitForReady(long timeoutMs) throws DeviceNotAvailableException {
+        long startTime = System.currentTimeMillis();
+        while (System.currentTimeMillis() - startTime < timeoutMs) {
+            // sample the cpu on every poll, since usage is measured between consecutive samples
+            boolean cpuSettled = isCpuSettled();
+            if (isBootCompleted() && isPackageManagerReady() && isWindowFocused() && cpuSettled) {
+                Log.i(LOG_TAG, String.format("Device %s ready after %d ms",
+                        mDevice.getSerialNumber(), System.currentTimeMillis() - startTime));
+                return true;
+            }
+            getRunUtil().sleep(POLL_INTERVAL_MS);
+        }
+        Log.w(LOG_TAG, String.format("Device %s not ready after %d ms",
+                mDevice.getSerialNumber(), timeoutMs));
+        return false;
+    }
+
+    /**
+     * Return <code>true</code> if the device has reported boot completed.
+     */
+    boolean isBootCompleted() throws DeviceNotAvailableException {
+        String bootCompleted = mDevice.getProperty("sys.boot_completed");
+        return bootCompleted != null && bootCompleted.trim().equals("1");
+    }
+
+    /**
+     * Return <code>true</code> if the package manager service responds.
+     */
+    boolean isPackageManagerReady() throws DeviceNotAvailableException {
+        String output = mDevice.executeShellCommand("pm path android");
+        return output != null && output.contains("package:");
+    }
+
+    /**
+     * Return <code>true</code> if a window has focus, and it is not an error dialog.
+     */
+    boolean isWindowFocused() throws DeviceNotAvailableException {
+        String output = mDevice.executeShellCommand("dumpsys window windows");
+        if (output == null) {
+            return false;
+        }
+        for (String line : output.split("\n")) {
+            line = line.trim();
+            if (line.startsWith("mCurrentFocus=")) {
+                return !line.endsWith("=null") && !line.contains("Application Not Responding")
+                        && !line.contains("Application Error");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return <code>true</code> if the CPU usage since the last call is below
+     * {@link #CPU_SETTLED_THRESHOLD}. Always returns <code>false</code> on the first call.
+     */
+    boolean isCpuSettled() throws DeviceNotAvailableException {
+        String output = mDevice.executeShellCommand("cat /proc/stat");
+        if (output == null || !output.startsWith("cpu ")) {
+            // can't tell, don't block on it
+            return true;
+        }
+        // the first line holds the totals for all cpus
+        String[] fields = output.split("\n", 2)[0].trim().split("\\s+");
+        long total = 0;
+        long idle = 0;
+        try {
+            for (int i = 1; i < fields.length; i++) {
+                total += Long.parseLong(fields[i]);
+            }
+            // fields are user, nice, system, idle, iowait, ...
+            idle = fields.length > 4 ? Long.parseLong(fields[4]) : 0;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+        boolean settled = false;
+        if (mLastCpuTotal >= 0 && total > mLastCpuTotal) {
+            float busy = 1.0f - (float)(idle - mLastCpuIdle) / (total - mLastCpuTotal);
+            settled = busy < CPU_SETTLED_THRESHOLD;
+        }
+        mLastCpuTotal = total;
+        mLastCpuIdle = idle;
+        return settled;
+    }
+
+    /**
+     * Exposed for unit testing
+     */
+    IRunUtil getRunUtil() {
+        return RunUtil.getDefault();
+    }
+}
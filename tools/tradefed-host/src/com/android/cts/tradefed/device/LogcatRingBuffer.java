@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.device;
+
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.IRunUtil;
+import com.android.tradefed.util.RunUtil;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Streams the logcat of a device into a bounded host-side buffer.
+ * <p/>
+ * Each received line is numbered. Callers take a {@link #mark()} when events of interest
+ * happen, e.g. a test starting and ending, and later get the log between two marks with
+ * {@link #getLog(long, long, int)}, without another round trip to the device.
+ * <p/>
+ * When the buffer is full, the oldest lines are dropped. The stream is reconnected if it ends,
+ * e.g. because the device rebooted. A reconnected logcat dumps the device's log buffer again
+ * before streaming new lines, so the lines up to the last received one are skipped. The stream
+ * is given up if the logcat repeatedly ends without output, e.g. if it fails to start.
+ */
+public class LogcatRingBuffer {
+
+    private static final String LOGCAT_CMD = "logcat -v threadtime";
+    private static final long RECONNECT_DELAY_MS = 1000;
+    /** the number of consecutive logcats without output after which streaming is given up */
+    private static final int MAX_FAILED_CONNECTS = 3;
+    /**
+     * the time after reconnecting during which the lines up to the last received one are skipped.
+     * Bounds the skipping if the device's clock went back, e.g. on a reboot.
+     */
+    private static final long RESUME_TIMEOUT_MS = 10 * 1000;
+    /** the approximate number of ms in a year, as counted by {@link #getTimeInYear(String)} */
+    private static final long YEAR_MS = 12 * 31 * 24 * 60 * 60 * 1000L;
+    private static final long STOP_TIMEOUT_MS = 5 * 1000;
+    /** the timestamp at the start of a threadtime line, e.g. "01-23 12:34:56.789" */
+    private static final Pattern TIMESTAMP_PATTERN =
+            Pattern.compile("^(\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d\\.\\d\\d\\d)");
+
+    private final ITestDevice mDevice;
+    private final int mMaxBytes;
+
+    /** the buffered lines, oldest first */
+    private final LinkedList<String> mLines = new LinkedList<String>();
+    /** the number of the first line in {@link #mLines} */
+    private long mFirstLine = 0;
+    private long mBufferedBytes = 0;
+    /** the timestamp of the last received line, or <code>null</code> if none was received */
+    private String mLastTimestamp = null;
+    /** the received lines with timestamp {@link #mLastTimestamp} */
+    private final Set<String> mLastTimestampLines = new HashSet<String>();
+    /** <code>true</code> while skipping the lines a reconnected stream received before */
+    private boolean mResuming = false;
+    /** the time at which to stop skipping lines in a reconnected stream */
+    private long mResumeDeadline = 0;
+    /** <code>true</code> if the current logcat has output a log line */
+    private boolean mConnected = false;
+    private Thread mStreamThread = null;
+    private volatile boolean mStopped = true;
+
+    /**
+     * Create a {@link LogcatRingBuffer}.
+     *
+     * @param device the {@link ITestDevice} to stream the logcat of
+     * @param maxBytes the maximum number of bytes to keep in the buffer
+     */
+    public LogcatRingBuffer(ITestDevice device, int maxBytes) {
+        mDevice = device;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Start streaming the logcat in the background. Has no effect if already streaming, or if
+     * the thread stopped by {@link #stop()} has not ended yet.
+     */
+    public synchronized void start() {
+        if (mStreamThread != null && mStreamThread.isAlive()) {
+            if (mStopped) {
+                // a new thread would append lines alongside the old one
+                CLog.w("Previous logcat stream of %s has not ended, not restarting",
+                        mDevice.getSerialNumber());
+            }
+            return;
+        }
+        mStopped = false;
+        mStreamThread = new Thread(String.format("LogcatRingBuffer-%s",
+                mDevice.getSerialNumber())) {
+            @Override
+            public void run() {
+                streamLogcat();
+            }
+        };
+        mStreamThread.setDaemon(true);
+        mStreamThread.start();
+    }
+
+    /**
+     * Stop streaming the logcat. The buffered lines are kept, and streaming can be started again
+     * with {@link #start()} once the streaming thread has ended.
+     */
+    public void stop() {
+        Thread streamThread;
+        synchronized (this) {
+            mStopped = true;
+            streamThread = mStreamThread;
+        }
+        if (streamThread != null) {
+            try {
+                streamThread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                CLog.e(e);
+            }
+            if (streamThread.isAlive()) {
+                CLog.w("Logcat stream of %s did not end within %d ms", mDevice.getSerialNumber(),
+                        STOP_TIMEOUT_MS);
+            }
+        }
+    }
+
+    /**
+     * Return <code>true</code> if the logcat is being streamed.
+     */
+    public synchronized boolean isStreaming() {
+        return !mStopped && mStreamThread != null && mStreamThread.isAlive();
+    }
+
+    /**
+     * Mark the current end of the log.
+     *
+     * @return the mark, to pass to {@link #getLog(long, long, int)}
+     */
+    public synchronized long mark() {
+        return mFirstLine + mLines.size();
+    }
+
+    /**
+     * Get the log received between the given marks.
+     *
+     * @param startMark the mark returned by {@link #mark()} at the start of the log
+     * @param endMark the mark returned by {@link #mark()} at the end of the log
+     * @param maxBytes the maximum size of the log to return. If the log is larger, the newest
+     *            lines are left out.
+     * @return the log as an {@link InputStreamSource}
+     */
+    public InputStreamSource getLog(long startMark, long endMark, int maxBytes) {
+        StringBuilder log = new StringBuilder();
+        synchronized (this) {
+            // lines before the start of the buffer have already been dropped
+            long lineNumber = mFirstLine;
+            Iterator<String> iter = mLines.iterator();
+            while (iter.hasNext() && lineNumber < endMark) {
+                String line = iter.next();
+                if (lineNumber++ < startMark) {
+                    continue;
+                }
+                if (log.length() + line.length() + 1 > maxBytes) {
+                    // keep the start of the log, which holds what led up to the end
+                    break;
+                }
+                log.append(line);
+                log.append('\n');
+            }
+        }
+        try {
+            return new ByteArrayInputStreamSource(log.toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            // should never happen
+            return new ByteArrayInputStreamSource(log.toString().getBytes());
+        }
+    }
+
+    /**
+     * Add received lines to the buffer, skipping the lines a reconnected stream received before.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    synchronized void addLines(String[] lines) {
+        for (String line : lines) {
+            Matcher matcher = TIMESTAMP_PATTERN.matcher(line);
+            String timestamp = matcher.find() ? matcher.group(1) : null;
+            if (timestamp != null) {
+                mConnected = true;
+            }
+            if (mResuming && System.currentTimeMillis() > mResumeDeadline) {
+                CLog.w("Could not find the last received line in the logcat of %s",
+                        mDevice.getSerialNumber());
+                mResuming = false;
+            }
+            if (mResuming) {
+                // the dump of the device's log buffer starts with a '--------- beginning of'
+                // line, and repeats the lines received before
+                if (timestamp == null || isBeforeLastTimestamp(timestamp) ||
+                        (timestamp.equals(mLastTimestamp) &&
+                                mLastTimestampLines.contains(line))) {
+                    continue;
+                }
+                mResuming = false;
+            }
+            if (timestamp != null) {
+                if (!timestamp.equals(mLastTimestamp)) {
+                    mLastTimestamp = timestamp;
+                    mLastTimestampLines.clear();
+                }
+                mLastTimestampLines.add(line);
+            }
+            mLines.add(line);
+            mBufferedBytes += line.length() + 1;
+        }
+        while (mBufferedBytes > mMaxBytes && !mLines.isEmpty()) {
+            mBufferedBytes -= mLines.removeFirst().length() + 1;
+            mFirstLine++;
+        }
+    }
+
+    /**
+     * Stream the logcat until stopped, reconnecting whenever the stream ends.
+     */
+    private void streamLogcat() {
+        MultiLineReceiver receiver = new MultiLineReceiver() {
+            @Override
+            public void processNewLines(String[] lines) {
+                addLines(lines);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return mStopped;
+            }
+        };
+        int failedConnects = 0;
+        while (!mStopped) {
+            connect();
+            try {
+                mDevice.executeShellCommand(LOGCAT_CMD, receiver, 0, 0);
+            } catch (DeviceNotAvailableException e) {
+                CLog.w("Logcat stream of %s ended: device not available",
+                        mDevice.getSerialNumber());
+                break;
+            } catch (RuntimeException e) {
+                CLog.w("Logcat stream of %s ended: %s", mDevice.getSerialNumber(), e.toString());
+            }
+            failedConnects = isConnected() ? 0 : failedConnects + 1;
+            if (failedConnects >= MAX_FAILED_CONNECTS) {
+                CLog.w("Logcat of %s ended without output %d times, not streaming it",
+                        mDevice.getSerialNumber(), failedConnects);
+                break;
+            }
+            if (!mStopped) {
+                getRunUtil().sleep(RECONNECT_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Prepare for a new logcat, skipping the lines received before if there are any.
+     */
+    private synchronized void connect() {
+        mConnected = false;
+        mResuming = mLastTimestamp != null;
+        mResumeDeadline = System.currentTimeMillis() + RESUME_TIMEOUT_MS;
+    }
+
+    private synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    /**
+     * Return <code>true</code> if the given timestamp is before {@link #mLastTimestamp}.
+     * <p/>
+     * The timestamps have no year, so a timestamp more than half a year before or after the last
+     * one is taken to be from the next or previous year.
+     */
+    private boolean isBeforeLastTimestamp(String timestamp) {
+        long diff = getTimeInYear(timestamp) - getTimeInYear(mLastTimestamp);
+        if (diff > YEAR_MS / 2) {
+            diff -= YEAR_MS;
+        } else if (diff < -YEAR_MS / 2) {
+            diff += YEAR_MS;
+        }
+        return diff < 0;
+    }
+
+    /**
+     * Get the approximate time since the start of the year of a "MM-dd HH:mm:ss.SSS" timestamp,
+     * counting 31 days per month.
+     */
+    private static long getTimeInYear(String timestamp) {
+        long month = Long.parseLong(timestamp.substring(0, 2)) - 1;
+        long day = Long.parseLong(timestamp.substring(3, 5)) - 1;
+        long hours = Long.parseLong(timestamp.substring(6, 8));
+        long minutes = Long.parseLong(timestamp.substring(9, 11));
+        long seconds = Long.parseLong(timestamp.substring(12, 14));
+        long millis = Long.parseLong(timestamp.substring(15, 18));
+        return ((((month * 31 + day) * 24 + hours) * 60 + minutes) * 60 + seconds) * 1000 +
+                millis;
+    }
+
+    /**
+     * Exposed for unit testing
+     */
+    IRunUtil getRunUtil() {
+        return RunUtil.getDefault();
+    }
+}
@@ -21,7 +21,7 @@ import java.util.Map;
  * Static utility class for handling Cts Results.
  */
 public class CtsReportUtil {
-    private static final String CTS_RESULT_KEY = "CTS_RESULT";
+    static final String CTS_RESULT_KEY = "CTS_RESULT";
 
     /**
      * Utility method to extract CTS result from test metrics
@@ -20,8 +20,10 @@ import com.android.cts.tradefed.build.CtsBuildHelper;
 import com.android.cts.tradefed.device.DeviceInfoCollector;
 import com.android.cts.tradefed.testtype.CtsTest;
 import com.android.cts.tradefed.util.CtsHostStore;
+import com.android.cts.tradefed.util.PhaseProfiler;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.build.IFolderBuildInfo;
@@ -34,23 +36,46 @@ import com.android.tradefed.result.LogFileSaver;
 import com.android.tradefed.result.TestSummary;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
 import org.kxml2.io.KXmlSerializer;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 /**
  * Writes results to an XML files in the CTS format.
  * <p/>
- * Collects all test info in memory, then dumps to file when invocation is complete.
+ * Collects all test info, then dumps to file when invocation is complete. The results of each
+ * package are spooled to disk when its run ends, so only the packages being run are held in
+ * memory. Every result event is also recorded in a {@link ResultJournal} as it happens, so the
+ * results of a session can be recovered when continuing it, if the host died before the file was
+ * written.
+ * <p/>
+ * Logs are added to the session zip as they are reported, and the results when the invocation
+ * ends, by a {@link SessionZipWriter} compressing them on background threads.
+ * <p/>
+ * The profiles reported by the tests as logs named {@link PhaseProfiler#LOG_NAME} are not saved
+ * as logs. They are written, along with the time spent writing the report, to the
+ * {@link #PROFILE_FILE_NAME} file next to the results.
  * <p/>
  * Outputs xml in format governed by the cts_result.xsd
  */
@@ -58,6 +83,9 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
     private static final String LOG_TAG = "CtsXmlResultReporter";
 
     static final String TEST_RESULT_FILE_NAME = "testResult.xml";
+    static final String PROFILE_FILE_NAME = "phaseProfile.json";
+    /** the report sub directory package results are spooled to until the report is written */
+    static final String SPOOL_DIR_NAME = "spool";
     private static final String CTS_RESULT_FILE_VERSION = "4.4";
     private static final String[] CTS_RESULT_RESOURCES = {"cts_result.xsl", "cts_result.css",
         "logo.gif", "newrule-green.png"};
@@ -89,15 +117,46 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
     @Option(name = "result-server", description = "Server to publish test results.")
     private String mResultServer;
 
+    @Option(name = "result-container", description = "store the test results as compressed " +
+            "per-package blocks that can be read back one package at a time, instead of as " +
+            "plain xml. The session zip still holds the plain xml.")
+    private boolean mUseResultContainer = false;
+
+    @Option(name = "archive-compression-level", description = "the compression level of the " +
+            "session zip, from 0 for no compression to 9 for the best compression. " +
+            "-1 for the default level.")
+    private int mArchiveCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    @Option(name = "archive-threads", description = "the number of threads compressing logs " +
+            "and results into the session zip. Defaults to the number of processors.")
+    private int mArchiveThreads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "dedup-logs", description = "store logs in a content-addressed store in the " +
+            "log directory, which keeps each distinct chunk of log data once, instead of " +
+            "zipping each log separately.")
+    private boolean mDedupLogs = false;
+
     protected IBuildInfo mBuildInfo;
     private String mStartTime;
     private String mDeviceSerial;
     private TestResults mResults = new TestResults();
     private TestPackageResult mCurrentPkgResult = null;
+    private String mCurrentPkgName = null;
     private boolean mIsDeviceInfoRun = false;
+    /** the tests started in the current test run */
+    private List<TestIdentifier> mCurrentRunTests = new ArrayList<TestIdentifier>();
+    /** the earlier sessions that package results have been reused from, keyed by name */
+    private Map<String, TestResults> mCachedSessions = new HashMap<String, TestResults>();
+    private ResultJournal mJournal = null;
+    /** builds the session zip as logs and results are produced */
+    private SessionZipWriter mArchiver = null;
+    private LogStore mLogStore = null;
     private ResultReporter mReporter;
     private File mLogDir;
     private String mSuiteName;
+    /** the profiles reported by the tests of the invocation, as JSON */
+    private List<String> mHarnessProfiles = new ArrayList<String>();
+    private PhaseProfiler mProfiler = new PhaseProfiler();
 
     private static final Pattern mCtsLogPattern = Pattern.compile("(.*)\\+\\+\\+\\+(.*)");
 
@@ -122,6 +181,11 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
             CLog.d("Continuing session %d", mContinueSessionId);
             // reuse existing directory
             TestResultRepo resultRepo = new TestResultRepo(ctsBuildHelper.getResultsDir());
+            if (mContinueSessionId >= 0 &&
+                    mContinueSessionId < resultRepo.getSummaries().size()) {
+                // pick up the results of any earlier invocation that did not finish
+                recoverFromJournal(resultRepo.getReportDir(mContinueSessionId));
+            }
             mResults = resultRepo.getResult(mContinueSessionId);
             if (mResults == null) {
                 throw new IllegalArgumentException(String.format("Could not find session %d",
@@ -130,6 +194,9 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
             mPlanName = resultRepo.getSummaries().get(mContinueSessionId).getTestPlan();
             mStartTime = resultRepo.getSummaries().get(mContinueSessionId).getStartTime();
             mReportDir = resultRepo.getReportDir(mContinueSessionId);
+            setUpSpoolDir(mResults, mReportDir);
+            // the earlier results are only needed again for the report
+            mResults.spoolPackages();
         } else {
             if (mReportDir == null) {
                 mReportDir = ctsBuildHelper.getResultsDir();
@@ -138,6 +205,7 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
 
             mStartTime = getTimestamp();
             logResult("Created result dir %s", mReportDir.getName());
+            setUpSpoolDir(mResults, mReportDir);
         }
         mSuiteName = ctsBuildHelper.getSuiteName();
         mReporter = new ResultReporter(mResultServer, mSuiteName);
@@ -147,6 +215,149 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
         File rootLogDir = getBuildHelper(ctsBuild).getLogsDir();
         mLogDir = new File(rootLogDir, mReportDir.getName());
         mLogDir.mkdirs();
+        if (mDedupLogs) {
+            mLogStore = new LogStore(mLogDir);
+        }
+        // the log store of a continued session already holds its earlier logs
+        startArchiver(mContinueSessionId != null && mLogStore == null);
+
+        try {
+            mJournal = new ResultJournal(mReportDir);
+            mJournal.writeSessionStarted(mPlanName, mStartTime, mSuiteName);
+        } catch (IOException e) {
+            CLog.e("Failed to create result journal in %s: %s", mReportDir, e.toString());
+        }
+    }
+
+    /**
+     * Start building the session zip.
+     *
+     * @param continuing <code>true</code> if the session is being continued, in which case the
+     *            logs in its existing zip are kept
+     */
+    private void startArchiver(boolean continuing) {
+        File zipFile = getZipFile(mReportDir);
+        try {
+            mArchiver = new SessionZipWriter(zipFile, mArchiveCompressionLevel, mArchiveThreads);
+        } catch (IOException e) {
+            CLog.e("Failed to create session zip %s: %s", zipFile, e.toString());
+            return;
+        }
+        if (continuing && zipFile.exists()) {
+            try {
+                mArchiver.addEntriesFrom(zipFile, getZipLogPrefix());
+            } catch (IOException e) {
+                CLog.e("Failed to read logs from %s: %s", zipFile, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Set the spool directory of the given results, removing anything left in it by an earlier
+     * invocation.
+     */
+    private static void setUpSpoolDir(TestResults results, File reportDir) {
+        File spoolDir = new File(reportDir, SPOOL_DIR_NAME);
+        FileUtil.recursiveDelete(spoolDir);
+        results.setSpoolDir(spoolDir);
+    }
+
+    /**
+     * Recover the results of a session from its {@link ResultJournal}, if an invocation recording
+     * it did not finish. The results in the journal are merged into the session's result file,
+     * and the journal is removed.
+     *
+     * @param reportDir the session's report directory
+     */
+    static void recoverFromJournal(File reportDir) {
+        File journalFile = ResultJournal.getJournalFile(reportDir);
+        if (!journalFile.exists()) {
+            return;
+        }
+        CLog.i("Recovering results of session %s from journal", reportDir.getName());
+        CtsXmlResultReporter reporter = new CtsXmlResultReporter();
+        reporter.mReportDir = reportDir;
+        reporter.mQuietOutput = true;
+        // keep the session in the format it was stored in
+        reporter.mUseResultContainer = ResultContainer.getContainerFile(reportDir).exists();
+        File resultFile = reporter.getResultFile(reportDir);
+        if (resultFile.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(
+                        ResultContainer.openXml(resultFile), "UTF-8"));
+                reporter.mResults.parse(reader);
+            } catch (IOException e) {
+                CLog.e("Failed to read results from %s: %s", resultFile, e.toString());
+                return;
+            } catch (ParseException e) {
+                CLog.e("Failed to parse results from %s", resultFile);
+                return;
+            } finally {
+                StreamUtil.closeStream(reader);
+            }
+        }
+        setUpSpoolDir(reporter.mResults, reportDir);
+        reporter.mResults.spoolPackages();
+        try {
+            reporter.replayJournal(ResultJournal.readEvents(reportDir));
+        } catch (IOException e) {
+            CLog.e("Failed to read result journal in %s: %s", reportDir, e.toString());
+            return;
+        }
+        if (reporter.mStartTime != null &&
+                reporter.createXmlResult(resultFile, reporter.mStartTime, 0)) {
+            reporter.mResults.deleteSpoolDir();
+            journalFile.delete();
+            new SessionIndex(reportDir.getParentFile()).update(reportDir);
+        }
+    }
+
+    /**
+     * Apply the given journal events to the results.
+     */
+    private void replayJournal(List<String[]> events) {
+        for (String[] event : events) {
+            try {
+                replayJournalEvent(event);
+            } catch (RuntimeException e) {
+                // a corrupt event, skip it
+                CLog.w("Skipping result journal event %s: %s", event[0], e.toString());
+            }
+        }
+    }
+
+    private void replayJournalEvent(String[] event) {
+        String type = event[0];
+        if (ResultJournal.SESSION_STARTED.equals(type)) {
+            mPlanName = event[1];
+            mStartTime = event[2];
+            mSuiteName = event[3];
+        } else if (ResultJournal.RUN_STARTED.equals(type)) {
+            testRunStarted(event[1], Integer.parseInt(event[2]));
+        } else if (ResultJournal.TEST_STARTED.equals(type)) {
+            TestIdentifier test = new TestIdentifier(event[1], event[2]);
+            testStarted(test);
+            long startTime = Long.parseLong(event[3]);
+            mCurrentPkgResult.findTest(test).setTimes(startTime, startTime);
+        } else if (ResultJournal.TEST_FAILED.equals(type)) {
+            testFailed(TestFailure.FAILURE, new TestIdentifier(event[1], event[2]), event[3]);
+        } else if (ResultJournal.TEST_ENDED.equals(type)) {
+            TestIdentifier test = new TestIdentifier(event[1], event[2]);
+            Map<String, String> testMetrics = new HashMap<String, String>();
+            if (event[4] != null && event[4].length() > 0) {
+                testMetrics.put(CtsReportUtil.CTS_RESULT_KEY, event[4]);
+            }
+            testEnded(test, testMetrics);
+            Test result = mCurrentPkgResult.findTest(test);
+            result.setTimes(result.getStartTimeMs(), Long.parseLong(event[3]));
+        } else if (ResultJournal.RUN_ENDED.equals(type)) {
+            Map<String, String> runMetrics = new HashMap<String, String>();
+            for (int i = 1; i + 1 < event.length; i += 2) {
+                runMetrics.put(event[i], event[i + 1]);
+            }
+            testRunEnded(0, runMetrics);
+        }
     }
 
     /**
@@ -201,16 +412,74 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
      * {@inheritDoc}
      */
     @Override
-    public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
+    public void testLog(final String dataName, final LogDataType dataType,
+            InputStreamSource dataStream) {
+        // the source is only valid during this call, so copy the data, and leave saving and
+        // compressing it to the archiving threads if there are any
+        final byte[] data = readLogData(dataName, dataStream);
+        if (data == null) {
+            return;
+        }
+        if (PhaseProfiler.LOG_NAME.equals(dataName)) {
+            mHarnessProfiles.add(new String(data, Charset.forName("UTF-8")));
+            return;
+        }
+        final SessionZipWriter archiver = mArchiver;
+        Runnable saveTask = new Runnable() {
+            @Override
+            public void run() {
+                saveLog(dataName, dataType, data, archiver);
+            }
+        };
+        if (archiver != null) {
+            archiver.execute(saveTask);
+        } else {
+            saveTask.run();
+        }
+    }
+
+    /**
+     * Save a log to the log directory, and add it to the session zip.
+     *
+     * @param archiver the {@link SessionZipWriter} building the session zip, or
+     *            <code>null</code>
+     */
+    private void saveLog(String dataName, LogDataType dataType, byte[] data,
+            SessionZipWriter archiver) {
         try {
+            if (mLogStore != null) {
+                // the store is added to the session zip as a whole, once all logs are saved
+                String logName = mLogStore.save(dataName, dataType, data);
+                logResult(String.format("Saved log %s", logName));
+                return;
+            }
             File logFile = getLogFileSaver().saveAndZipLogData(dataName, dataType,
-                    dataStream.createInputStream());
+                    new ByteArrayInputStream(data));
             logResult(String.format("Saved log %s", logFile.getName()));
+            if (archiver != null) {
+                archiver.addData(String.format("%s%s.%s", getZipLogPrefix(),
+                        FileUtil.getBaseName(logFile.getName()), dataType.getFileExt()), data);
+            }
         } catch (IOException e) {
             CLog.e("Failed to write log for %s", dataName);
         }
     }
 
+    private byte[] readLogData(String dataName, InputStreamSource dataStream) {
+        InputStream stream = null;
+        try {
+            stream = dataStream.createInputStream();
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            StreamUtil.copyStreams(stream, data);
+            return data.toByteArray();
+        } catch (IOException e) {
+            CLog.e("Failed to read log for %s", dataName);
+            return null;
+        } finally {
+            StreamUtil.closeStream(stream);
+        }
+    }
+
     /**
      * Return the {@link LogFileSaver} to use.
      * <p/>
@@ -225,22 +494,28 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
      */
     @Override
     public void testRunStarted(String name, int numTests) {
-        if (mCurrentPkgResult != null && !name.equals(mCurrentPkgResult.getAppPackageName())) {
+        if (mCurrentPkgName != null && !name.equals(mCurrentPkgName)) {
             // display results from previous run
-            logCompleteRun(mCurrentPkgResult);
+            logCompleteRun(mCurrentPkgName);
         }
         mIsDeviceInfoRun = name.equals(DeviceInfoCollector.APP_PACKAGE_NAME);
+        mCurrentRunTests.clear();
         if (mIsDeviceInfoRun) {
             logResult("Collecting device info");
         } else  {
-            if (mCurrentPkgResult == null || !name.equals(mCurrentPkgResult.getAppPackageName())) {
+            if (!name.equals(mCurrentPkgName)) {
                 logResult("-----------------------------------------");
                 logResult("Test package %s started", name);
                 logResult("-----------------------------------------");
             }
+            // a package can be reported in several runs, e.g. when it has been split by class
+            // across shards. Merge them into a single package result
             mCurrentPkgResult = mResults.getOrCreatePackage(name);
+            mCurrentPkgName = name;
+        }
+        if (mJournal != null) {
+            mJournal.writeRunStarted(name, numTests);
         }
-
     }
 
     /**
@@ -248,7 +523,11 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
      */
     @Override
     public void testStarted(TestIdentifier test) {
-        mCurrentPkgResult.insertTest(test);
+        Test result = mCurrentPkgResult.insertTest(test);
+        mCurrentRunTests.add(test);
+        if (mJournal != null) {
+            mJournal.writeTestStarted(test, result.getStartTimeMs());
+        }
     }
 
     /**
@@ -257,6 +536,9 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
     @Override
     public void testFailed(TestFailure status, TestIdentifier test, String trace) {
         mCurrentPkgResult.reportTestFailure(test, CtsTestStatus.FAIL, trace);
+        if (mJournal != null) {
+            mJournal.writeTestFailed(test, trace);
+        }
     }
 
     /**
@@ -264,9 +546,12 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
      */
     @Override
     public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
-        collectCtsResults(test, testMetrics);
+        String perfResult = collectCtsResults(test, testMetrics);
         mCurrentPkgResult.reportTestEnded(test);
         Test result = mCurrentPkgResult.findTest(test);
+        if (mJournal != null) {
+            mJournal.writeTestEnded(test, result.getEndTimeMs(), perfResult);
+        }
         String stack = result.getStackTrace() == null ? "" : "\n" + result.getStackTrace();
         logResult("%s#%s %s %s", test.getClassName(), test.getTestName(), result.getResult(),
                 stack);
@@ -276,8 +561,9 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
      * Collect Cts results for both device and host tests to the package result.
      * @param test test ran
      * @param testMetrics test metrics which can contain performance result for device tests
+     * @return the performance result, or <code>null</code> if there was none
      */
-    private void collectCtsResults(TestIdentifier test, Map<String, String> testMetrics) {
+    private String collectCtsResults(TestIdentifier test, Map<String, String> testMetrics) {
         // device test can have performance results in testMetrics
         String perfResult = CtsReportUtil.getCtsResultFromMetrics(testMetrics);
         // host test should be checked in CtsHostStore.
@@ -295,6 +581,7 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
                 logResult("CTS Result unrecognizable:" + perfResult);
             }
         }
+        return perfResult;
     }
 
     /**
@@ -302,10 +589,70 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
      */
     @Override
     public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        if (mJournal != null) {
+            mJournal.writeRunEnded(runMetrics);
+        }
         if (mIsDeviceInfoRun) {
             mResults.populateDeviceInfoMetrics(runMetrics);
         } else {
             mCurrentPkgResult.populateMetrics(runMetrics);
+            String cachedFrom = runMetrics.get(CtsTest.PACKAGE_CACHED_METRIC);
+            if (cachedFrom != null) {
+                reuseCachedResults(cachedFrom);
+            }
+            // the run is complete, release its results until the report is written
+            mResults.spoolPackage(mCurrentPkgName);
+            mCurrentPkgResult = null;
+        }
+    }
+
+    /**
+     * Copy the test times of the current run from the package's result in an earlier session,
+     * since the run only replayed that result.
+     *
+     * @param sessionName the name of the earlier session's result directory
+     */
+    private void reuseCachedResults(String sessionName) {
+        logResult("Reused results of %s from session %s", mCurrentPkgResult.getAppPackageName(),
+                sessionName);
+        String appPackageName = mCurrentPkgResult.getAppPackageName();
+        File sessionDir = new File(mReportDir.getParentFile(), sessionName);
+        TestPackageResult cachedPkgResult = null;
+        TestResults cachedResults = mCachedSessions.get(sessionName);
+        if (cachedResults == null && ResultContainer.getContainerFile(sessionDir).exists()) {
+            // only the package is needed, and it can be read on its own
+            try {
+                cachedPkgResult = new ResultContainer(ResultContainer.getContainerFile(
+                        sessionDir)).readPackage(appPackageName);
+            } catch (IOException e) {
+                CLog.e("Failed to read cached results of %s from %s: %s", appPackageName,
+                        sessionName, e.toString());
+            } catch (ParseException e) {
+                CLog.e("Failed to parse cached results of %s from %s", appPackageName,
+                        sessionName);
+            }
+        } else if (cachedResults == null) {
+            File resultFile = new File(sessionDir, TEST_RESULT_FILE_NAME);
+            cachedResults = new TestResults();
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(
+                        ResultContainer.openXml(resultFile), "UTF-8"));
+                cachedResults.parse(reader);
+            } catch (IOException e) {
+                CLog.e("Failed to read cached results from %s: %s", resultFile, e.toString());
+            } catch (ParseException e) {
+                CLog.e("Failed to parse cached results from %s", resultFile);
+            } finally {
+                StreamUtil.closeStream(reader);
+            }
+            mCachedSessions.put(sessionName, cachedResults);
+        }
+        if (cachedResults != null) {
+            cachedPkgResult = cachedResults.getPackage(appPackageName);
+        }
+        if (cachedPkgResult != null) {
+            mCurrentPkgResult.copyTestTimes(cachedPkgResult, mCurrentRunTests);
         }
     }
 
@@ -315,8 +662,8 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
     @Override
     public void invocationEnded(long elapsedTime) {
         // display the results of the last completed run
-        if (mCurrentPkgResult != null) {
-            logCompleteRun(mCurrentPkgResult);
+        if (mCurrentPkgName != null) {
+            logCompleteRun(mCurrentPkgName);
         }
         if (mReportDir == null || mStartTime == null) {
             // invocationStarted must have failed, abort
@@ -325,9 +672,24 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
         }
 
         File reportFile = getResultFile(mReportDir);
-        createXmlResult(reportFile, mStartTime, elapsedTime);
+        PhaseProfiler.Span reportSpan = mProfiler.start(PhaseProfiler.REPORT_WRITING);
+        boolean created = createXmlResult(reportFile, mStartTime, elapsedTime);
+        if (created) {
+            mResults.deleteSpoolDir();
+            new SessionIndex(mReportDir.getParentFile()).update(mReportDir);
+        }
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+            if (created) {
+                // the journal's results are all in the result file now
+                ResultJournal.getJournalFile(mReportDir).delete();
+            }
+        }
+        reportSpan.end();
+        writeProfile();
         copyFormattingFiles(mReportDir);
-        zipResults(mReportDir);
+        archiveResults();
 
         try {
             mReporter.reportResult(reportFile);
@@ -344,25 +706,30 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
         }
     }
 
-    private void logCompleteRun(TestPackageResult pkgResult) {
-        if (pkgResult.getAppPackageName().equals(DeviceInfoCollector.APP_PACKAGE_NAME)) {
+    private void logCompleteRun(String appPackageName) {
+        if (appPackageName.equals(DeviceInfoCollector.APP_PACKAGE_NAME)) {
             logResult("Device info collection complete");
             return;
         }
         logResult("%s package complete: Passed %d, Failed %d, Not Executed %d",
-                pkgResult.getAppPackageName(), pkgResult.countTests(CtsTestStatus.PASS),
-                pkgResult.countTests(CtsTestStatus.FAIL),
-                pkgResult.countTests(CtsTestStatus.NOT_EXECUTED));
+                appPackageName, mResults.countTests(appPackageName, CtsTestStatus.PASS),
+                mResults.countTests(appPackageName, CtsTestStatus.FAIL),
+                mResults.countTests(appPackageName, CtsTestStatus.NOT_EXECUTED));
     }
 
     /**
      * Creates a report file and populates it with the report data from the completed tests.
+     *
+     * @return <code>true</code> if the report file was created
      */
-    private void createXmlResult(File reportFile, String startTimestamp, long elapsedTime) {
+    private boolean createXmlResult(File reportFile, String startTimestamp, long elapsedTime) {
         String endTime = getTimestamp();
         OutputStream stream = null;
         try {
             stream = createOutputResultStream(reportFile);
+            if (mUseResultContainer) {
+                stream = new ResultContainer.Writer(stream);
+            }
             KXmlSerializer serializer = new KXmlSerializer();
             serializer.setOutput(stream, "UTF-8");
             serializer.startDocument("UTF-8", false);
@@ -370,8 +737,12 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
                     "http://xmlpull.org/v1/doc/features.html#indent-output", true);
             serializer.processingInstruction("xml-stylesheet type=\"text/xsl\"  " +
                     "href=\"cts_result.xsl\"");
-            serializeResultsDoc(serializer, startTimestamp, endTime);
+            serializeResultsDoc(serializer, stream, startTimestamp, endTime);
             serializer.endDocument();
+            // close now, so a container is complete before the results in the other format are
+            // removed
+            stream.close();
+            getResultFile(mReportDir, !mUseResultContainer).delete();
             String msg = String.format("XML test result file generated at %s. Passed %d, " +
                     "Failed %d, Not Executed %d", mReportDir.getName(),
                     mResults.countTests(CtsTestStatus.PASS),
@@ -379,8 +750,10 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
                     mResults.countTests(CtsTestStatus.NOT_EXECUTED));
             logResult(msg);
             logResult("Time: %s", TimeUtil.formatElapsedTime(elapsedTime));
+            return true;
         } catch (IOException e) {
             Log.e(LOG_TAG, "Failed to generate report data");
+            return false;
         } finally {
             StreamUtil.closeStream(stream);
         }
@@ -390,12 +763,13 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
      * Output the results XML.
      *
      * @param serializer the {@link KXmlSerializer} to use
+     * @param stream the {@link OutputStream} the serializer writes to
      * @param startTime the user-friendly starting time of the test invocation
      * @param endTime the user-friendly ending time of the test invocation
      * @throws IOException
      */
-    private void serializeResultsDoc(KXmlSerializer serializer, String startTime, String endTime)
-            throws IOException {
+    private void serializeResultsDoc(KXmlSerializer serializer, OutputStream stream,
+            String startTime, String endTime) throws IOException {
         serializer.startTag(ns, RESULT_TAG);
         serializer.attribute(ns, PLAN_ATTR, mPlanName);
         serializer.attribute(ns, STARTTIME_ATTR, startTime);
@@ -403,12 +777,19 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
         serializer.attribute(ns, "version", CTS_RESULT_FILE_VERSION);
         serializer.attribute(ns, "suite", mSuiteName);
 
-        mResults.serialize(serializer);
+        mResults.serialize(serializer, stream);
         // TODO: not sure why, but the serializer doesn't like this statement
         //serializer.endTag(ns, RESULT_TAG);
     }
 
     private File getResultFile(File reportDir) {
+        return getResultFile(reportDir, mUseResultContainer);
+    }
+
+    private static File getResultFile(File reportDir, boolean useResultContainer) {
+        if (useResultContainer) {
+            return ResultContainer.getContainerFile(reportDir);
+        }
         return new File(reportDir, TEST_RESULT_FILE_NAME);
     }
 
@@ -420,6 +801,33 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
         return new FileOutputStream(reportFile);
     }
 
+    /**
+     * Write the profiles of the tests and the reporter to the {@link #PROFILE_FILE_NAME} file, as
+     * a JSON object with a <code>harness</code> array and a <code>report</code> object.
+     */
+    private void writeProfile() {
+        StringBuilder json = new StringBuilder("{\"harness\":[");
+        for (int i = 0; i < mHarnessProfiles.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(mHarnessProfiles.get(i));
+        }
+        json.append("],\"report\":");
+        json.append(mProfiler.toJson());
+        json.append("}\n");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(
+                    new File(mReportDir, PROFILE_FILE_NAME)), "UTF-8");
+            writer.write(json.toString());
+        } catch (IOException e) {
+            CLog.e("Failed to write phase profile: %s", e.toString());
+        } finally {
+            StreamUtil.closeStream(writer);
+        }
+    }
+
     /**
      * Copy the xml formatting files stored in this jar to the results directory
      *
@@ -442,6 +850,65 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
         }
     }
 
+    /**
+     * Add the contents of the results directory to the session zip, and complete it. If the
+     * session zip could not be built incrementally, the directory is zipped as a whole instead.
+     * <p/>
+     * The session zip always holds the plain XML results, which the formatting files display, so
+     * results stored in a {@link ResultContainer} are converted for the time of the zipping.
+     */
+    private void archiveResults() {
+        File xmlFile = null;
+        if (mUseResultContainer) {
+            xmlFile = new File(mReportDir, TEST_RESULT_FILE_NAME);
+            try {
+                new ResultContainer(ResultContainer.getContainerFile(mReportDir)).writeXml(
+                        xmlFile);
+            } catch (IOException e) {
+                CLog.e("Failed to convert the results of %s to xml: %s", mReportDir.getName(),
+                        e.toString());
+            }
+        }
+        try {
+            if (mArchiver == null) {
+                zipResults(mReportDir);
+                return;
+            }
+            mArchiver.addDir(String.format("%s/", mReportDir.getName()), mReportDir);
+            if (mLogStore != null) {
+                mArchiver.waitForTasks();
+                mArchiver.addDir(getZipLogPrefix(), mLogDir);
+            }
+            try {
+                mArchiver.close();
+            } catch (IOException e) {
+                CLog.e("Failed to complete session zip: %s", e.toString());
+                zipResults(mReportDir);
+            }
+            mArchiver = null;
+        } finally {
+            if (xmlFile != null) {
+                // the container is the stored copy of the results
+                xmlFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Get the session zip of the given results directory: a file in the parent directory, with
+     * the same name as the results directory.
+     */
+    private static File getZipFile(File resultsDir) {
+        return new File(resultsDir.getParent(), String.format("%s.zip", resultsDir.getName()));
+    }
+
+    /**
+     * Get the prefix of the names of the log entries in the session zip.
+     */
+    private String getZipLogPrefix() {
+        return String.format("%s/logs/", mReportDir.getName());
+    }
+
     /**
      * Zip the contents of the given results directory.
      *
@@ -449,10 +916,7 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
      */
     private void zipResults(File resultsDir) {
         try {
-            // create a file in parent directory, with same name as resultsDir
-            File zipResultFile = new File(resultsDir.getParent(), String.format("%s.zip",
-                    resultsDir.getName()));
-            FileUtil.createZip(resultsDir, zipResultFile);
+            FileUtil.createZip(resultsDir, getZipFile(resultsDir));
         } catch (IOException e) {
             Log.w(LOG_TAG, String.format("Failed to create zip for %s", resultsDir.getName()));
         }
@@ -15,8 +15,12 @@
  */
 package com.android.cts.tradefed.result;
 
+import com.android.ddmlib.testrunner.TestIdentifier;
+
 import java.io.File;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Repository for CTS results.
@@ -38,11 +42,77 @@ public interface ITestResultRepo {
      */
     public TestResults getResult(int sessionId);
 
+    /**
+     * Get the result of one package in the given session. If the session is stored as a
+     * {@link ResultContainer}, only that package is read.
+     *
+     * @param sessionId the session id
+     * @param appPackageName the app package name
+     * @return the {@link TestPackageResult} or <code>null</null> if the package result cannot be
+     *         retrieved
+     */
+    public TestPackageResult getPackageResult(int sessionId, String appPackageName);
+
+    /**
+     * Get the tests with the given status in the given session, without reading the full
+     * {@link TestResults}.
+     *
+     * @param sessionId the session id
+     * @param status the {@link CtsTestStatus} to filter by
+     * @return a {@link Map} of app package name to the package's tests with the status, for every
+     *         package in the session, or <code>null</null> if the result with that session id
+     *         cannot be retrieved
+     */
+    public Map<String, Collection<TestIdentifier>> getTestsWithStatus(int sessionId,
+            CtsTestStatus status);
+
+    /**
+     * Get the build fingerprint of the device the given session ran on, without reading the full
+     * {@link TestResults}.
+     *
+     * @param sessionId the session id
+     * @return the fingerprint, or <code>null</code> if the session has no device info or cannot
+     *         be retrieved
+     */
+    public String getBuildFingerprint(int sessionId);
+
+    /**
+     * Get the tests that passed in the given session, for each package that has a digest and no
+     * performance results, without reading the full {@link TestResults}.
+     *
+     * @param sessionId the session id
+     * @return a {@link Map} of package digest to the package's passed tests, or
+     *         <code>null</code> if the result with that session id cannot be retrieved
+     */
+    public Map<String, Collection<TestIdentifier>> getPassedTestsByDigest(int sessionId);
+
     /**
      * Get the report directory for given result
      * @param sessionId
-     * @return
+     * @return the report directory, or <code>null</code> if the session does not exist
      */
     public File getReportDir(int sessionId);
 
+    /**
+     * Get the time taken to run each test package, as recorded in the most recent sessions.
+     * <p/>
+     * If a package was run in more than one of the examined sessions, the most recent time is
+     * used.
+     *
+     * @param maxSessions the maximum number of most recent sessions to examine
+     * @return a {@link Map} of test package uri to elapsed time in ms
+     */
+    public Map<String, Long> getPackageRuntimes(int maxSessions);
+
+    /**
+     * Get the average time taken to run a test on each device model, as recorded in the most
+     * recent sessions.
+     * <p/>
+     * Sessions run across devices of different models are ignored.
+     *
+     * @param maxSessions the maximum number of most recent sessions to examine
+     * @return a {@link Map} of device model to average test duration in ms
+     */
+    public Map<String, Double> getTestDurationsByModel(int maxSessions);
+
 }
@@ -28,6 +28,8 @@ import com.android.tradefed.result.TestSummary;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
@@ -42,6 +44,10 @@ import java.util.zip.GZIPOutputStream;
 public class IssueReporter implements ITestInvocationListener {
 
     private static final int BUGREPORT_SIZE = 500 * 1024;
+    /** the maximum number of issues held until the end of the test run */
+    private static final int MAX_PENDING_ISSUES = 100;
+    /** the maximum total size of the gzipped bug reports held until the end of the test run */
+    private static final long MAX_PENDING_BUGREPORT_BYTES = 20 * BUGREPORT_SIZE;
 
     private static final String PRODUCT_NAME_KEY = "buildName";
     private static final String BUILD_TYPE_KEY = "build_type";
@@ -52,48 +58,84 @@ public class IssueReporter implements ITestInvocationListener {
 
     private final ExecutorService mReporterService = Executors.newCachedThreadPool();
 
-    private Issue mCurrentIssue;
+    /**
+     * the issues of the current test run, keyed by the name of their bugreport. They are submitted
+     * when the run ends, since bugreports are captured asynchronously and may arrive after the
+     * failed test has ended.
+     */
+    private final Map<String, Issue> mPendingIssues = new LinkedHashMap<String, Issue>();
+    /** the total size of the bug reports of {@link #mPendingIssues} */
+    private long mPendingBugReportBytes = 0;
     private String mBuildId;
     private String mBuildType;
     private String mProductName;
 
     @Override
     public void testFailed(TestFailure status, TestIdentifier test, String trace) {
-        mCurrentIssue = new Issue();
-        mCurrentIssue.mTestName = test.toString();
-        mCurrentIssue.mStackTrace = trace;
+        Issue issue = new Issue();
+        issue.mTestName = test.toString();
+        issue.mStackTrace = trace;
+        Issue replacedIssue = mPendingIssues.put(String.format("bug-%s_%s", test.getClassName(),
+                test.getTestName()), issue);
+        if (replacedIssue != null && replacedIssue.mBugReport != null) {
+            mPendingBugReportBytes -= replacedIssue.mBugReport.length;
+        }
+        submitExcessIssues();
     }
 
     @Override
     public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
         if (dataName.startsWith("bug-")) {
             try {
-                setBugReport(dataStream);
+                setBugReport(mPendingIssues.get(dataName), dataStream);
             } catch (IOException e) {
                 CLog.e(e);
             }
+            submitExcessIssues();
+        }
+    }
+
+    /**
+     * Submit the oldest pending issues early, while more than {@link #MAX_PENDING_ISSUES} issues
+     * or {@link #MAX_PENDING_BUGREPORT_BYTES} of bug reports are pending. An issue submitted
+     * before its bug report arrives is reported without one.
+     */
+    private void submitExcessIssues() {
+        Iterator<Issue> issues = mPendingIssues.values().iterator();
+        while (issues.hasNext() && (mPendingIssues.size() > MAX_PENDING_ISSUES ||
+                mPendingBugReportBytes > MAX_PENDING_BUGREPORT_BYTES)) {
+            Issue issue = issues.next();
+            issues.remove();
+            if (issue.mBugReport != null) {
+                mPendingBugReportBytes -= issue.mBugReport.length;
+            }
+            mReporterService.submit(issue);
         }
     }
 
     /**
-     * Set the bug report for the current test failure. GZip it to save space.
+     * Set the bug report for the given test failure. GZip it to save space.
      * This is only called when the --bugreport option is enabled.
      */
-    private void setBugReport(InputStreamSource dataStream) throws IOException {
-        if (mCurrentIssue != null) {
-            // Only one bug report can be stored at a time and they are gzipped to
-            // about 0.5 MB so there shoudn't be any memory leak bringing down CTS.
+    private void setBugReport(Issue issue, InputStreamSource dataStream) throws IOException {
+        if (issue != null) {
+            // The bug reports of a test run are held until the run ends, see
+            // submitExcessIssues() for the limit. They are gzipped to about 0.5 MB each.
             InputStream input = null;
             try {
                 input = dataStream.createInputStream();
-                mCurrentIssue.mBugReport = getBytes(input, BUGREPORT_SIZE);
+                if (issue.mBugReport != null) {
+                    mPendingBugReportBytes -= issue.mBugReport.length;
+                }
+                issue.mBugReport = getBytes(input, BUGREPORT_SIZE);
+                mPendingBugReportBytes += issue.mBugReport.length;
             } finally {
                 if (input != null) {
                     input.close();
                 }
             }
         } else {
-            CLog.e("setBugReport is getting called on an empty issue...");
+            CLog.e("setBugReport is getting called for an unknown issue...");
         }
     }
 
@@ -119,15 +161,16 @@ public class IssueReporter implements ITestInvocationListener {
 
     @Override
     public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
-        if (mCurrentIssue != null) {
-            mReporterService.submit(mCurrentIssue);
-            mCurrentIssue = null;
-        }
     }
 
     @Override
     public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
         setDeviceMetrics(runMetrics);
+        for (Issue issue : mPendingIssues.values()) {
+            mReporterService.submit(issue);
+        }
+        mPendingIssues.clear();
+        mPendingBugReportBytes = 0;
     }
 
     /** Set device information. Populated once when the device info app runs. */
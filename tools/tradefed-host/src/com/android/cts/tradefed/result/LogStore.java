@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.tradefed.util.DigestCache;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.util.StreamUtil;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A content-addressed store of the logs of a session.
+ * <p/>
+ * Each log is split into chunks, and each distinct chunk is stored once in the
+ * {@link #OBJECTS_DIR_NAME} directory, named after its SHA-1 hash. The log itself is recorded as
+ * a line of the {@link #INDEX_FILE_NAME} file, listing the hashes of its chunks. So the nearly
+ * identical logs captured when a whole class fails the same way take little more space than one.
+ * <p/>
+ * Text logs are split at line boundaries chosen by the content of the lines, so the lines
+ * shared by overlapping logcat slices end up in the same chunks whatever their position in each
+ * slice. Screenshots are stored whole, keyed by the hash of their decoded pixels, so images that
+ * only differ in encoding are stored once. Other logs are stored whole.
+ * <p/>
+ * The logs can be written back out as separate files with {@link #extractLogs(File, File)}.
+ */
+public class LogStore {
+
+    static final String OBJECTS_DIR_NAME = "objects";
+    static final String INDEX_FILE_NAME = "logIndex.txt";
+
+    /** a chunk ends after a line whose hash has these bits clear */
+    private static final int CHUNK_MASK = 0x1f;
+    private static final int MIN_CHUNK_LINES = 8;
+    private static final int MAX_CHUNK_LINES = 256;
+
+    private final File mObjectsDir;
+    private final File mIndexFile;
+    /** the hashes of the stored chunks */
+    private final Set<String> mChunks = new HashSet<String>();
+    /** the chunk hashes of each log, keyed by log name */
+    private final Map<String, List<String>> mLogs = new HashMap<String, List<String>>();
+
+    /**
+     * Open the store in the given log directory, picking up the logs already stored in it.
+     *
+     * @param logDir the log directory of the session
+     */
+    LogStore(File logDir) {
+        mObjectsDir = new File(logDir, OBJECTS_DIR_NAME);
+        mIndexFile = new File(logDir, INDEX_FILE_NAME);
+        String[] objectNames = mObjectsDir.list();
+        if (objectNames != null) {
+            for (String objectName : objectNames) {
+                if (!objectName.endsWith(".tmp")) {
+                    mChunks.add(objectName);
+                }
+            }
+        }
+        loadIndex();
+    }
+
+    /**
+     * Store a log.
+     *
+     * @param dataName the name of the log
+     * @param dataType the {@link LogDataType} of the log
+     * @param data the log data
+     * @return the unique name the log is stored under
+     * @throws IOException if the log could not be stored
+     */
+    String save(String dataName, LogDataType dataType, byte[] data) throws IOException {
+        mObjectsDir.mkdirs();
+        List<String> chunkHashes = new ArrayList<String>();
+        if (LogDataType.PNG.equals(dataType)) {
+            String hash = getImageHash(data);
+            saveChunk(hash, data, 0, data.length, false);
+            chunkHashes.add(hash);
+        } else if (LogDataType.TEXT.equals(dataType) || LogDataType.XML.equals(dataType)) {
+            int chunkStart = 0;
+            int lineHash = 0;
+            int lines = 0;
+            for (int i = 0; i < data.length; i++) {
+                lineHash = 31 * lineHash + data[i];
+                if (data[i] != '\n') {
+                    continue;
+                }
+                lines++;
+                if ((lines >= MIN_CHUNK_LINES && (lineHash & CHUNK_MASK) == 0) ||
+                        lines >= MAX_CHUNK_LINES) {
+                    chunkHashes.add(saveChunk(data, chunkStart, i + 1 - chunkStart));
+                    chunkStart = i + 1;
+                    lines = 0;
+                }
+                lineHash = 0;
+            }
+            if (chunkStart < data.length) {
+                chunkHashes.add(saveChunk(data, chunkStart, data.length - chunkStart));
+            }
+        } else {
+            chunkHashes.add(saveChunk(data, 0, data.length));
+        }
+        return addToIndex(dataName, dataType, chunkHashes);
+    }
+
+    /**
+     * Write each log stored in a log directory to a file of its own.
+     *
+     * @param logDir the log directory of the session
+     * @param destDir the directory to write the logs to
+     * @return the number of logs written
+     * @throws IOException if the log directory holds no store, or a log could not be written
+     */
+    public static int extractLogs(File logDir, File destDir) throws IOException {
+        if (!new File(logDir, INDEX_FILE_NAME).exists()) {
+            throw new IOException(String.format("No stored logs in %s", logDir));
+        }
+        destDir.mkdirs();
+        LogStore store = new LogStore(logDir);
+        Set<String> logNames = store.getLogNames();
+        for (String logName : logNames) {
+            OutputStream out = null;
+            try {
+                out = new BufferedOutputStream(new FileOutputStream(new File(destDir, logName)));
+                store.copyLog(logName, out);
+            } finally {
+                StreamUtil.closeStream(out);
+            }
+        }
+        return logNames.size();
+    }
+
+    /**
+     * Get the names of the stored logs.
+     */
+    synchronized Set<String> getLogNames() {
+        return new HashSet<String>(mLogs.keySet());
+    }
+
+    /**
+     * Write a stored log back out.
+     *
+     * @param logName the name the log is stored under
+     * @param out the {@link OutputStream} to write the log to
+     * @throws IOException if the log is unknown or could not be read
+     */
+    void copyLog(String logName, OutputStream out) throws IOException {
+        List<String> chunkHashes;
+        synchronized (this) {
+            chunkHashes = mLogs.get(logName);
+        }
+        if (chunkHashes == null) {
+            throw new IOException(String.format("Unknown log %s", logName));
+        }
+        for (String hash : chunkHashes) {
+            InputStream chunkStream = null;
+            try {
+                chunkStream = new FileInputStream(new File(mObjectsDir, hash));
+                if (!logName.endsWith(LogDataType.PNG.getFileExt())) {
+                    chunkStream = new GZIPInputStream(chunkStream);
+                }
+                StreamUtil.copyStreams(chunkStream, out);
+            } finally {
+                StreamUtil.closeStream(chunkStream);
+            }
+        }
+    }
+
+    private String saveChunk(byte[] data, int offset, int length) throws IOException {
+        MessageDigest md = getSha1();
+        md.update(data, offset, length);
+        String hash = DigestCache.toHexString(md.digest());
+        saveChunk(hash, data, offset, length, true);
+        return hash;
+    }
+
+    private void saveChunk(String hash, byte[] data, int offset, int length, boolean compress)
+            throws IOException {
+        synchronized (this) {
+            if (!mChunks.add(hash)) {
+                return;
+            }
+        }
+        // write to a temporary file first, so a partly written chunk is never used
+        File tmpFile = new File(mObjectsDir, hash + ".tmp");
+        OutputStream out = null;
+        boolean saved = false;
+        try {
+            out = new FileOutputStream(tmpFile);
+            if (compress) {
+                out = new GZIPOutputStream(out);
+            }
+            out.write(data, offset, length);
+            out.close();
+            saved = tmpFile.renameTo(new File(mObjectsDir, hash));
+            if (!saved) {
+                throw new IOException(String.format("Failed to store log chunk %s", hash));
+            }
+        } finally {
+            StreamUtil.closeStream(out);
+            if (!saved) {
+                tmpFile.delete();
+                synchronized (this) {
+                    mChunks.remove(hash);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the hash of an image's pixels, or of its data if it cannot be decoded.
+     */
+    private String getImageHash(byte[] data) throws IOException {
+        MessageDigest md = getSha1();
+        BufferedImage image = null;
+        try {
+            image = ImageIO.read(new ByteArrayInputStream(data));
+        } catch (IOException e) {
+            CLog.w("Failed to decode screenshot: %s", e.toString());
+        }
+        if (image == null) {
+            md.update(data);
+        } else {
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int[] row = new int[width];
+            byte[] rowBytes = new byte[width * 4];
+            md.update(String.format("%dx%d", width, height).getBytes("UTF-8"));
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                for (int x = 0; x < width; x++) {
+                    rowBytes[x * 4] = (byte)(row[x] >> 24);
+                    rowBytes[x * 4 + 1] = (byte)(row[x] >> 16);
+                    rowBytes[x * 4 + 2] = (byte)(row[x] >> 8);
+                    rowBytes[x * 4 + 3] = (byte)row[x];
+                }
+                md.update(rowBytes);
+            }
+        }
+        return DigestCache.toHexString(md.digest());
+    }
+
+    private synchronized String addToIndex(String dataName, LogDataType dataType,
+            List<String> chunkHashes) throws IOException {
+        String logName = String.format("%s_%d.%s", dataName, mLogs.size(),
+                dataType.getFileExt());
+        StringBuilder line = new StringBuilder(logName);
+        for (String hash : chunkHashes) {
+            line.append('\t');
+            line.append(hash);
+        }
+        line.append('\n');
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(mIndexFile, true), "UTF-8");
+            writer.write(line.toString());
+        } finally {
+            StreamUtil.closeStream(writer);
+        }
+        mLogs.put(logName, Collections.unmodifiableList(chunkHashes));
+        return logName;
+    }
+
+    private void loadIndex() {
+        if (!mIndexFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mIndexFile),
+                    "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                List<String> chunkHashes = new ArrayList<String>(fields.length - 1);
+                for (int i = 1; i < fields.length; i++) {
+                    chunkHashes.add(fields[i]);
+                }
+                mLogs.put(fields[0], chunkHashes);
+            }
+        } catch (IOException e) {
+            CLog.e("Failed to read log index %s: %s", mIndexFile, e.toString());
+        } finally {
+            StreamUtil.closeStream(reader);
+        }
+    }
+
+    private static MessageDigest getSha1() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 not available");
+        }
+    }
+}
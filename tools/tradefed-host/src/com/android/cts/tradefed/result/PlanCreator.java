@@ -16,11 +16,12 @@
 package com.android.cts.tradefed.result;
 
 import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.cts.tradefed.testtype.CtsBuildModel;
 import com.android.cts.tradefed.testtype.CtsTest;
 import com.android.cts.tradefed.testtype.ITestPackageDef;
 import com.android.cts.tradefed.testtype.ITestPackageRepo;
 import com.android.cts.tradefed.testtype.ITestPlan;
-import com.android.cts.tradefed.testtype.TestPackageRepo;
+import com.android.cts.tradefed.testtype.TestIdRegistry;
 import com.android.cts.tradefed.testtype.TestPlan;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
@@ -35,8 +36,10 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.LinkedHashSet;
+import java.util.Map;
 
 /**
  * Class for creating test plans from CTS result XML.
@@ -60,7 +63,8 @@ public class PlanCreator {
     private boolean mIncludeKnownFailures = false;
 
     private CtsTestStatus mResultFilter = null;
-    private TestResults mResult = null;
+    /** the tests with {@link #mResultFilter} status, keyed by app package name */
+    private Map<String, Collection<TestIdentifier>> mFilteredTests = null;
 
     private File mPlanFile;
 
@@ -112,26 +116,47 @@ public class PlanCreator {
      */
     public ITestPlan createDerivedPlan(CtsBuildHelper build) throws ConfigurationException {
         checkFields(build);
-        ITestPackageRepo pkgDefRepo = new TestPackageRepo(build.getTestCasesDir(),
-                mIncludeKnownFailures);
-        ITestPlan derivedPlan = new TestPlan(mPlanName);
-        for (TestPackageResult pkg : mResult.getPackages()) {
-            Collection<TestIdentifier> filteredTests = pkg.getTestsWithStatus(mResultFilter);
-            if (!filteredTests.isEmpty()) {
-                String pkgUri = pkg.getAppPackageName();
-                ITestPackageDef pkgDef = pkgDefRepo.getTestPackage(pkgUri);
-                if (pkgDef != null) {
-                    Collection<TestIdentifier> excludedTests = new LinkedHashSet<TestIdentifier>(
-                            pkgDef.getTests());
-                    excludedTests.removeAll(filteredTests);
-                    derivedPlan.addPackage(pkgUri);
-                    derivedPlan.addExcludedTests(pkgUri, excludedTests);
-                } else {
-                    CLog.e("Could not find package %s in repository", pkgUri);
+        CtsBuildModel buildModel = CtsBuildModel.acquire(build, mIncludeKnownFailures);
+        try {
+            ITestPackageRepo pkgDefRepo = buildModel.getTestPackageRepo();
+            ITestPlan derivedPlan = new TestPlan(mPlanName);
+            TestIdRegistry registry = TestIdRegistry.getInstance();
+            for (Map.Entry<String, Collection<TestIdentifier>> pkgEntry :
+                    mFilteredTests.entrySet()) {
+                Collection<TestIdentifier> filteredTests = pkgEntry.getValue();
+                if (!filteredTests.isEmpty()) {
+                    String pkgUri = pkgEntry.getKey();
+                    ITestPackageDef pkgDef = pkgDefRepo.getTestPackage(pkgUri);
+                    if (pkgDef != null) {
+                        // only look tests up, so tests from old results that are no longer in
+                        // the build are not registered for the life of the process. The tests
+                        // of the package are all registered, so an unknown test is not in it.
+                        BitSet filteredIds = new BitSet();
+                        for (TestIdentifier test : filteredTests) {
+                            int id = registry.findId(test);
+                            if (id >= 0) {
+                                filteredIds.set(id);
+                            }
+                        }
+                        Collection<TestIdentifier> excludedTests =
+                                new ArrayList<TestIdentifier>();
+                        for (TestIdentifier test : pkgDef.getTests()) {
+                            int id = registry.findId(test);
+                            if (id < 0 || !filteredIds.get(id)) {
+                                excludedTests.add(test);
+                            }
+                        }
+                        derivedPlan.addPackage(pkgUri);
+                        derivedPlan.addExcludedTests(pkgUri, excludedTests);
+                    } else {
+                        CLog.e("Could not find package %s in repository", pkgUri);
+                    }
                 }
             }
+            return derivedPlan;
+        } finally {
+            buildModel.release();
         }
-        return derivedPlan;
     }
 
     /**
@@ -143,12 +168,6 @@ public class PlanCreator {
         if (mSessionId == null) {
             throw new ConfigurationException("Missing --session argument");
         }
-        ITestResultRepo repo = new TestResultRepo(build.getResultsDir());
-        mResult = repo.getResult(mSessionId);
-        if (mResult == null) {
-            throw new ConfigurationException(String.format("Could not find session with id %d",
-                    mSessionId));
-        }
         if (mResultFilterString == null) {
             throw new ConfigurationException("Missing --result argument");
         }
@@ -157,6 +176,13 @@ public class PlanCreator {
             throw new ConfigurationException(
                     "Invalid result argument. Expected one of pass,fail,notExecuted");
         }
+        // only the tests with the status are needed, so skip building the full results
+        ITestResultRepo repo = new TestResultRepo(build.getResultsDir());
+        mFilteredTests = repo.getTestsWithStatus(mSessionId, mResultFilter);
+        if (mFilteredTests == null) {
+            throw new ConfigurationException(String.format("Could not find session with id %d",
+                    mSessionId));
+        }
         if (mPlanName == null) {
             throw new ConfigurationException("Missing --plan argument");
         }
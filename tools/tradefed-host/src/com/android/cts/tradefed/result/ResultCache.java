@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A cache of the tests that passed in recent sessions, used to skip test packages that are
+ * unchanged since they last passed.
+ * <p/>
+ * A package's earlier result can be reused if the package digest and the device build
+ * fingerprint are the same, and every test to be run passed in that result. Packages with
+ * performance results are never cached, since those are not kept in the result XML.
+ * <p/>
+ * Only the passed tests of each session are read, without building the full results. The cache
+ * is not modified once built, so it can be shared by the shards of an invocation.
+ */
+public class ResultCache {
+
+    /** the passed tests of a package in a session */
+    private static class CachedPackage {
+        final String mSessionName;
+        final Set<TestIdentifier> mPassedTests;
+
+        CachedPackage(String sessionName, Collection<TestIdentifier> passedTests) {
+            mSessionName = sessionName;
+            mPassedTests = new HashSet<TestIdentifier>(passedTests);
+        }
+    }
+
+    /** the most recent cached package for each package digest and build fingerprint */
+    private final Map<String, CachedPackage> mCachedPackages =
+            new HashMap<String, CachedPackage>();
+
+    /**
+     * Create a {@link ResultCache} from the most recent sessions of the given repo.
+     *
+     * @param repo the {@link ITestResultRepo} to read results from
+     * @param maxSessions the maximum number of most recent sessions to read
+     */
+    public ResultCache(ITestResultRepo repo, int maxSessions) {
+        int numSessions = repo.getSummaries().size();
+        int oldestSessionId = Math.max(0, numSessions - maxSessions);
+        // walk from the most recent session backwards, so the latest result of each package
+        // is used
+        for (int i = numSessions - 1; i >= oldestSessionId; i--) {
+            String fingerprint = repo.getBuildFingerprint(i);
+            if (fingerprint == null || fingerprint.startsWith("ERROR:")) {
+                // no device info, or session was run across different builds
+                continue;
+            }
+            Map<String, Collection<TestIdentifier>> passedTests = repo.getPassedTestsByDigest(i);
+            if (passedTests == null) {
+                continue;
+            }
+            File reportDir = repo.getReportDir(i);
+            for (Map.Entry<String, Collection<TestIdentifier>> pkgEntry :
+                    passedTests.entrySet()) {
+                String key = getKey(pkgEntry.getKey(), fingerprint);
+                if (!mCachedPackages.containsKey(key)) {
+                    mCachedPackages.put(key, new CachedPackage(reportDir.getName(),
+                            pkgEntry.getValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Find an earlier session in which all the given tests of a package passed.
+     *
+     * @param digest the package digest
+     * @param fingerprint the build fingerprint of the device the tests are to be run on
+     * @param tests the {@link TestIdentifier}s of the tests to be run
+     * @return the name of the session, or <code>null</code> if the package must be run
+     */
+    public String lookup(String digest, String fingerprint, Collection<TestIdentifier> tests) {
+        if (digest == null || fingerprint == null || tests.isEmpty()) {
+            return null;
+        }
+        CachedPackage cachedPkg = mCachedPackages.get(getKey(digest, fingerprint));
+        if (cachedPkg == null || !cachedPkg.mPassedTests.containsAll(tests)) {
+            return null;
+        }
+        return cachedPkg.mSessionName;
+    }
+
+    private static String getKey(String digest, String fingerprint) {
+        return String.format("%s:%s", digest, fingerprint);
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A compressed container of a CTS result XML, readable one package at a time.
+ * <p/>
+ * The XML is split into blocks, one for each test package plus the parts before and after the
+ * packages, and each block is deflated on its own. A footer indexes the blocks by app package
+ * name, so the results of a package can be read without decompressing the rest. Concatenating
+ * the decompressed blocks gives back the XML exactly as it was written.
+ * <p/>
+ * The file layout is: a header of {@link #MAGIC} and {@link #VERSION}, the blocks, the index as
+ * a block count followed by the name, offset and length of each block, and a trailer of the
+ * index offset and {@link #MAGIC}.
+ */
+class ResultContainer {
+
+    static final String CONTAINER_FILE_NAME = "testResult.ctsr";
+
+    private static final int MAGIC = 0x43545352; // "CTSR"
+    private static final int VERSION = 1;
+    /** the size of the trailer: the index offset and the magic number */
+    private static final int TRAILER_SIZE = 12;
+
+    /** the location of a block in the container */
+    private static class Block {
+        /** the app package name of the block, or the empty string for the rest of the XML */
+        final String mName;
+        final long mOffset;
+        final int mLength;
+
+        Block(String name, long offset, int length) {
+            mName = name;
+            mOffset = offset;
+            mLength = length;
+        }
+    }
+
+    /**
+     * An {@link OutputStream} that writes XML into a container.
+     * <p/>
+     * Everything written goes into the current block. {@link #startBlock(String)} should be
+     * called before each package's XML is written, and again with the empty string after the
+     * last package. The index is written when the stream is closed.
+     */
+    static class Writer extends OutputStream {
+        private final DataOutputStream mOut;
+        private final List<Block> mBlocks = new ArrayList<Block>();
+        private final Deflater mDeflater = new Deflater(Deflater.BEST_COMPRESSION);
+        private final ByteArrayOutputStream mBlockData = new ByteArrayOutputStream();
+        private DeflaterOutputStream mBlockStream;
+        private String mBlockName = "";
+        private long mBlockRawLength = 0;
+        private long mOffset = 0;
+        private boolean mClosed = false;
+
+        /**
+         * @param out the {@link OutputStream} to write the container to
+         */
+        Writer(OutputStream out) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(out));
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+            mOffset = mOut.size();
+            mBlockStream = new DeflaterOutputStream(mBlockData, mDeflater);
+        }
+
+        /**
+         * End the current block, and start a new one.
+         *
+         * @param name the app package name of the new block, or the empty string if it is not a
+         *            package
+         */
+        void startBlock(String name) throws IOException {
+            endBlock();
+            mBlockName = name;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mBlockStream.write(b);
+            mBlockRawLength++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mBlockStream.write(b, off, len);
+            mBlockRawLength += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // a block is only written out once complete
+        }
+
+        /**
+         * Write the last block and the index, and close the underlying stream.
+         */
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                endBlock();
+                long indexOffset = mOffset;
+                mOut.writeInt(mBlocks.size());
+                for (Block block : mBlocks) {
+                    mOut.writeUTF(block.mName);
+                    mOut.writeLong(block.mOffset);
+                    mOut.writeInt(block.mLength);
+                }
+                mOut.writeLong(indexOffset);
+                mOut.writeInt(MAGIC);
+                mOut.flush();
+            } finally {
+                mDeflater.end();
+                mOut.close();
+            }
+        }
+
+        private void endBlock() throws IOException {
+            if (mBlockRawLength == 0) {
+                return;
+            }
+            mBlockStream.finish();
+            mBlockData.writeTo(mOut);
+            mBlocks.add(new Block(mBlockName, mOffset, mBlockData.size()));
+            mOffset += mBlockData.size();
+            mBlockData.reset();
+            mDeflater.reset();
+            mBlockStream = new DeflaterOutputStream(mBlockData, mDeflater);
+            mBlockRawLength = 0;
+        }
+    }
+
+    private final File mFile;
+    private final List<Block> mBlocks = new ArrayList<Block>();
+    private final Map<String, Block> mPackageBlocks = new HashMap<String, Block>();
+
+    /**
+     * Open a container and read its index.
+     *
+     * @param file the container file
+     * @throws IOException if the file could not be read or is not a complete container
+     */
+    ResultContainer(File file) throws IOException {
+        mFile = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < 8 + TRAILER_SIZE || raf.readInt() != MAGIC) {
+                throw new IOException(String.format("%s is not a result container", file));
+            }
+            int version = raf.readInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported result container version %d",
+                        version));
+            }
+            raf.seek(raf.length() - TRAILER_SIZE);
+            long indexOffset = raf.readLong();
+            if (raf.readInt() != MAGIC) {
+                throw new IOException(String.format("Result container %s is truncated", file));
+            }
+            raf.seek(indexOffset);
+            int numBlocks = raf.readInt();
+            for (int i = 0; i < numBlocks; i++) {
+                Block block = new Block(raf.readUTF(), raf.readLong(), raf.readInt());
+                mBlocks.add(block);
+                if (block.mName.length() > 0) {
+                    mPackageBlocks.put(block.mName, block);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Get the container file of the given report directory.
+     */
+    static File getContainerFile(File reportDir) {
+        return new File(reportDir, CONTAINER_FILE_NAME);
+    }
+
+    /**
+     * Get the result file of the given report directory: the container if there is one,
+     * otherwise the plain XML file.
+     */
+    static File getResultFile(File reportDir) {
+        File containerFile = getContainerFile(reportDir);
+        if (containerFile.exists()) {
+            return containerFile;
+        }
+        return new File(reportDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME);
+    }
+
+    /**
+     * Open the result XML of the given result file, decompressing it if it is a container.
+     *
+     * @param resultFile the result file, as returned by {@link #getResultFile(File)}
+     * @return an {@link InputStream} of the XML
+     * @throws IOException if the file could not be opened
+     */
+    static InputStream openXml(File resultFile) throws IOException {
+        if (resultFile.getName().equals(CONTAINER_FILE_NAME)) {
+            return new ResultContainer(resultFile).openXml();
+        }
+        return new FileInputStream(resultFile);
+    }
+
+    /**
+     * Convert the container to plain XML.
+     *
+     * @param xmlFile the file to write the XML to
+     * @throws IOException if the conversion failed
+     */
+    void writeXml(File xmlFile) throws IOException {
+        InputStream xmlStream = null;
+        OutputStream fileStream = null;
+        try {
+            xmlStream = openXml();
+            fileStream = new FileOutputStream(xmlFile);
+            StreamUtil.copyStreams(xmlStream, fileStream);
+        } finally {
+            StreamUtil.closeStream(xmlStream);
+            StreamUtil.closeStream(fileStream);
+        }
+    }
+
+    /**
+     * Read the results of one package, without decompressing the rest of the container.
+     *
+     * @param appPackageName the app package name
+     * @return the {@link TestPackageResult} or <code>null</code> if the package is not in the
+     *         container
+     * @throws IOException if the package could not be read
+     * @throws ParseException if the package XML could not be parsed
+     */
+    TestPackageResult readPackage(String appPackageName) throws IOException, ParseException {
+        Block block = mPackageBlocks.get(appPackageName);
+        if (block == null) {
+            return null;
+        }
+        TestResults results = new TestResults();
+        results.parse(new InputStreamReader(openBlock(block), "UTF-8"));
+        return results.getPackage(appPackageName);
+    }
+
+    /**
+     * Open the XML of the whole container. Blocks are only decompressed as the stream reaches
+     * them, so reading just the start of the XML, e.g. the summary, is cheap.
+     */
+    InputStream openXml() {
+        return new InputStream() {
+            private int mNextBlock = 0;
+            private InputStream mBlockStream = null;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int n = read(b, 0, 1);
+                return n < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                while (true) {
+                    if (mBlockStream == null) {
+                        if (mNextBlock >= mBlocks.size()) {
+                            return -1;
+                        }
+                        mBlockStream = openBlock(mBlocks.get(mNextBlock++));
+                    }
+                    int n = mBlockStream.read(b, off, len);
+                    if (n >= 0) {
+                        return n;
+                    }
+                    mBlockStream.close();
+                    mBlockStream = null;
+                }
+            }
+
+            @Override
+            public void close() {
+                StreamUtil.closeStream(mBlockStream);
+                mBlockStream = null;
+                mNextBlock = mBlocks.size();
+            }
+        };
+    }
+
+    private InputStream openBlock(Block block) throws IOException {
+        byte[] data = new byte[block.mLength];
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            raf.seek(block.mOffset);
+            raf.readFully(data);
+        } finally {
+            raf.close();
+        }
+        return new InflaterInputStream(new ByteArrayInputStream(data));
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only journal of the result events of a session.
+ * <p/>
+ * Each event is written as a line of tab separated fields as soon as it is reported, so the
+ * results of a session survive a crash of the host. The journal is synced to disk at the end of
+ * each test run, and at most once every {@link #SYNC_INTERVAL_MS} otherwise.
+ */
+class ResultJournal {
+
+    static final String JOURNAL_FILE_NAME = "testResult.journal";
+
+    /** event types */
+    static final String SESSION_STARTED = "session";
+    static final String RUN_STARTED = "runStarted";
+    static final String TEST_STARTED = "testStarted";
+    static final String TEST_FAILED = "testFailed";
+    static final String TEST_ENDED = "testEnded";
+    static final String RUN_ENDED = "runEnded";
+
+    private static final long SYNC_INTERVAL_MS = 1000;
+
+    private final FileOutputStream mFileStream;
+    private final Writer mWriter;
+    private long mLastSyncTime;
+
+    /**
+     * Open the journal in the given report directory for appending.
+     *
+     * @param reportDir the session's report directory
+     * @throws IOException if the journal could not be opened
+     */
+    ResultJournal(File reportDir) throws IOException {
+        mFileStream = new FileOutputStream(getJournalFile(reportDir), true);
+        mWriter = new BufferedWriter(new OutputStreamWriter(mFileStream, "UTF-8"));
+        mLastSyncTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Get the journal file of the given report directory.
+     */
+    static File getJournalFile(File reportDir) {
+        return new File(reportDir, JOURNAL_FILE_NAME);
+    }
+
+    void writeSessionStarted(String planName, String startTime, String suiteName) {
+        write(false, SESSION_STARTED, planName, startTime, suiteName);
+    }
+
+    void writeRunStarted(String runName, int numTests) {
+        write(false, RUN_STARTED, runName, Integer.toString(numTests));
+    }
+
+    /**
+     * @param startTime the start time of the test in epoch ms
+     */
+    void writeTestStarted(TestIdentifier test, long startTime) {
+        write(false, TEST_STARTED, test.getClassName(), test.getTestName(),
+                Long.toString(startTime));
+    }
+
+    void writeTestFailed(TestIdentifier test, String trace) {
+        write(false, TEST_FAILED, test.getClassName(), test.getTestName(), trace);
+    }
+
+    /**
+     * @param endTime the end time of the test in epoch ms
+     * @param perfResult the performance result of the test, or <code>null</code>
+     */
+    void writeTestEnded(TestIdentifier test, long endTime, String perfResult) {
+        write(false, TEST_ENDED, test.getClassName(), test.getTestName(),
+                Long.toString(endTime), perfResult == null ? "" : perfResult);
+    }
+
+    void writeRunEnded(Map<String, String> runMetrics) {
+        String[] fields = new String[1 + runMetrics.size() * 2];
+        fields[0] = RUN_ENDED;
+        int i = 1;
+        for (Map.Entry<String, String> metric : runMetrics.entrySet()) {
+            fields[i++] = metric.getKey();
+            fields[i++] = metric.getValue();
+        }
+        write(true, fields);
+    }
+
+    /**
+     * Sync and close the journal.
+     */
+    void close() {
+        sync();
+        StreamUtil.closeStream(mWriter);
+    }
+
+    private void write(boolean forceSync, String... fields) {
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                if (i > 0) {
+                    mWriter.write('\t');
+                }
+                mWriter.write(escape(fields[i]));
+            }
+            mWriter.write('\n');
+            // always hand the event to the OS, so it survives the JVM dying
+            mWriter.flush();
+        } catch (IOException e) {
+            CLog.e("Failed to write result journal: %s", e.toString());
+            return;
+        }
+        if (forceSync || System.currentTimeMillis() - mLastSyncTime >= SYNC_INTERVAL_MS) {
+            sync();
+        }
+    }
+
+    private void sync() {
+        try {
+            mWriter.flush();
+            mFileStream.getFD().sync();
+        } catch (IOException e) {
+            CLog.e("Failed to sync result journal: %s", e.toString());
+        }
+        mLastSyncTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Read the events of the journal in the given report directory.
+     * <p/>
+     * A partially written last event, e.g. from a crash, is ignored.
+     *
+     * @param reportDir the session's report directory
+     * @return the events, each as an array of fields, the first being the event type
+     * @throws IOException if the journal could not be read
+     */
+    static List<String[]> readEvents(File reportDir) throws IOException {
+        List<String[]> events = new ArrayList<String[]>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(getJournalFile(reportDir)), "UTF-8"));
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = reader.read()) != -1) {
+                if (c == '\n') {
+                    events.add(parseFields(line.toString()));
+                    line.setLength(0);
+                } else {
+                    line.append((char)c);
+                }
+            }
+        } finally {
+            StreamUtil.closeStream(reader);
+        }
+        return events;
+    }
+
+    private static String[] parseFields(String line) {
+        String[] fields = line.split("\t", -1);
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = unescape(fields[i]);
+        }
+        return fields;
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "\\0";
+        }
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String unescape(String value) {
+        if (value.equals("\\0")) {
+            return null;
+        }
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                switch (next) {
+                    case 't':
+                        unescaped.append('\t');
+                        break;
+                    case 'n':
+                        unescaped.append('\n');
+                        break;
+                    case 'r':
+                        unescaped.append('\r');
+                        break;
+                    default:
+                        unescaped.append(next);
+                }
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+}
@@ -17,7 +17,6 @@
 package com.android.cts.tradefed.result;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -42,7 +41,7 @@ class ResultReporter {
             return;
         }
 
-        InputStream input = new FileInputStream(reportFile);
+        InputStream input = ResultContainer.openXml(reportFile);
         try {
             byte[] data = IssueReporter.getBytes(input, RESULT_XML_BYTES);
             new MultipartForm(mServerUrl)
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persistent index of the summaries of the sessions in a results directory.
+ * <p/>
+ * Each entry records the summary of a session, along with the size and modification time of its
+ * result file. An entry is only used while the result file is unchanged; otherwise the summary is
+ * parsed from the result file again, and the entry is replaced. Sessions can therefore be listed
+ * without parsing any XML, and an index that is out of date, e.g. because another process wrote
+ * a session concurrently, only costs a parse.
+ * <p/>
+ * Saving merges the entries updated by this index into the index file, while holding a lock on
+ * the {@link #LOCK_FILE_NAME} file, so concurrent invocations never lose each other's entries.
+ * Entries of sessions whose result directory was deleted are dropped. The index is only saved if
+ * it changed, and is left alone in a results directory that is not writable, so listing the
+ * sessions of a read-only results directory still works.
+ */
+class SessionIndex {
+
+    static final String INDEX_FILE_NAME = "sessionIndex.txt";
+    static final String LOCK_FILE_NAME = INDEX_FILE_NAME + ".lock";
+
+    private static final String NULL_VALUE = "\\0";
+    /** the number of fields of an entry, including the result directory name */
+    private static final int NUM_FIELDS = 9;
+
+    /**
+     * held while saving an index. A {@link FileLock} is held by the whole process, so it only
+     * keeps out other processes.
+     */
+    private static final Object sSaveLock = new Object();
+
+    /** the indexed summary of a session */
+    private static class Entry {
+        final long mFileSize;
+        final long mFileModified;
+        final String mPlan;
+        final String mStartTime;
+        final String mDeviceSerials;
+        final int mNumFailed;
+        final int mNumNotExecuted;
+        final int mNumPassed;
+
+        Entry(long fileSize, long fileModified, ITestSummary summary) {
+            this(fileSize, fileModified, summary.getTestPlan(), summary.getStartTime(),
+                    summary.getDeviceSerials(), summary.getNumFailed(),
+                    summary.getNumIncomplete(), summary.getNumPassed());
+        }
+
+        Entry(long fileSize, long fileModified, String plan, String startTime,
+                String deviceSerials, int numFailed, int numNotExecuted, int numPassed) {
+            mFileSize = fileSize;
+            mFileModified = fileModified;
+            mPlan = plan;
+            mStartTime = startTime;
+            mDeviceSerials = deviceSerials;
+            mNumFailed = numFailed;
+            mNumNotExecuted = numNotExecuted;
+            mNumPassed = numPassed;
+        }
+
+        boolean isValid(File resultFile) {
+            return resultFile.length() == mFileSize && resultFile.lastModified() == mFileModified;
+        }
+
+        ITestSummary toSummary(int id, String timestamp) {
+            return new TestSummaryXml(id, timestamp, mPlan, mStartTime, mDeviceSerials,
+                    mNumFailed, mNumNotExecuted, mNumPassed);
+        }
+    }
+
+    private final File mResultsDir;
+    private final File mIndexFile;
+    /** the entries, keyed by result directory name */
+    private Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    /** the names of the entries updated since the index was last saved */
+    private final Set<String> mUpdatedEntries = new HashSet<String>();
+
+    /**
+     * Load the index of the given results directory.
+     *
+     * @param resultsDir the parent directory of results
+     */
+    SessionIndex(File resultsDir) {
+        mResultsDir = resultsDir;
+        mIndexFile = new File(resultsDir, INDEX_FILE_NAME);
+        load(mEntries);
+    }
+
+    /**
+     * Get the summary of the given session, from the index if it is up to date, or parsed from
+     * its result file otherwise.
+     *
+     * @param id the session id
+     * @param resultDir the session's result directory
+     * @return the {@link ITestSummary}
+     */
+    ITestSummary getSummary(int id, File resultDir) {
+        File resultFile = ResultContainer.getResultFile(resultDir);
+        Entry entry = mEntries.get(resultDir.getName());
+        if (entry != null && entry.isValid(resultFile)) {
+            return entry.toSummary(id, resultDir.getName());
+        }
+        return parseSummary(id, resultDir);
+    }
+
+    /**
+     * Update the entry of the given session from its result file, and save the index.
+     *
+     * @param resultDir the session's result directory
+     */
+    void update(File resultDir) {
+        parseSummary(0, resultDir);
+        save();
+    }
+
+    /**
+     * Save the index if it was modified or has entries of deleted sessions, merging in the
+     * entries saved by others since it was loaded.
+     */
+    void save() {
+        if (mUpdatedEntries.isEmpty() && !hasDeletedSessions(mEntries)) {
+            return;
+        }
+        if (!mResultsDir.canWrite()) {
+            CLog.d("Not saving session index, %s is not writable", mResultsDir);
+            return;
+        }
+        synchronized (sSaveLock) {
+            RandomAccessFile lockFile = null;
+            try {
+                lockFile = new RandomAccessFile(new File(mIndexFile.getParentFile(),
+                        LOCK_FILE_NAME), "rw");
+                FileLock lock = lockFile.getChannel().lock();
+                try {
+                    mergeAndWrite();
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                CLog.w("Failed to lock session index %s: %s", mIndexFile, e.toString());
+            } finally {
+                StreamUtil.closeStream(lockFile);
+            }
+        }
+    }
+
+    /**
+     * Merge the entries updated by this index into the index file. Must hold the index lock.
+     */
+    private void mergeAndWrite() {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        load(entries);
+        for (String name : mUpdatedEntries) {
+            entries.put(name, mEntries.get(name));
+        }
+        Iterator<String> nameIter = entries.keySet().iterator();
+        while (nameIter.hasNext()) {
+            if (!isSessionDir(nameIter.next())) {
+                nameIter.remove();
+            }
+        }
+        mEntries = entries;
+        File tmpFile = null;
+        Writer writer = null;
+        try {
+            // write to a temp file and rename it, so readers never see a partial index
+            tmpFile = FileUtil.createTempFile(INDEX_FILE_NAME, ".tmp", mIndexFile.getParentFile());
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile),
+                    "UTF-8"));
+            for (Map.Entry<String, Entry> mapEntry : mEntries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                writeFields(writer, mapEntry.getKey(), Long.toString(entry.mFileSize),
+                        Long.toString(entry.mFileModified), entry.mPlan, entry.mStartTime,
+                        entry.mDeviceSerials, Integer.toString(entry.mNumFailed),
+                        Integer.toString(entry.mNumNotExecuted),
+                        Integer.toString(entry.mNumPassed));
+            }
+            writer.close();
+            writer = null;
+            if (!tmpFile.renameTo(mIndexFile)) {
+                CLog.w("Failed to save session index %s", mIndexFile);
+                tmpFile.delete();
+            }
+            mUpdatedEntries.clear();
+        } catch (IOException e) {
+            CLog.w("Failed to save session index %s: %s", mIndexFile, e.toString());
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        } finally {
+            StreamUtil.closeStream(writer);
+        }
+    }
+
+    /**
+     * Return <code>true</code> if any of the given entries belongs to a session whose result
+     * directory no longer exists.
+     */
+    private boolean hasDeletedSessions(Map<String, Entry> entries) {
+        for (String name : entries.keySet()) {
+            if (!isSessionDir(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSessionDir(String name) {
+        return new File(mResultsDir, name).isDirectory();
+    }
+
+    private ITestSummary parseSummary(int id, File resultDir) {
+        TestSummaryXml summary = new TestSummaryXml(id, resultDir.getName());
+        File resultFile = ResultContainer.getResultFile(resultDir);
+        // take the file attributes before parsing, so a concurrent update is noticed next time
+        long fileSize = resultFile.length();
+        long fileModified = resultFile.lastModified();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(ResultContainer.openXml(resultFile),
+                    "UTF-8"));
+            summary.parse(reader);
+            mEntries.put(resultDir.getName(), new Entry(fileSize, fileModified, summary));
+            mUpdatedEntries.add(resultDir.getName());
+        } catch (ParseException e) {
+            CLog.e(e);
+        } catch (IOException e) {
+            // the session was interrupted before its result file was written
+            CLog.w("No result file for session %d yet", id);
+        } finally {
+            StreamUtil.closeStream(reader);
+        }
+        return summary;
+    }
+
+    /**
+     * Load the entries of the index file, if it exists, into the given map.
+     */
+    private void load(Map<String, Entry> entries) {
+        if (!mIndexFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mIndexFile),
+                    "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != NUM_FIELDS) {
+                    continue;
+                }
+                for (int i = 0; i < fields.length; i++) {
+                    if (NULL_VALUE.equals(fields[i])) {
+                        fields[i] = null;
+                    }
+                }
+                try {
+                    entries.put(fields[0], new Entry(Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), fields[3], fields[4], fields[5],
+                            Integer.parseInt(fields[6]), Integer.parseInt(fields[7]),
+                            Integer.parseInt(fields[8])));
+                } catch (NumberFormatException e) {
+                    // ignore the corrupt entry, the session will be parsed instead
+                }
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to load session index %s: %s", mIndexFile, e.toString());
+        } finally {
+            StreamUtil.closeStream(reader);
+        }
+    }
+
+    private static void writeFields(Writer writer, String... fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                writer.write('\t');
+            }
+            // fields are single line values, but make sure they cannot break the format
+            writer.write(fields[i] == null ? NULL_VALUE : fields[i].replaceAll("[\t\r\n]", " "));
+        }
+        writer.write('\n');
+    }
+}
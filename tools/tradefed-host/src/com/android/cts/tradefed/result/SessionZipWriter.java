@@ -0,0 +1,454 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Builds the zip of a session incrementally, compressing entries on a pool of threads.
+ * <p/>
+ * Entries are added as soon as the files they hold are produced. Each entry is deflated on its
+ * own by one of the pool's threads, and written to the zip as soon as it is compressed, so
+ * entries appear in the zip in the order their compression completes. Files that are already
+ * compressed, like gzipped logs, are stored as is. The zip is written to a temporary file, and
+ * only replaces the session zip once {@link #close()} has completed it.
+ * <p/>
+ * The zip is limited to 65535 entries and 4GB, since the zip64 extensions are not written.
+ * Entries that do not fit are left out of the zip, which keeps all the entries added before.
+ */
+class SessionZipWriter {
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP_VERSION = 20;
+    /** general purpose flag marking entry names as UTF-8 */
+    private static final int UTF8_FLAG = 0x0800;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final long MAX_ZIP_SIZE = 0xffffffffL;
+    static final int MAX_ENTRIES = 0xffff;
+    /** extensions of files that are already compressed, and are not worth deflating again */
+    private static final String[] COMPRESSED_EXTENSIONS = {".gz", ".zip", ".png"};
+
+    /** a compressed entry, and where it was written */
+    private static class Entry {
+        final byte[] mName;
+        final int mMethod;
+        final int mDosTime;
+        final long mCrc;
+        final long mSize;
+        final byte[] mData;
+        long mOffset;
+
+        Entry(byte[] name, int method, int dosTime, long crc, long size, byte[] data) {
+            mName = name;
+            mMethod = method;
+            mDosTime = dosTime;
+            mCrc = crc;
+            mSize = size;
+            mData = data;
+        }
+    }
+
+    private final File mZipFile;
+    private final File mTmpFile;
+    private final int mCompressionLevel;
+    private final ExecutorService mExecutor;
+    private final OutputStream mOut;
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+    private long mOffset = 0;
+    /** the size of the central directory for the entries written so far */
+    private long mCentralSize = 0;
+    private IOException mWriteError = null;
+    private int mPendingTasks = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Create a {@link SessionZipWriter}.
+     *
+     * @param zipFile the session zip to create
+     * @param compressionLevel the {@link Deflater} compression level, from 0 to 9, or
+     *            {@link Deflater#DEFAULT_COMPRESSION}
+     * @param numThreads the number of threads to compress entries on
+     * @throws IOException if the zip could not be created
+     */
+    SessionZipWriter(File zipFile, int compressionLevel, int numThreads) throws IOException {
+        if ((compressionLevel < 0 || compressionLevel > 9) &&
+                compressionLevel != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException(String.format("Invalid compression level %d",
+                    compressionLevel));
+        }
+        mZipFile = zipFile;
+        mTmpFile = new File(zipFile.getPath() + ".tmp");
+        mCompressionLevel = compressionLevel;
+        mOut = new BufferedOutputStream(new FileOutputStream(mTmpFile));
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+    }
+
+    /**
+     * Add a file to the zip. The file is read and compressed in the background.
+     *
+     * @param entryName the name of the entry in the zip
+     * @param file the file
+     */
+    void addFile(final String entryName, final File file) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                InputStream stream = null;
+                try {
+                    stream = new FileInputStream(file);
+                    writeEntry(entryName, file.lastModified(), stream);
+                } catch (IOException e) {
+                    CLog.e("Failed to add %s to %s: %s", file, mZipFile.getName(),
+                            e.toString());
+                } finally {
+                    StreamUtil.closeStream(stream);
+                }
+            }
+        });
+    }
+
+    /**
+     * Add all the files in a directory and its sub directories to the zip.
+     *
+     * @param entryPrefix the prefix of the entry names, ending with a '/'
+     * @param dir the directory
+     */
+    void addDir(String entryPrefix, File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                addDir(String.format("%s%s/", entryPrefix, file.getName()), file);
+            } else {
+                addFile(entryPrefix + file.getName(), file);
+            }
+        }
+    }
+
+    /**
+     * Add data to the zip. The data is compressed in the background.
+     *
+     * @param entryName the name of the entry in the zip
+     * @param data the data, which must not be modified afterwards
+     */
+    void addData(final String entryName, final byte[] data) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeEntry(entryName, System.currentTimeMillis(),
+                            new ByteArrayInputStream(data));
+                } catch (IOException e) {
+                    CLog.e("Failed to add %s to %s: %s", entryName, mZipFile.getName(),
+                            e.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * Add the entries of an existing zip whose names start with the given prefix, e.g. to carry
+     * over the entries of an earlier version of the session zip.
+     *
+     * @param zipFile the zip to copy entries from
+     * @param entryPrefix the prefix of the entries to copy
+     * @throws IOException if the zip could not be read
+     */
+    void addEntriesFrom(File zipFile, String entryPrefix) throws IOException {
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory() || !entry.getName().startsWith(entryPrefix)) {
+                    continue;
+                }
+                InputStream stream = zip.getInputStream(entry);
+                try {
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    StreamUtil.copyStreams(stream, data);
+                    addData(entry.getName(), data.toByteArray());
+                } finally {
+                    StreamUtil.closeStream(stream);
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Run a task on the compression threads. {@link #close()} waits for the task, and for any
+     * entries it adds.
+     */
+    void execute(Runnable task) {
+        submit(task);
+    }
+
+    /**
+     * Wait for all entries to be written, complete the zip, and move it into place.
+     *
+     * @throws IOException if the zip could not be completed
+     */
+    void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            waitForTasks();
+            mClosed = true;
+        }
+        mExecutor.shutdown();
+        try {
+            if (mWriteError != null) {
+                throw mWriteError;
+            }
+            writeCentralDirectory();
+            mOut.close();
+        } catch (IOException e) {
+            StreamUtil.closeStream(mOut);
+            mTmpFile.delete();
+            throw e;
+        }
+        mZipFile.delete();
+        if (!mTmpFile.renameTo(mZipFile)) {
+            mTmpFile.delete();
+            throw new IOException(String.format("Failed to move %s into place", mZipFile));
+        }
+    }
+
+    /**
+     * Wait for all the entries added and tasks run so far to complete.
+     */
+    synchronized void waitForTasks() {
+        while (mPendingTasks > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                CLog.e(e);
+            }
+        }
+    }
+
+    private void submit(final Runnable task) {
+        synchronized (this) {
+            if (mClosed) {
+                throw new IllegalStateException("Session zip is closed");
+            }
+            mPendingTasks++;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    synchronized (SessionZipWriter.this) {
+                        mPendingTasks--;
+                        SessionZipWriter.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Compress an entry on the calling thread, and append it to the zip. The entry is left out
+     * if the zip cannot hold it.
+     */
+    private void writeEntry(String entryName, long modifiedTime, InputStream stream)
+            throws IOException {
+        int method = isCompressed(entryName) ? ZipEntry.STORED : ZipEntry.DEFLATED;
+        CheckedInputStream checkedStream = new CheckedInputStream(stream, new CRC32());
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        long size;
+        if (method == ZipEntry.STORED) {
+            size = copyStream(checkedStream, data);
+        } else {
+            Deflater deflater = new Deflater(mCompressionLevel, true);
+            try {
+                DeflaterOutputStream deflaterStream = new DeflaterOutputStream(data, deflater);
+                size = copyStream(checkedStream, deflaterStream);
+                deflaterStream.finish();
+            } finally {
+                deflater.end();
+            }
+        }
+        Entry entry = new Entry(entryName.getBytes("UTF-8"), method, toDosTime(modifiedTime),
+                checkedStream.getChecksum().getValue(), size, data.toByteArray());
+        synchronized (this) {
+            if (mWriteError != null) {
+                return;
+            }
+            // leave room for the central directory, so the entries written so far stay valid
+            long centralSize = mCentralSize + CENTRAL_HEADER_SIZE + entry.mName.length;
+            if (mEntries.size() >= MAX_ENTRIES || size > MAX_ZIP_SIZE ||
+                    mOffset + LOCAL_HEADER_SIZE + entry.mName.length + entry.mData.length +
+                    centralSize + END_SIZE > MAX_ZIP_SIZE) {
+                CLog.w("Leaving %s out of %s, the zip is full", entryName, mZipFile.getName());
+                return;
+            }
+            try {
+                entry.mOffset = mOffset;
+                writeInt(LOCAL_HEADER_SIG);
+                writeShort(ZIP_VERSION);
+                writeEntryInfo(entry);
+                writeShort(0); // extra field length
+                write(entry.mName);
+                write(entry.mData);
+                mEntries.add(entry);
+                mCentralSize = centralSize;
+            } catch (IOException e) {
+                // the zip is broken from here on
+                mWriteError = e;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Write the fields shared by the local and central headers of an entry.
+     */
+    private void writeEntryInfo(Entry entry) throws IOException {
+        writeShort(UTF8_FLAG);
+        writeShort(entry.mMethod);
+        writeInt(entry.mDosTime);
+        writeInt((int)entry.mCrc);
+        writeInt(entry.mData.length);
+        writeInt((int)entry.mSize);
+        writeShort(entry.mName.length);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long centralOffset = mOffset;
+        for (Entry entry : mEntries) {
+            writeInt(CENTRAL_HEADER_SIG);
+            writeShort(ZIP_VERSION); // version made by
+            writeShort(ZIP_VERSION); // version needed to extract
+            writeEntryInfo(entry);
+            writeShort(0); // extra field length
+            writeShort(0); // comment length
+            writeShort(0); // disk number
+            writeShort(0); // internal attributes
+            writeInt(0); // external attributes
+            writeInt((int)entry.mOffset);
+            write(entry.mName);
+        }
+        if (mOffset > MAX_ZIP_SIZE) {
+            throw new IOException(String.format("%s is too large for a zip", mZipFile.getName()));
+        }
+        long centralSize = mOffset - centralOffset;
+        writeInt(END_SIG);
+        writeShort(0); // disk number
+        writeShort(0); // disk with the central directory
+        writeShort(mEntries.size());
+        writeShort(mEntries.size());
+        writeInt((int)centralSize);
+        writeInt((int)centralOffset);
+        writeShort(0); // comment length
+    }
+
+    /**
+     * Return <code>true</code> if the given entry holds a file that is already compressed.
+     */
+    private static boolean isCompressed(String entryName) {
+        for (String extension : COMPRESSED_EXTENSIONS) {
+            if (entryName.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy a stream to another.
+     *
+     * @return the number of bytes copied
+     */
+    private static long copyStream(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        long size = 0;
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+            size += n;
+        }
+        return size;
+    }
+
+    private void write(byte[] data) throws IOException {
+        mOut.write(data);
+        mOffset += data.length;
+    }
+
+    /** write a little endian short */
+    private void writeShort(int value) throws IOException {
+        mOut.write(value & 0xff);
+        mOut.write((value >> 8) & 0xff);
+        mOffset += 2;
+    }
+
+    /** write a little endian int */
+    private void writeInt(int value) throws IOException {
+        writeShort(value & 0xffff);
+        writeShort((value >> 16) & 0xffff);
+    }
+
+    /**
+     * Convert a time to the MS-DOS date and time format of zip entries.
+     */
+    private static int toDosTime(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980) {
+            // the earliest time the format can hold, 1980-01-01 00:00
+            return (1 << 21) | (1 << 16);
+        }
+        return ((year - 1980) << 25) | ((cal.get(Calendar.MONTH) + 1) << 21) |
+                (cal.get(Calendar.DAY_OF_MONTH) << 16) | (cal.get(Calendar.HOUR_OF_DAY) << 11) |
+                (cal.get(Calendar.MINUTE) << 5) | (cal.get(Calendar.SECOND) >> 1);
+    }
+}
@@ -29,14 +29,14 @@ import java.io.IOException;
  */
 class Test extends AbstractXmlPullParser {
     static final String TAG = "Test";
-    private static final String NAME_ATTR = "name";
+    static final String NAME_ATTR = "name";
     private static final String MESSAGE_ATTR = "message";
-    private static final String ENDTIME_ATTR = "endtime";
-    private static final String STARTTIME_ATTR = "starttime";
-    private static final String RESULT_ATTR = "result";
+    static final String ENDTIME_ATTR = "endtime";
+    static final String STARTTIME_ATTR = "starttime";
+    static final String RESULT_ATTR = "result";
     private static final String SCENE_TAG = "FailedScene";
     private static final String STACK_TAG = "StackTrace";
-    private static final String SUMMARY_TAG = "Summary";
+    static final String SUMMARY_TAG = "Summary";
     private static final String DETAILS_TAG = "Details";
     private static final String VALUEARRAY_TAG = "ValueArray";
     private static final String VALUE_TAG = "Value";
@@ -50,6 +50,10 @@ class Test extends AbstractXmlPullParser {
 
     private String mName;
     private CtsTestStatus mResult;
+    // times are recorded as epoch ms, and only formatted when serialized. Times parsed from XML
+    // are kept as the original text instead
+    private long mStartTimeMs = -1;
+    private long mEndTimeMs = -1;
     private String mStartTime;
     private String mEndTime;
     private String mMessage;
@@ -57,6 +61,8 @@ class Test extends AbstractXmlPullParser {
     // summary and details passed from cts
     private String mSummary;
     private String mDetails;
+    // true if a performance result was parsed from XML. The result itself is not kept
+    private boolean mHasParsedPerfResult = false;
 
     /**
      * Create an empty {@link Test}
@@ -72,8 +78,8 @@ class Test extends AbstractXmlPullParser {
     public Test(String name) {
         mName = name;
         mResult = CtsTestStatus.NOT_EXECUTED;
-        mStartTime = TimeUtil.getTimestamp();
-        updateEndTime();
+        mStartTimeMs = System.currentTimeMillis();
+        mEndTimeMs = mStartTimeMs;
     }
 
     /**
@@ -103,11 +109,43 @@ class Test extends AbstractXmlPullParser {
     }
 
     public String getStartTime() {
-        return mStartTime;
+        return formatTime(mStartTime, mStartTimeMs);
     }
 
     public String getEndTime() {
-        return mEndTime;
+        return formatTime(mEndTime, mEndTimeMs);
+    }
+
+    /**
+     * Get the start time of this {@link Test}.
+     *
+     * @return the epoch time in ms, or -1 if not known
+     */
+    long getStartTimeMs() {
+        return parseTime(mStartTime, mStartTimeMs);
+    }
+
+    /**
+     * Get the end time of this {@link Test}.
+     *
+     * @return the epoch time in ms, or -1 if not known
+     */
+    long getEndTimeMs() {
+        return parseTime(mEndTime, mEndTimeMs);
+    }
+
+    private static String formatTime(String timeText, long timeMs) {
+        if (timeText != null || timeMs < 0) {
+            return timeText;
+        }
+        return TimeUtil.getTimestamp(timeMs);
+    }
+
+    private static long parseTime(String timeText, long timeMs) {
+        if (timeText != null) {
+            return TimeUtil.parseTimestamp(timeText);
+        }
+        return timeMs;
     }
 
     public String getStackTrace() {
@@ -137,7 +175,45 @@ class Test extends AbstractXmlPullParser {
     }
 
     public void updateEndTime() {
-        mEndTime = TimeUtil.getTimestamp();
+        mEndTimeMs = System.currentTimeMillis();
+        mEndTime = null;
+    }
+
+    /**
+     * Set the start and end times of this {@link Test}, e.g. to those of an earlier run.
+     */
+    void setTimes(String startTime, String endTime) {
+        mStartTime = startTime;
+        mEndTime = endTime;
+        mStartTimeMs = -1;
+        mEndTimeMs = -1;
+    }
+
+    /**
+     * Set the start and end times of this {@link Test} in epoch ms.
+     */
+    void setTimes(long startTimeMs, long endTimeMs) {
+        mStartTime = null;
+        mEndTime = null;
+        mStartTimeMs = startTimeMs;
+        mEndTimeMs = endTimeMs;
+    }
+
+    /**
+     * Copy the start and end times of another {@link Test}.
+     */
+    void copyTimes(Test other) {
+        mStartTime = other.mStartTime;
+        mEndTime = other.mEndTime;
+        mStartTimeMs = other.mStartTimeMs;
+        mEndTimeMs = other.mEndTimeMs;
+    }
+
+    /**
+     * Return <code>true</code> if this {@link Test} has a performance result.
+     */
+    boolean hasPerfResult() {
+        return mSummary != null || mHasParsedPerfResult;
     }
 
     public void setResultStatus(CtsTestStatus status) {
@@ -155,8 +231,8 @@ class Test extends AbstractXmlPullParser {
         serializer.startTag(CtsXmlResultReporter.ns, TAG);
         serializer.attribute(CtsXmlResultReporter.ns, NAME_ATTR, getName());
         serializer.attribute(CtsXmlResultReporter.ns, RESULT_ATTR, mResult.getValue());
-        serializer.attribute(CtsXmlResultReporter.ns, STARTTIME_ATTR, mStartTime);
-        serializer.attribute(CtsXmlResultReporter.ns, ENDTIME_ATTR, mEndTime);
+        serializer.attribute(CtsXmlResultReporter.ns, STARTTIME_ATTR, getStartTime());
+        serializer.attribute(CtsXmlResultReporter.ns, ENDTIME_ATTR, getEndTime());
 
         if (mMessage != null) {
             serializer.startTag(CtsXmlResultReporter.ns, SCENE_TAG);
@@ -329,6 +405,9 @@ class Test extends AbstractXmlPullParser {
                 mMessage = getAttribute(parser, MESSAGE_ATTR);
             } else if (eventType == XmlPullParser.START_TAG && parser.getName().equals(STACK_TAG)) {
                 mStackTrace = parser.nextText();
+            } else if (eventType == XmlPullParser.START_TAG && parser.getName().equals(
+                    SUMMARY_TAG)) {
+                mHasParsedPerfResult = true;
             } else if (eventType == XmlPullParser.END_TAG && parser.getName().equals(TAG)) {
                 return;
             }
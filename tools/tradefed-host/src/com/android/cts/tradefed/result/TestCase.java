@@ -66,17 +66,10 @@ class TestCase extends AbstractXmlPullParser {
     }
 
     /**
-     * @param testName
-     * @param insertIfMissing
-     * @return
+     * Adds a child {@link Test}.
      */
-    public Test findTest(String testName, boolean insertIfMissing) {
-        Test t = mChildTestMap.get(testName);
-        if (t == null && insertIfMissing) {
-            t = new Test(testName);
-            mChildTestMap.put(t.getName(), t);
-        }
-        return t;
+    public void insertTest(Test test) {
+        mChildTestMap.put(test.getName(), test);
     }
 
     /**
@@ -146,6 +139,26 @@ class TestCase extends AbstractXmlPullParser {
         }
     }
 
+    /**
+     * Adds all the {@link Test}s contained in this result.
+     *
+     * @param tests the {@link Map} of {@link TestIdentifier}s to {@link Test}s to add to
+     * @param parentSuiteNames a {@link Deque} of parent suite names. Used to
+     *            construct the full class name of the test
+     */
+    void addTests(Map<TestIdentifier, Test> tests, Deque<String> parentSuiteNames) {
+        if (getName() != null) {
+            parentSuiteNames.addLast(getName());
+        }
+        String fullClassName = ArrayUtil.join(".", parentSuiteNames);
+        for (Test test : mChildTestMap.values()) {
+            tests.put(new TestIdentifier(fullClassName, test.getName()), test);
+        }
+        if (getName() != null) {
+            parentSuiteNames.removeLast();
+        }
+    }
+
     /**
      * Count the number of tests in this {@link TestCase} with given status.
      *
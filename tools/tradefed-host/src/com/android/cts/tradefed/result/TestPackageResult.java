@@ -27,11 +27,14 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Deque;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -41,23 +44,37 @@ import java.util.Set;
  * Data structure for a CTS test package result.
  * <p/>
  * Provides methods to serialize to XML.
+ * <p/>
+ * Tests are indexed by {@link TestIdentifier}, so reporting a test result is a single lookup. The
+ * {@link TestSuite} hierarchy of the XML is only built when needed, e.g. for serialization.
  */
 class TestPackageResult  extends AbstractXmlPullParser {
 
     static final String TAG = "TestPackage";
-    private static final String DIGEST_ATTR = "digest";
-    private static final String APP_PACKAGE_NAME_ATTR = "appPackageName";
+    static final String DIGEST_ATTR = "digest";
+    static final String APP_PACKAGE_NAME_ATTR = "appPackageName";
     private static final String NAME_ATTR = "name";
+    private static final String CACHED_FROM_ATTR = "cachedFrom";
+    private static final String REBOOT_READY_TIME_ATTR = "rebootReadyTime";
     private static final String ns = CtsXmlResultReporter.ns;
     private static final String SIGNATURE_TEST_PKG = "android.tests.sigtest";
+    /** the longest gap between two tests that is counted as part of a package's run */
+    static final long MAX_TEST_GAP_MS = 5 * 60 * 1000;
 
     private String mAppPackageName;
     private String mName;
     private String mDigest;
+    /** the name of the session the results were reused from, if any */
+    private String mCachedFrom;
+    /** the ms the device took to become ready after the reboot before this package, if any */
+    private String mRebootReadyTime;
 
     private Map<String, String> mMetrics = new HashMap<String, String>();
 
-    private TestSuite mSuiteRoot = new TestSuite(null);
+    /** the tests of this package, in the order they were inserted */
+    private Map<TestIdentifier, Test> mTests = new LinkedHashMap<TestIdentifier, Test>();
+    /** the suite hierarchy of {@link #mTests}, or <code>null</code> if not built yet */
+    private TestSuite mSuiteRoot = null;
 
     public void setAppPackageName(String appPackageName) {
         mAppPackageName = appPackageName;
@@ -83,11 +100,60 @@ class TestPackageResult  extends AbstractXmlPullParser {
         return mDigest;
     }
 
+    public void setCachedFrom(String sessionName) {
+        mCachedFrom = sessionName;
+    }
+
+    /**
+     * Get the name of the earlier session this package's results were reused from.
+     *
+     * @return the session name, or <code>null</code> if the results were not reused
+     */
+    public String getCachedFrom() {
+        return mCachedFrom;
+    }
+
+    public void setRebootReadyTime(String rebootReadyTime) {
+        mRebootReadyTime = rebootReadyTime;
+    }
+
+    /**
+     * Get the time the device took to become ready after being rebooted before this package.
+     *
+     * @return the time in ms, or <code>null</code> if the device was not rebooted
+     */
+    public String getRebootReadyTime() {
+        return mRebootReadyTime;
+    }
+
     /**
      * Return the {@link TestSuite}s
      */
     public Collection<TestSuite> getTestSuites() {
-        return mSuiteRoot.getTestSuites();
+        return getSuiteRoot().getTestSuites();
+    }
+
+    /**
+     * Get the root of the suite hierarchy, building it from the indexed tests if needed.
+     */
+    private TestSuite getSuiteRoot() {
+        if (mSuiteRoot == null) {
+            mSuiteRoot = new TestSuite(null);
+            for (Map.Entry<TestIdentifier, Test> testEntry : mTests.entrySet()) {
+                String[] classNameSegments = testEntry.getKey().getClassName().split("\\.");
+                if (classNameSegments.length <= 0) {
+                    CLog.e("Unrecognized package name format for test class '%s'",
+                            testEntry.getKey().getClassName());
+                    // should never happen
+                    classNameSegments = new String[] {"UnknownTestClass"};
+                }
+                String testCaseName = classNameSegments[classNameSegments.length - 1];
+                String[] suiteNames = Arrays.copyOf(classNameSegments,
+                        classNameSegments.length - 1);
+                mSuiteRoot.insertTest(suiteNames, 0, testCaseName, testEntry.getValue());
+            }
+        }
+        return mSuiteRoot;
     }
 
     /**
@@ -97,20 +163,14 @@ class TestPackageResult  extends AbstractXmlPullParser {
      * @param testResult
      */
     public Test insertTest(TestIdentifier testId) {
-        return findTest(testId, true);
-    }
-
-    private Test findTest(TestIdentifier testId, boolean insertIfMissing) {
-        List<String> classNameSegments = new LinkedList<String>();
-        Collections.addAll(classNameSegments, testId.getClassName().split("\\."));
-        if (classNameSegments.size() <= 0) {
-            CLog.e("Unrecognized package name format for test class '%s'",
-                    testId.getClassName());
-            // should never happen
-            classNameSegments.add("UnknownTestClass");
+        Test test = mTests.get(testId);
+        if (test == null) {
+            test = new Test(testId.getTestName());
+            mTests.put(testId, test);
+            // rebuilt with the new test when next needed
+            mSuiteRoot = null;
         }
-            String testCaseName = classNameSegments.remove(classNameSegments.size()-1);
-            return mSuiteRoot.findTest(classNameSegments, testCaseName, testId.getTestName(), insertIfMissing);
+        return test;
     }
 
 
@@ -120,7 +180,7 @@ class TestPackageResult  extends AbstractXmlPullParser {
      * @return the {@link Test} or <code>null</code>
      */
     public Test findTest(TestIdentifier testId) {
-        return findTest(testId, false);
+        return mTests.get(testId);
     }
 
     /**
@@ -134,10 +194,16 @@ class TestPackageResult  extends AbstractXmlPullParser {
         serializeAttribute(serializer, NAME_ATTR, mName);
         serializeAttribute(serializer, APP_PACKAGE_NAME_ATTR, mAppPackageName);
         serializeAttribute(serializer, DIGEST_ATTR, getDigest());
+        if (mCachedFrom != null) {
+            serializer.attribute(ns, CACHED_FROM_ATTR, mCachedFrom);
+        }
+        if (mRebootReadyTime != null) {
+            serializer.attribute(ns, REBOOT_READY_TIME_ATTR, mRebootReadyTime);
+        }
         if (SIGNATURE_TEST_PKG.equals(mName)) {
             serializer.attribute(ns, "signatureCheck", "true");
         }
-        mSuiteRoot.serialize(serializer);
+        getSuiteRoot().serialize(serializer);
         serializer.endTag(ns, TAG);
     }
 
@@ -171,18 +237,25 @@ class TestPackageResult  extends AbstractXmlPullParser {
         setAppPackageName(getAttribute(parser, APP_PACKAGE_NAME_ATTR));
         setName(getAttribute(parser, NAME_ATTR));
         setDigest(getAttribute(parser, DIGEST_ATTR));
+        setCachedFrom(getAttribute(parser, CACHED_FROM_ATTR));
+        setRebootReadyTime(getAttribute(parser, REBOOT_READY_TIME_ATTR));
+        TestSuite suiteRoot = new TestSuite(null);
         int eventType = parser.getEventType();
         while (eventType != XmlPullParser.END_DOCUMENT) {
             if (eventType == XmlPullParser.START_TAG && parser.getName().equals(TestSuite.TAG)) {
                 TestSuite suite = new TestSuite();
                 suite.parse(parser);
-                mSuiteRoot.insertSuite(suite);
+                suiteRoot.insertSuite(suite);
             }
             if (eventType == XmlPullParser.END_TAG && parser.getName().equals(TAG)) {
-                return;
+                break;
             }
             eventType = parser.next();
         }
+        // index the parsed tests, and keep the parsed hierarchy until a test is inserted
+        mTests.clear();
+        suiteRoot.addTests(mTests, new LinkedList<String>());
+        mSuiteRoot = suiteRoot;
     }
 
     /**
@@ -193,11 +266,95 @@ class TestPackageResult  extends AbstractXmlPullParser {
      */
     public Collection<TestIdentifier> getTestsWithStatus(CtsTestStatus resultFilter) {
         Collection<TestIdentifier> tests = new LinkedList<TestIdentifier>();
-        Deque<String> suiteNames = new LinkedList<String>();
-        mSuiteRoot.addTestsWithStatus(tests, suiteNames, resultFilter);
+        for (Map.Entry<TestIdentifier, Test> testEntry : mTests.entrySet()) {
+            if (resultFilter.equals(testEntry.getValue().getResult())) {
+                tests.add(testEntry.getKey());
+            }
+        }
         return tests;
     }
 
+    /**
+     * Return the time taken to execute this package, see {@link #getElapsedTime(List)}.
+     *
+     * @return the elapsed time in ms, or 0 if no executed tests with valid times were found
+     */
+    public long getElapsedTime() {
+        List<long[]> testTimes = new ArrayList<long[]>(mTests.size());
+        for (Test test : mTests.values()) {
+            if (CtsTestStatus.NOT_EXECUTED.equals(test.getResult())) {
+                // not executed tests are stamped when the run is finalized, ignore them
+                continue;
+            }
+            long startTime = test.getStartTimeMs();
+            long endTime = test.getEndTimeMs();
+            if (startTime < 0 || endTime < 0) {
+                continue;
+            }
+            testTimes.add(new long[] {startTime, endTime});
+        }
+        return getElapsedTime(testTimes);
+    }
+
+    /**
+     * Compute the time taken to execute a package, as the time covered by its tests and the gaps
+     * between them. A gap longer than {@link #MAX_TEST_GAP_MS} is left out, since it is the time
+     * between two invocations of a continued session rather than part of the package's run.
+     *
+     * @param testTimes the start and end times in ms of the executed tests. Sorted in place.
+     * @return the elapsed time in ms
+     */
+    static long getElapsedTime(List<long[]> testTimes) {
+        Collections.sort(testTimes, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] times0, long[] times1) {
+                return times0[0] < times1[0] ? -1 : (times0[0] == times1[0] ? 0 : 1);
+            }
+        });
+        long elapsedTime = 0;
+        long lastEnd = -1;
+        for (long[] times : testTimes) {
+            long countFrom = times[0];
+            if (lastEnd >= 0 && times[0] - lastEnd <= MAX_TEST_GAP_MS) {
+                // count the gap since the previous test, or skip the overlap with it
+                countFrom = lastEnd;
+            }
+            if (times[1] > countFrom) {
+                elapsedTime += times[1] - countFrom;
+            }
+            lastEnd = Math.max(lastEnd, times[1]);
+        }
+        return elapsedTime;
+    }
+
+    /**
+     * Return <code>true</code> if any test in this package has a performance result.
+     */
+    public boolean hasPerfResults() {
+        for (Test test : mTests.values()) {
+            if (test.hasPerfResult()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy the start and end times of the given tests from an earlier result of this package.
+     *
+     * @param cachedResult the earlier {@link TestPackageResult}
+     * @param testIds the {@link TestIdentifier}s of the tests to copy
+     */
+    public void copyTestTimes(TestPackageResult cachedResult, Collection<TestIdentifier> testIds) {
+        for (TestIdentifier testId : testIds) {
+            Test test = findTest(testId);
+            Test cachedTest = cachedResult.findTest(testId);
+            if (test != null && cachedTest != null) {
+                test.copyTimes(cachedTest);
+            }
+        }
+    }
+
     /**
      * Populate values in this package result from run metrics
      * @param runResult
@@ -211,6 +368,14 @@ class TestPackageResult  extends AbstractXmlPullParser {
         if (digest != null) {
             setDigest(digest);
         }
+        String cachedFrom = metrics.get(CtsTest.PACKAGE_CACHED_METRIC);
+        if (cachedFrom != null) {
+            setCachedFrom(cachedFrom);
+        }
+        String rebootReadyTime = metrics.get(CtsTest.REBOOT_READY_TIME_METRIC);
+        if (rebootReadyTime != null) {
+            setRebootReadyTime(rebootReadyTime);
+        }
         if (DeviceInfoCollector.APP_PACKAGE_NAME.equals(getAppPackageName())) {
             storeDeviceMetrics(metrics);
         } else {
@@ -307,7 +472,13 @@ class TestPackageResult  extends AbstractXmlPullParser {
      * @return the total number of tests with given status
      */
     public int countTests(CtsTestStatus status) {
-        return mSuiteRoot.countTests(status);
+        int total = 0;
+        for (Test test : mTests.values()) {
+            if (status.equals(test.getResult())) {
+                total++;
+            }
+        }
+        return total;
     }
 
     /**
@@ -15,18 +15,23 @@
  */
 package com.android.cts.tradefed.result;
 
+import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * An implementation of {@link ITestResultsRepo}.
@@ -37,6 +42,13 @@ public class TestResultRepo implements ITestResultRepo {
      * ordered list of result directories. the index of each file is its session id.
      */
     private List<File> mResultDirs;
+    private final File mResultsDir;
+    /**
+     * the passed tests, test counts and times of the sessions read for their history, keyed by
+     * session id. A <code>null</code> value marks a session that could not be read.
+     */
+    private final Map<Integer, TestStatusReader> mSessionHistories =
+            new HashMap<Integer, TestStatusReader>();
 
     /**
      * Create a {@link TestResultRepo} from a directory of results
@@ -44,6 +56,7 @@ public class TestResultRepo implements ITestResultRepo {
      * @param testResultsDir the parent directory of results
      */
     public TestResultRepo(File testResultsDir) {
+        mResultsDir = testResultsDir;
         mResultDirs = new ArrayList<File>();
         File[] resultArray = testResultsDir.listFiles(new ResultDirFilter());
         if (resultArray != null) {
@@ -51,9 +64,10 @@ public class TestResultRepo implements ITestResultRepo {
             Collections.addAll(resultList, resultArray);
             Collections.sort(resultList, new FileComparator());
             for (int i=0; i < resultList.size(); i++) {
-                File resultFile = new File(resultList.get(i),
-                        CtsXmlResultReporter.TEST_RESULT_FILE_NAME);
-                if (resultFile.exists()) {
+                File resultFile = ResultContainer.getResultFile(resultList.get(i));
+                // a session with only a journal was interrupted, and is recovered when continued
+                if (resultFile.exists() ||
+                        ResultJournal.getJournalFile(resultList.get(i)).exists()) {
                     mResultDirs.add(resultList.get(i));
                 }
             }
@@ -62,22 +76,10 @@ public class TestResultRepo implements ITestResultRepo {
 
     @Override
     public File getReportDir(int sessionId) {
-        return mResultDirs.get(sessionId);
-    }
-
-    private ITestSummary parseSummary(int id, File resultDir) {
-        TestSummaryXml result = new TestSummaryXml(id, resultDir.getName());
-        try {
-            result.parse(new BufferedReader(new FileReader(new File(resultDir,
-                    CtsXmlResultReporter.TEST_RESULT_FILE_NAME))));
-            return result;
-        } catch (ParseException e) {
-            CLog.e(e);
-        } catch (FileNotFoundException e) {
-            // should never happen, since we check for file existence above. Barf the stack trace
-            CLog.e(e);
+        if (sessionId < 0 || mResultDirs.size() <= sessionId) {
+            return null;
         }
-        return result;
+        return mResultDirs.get(sessionId);
     }
 
     /**
@@ -85,12 +87,14 @@ public class TestResultRepo implements ITestResultRepo {
      */
     @Override
     public List<ITestSummary> getSummaries() {
-        // parsing the summary data should be relatively quick, so just parse it every time
-        // rather than caching it
+        // the index is revalidated every time, so summaries of sessions written since are
+        // picked up
+        SessionIndex index = new SessionIndex(mResultsDir);
         List<ITestSummary> summaries = new ArrayList<ITestSummary>(mResultDirs.size());
         for (int i = 0; i < mResultDirs.size(); i++) {
-            summaries.add(parseSummary(i, mResultDirs.get(i)));
+            summaries.add(index.getSummary(i, mResultDirs.get(i)));
         }
+        index.save();
         return summaries;
     }
 
@@ -104,20 +108,213 @@ public class TestResultRepo implements ITestResultRepo {
             CLog.e("Session id %d does not exist", sessionId);
             return null;
         }
+        BufferedReader reader = null;
         try {
             TestResults results = new TestResults();
-            File resultFile = new File(mResultDirs.get(sessionId),
-                    CtsXmlResultReporter.TEST_RESULT_FILE_NAME);
-            results.parse(new BufferedReader(new FileReader(resultFile)));
+            reader = openResultReader(sessionId);
+            results.parse(reader);
             return results;
-        } catch (FileNotFoundException e) {
-            CLog.e("Could not find result file for session %d", sessionId);
+        } catch (IOException e) {
+            CLog.e("Could not read result file for session %d: %s", sessionId, e.toString());
+        } catch (ParseException e) {
+            CLog.e("Failed to parse result file for session %d", sessionId);
+        } finally {
+            StreamUtil.closeStream(reader);
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestPackageResult getPackageResult(int sessionId, String appPackageName) {
+        if (mResultDirs.size() <= sessionId) {
+            CLog.e("Session id %d does not exist", sessionId);
+            return null;
+        }
+        File containerFile = ResultContainer.getContainerFile(mResultDirs.get(sessionId));
+        if (!containerFile.exists()) {
+            TestResults results = getResult(sessionId);
+            return results == null ? null : results.getPackage(appPackageName);
+        }
+        try {
+            return new ResultContainer(containerFile).readPackage(appPackageName);
+        } catch (IOException e) {
+            CLog.e("Could not read result container for session %d: %s", sessionId,
+                    e.toString());
+        } catch (ParseException e) {
+            CLog.e("Failed to parse results of %s in session %d", appPackageName, sessionId);
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Collection<TestIdentifier>> getTestsWithStatus(int sessionId,
+            CtsTestStatus status) {
+        if (mResultDirs.size() <= sessionId) {
+            CLog.e("Session id %d does not exist", sessionId);
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            TestStatusReader statusReader = new TestStatusReader(status);
+            reader = openResultReader(sessionId);
+            statusReader.parse(reader);
+            return statusReader.getTests();
+        } catch (IOException e) {
+            CLog.e("Could not read result file for session %d: %s", sessionId, e.toString());
         } catch (ParseException e) {
             CLog.e("Failed to parse result file for session %d", sessionId);
+        } finally {
+            StreamUtil.closeStream(reader);
         }
         return null;
     }
 
+    /**
+     * Open the result XML of the given session, whether stored as plain XML or as a
+     * {@link ResultContainer}.
+     */
+    private BufferedReader openResultReader(int sessionId) throws IOException {
+        File resultFile = ResultContainer.getResultFile(mResultDirs.get(sessionId));
+        return new BufferedReader(new InputStreamReader(ResultContainer.openXml(resultFile),
+                "UTF-8"));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getBuildFingerprint(int sessionId) {
+        TestStatusReader history = getSessionHistory(sessionId);
+        return history == null ? null : history.getBuildFingerprint();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Collection<TestIdentifier>> getPassedTestsByDigest(int sessionId) {
+        TestStatusReader history = getSessionHistory(sessionId);
+        if (history == null) {
+            return null;
+        }
+        Map<String, Collection<TestIdentifier>> passedTests =
+                new HashMap<String, Collection<TestIdentifier>>();
+        for (Map.Entry<String, Collection<TestIdentifier>> pkgEntry :
+                history.getTests().entrySet()) {
+            String digest = history.getDigest(pkgEntry.getKey());
+            if (digest != null && !history.hasPerfResults(pkgEntry.getKey())) {
+                passedTests.put(digest, pkgEntry.getValue());
+            }
+        }
+        return passedTests;
+    }
+
+    /**
+     * Read the passed tests, test statuses and times of the given session in a single streaming
+     * pass. The history is kept, so each session is read at most once by this repo.
+     *
+     * @return the {@link TestStatusReader} holding the history, or <code>null</code> if the
+     *         session could not be read
+     */
+    private TestStatusReader getSessionHistory(int sessionId) {
+        if (mSessionHistories.containsKey(sessionId)) {
+            return mSessionHistories.get(sessionId);
+        }
+        if (mResultDirs.size() <= sessionId) {
+            CLog.e("Session id %d does not exist", sessionId);
+            return null;
+        }
+        TestStatusReader history = null;
+        BufferedReader reader = null;
+        try {
+            TestStatusReader statusReader = new TestStatusReader(CtsTestStatus.PASS, true);
+            reader = openResultReader(sessionId);
+            statusReader.parse(reader);
+            history = statusReader;
+        } catch (IOException e) {
+            CLog.e("Could not read result file for session %d: %s", sessionId, e.toString());
+        } catch (ParseException e) {
+            CLog.e("Failed to parse result file for session %d", sessionId);
+        } finally {
+            StreamUtil.closeStream(reader);
+        }
+        mSessionHistories.put(sessionId, history);
+        return history;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getPackageRuntimes(int maxSessions) {
+        Map<String, Long> runtimes = new HashMap<String, Long>();
+        int oldestSessionId = Math.max(0, mResultDirs.size() - maxSessions);
+        // walk from the most recent session backwards, so the latest run time of each package
+        // is used
+        for (int i = mResultDirs.size() - 1; i >= oldestSessionId; i--) {
+            TestStatusReader history = getSessionHistory(i);
+            if (history == null) {
+                continue;
+            }
+            for (Map.Entry<String, Long> pkgEntry : history.getElapsedTimes().entrySet()) {
+                String uri = pkgEntry.getKey();
+                if (!runtimes.containsKey(uri) && pkgEntry.getValue() > 0) {
+                    runtimes.put(uri, pkgEntry.getValue());
+                }
+            }
+        }
+        return runtimes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Double> getTestDurationsByModel(int maxSessions) {
+        Map<String, Long> modelTimes = new HashMap<String, Long>();
+        Map<String, Long> modelTestCounts = new HashMap<String, Long>();
+        int oldestSessionId = Math.max(0, mResultDirs.size() - maxSessions);
+        for (int i = mResultDirs.size() - 1; i >= oldestSessionId; i--) {
+            TestStatusReader history = getSessionHistory(i);
+            if (history == null) {
+                continue;
+            }
+            String model = history.getDeviceModel();
+            if (model == null || model.startsWith("ERROR:")) {
+                // no device info, or session was run across different models
+                continue;
+            }
+            long time = 0;
+            long testCount = 0;
+            for (Map.Entry<String, Long> pkgEntry : history.getElapsedTimes().entrySet()) {
+                if (pkgEntry.getValue() > 0) {
+                    time += pkgEntry.getValue();
+                    testCount += history.countTests(pkgEntry.getKey(), CtsTestStatus.PASS) +
+                            history.countTests(pkgEntry.getKey(), CtsTestStatus.FAIL);
+                }
+            }
+            if (testCount > 0) {
+                Long modelTime = modelTimes.get(model);
+                Long modelTestCount = modelTestCounts.get(model);
+                modelTimes.put(model, modelTime == null ? time : modelTime + time);
+                modelTestCounts.put(model, modelTestCount == null ? testCount :
+                        modelTestCount + testCount);
+            }
+        }
+        Map<String, Double> durations = new HashMap<String, Double>(modelTimes.size());
+        for (Map.Entry<String, Long> modelEntry : modelTimes.entrySet()) {
+            durations.put(modelEntry.getKey(),
+                    (double)modelEntry.getValue() / modelTestCounts.get(modelEntry.getKey()));
+        }
+        return durations;
+    }
+
     private class ResultDirFilter implements FileFilter {
 
         /**
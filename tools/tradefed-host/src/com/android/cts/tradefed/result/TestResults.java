@@ -17,26 +17,41 @@ package com.android.cts.tradefed.result;
 
 import com.android.cts.tradefed.build.CtsBuildProvider;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
 import org.kxml2.io.KXmlSerializer;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Data structure for the detailed CTS test results.
  * <p/>
  * Can deserialize results for test packages from XML
+ * <p/>
+ * If a spool directory is set, the results of a package can be spooled to a file in it with
+ * {@link #spoolPackage(String)} once its run is complete, releasing them from memory. Spooled
+ * results are read back when the package is accessed again, and copied as is into the XML.
  */
 class TestResults extends AbstractXmlPullParser {
 
@@ -48,11 +63,36 @@ class TestResults extends AbstractXmlPullParser {
     static final String TIMEOUT_ATTR = "timeout";
     static final String NOT_EXECUTED_ATTR = "notExecuted";
     static final String FAILED_ATTR = "failed";
+    private static final String SPOOL_TAG = "Spool";
 
     private Map<String, TestPackageResult> mPackageMap =
             new LinkedHashMap<String, TestPackageResult>();
     private DeviceInfoResult mDeviceInfo = new DeviceInfoResult();
 
+    /** the XML of a spooled package, and its test counts */
+    private static class SpooledPackage {
+        final File mFile;
+        /** the offset of the package XML in the file, after the enclosing start tag */
+        final long mOffset;
+        /** the length of the package XML, up to the enclosing end tag */
+        final long mLength;
+        final int[] mCounts = new int[CtsTestStatus.values().length];
+
+        SpooledPackage(File file, long offset, long length, TestPackageResult pkgResult) {
+            mFile = file;
+            mOffset = offset;
+            mLength = length;
+            for (CtsTestStatus status : CtsTestStatus.values()) {
+                mCounts[status.ordinal()] = pkgResult.countTests(status);
+            }
+        }
+    }
+
+    private File mSpoolDir = null;
+    private int mSpoolFileCount = 0;
+    private Map<String, SpooledPackage> mSpooledPackages =
+            new LinkedHashMap<String, SpooledPackage>();
+
     /**
      * {@inheritDoc}
      */
@@ -79,7 +119,8 @@ class TestResults extends AbstractXmlPullParser {
     }
 
     /**
-     * @return the list of {@link TestPackageResult}.
+     * @return the list of {@link TestPackageResult}s held in memory. Spooled packages are not
+     *         included.
      */
     public Collection<TestPackageResult> getPackages() {
         return mPackageMap.values();
@@ -95,24 +136,205 @@ class TestResults extends AbstractXmlPullParser {
         for (TestPackageResult result : mPackageMap.values()) {
             total += result.countTests(status);
         }
+        for (SpooledPackage spooledPkg : mSpooledPackages.values()) {
+            total += spooledPkg.mCounts[status.ordinal()];
+        }
         return total;
     }
 
+    /**
+     * Count the number of tests with given status in a package, which may be spooled.
+     *
+     * @param appPackageName the app package name
+     * @param status the {@link CtsTestStatus} to count
+     * @return the count, or 0 if the package is not found
+     */
+    public int countTests(String appPackageName, CtsTestStatus status) {
+        TestPackageResult pkgResult = mPackageMap.get(appPackageName);
+        if (pkgResult != null) {
+            return pkgResult.countTests(status);
+        }
+        SpooledPackage spooledPkg = mSpooledPackages.get(appPackageName);
+        return spooledPkg == null ? 0 : spooledPkg.mCounts[status.ordinal()];
+    }
+
+    /**
+     * Set the directory to spool package results to.
+     *
+     * @param spoolDir the directory, created if it does not exist
+     */
+    public void setSpoolDir(File spoolDir) {
+        mSpoolDir = spoolDir;
+    }
+
+    /**
+     * Write the results of the given package to the spool directory, and release them from
+     * memory. Has no effect if no spool directory is set, or if the package is not in memory.
+     * If the results cannot be written, they are kept in memory.
+     *
+     * @param appPackageName the app package name
+     */
+    public void spoolPackage(String appPackageName) {
+        TestPackageResult pkgResult = mPackageMap.get(appPackageName);
+        if (mSpoolDir == null || pkgResult == null) {
+            return;
+        }
+        mSpoolDir.mkdirs();
+        File spoolFile = new File(mSpoolDir, String.format("%d.xml", mSpoolFileCount++));
+        FileOutputStream fileStream = null;
+        long offset = 0;
+        long length = 0;
+        boolean spooled = false;
+        try {
+            fileStream = new FileOutputStream(spoolFile);
+            KXmlSerializer serializer = new KXmlSerializer();
+            serializer.setOutput(new BufferedOutputStream(fileStream), "UTF-8");
+            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+            // serialize the package enclosed in a dummy tag, so it is indented as it would be in
+            // the report
+            serializer.startTag(ns, SPOOL_TAG);
+            serializer.flush();
+            offset = fileStream.getChannel().position();
+            pkgResult.serialize(serializer);
+            serializer.flush();
+            length = fileStream.getChannel().position() - offset;
+            serializer.endTag(ns, SPOOL_TAG);
+            serializer.flush();
+            spooled = true;
+        } catch (IOException e) {
+            CLog.e("Failed to spool results of %s: %s", appPackageName, e.toString());
+        } finally {
+            StreamUtil.closeStream(fileStream);
+        }
+        if (!spooled) {
+            spoolFile.delete();
+            return;
+        }
+        mSpooledPackages.put(appPackageName,
+                new SpooledPackage(spoolFile, offset, length, pkgResult));
+        mPackageMap.remove(appPackageName);
+    }
+
+    /**
+     * Spool the results of all packages held in memory.
+     *
+     * @see #spoolPackage(String)
+     */
+    public void spoolPackages() {
+        for (String appPackageName : new ArrayList<String>(mPackageMap.keySet())) {
+            spoolPackage(appPackageName);
+        }
+    }
+
+    /**
+     * Delete the spool directory and all spooled results.
+     */
+    public void deleteSpoolDir() {
+        mSpooledPackages.clear();
+        if (mSpoolDir != null) {
+            FileUtil.recursiveDelete(mSpoolDir);
+        }
+    }
+
+    /**
+     * Read the results of a spooled package back into memory.
+     *
+     * @return the {@link TestPackageResult} or <code>null</code> if the package was not spooled
+     */
+    private TestPackageResult unspoolPackage(String appPackageName) {
+        SpooledPackage spooledPkg = mSpooledPackages.remove(appPackageName);
+        if (spooledPkg == null) {
+            return null;
+        }
+        TestResults spooledResults = new TestResults();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(spooledPkg.mFile), "UTF-8"));
+            spooledResults.parse(reader);
+        } catch (IOException e) {
+            CLog.e("Failed to read spooled results of %s: %s", appPackageName, e.toString());
+        } catch (ParseException e) {
+            CLog.e("Failed to parse spooled results of %s", appPackageName);
+        } finally {
+            StreamUtil.closeStream(reader);
+        }
+        spooledPkg.mFile.delete();
+        TestPackageResult pkgResult = spooledResults.getPackage(appPackageName);
+        if (pkgResult != null) {
+            mPackageMap.put(appPackageName, pkgResult);
+        }
+        return pkgResult;
+    }
+
     /**
      * Serialize the test results to XML.
      *
      * @param serializer
+     * @param stream the {@link OutputStream} the serializer writes to, to copy the XML of spooled
+     *            packages to
      * @throws IOException
      */
-    public void serialize(KXmlSerializer serializer) throws IOException {
+    public void serialize(KXmlSerializer serializer, OutputStream stream) throws IOException {
         mDeviceInfo.serialize(serializer);
         serializeHostInfo(serializer);
         serializeTestSummary(serializer);
         // sort before serializing
-        List<TestPackageResult> pkgs = new ArrayList<TestPackageResult>(mPackageMap.values());
-        Collections.sort(pkgs, new PkgComparator());
-        for (TestPackageResult r : pkgs) {
-            r.serialize(serializer);
+        Set<String> pkgNames = new TreeSet<String>(mPackageMap.keySet());
+        pkgNames.addAll(mSpooledPackages.keySet());
+        for (String pkgName : pkgNames) {
+            startContainerBlock(serializer, stream, pkgName);
+            TestPackageResult pkgResult = mPackageMap.get(pkgName);
+            if (pkgResult != null) {
+                pkgResult.serialize(serializer);
+            } else {
+                // make sure everything serialized so far is written before the spooled XML
+                serializer.flush();
+                copySpooledPackage(mSpooledPackages.get(pkgName), stream);
+            }
+        }
+        startContainerBlock(serializer, stream, "");
+    }
+
+    /**
+     * If the XML is written to a {@link ResultContainer}, start a new block, so each package
+     * can be read back on its own.
+     */
+    private void startContainerBlock(KXmlSerializer serializer, OutputStream stream, String name)
+            throws IOException {
+        if (stream instanceof ResultContainer.Writer) {
+            serializer.flush();
+            ((ResultContainer.Writer)stream).startBlock(name);
+        }
+    }
+
+    private void copySpooledPackage(SpooledPackage spooledPkg, OutputStream stream)
+            throws IOException {
+        InputStream spoolStream = null;
+        try {
+            spoolStream = new BufferedInputStream(new FileInputStream(spooledPkg.mFile));
+            long skipped = 0;
+            while (skipped < spooledPkg.mOffset) {
+                long n = spoolStream.skip(spooledPkg.mOffset - skipped);
+                if (n <= 0) {
+                    throw new IOException(String.format("Truncated spool file %s",
+                            spooledPkg.mFile));
+                }
+                skipped += n;
+            }
+            byte[] buffer = new byte[8 * 1024];
+            long remaining = spooledPkg.mLength;
+            while (remaining > 0) {
+                int n = spoolStream.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new IOException(String.format("Truncated spool file %s",
+                            spooledPkg.mFile));
+                }
+                stream.write(buffer, 0, n);
+                remaining -= n;
+            }
+        } finally {
+            StreamUtil.closeStream(spoolStream);
         }
     }
 
@@ -172,18 +394,6 @@ class TestResults extends AbstractXmlPullParser {
         serializer.endTag(ns, SUMMARY_TAG);
     }
 
-    private static class PkgComparator implements Comparator<TestPackageResult> {
-
-        /**
-         * {@inheritDoc}
-         */
-        @Override
-        public int compare(TestPackageResult o1, TestPackageResult o2) {
-            return o1.getAppPackageName().compareTo(o2.getAppPackageName());
-        }
-
-    }
-
     /**
      * Return existing package with given app package name. If not found, create a new one.
      * @param name
@@ -191,6 +401,9 @@ class TestResults extends AbstractXmlPullParser {
      */
     public TestPackageResult getOrCreatePackage(String appPackageName) {
         TestPackageResult pkgResult = mPackageMap.get(appPackageName);
+        if (pkgResult == null) {
+            pkgResult = unspoolPackage(appPackageName);
+        }
         if (pkgResult == null) {
             pkgResult = new TestPackageResult();
             pkgResult.setAppPackageName(appPackageName);
@@ -199,6 +412,31 @@ class TestResults extends AbstractXmlPullParser {
         return pkgResult;
     }
 
+    /**
+     * Return the existing package with given app package name.
+     *
+     * @param appPackageName the app package name
+     * @return the {@link TestPackageResult} or <code>null</code> if not found
+     */
+    public TestPackageResult getPackage(String appPackageName) {
+        TestPackageResult pkgResult = mPackageMap.get(appPackageName);
+        if (pkgResult == null) {
+            pkgResult = unspoolPackage(appPackageName);
+        }
+        return pkgResult;
+    }
+
+    /**
+     * Return the value of the given device info metric.
+     *
+     * @param name the metric name, as defined in
+     *            {@link android.tests.getinfo.DeviceInfoConstants}
+     * @return the metric value or <code>null</code> if it was not collected
+     */
+    public String getDeviceInfoMetric(String name) {
+        return mDeviceInfo.getMetrics().get(name);
+    }
+
     /**
      * Populate the results with collected device info metrics.
      * @param runMetrics
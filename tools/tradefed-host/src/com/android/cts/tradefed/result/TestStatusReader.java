@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import android.tests.getinfo.DeviceInfoConstants;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the test statuses of a CTS result XML in a single streaming pass.
+ * <p/>
+ * Unlike {@link TestResults}, no result object graph is built: stack traces, performance results
+ * and device info other than the device model and build fingerprint are skipped without being
+ * read. Only the tests with the status of interest are kept, along with the number of tests of
+ * each status, the digest and the presence of performance results of each package. Optionally,
+ * the times of the executed tests are recorded, to compute the time taken to run each package.
+ */
+class TestStatusReader extends AbstractXmlPullParser {
+
+    private final CtsTestStatus mStatusFilter;
+
+    /** the tests with the status of interest, keyed by app package name, in document order */
+    private final Map<String, Collection<TestIdentifier>> mTests =
+            new LinkedHashMap<String, Collection<TestIdentifier>>();
+    /** the test counts of each package, indexed by {@link CtsTestStatus#ordinal()} */
+    private final Map<String, int[]> mCounts = new HashMap<String, int[]>();
+    private final boolean mRecordTimes;
+    /** the start and end times of the executed tests of each package, if recorded */
+    private final Map<String, List<long[]>> mTestTimes = new HashMap<String, List<long[]>>();
+    /** the digest of each package that has one */
+    private final Map<String, String> mDigests = new HashMap<String, String>();
+    /** the packages with performance results */
+    private final Set<String> mPerfPackages = new HashSet<String>();
+    private String mDeviceModel = null;
+    private String mBuildFingerprint = null;
+
+    /**
+     * Create a {@link TestStatusReader}.
+     *
+     * @param statusFilter the {@link CtsTestStatus} of the tests to keep, or <code>null</code> to
+     *            only count tests
+     */
+    TestStatusReader(CtsTestStatus statusFilter) {
+        this(statusFilter, false);
+    }
+
+    /**
+     * Create a {@link TestStatusReader}.
+     *
+     * @param statusFilter the {@link CtsTestStatus} of the tests to keep, or <code>null</code> to
+     *            only count tests
+     * @param recordTimes if <code>true</code>, record the times of the executed tests
+     */
+    TestStatusReader(CtsTestStatus statusFilter, boolean recordTimes) {
+        mStatusFilter = statusFilter;
+        mRecordTimes = recordTimes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void parse(XmlPullParser parser) throws XmlPullParserException, IOException {
+        String appPackageName = null;
+        Collection<TestIdentifier> pkgTests = null;
+        int[] pkgCounts = null;
+        List<long[]> pkgTestTimes = null;
+        LinkedList<String> suiteNames = new LinkedList<String>();
+        String className = null;
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG) {
+                String tag = parser.getName();
+                if (Test.TAG.equals(tag)) {
+                    if (pkgCounts != null && className != null) {
+                        CtsTestStatus status = CtsTestStatus.getStatus(
+                                getAttribute(parser, Test.RESULT_ATTR));
+                        if (status != null) {
+                            pkgCounts[status.ordinal()]++;
+                            if (status.equals(mStatusFilter)) {
+                                pkgTests.add(new TestIdentifier(className,
+                                        getAttribute(parser, Test.NAME_ATTR)));
+                            }
+                            if (mRecordTimes && !CtsTestStatus.NOT_EXECUTED.equals(status)) {
+                                recordTimes(parser, pkgTestTimes);
+                            }
+                        }
+                    }
+                } else if (TestCase.TAG.equals(tag)) {
+                    // build the class name once for all the tests of the case
+                    StringBuilder classNameBuilder = new StringBuilder();
+                    for (String suiteName : suiteNames) {
+                        classNameBuilder.append(suiteName);
+                        classNameBuilder.append('.');
+                    }
+                    classNameBuilder.append(getAttribute(parser, "name"));
+                    className = classNameBuilder.toString();
+                } else if (TestSuite.TAG.equals(tag)) {
+                    suiteNames.addLast(getAttribute(parser, "name"));
+                } else if (TestPackageResult.TAG.equals(tag)) {
+                    appPackageName = getAttribute(parser,
+                            TestPackageResult.APP_PACKAGE_NAME_ATTR);
+                    if (appPackageName != null) {
+                        pkgTests = getOrCreate(appPackageName);
+                        pkgCounts = mCounts.get(appPackageName);
+                        pkgTestTimes = mTestTimes.get(appPackageName);
+                        String digest = getAttribute(parser, TestPackageResult.DIGEST_ATTR);
+                        if (digest != null && digest.length() > 0) {
+                            mDigests.put(appPackageName, digest);
+                        }
+                    }
+                } else if (Test.SUMMARY_TAG.equals(tag)) {
+                    if (appPackageName != null) {
+                        mPerfPackages.add(appPackageName);
+                    }
+                } else if (DeviceInfoResult.BUILD_TAG.equals(tag)) {
+                    mDeviceModel = getAttribute(parser, DeviceInfoConstants.BUILD_MODEL);
+                    mBuildFingerprint = getAttribute(parser,
+                            DeviceInfoConstants.BUILD_FINGERPRINT);
+                }
+            } else if (eventType == XmlPullParser.END_TAG) {
+                String tag = parser.getName();
+                if (TestCase.TAG.equals(tag)) {
+                    className = null;
+                } else if (TestSuite.TAG.equals(tag)) {
+                    suiteNames.pollLast();
+                } else if (TestPackageResult.TAG.equals(tag)) {
+                    appPackageName = null;
+                    pkgTests = null;
+                    pkgCounts = null;
+                    pkgTestTimes = null;
+                    suiteNames.clear();
+                }
+            }
+            eventType = parser.next();
+        }
+    }
+
+    private Collection<TestIdentifier> getOrCreate(String appPackageName) {
+        Collection<TestIdentifier> pkgTests = mTests.get(appPackageName);
+        if (pkgTests == null) {
+            pkgTests = new ArrayList<TestIdentifier>();
+            mTests.put(appPackageName, pkgTests);
+            mCounts.put(appPackageName, new int[CtsTestStatus.values().length]);
+            mTestTimes.put(appPackageName, new ArrayList<long[]>());
+        }
+        return pkgTests;
+    }
+
+    private void recordTimes(XmlPullParser parser, List<long[]> pkgTestTimes) {
+        long startTime = TimeUtil.parseTimestamp(getAttribute(parser, Test.STARTTIME_ATTR));
+        long endTime = TimeUtil.parseTimestamp(getAttribute(parser, Test.ENDTIME_ATTR));
+        if (startTime >= 0 && endTime >= 0) {
+            pkgTestTimes.add(new long[] {startTime, endTime});
+        }
+    }
+
+    /**
+     * Get the tests with the status of interest.
+     *
+     * @return a {@link Map} of app package name to the package's tests with the status. Every
+     *         package in the result is included, in document order.
+     */
+    Map<String, Collection<TestIdentifier>> getTests() {
+        return mTests;
+    }
+
+    /**
+     * Count the number of tests with given status.
+     */
+    int countTests(CtsTestStatus status) {
+        int total = 0;
+        for (int[] pkgCounts : mCounts.values()) {
+            total += pkgCounts[status.ordinal()];
+        }
+        return total;
+    }
+
+    /**
+     * Count the number of tests with given status in a package.
+     *
+     * @return the count, or 0 if the package is not in the result
+     */
+    int countTests(String appPackageName, CtsTestStatus status) {
+        int[] pkgCounts = mCounts.get(appPackageName);
+        return pkgCounts == null ? 0 : pkgCounts[status.ordinal()];
+    }
+
+    /**
+     * Get the time taken to run each package, computed like
+     * {@link TestPackageResult#getElapsedTime()}. Requires the times to be recorded.
+     *
+     * @return a {@link Map} of app package name to elapsed time in ms
+     */
+    Map<String, Long> getElapsedTimes() {
+        Map<String, Long> elapsedTimes = new HashMap<String, Long>(mTestTimes.size());
+        for (Map.Entry<String, List<long[]>> pkgEntry : mTestTimes.entrySet()) {
+            elapsedTimes.put(pkgEntry.getKey(),
+                    TestPackageResult.getElapsedTime(pkgEntry.getValue()));
+        }
+        return elapsedTimes;
+    }
+
+    /**
+     * Get the model of the device the tests ran on.
+     *
+     * @return the model, or <code>null</code> if the result has no device info
+     */
+    String getDeviceModel() {
+        return mDeviceModel;
+    }
+
+    /**
+     * Get the build fingerprint of the device the tests ran on.
+     *
+     * @return the fingerprint, or <code>null</code> if the result has no device info
+     */
+    String getBuildFingerprint() {
+        return mBuildFingerprint;
+    }
+
+    /**
+     * Get the digest of a package.
+     *
+     * @return the digest, or <code>null</code> if the package has none or is not in the result
+     */
+    String getDigest(String appPackageName) {
+        return mDigests.get(appPackageName);
+    }
+
+    /**
+     * Return <code>true</code> if any test of the given package has a performance result.
+     */
+    boolean hasPerfResults(String appPackageName) {
+        return mPerfPackages.contains(appPackageName);
+    }
+}
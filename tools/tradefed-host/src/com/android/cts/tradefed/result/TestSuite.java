@@ -26,7 +26,6 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.Deque;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -69,21 +68,18 @@ class TestSuite extends AbstractXmlPullParser {
     /**
      * Insert the given test result into this suite.
      *
-     * @param suiteNames list of remaining suite names for this test
+     * @param suiteNames the suite names for this test
+     * @param suiteIndex the index of the name of the next child suite in <var>suiteNames</var>
      * @param testClassName the test class name
-     * @param testName the test method name
-     * @param testResult the {@link TestResult}
+     * @param test the {@link Test}
      */
-    public Test findTest(List<String> suiteNames, String testClassName, String testName,
-            boolean insertIfMissing) {
-        if (suiteNames.size() <= 0) {
+    void insertTest(String[] suiteNames, int suiteIndex, String testClassName, Test test) {
+        if (suiteIndex >= suiteNames.length) {
             // no more package segments
-            TestCase testCase = getTestCase(testClassName);
-            return testCase.findTest(testName, insertIfMissing);
+            getTestCase(testClassName).insertTest(test);
         } else {
-            String rootName = suiteNames.remove(0);
-            TestSuite suite = getTestSuite(rootName);
-            return suite.findTest(suiteNames, testClassName, testName, insertIfMissing);
+            getTestSuite(suiteNames[suiteIndex]).insertTest(suiteNames, suiteIndex + 1,
+                    testClassName, test);
         }
     }
 
@@ -222,6 +218,28 @@ class TestSuite extends AbstractXmlPullParser {
         }
     }
 
+    /**
+     * Adds all the {@link Test}s contained in this suite and its child suites.
+     *
+     * @param tests the {@link Map} of {@link TestIdentifier}s to {@link Test}s to add to
+     * @param parentSuiteNames a {@link Deque} of parent suite names. Used to construct the full
+     * class name of the test
+     */
+    void addTests(Map<TestIdentifier, Test> tests, Deque<String> parentSuiteNames) {
+        if (getName() != null) {
+            parentSuiteNames.addLast(getName());
+        }
+        for (TestSuite suite : mChildSuiteMap.values()) {
+            suite.addTests(tests, parentSuiteNames);
+        }
+        for (TestCase testCase : mChildTestCaseMap.values()) {
+            testCase.addTests(tests, parentSuiteNames);
+        }
+        if (getName() != null) {
+            parentSuiteNames.removeLast();
+        }
+    }
+
     /**
      * Count the number of tests in this {@link TestSuite} with given status.
      *
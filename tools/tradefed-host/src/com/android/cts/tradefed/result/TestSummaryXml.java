@@ -50,6 +50,20 @@ public class TestSummaryXml extends AbstractXmlPullParser implements ITestSummar
         mTimestamp = timestamp;
     }
 
+    /**
+     * Create a {@link TestSummaryXml} with summary data that has already been parsed.
+     */
+    TestSummaryXml(int id, String timestamp, String plan, String startTime,
+            String deviceSerials, int numFailed, int numNotExecuted, int numPassed) {
+        this(id, timestamp);
+        mPlan = plan;
+        mStartTime = startTime;
+        mDeviceSerials = deviceSerials;
+        mNumFailed = numFailed;
+        mNumNotExecuted = numNotExecuted;
+        mNumPassed = numPassed;
+    }
+
     /**
      * {@inheritDoc}
      */
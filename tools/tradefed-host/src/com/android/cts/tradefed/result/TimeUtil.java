@@ -15,6 +15,7 @@
  */
 package com.android.cts.tradefed.result;
 
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.concurrent.TimeUnit;
@@ -24,6 +25,8 @@ import java.util.concurrent.TimeUnit;
  */
 class TimeUtil {
 
+    private static final String TIMESTAMP_FORMAT = "EEE MMM dd HH:mm:ss zzz yyyy";
+
     /**
      * Return a prettified version of the given elapsed time
      * @return
@@ -64,10 +67,28 @@ class TimeUtil {
      * @param time the epoch time in ms since midnight Jan 1, 1970
      */
     static String getTimestamp(long time) {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy");
+        SimpleDateFormat dateFormat = new SimpleDateFormat(TIMESTAMP_FORMAT);
         return dateFormat.format(new Date(time));
     }
 
+    /**
+     * Parse a timestamp produced by {@link #getTimestamp(long)}.
+     *
+     * @param timestamp the timestamp {@link String}
+     * @return the epoch time in ms, or -1 if <var>timestamp</var> could not be parsed
+     */
+    static long parseTimestamp(String timestamp) {
+        if (timestamp == null) {
+            return -1;
+        }
+        SimpleDateFormat dateFormat = new SimpleDateFormat(TIMESTAMP_FORMAT);
+        try {
+            return dateFormat.parse(timestamp).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
     /**
      * Return the current timestamp in a compressed format, used to uniquely identify results.
      * <p/>
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.util.DigestCache;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A host-side cache of the tests collected from instrumentation test apks.
+ * <p/>
+ * Each entry is stored in its own file, named after a hash of its key. The key should identify
+ * everything the collected tests depend on, e.g. the apk digest, the instrumentation runner and
+ * the class filter.
+ */
+public class CollectedTestsCache {
+
+    private final File mCacheDir;
+
+    /**
+     * Create a {@link CollectedTestsCache}.
+     *
+     * @param cacheDir the directory to store the cache in. Created if it does not exist.
+     */
+    public CollectedTestsCache(File cacheDir) {
+        mCacheDir = cacheDir;
+    }
+
+    /**
+     * Get the cached tests for the given key.
+     *
+     * @param key the cache key
+     * @return the cached {@link TestIdentifier}s, or <code>null</code> if there is no entry for
+     *         the key
+     */
+    public synchronized Collection<TestIdentifier> getTests(String key) {
+        File cacheFile = getCacheFile(key);
+        if (cacheFile == null || !cacheFile.exists()) {
+            return null;
+        }
+        try {
+            String contents = FileUtil.readStringFromFile(cacheFile);
+            Set<TestIdentifier> tests = new LinkedHashSet<TestIdentifier>();
+            for (String line : contents.split("\n")) {
+                int separator = line.lastIndexOf('#');
+                if (separator > 0) {
+                    tests.add(new TestIdentifier(line.substring(0, separator),
+                            line.substring(separator + 1)));
+                }
+            }
+            return tests;
+        } catch (IOException e) {
+            CLog.w("Failed to read collected tests from %s: %s", cacheFile, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Store the tests for the given key, replacing any existing entry.
+     *
+     * @param key the cache key
+     * @param tests the collected {@link TestIdentifier}s
+     */
+    public synchronized void putTests(String key, Collection<TestIdentifier> tests) {
+        File cacheFile = getCacheFile(key);
+        if (cacheFile == null) {
+            return;
+        }
+        StringBuilder contents = new StringBuilder();
+        for (TestIdentifier test : tests) {
+            contents.append(test.getClassName());
+            contents.append('#');
+            contents.append(test.getTestName());
+            contents.append('\n');
+        }
+        File tmpFile = null;
+        try {
+            if (!mCacheDir.exists() && !mCacheDir.mkdirs()) {
+                CLog.w("Failed to create collected tests cache dir %s", mCacheDir);
+                return;
+            }
+            // write to a temp file first, so a partially written entry is never read
+            tmpFile = FileUtil.createTempFile(cacheFile.getName(), ".tmp", mCacheDir);
+            FileUtil.writeToFile(contents.toString(), tmpFile);
+            cacheFile.delete();
+            if (!tmpFile.renameTo(cacheFile)) {
+                CLog.w("Failed to write collected tests to %s", cacheFile);
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to write collected tests to %s: %s", cacheFile, e.getMessage());
+        } finally {
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Get the file holding the entry for the given key, or <code>null</code> if it could not be
+     * determined.
+     */
+    private File getCacheFile(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] hash = md.digest(key.getBytes("UTF-8"));
+            return new File(mCacheDir, DigestCache.toHexString(hash) + ".txt");
+        } catch (NoSuchAlgorithmException e) {
+            CLog.e(e);
+        } catch (IOException e) {
+            CLog.e(e);
+        }
+        return null;
+    }
+}
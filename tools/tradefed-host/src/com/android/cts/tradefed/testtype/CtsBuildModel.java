@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The read-only model of a CTS build's test packages, shared by all the invocations of the
+ * process that use the build.
+ * <p/>
+ * Models are reference counted, and keyed by the build's root directory and whether known
+ * failures are included. {@link #acquire(CtsBuildHelper, boolean)} returns the existing model of
+ * the build if there is one, and {@link #release()} drops the model once no invocation uses it.
+ * Invocations keep their filters and progress in the {@link ITestPackageDef}s they get from
+ * {@link #getTestPackageRepo()}, which share the model's tests.
+ * <p/>
+ * A model is only reused while the package xml files of the build are unchanged.
+ */
+public class CtsBuildModel {
+
+    /** the models in use, keyed by {@link #getKey(CtsBuildHelper, boolean)} */
+    private static final Map<String, CtsBuildModel> sModels = new HashMap<String, CtsBuildModel>();
+
+    private final String mKey;
+    private final String mStamp;
+    private final TestPackageRepo mRepo;
+    private int mRefCount = 1;
+
+    private CtsBuildModel(String key, String stamp, TestPackageRepo repo) {
+        mKey = key;
+        mStamp = stamp;
+        mRepo = repo;
+    }
+
+    /**
+     * Get the model of the given build, building it if it is not in use. Each call must be
+     * matched by a call to {@link #release()} on the returned model.
+     *
+     * @param build the {@link CtsBuildHelper} of the build
+     * @param includeKnownFailures whether the model includes the known failures
+     */
+    public static CtsBuildModel acquire(CtsBuildHelper build, boolean includeKnownFailures) {
+        String key = getKey(build, includeKnownFailures);
+        String stamp = getStamp(build.getTestCasesDir());
+        // building under the lock makes concurrent invocations of the same build wait for one
+        // model, instead of all building their own
+        synchronized (sModels) {
+            CtsBuildModel model = sModels.get(key);
+            if (model != null && model.mStamp.equals(stamp)) {
+                model.mRefCount++;
+                return model;
+            }
+            if (model != null) {
+                CLog.i("Test packages of %s changed, rebuilding the build model",
+                        build.getRootDir());
+            }
+            model = new CtsBuildModel(key, stamp, new TestPackageRepo(build.getTestCasesDir(),
+                    includeKnownFailures, build.getCacheDir()));
+            // a model replaced because it is stale lives on until its users release it
+            sModels.put(key, model);
+            return model;
+        }
+    }
+
+    /**
+     * Take another reference to this model, e.g. for a shard of the invocation holding it.
+     *
+     * @return this model
+     */
+    public CtsBuildModel retain() {
+        synchronized (sModels) {
+            mRefCount++;
+        }
+        return this;
+    }
+
+    /**
+     * Drop a reference to this model. The model is discarded once all references are dropped.
+     */
+    public void release() {
+        synchronized (sModels) {
+            mRefCount--;
+            if (mRefCount == 0 && sModels.get(mKey) == this) {
+                sModels.remove(mKey);
+            }
+        }
+    }
+
+    /**
+     * Get the read-only {@link ITestPackageRepo} of the build.
+     */
+    public ITestPackageRepo getTestPackageRepo() {
+        return mRepo;
+    }
+
+    /**
+     * Get the number of models in use. Exposed for unit testing.
+     */
+    static int getModelCount() {
+        synchronized (sModels) {
+            return sModels.size();
+        }
+    }
+
+    private static String getKey(CtsBuildHelper build, boolean includeKnownFailures) {
+        return String.format("%s:%b", build.getRootDir().getAbsolutePath(),
+                includeKnownFailures);
+    }
+
+    /**
+     * Get a stamp of the names, sizes and modification times of the package xml files in the
+     * given directory, which changes whenever any of them does.
+     */
+    private static String getStamp(File testCaseDir) {
+        File[] xmlFiles = testCaseDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".xml");
+            }
+        });
+        if (xmlFiles == null) {
+            return "";
+        }
+        Arrays.sort(xmlFiles);
+        StringBuilder stamp = new StringBuilder();
+        for (File xmlFile : xmlFiles) {
+            stamp.append(String.format("%s:%d:%d\n", xmlFile.getName(), xmlFile.length(),
+                    xmlFile.lastModified()));
+        }
+        return stamp.toString();
+    }
+}
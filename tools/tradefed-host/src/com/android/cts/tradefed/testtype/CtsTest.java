@@ -17,9 +17,17 @@
 package com.android.cts.tradefed.testtype;
 
 import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.cts.tradefed.device.ApkInstallCache;
 import com.android.cts.tradefed.device.DeviceInfoCollector;
+import com.android.cts.tradefed.device.DeviceReadinessProbe;
+import com.android.cts.tradefed.device.LogcatRingBuffer;
 import com.android.cts.tradefed.result.CtsTestStatus;
+import com.android.cts.tradefed.result.ITestResultRepo;
 import com.android.cts.tradefed.result.PlanCreator;
+import com.android.cts.tradefed.result.ResultCache;
+import com.android.cts.tradefed.result.TestResultRepo;
+import com.android.cts.tradefed.util.DigestCache;
+import com.android.cts.tradefed.util.PhaseProfiler;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.testrunner.TestIdentifier;
@@ -27,20 +35,20 @@ import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.Option.Importance;
+import com.android.tradefed.config.OptionCopier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.TestDeviceOptions;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
-import com.android.tradefed.result.ResultForwarder;
 import com.android.tradefed.testtype.IBuildReceiver;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.IResumableTest;
 import com.android.tradefed.testtype.IShardableTest;
-import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
 import java.io.BufferedInputStream;
@@ -51,9 +59,12 @@ import java.io.InputStream;
 import java.lang.InterruptedException;
 import java.lang.System;
 import java.lang.Thread;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
@@ -62,6 +73,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import junit.framework.Test;
 
@@ -80,8 +96,21 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
     public static final String CONTINUE_OPTION = "continue-session";
     public static final String RUN_KNOWN_FAILURES_OPTION = "run-known-failures";
 
+    /** test packages that are known to leave pop-ups behind, so need a reboot after running */
+    private static final List<String> REBOOT_AFTER_PACKAGES = Arrays.asList(
+            "CtsMediaTestCases",
+            "CtsAccessibilityTestCases");
+    /** test packages that are prone to spurious failures like INJECT_EVENTS without a reboot */
+    private static final List<String> REBOOT_BEFORE_PACKAGES = Arrays.asList(
+            "CtsAnimationTestCases",
+            "CtsGraphicsTestCases",
+            "CtsViewTestCases",
+            "CtsWidgetTestCases");
+
     public static final String PACKAGE_NAME_METRIC = "packageName";
     public static final String PACKAGE_DIGEST_METRIC = "packageDigest";
+    public static final String REBOOT_READY_TIME_METRIC = "rebootReadyTime";
+    public static final String PACKAGE_CACHED_METRIC = "packageCachedFrom";
 
     private ITestDevice mDevice;
 
@@ -125,12 +154,40 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         "concurrently.")
     private int mShards = 1;
 
+    @Option(name = "shard-by-runtime", description =
+        "when sharding, balance the shards using the package run times recorded in previous " +
+        "sessions, rather than distributing packages round-robin. Packages with no recorded " +
+        "run time are weighted by their number of tests.")
+    private boolean mShardByRuntime = false;
+
+    @Option(name = "shard-history-sessions", description =
+        "the maximum number of most recent sessions to read package run times from when " +
+        "--shard-by-runtime is set.")
+    private int mShardHistorySessions = 5;
+
+    @Option(name = "split-large-packages", description =
+        "when sharding, split test packages that would take longer than an evenly balanced " +
+        "shard into several packages, each running a range of the package's test classes.")
+    private boolean mSplitLargePackages = false;
+
+    @Option(name = "dynamic-sharding", description =
+        "when sharding, place the test packages in a queue shared by all shards instead of " +
+        "assigning them up front. Each shard takes the next package from the queue when it " +
+        "becomes free.")
+    private boolean mDynamicSharding = false;
+
+    @Option(name = "device-speed-aware", description =
+        "when using --dynamic-sharding, identify devices that are much slower than the rest of " +
+        "the pool from the test durations recorded in previous sessions for their model. Slow " +
+        "devices take the cheapest packages, and avoid packages that require a reboot.")
+    private boolean mDeviceSpeedAware = false;
+
     @Option(name = "screenshot", description =
         "flag for taking a screenshot of the device when test execution is complete.")
     private boolean mScreenshot = false;
 
     @Option(name = "bugreport", shortName = 'b', description =
-        "take a bugreport after each failed test. " +
+        "take a bugreport after the first failed test of each test class. " +
         "Warning: can potentially use a lot of disk space.")
     private boolean mBugreport = false;
 
@@ -143,9 +200,15 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
     private boolean mDisableReboot = false;
 
     @Option(name = "reboot-wait-time", description =
-            "Additional wait time in ms after boot complete.")
+            "Maximum additional wait time in ms after boot complete, for the device to become " +
+            "ready for testing.")
     private int mRebootWaitTimeMSec = 2 * 60 * 1000;
 
+    @Option(name = "fixed-reboot-wait", description =
+            "Always wait the full --reboot-wait-time after boot complete, instead of probing " +
+            "the device until it is ready for testing.")
+    private boolean mFixedRebootWait = false;
+
     @Option(name = "reboot-interval", description =
             "Interval between each reboot in min.")
     private int mRebootIntervalMin = 30;
@@ -165,7 +228,68 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             "Should be an amount that can comfortably fit in memory.")
     private int mMaxLogcatBytes = 500 * 1024; // 500K
 
+    @Option(name = "failure-capture-max-bytes", description =
+            "The max total size in bytes of the logcats, screenshots and bugreports captured " +
+            "for test failures in an invocation. No more are captured once it is reached.")
+    private long mFailureCaptureMaxBytes = 200 * 1024 * 1024; // 200M
+
+    @Option(name = "failure-capture-max-time", description =
+            "The max total time in ms to spend capturing logcats, screenshots and bugreports " +
+            "for test failures in an invocation. No more are captured once it is reached.")
+    private long mFailureCaptureMaxTimeMs = 20 * 60 * 1000;
+
+    @Option(name = "stream-logcat", description =
+            "when --logcat-on-failure is on, continuously stream the device logcat into a " +
+            "host-side buffer, and take the logcat of each failed test from the buffer instead " +
+            "of pulling a snapshot from the device.")
+    private boolean mStreamLogcat = false;
+
+    @Option(name = "logcat-buffer-size", description =
+            "The max number of logcat data in bytes to keep in the host-side buffer when " +
+            "--stream-logcat is on.")
+    private int mLogcatBufferBytes = 8 * 1024 * 1024; // 8M
+
+    @Option(name = "pipeline-install", description =
+            "install the apks of the next test package while the current package is running.")
+    private boolean mPipelineInstall = false;
+
+    @Option(name = "apk-install-cache", description =
+            "skip installing test apks that are already installed on the device with the same " +
+            "digest, and leave test apks installed after the run so later runs can reuse them.")
+    private boolean mUseApkInstallCache = false;
+
+    @Option(name = "invalidate-apk-install-cache", description =
+            "when --apk-install-cache is set, ignore the apks already on the device and " +
+            "reinstall each apk once.")
+    private boolean mInvalidateApkInstallCache = false;
+
+    @Option(name = "cache-collected-tests", description =
+            "cache the tests found in each instrumentation test apk on the host, and skip the " +
+            "test collection pass when all of a package's tests are in the cache.")
+    private boolean mCacheCollectedTests = false;
+
+    @Option(name = "result-cache", description =
+            "skip running test packages that passed in a recent session with the same package " +
+            "digest on the same device build fingerprint, and reuse their earlier results.")
+    private boolean mUseResultCache = false;
+
+    @Option(name = "result-cache-sessions", description =
+            "the maximum number of most recent sessions to reuse results from when " +
+            "--result-cache is set.")
+    private int mResultCacheSessions = 5;
+
+    @Option(name = "async-listeners", description =
+            "deliver test results to the result reporters on a thread of their own, so slow " +
+            "reporting does not hold up reading the test output from the device.")
+    private boolean mAsyncListeners = false;
+
+    @Option(name = "listener-queue-size", description =
+            "the maximum number of test result events queued for the reporters when " +
+            "--async-listeners is set. Reading test output waits once the queue is full.")
+    private int mListenerQueueSize = 10000;
+
     private long mPrevRebootTime; // last reboot time
+    private long mRebootReadyTime = -1; // time taken by last reboot, not yet reported
 
     /** data structure for a {@link IRemoteTest} and its known tests */
     class TestPackage {
@@ -200,85 +324,39 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         }
     }
 
-    /**
-     * A {@link ResultForwarder} that will forward a bugreport on each failed test.
-     */
-    private static class FailedTestBugreportGenerator extends ResultForwarder {
-        private ITestDevice mDevice;
-
-        public FailedTestBugreportGenerator(ITestInvocationListener listener, ITestDevice device) {
-            super(listener);
-            mDevice = device;
-        }
-
-        @Override
-        public void testFailed(TestFailure status, TestIdentifier test, String trace) {
-            super.testFailed(status, test, trace);
-            InputStreamSource bugSource = mDevice.getBugreport();
-            super.testLog(String.format("bug-%s_%s", test.getClassName(), test.getTestName()),
-                    LogDataType.TEXT, bugSource);
-            bugSource.cancel();
-        }
-    }
+    /** list of remaining tests to execute */
+    private List<TestPackage> mRemainingTestPkgs = null;
 
+    /** the queue to take more tests from when using dynamic sharding */
+    private TestPackageQueue mPackageQueue = null;
+    /** true if this shard has stopped taking tests from {@link #mPackageQueue} */
+    private boolean mShardFinished = false;
+    /** the model of the device currently taking tests from {@link #mPackageQueue} */
+    private String mDeviceModel = null;
+    /** the install cache for the current device, if --apk-install-cache is set */
+    private ApkInstallCache mInstallCache = null;
+    /** the cache of collected tests, if --cache-collected-tests is set */
+    private CollectedTestsCache mCollectedTestsCache = null;
+    /** the budget for capturing failure artifacts, shared by all runs of this invocation */
+    private FailureArtifactCapture.Budget mFailureCaptureBudget = null;
+    /** the streamed logcat of the current device, if --stream-logcat is set */
+    private LogcatRingBuffer mLogcatBuffer = null;
+    /** the cache of earlier results, if --result-cache is set, shared by all the shards */
+    private ResultCache mResultCache = null;
+    /** the build fingerprint of the current device, if --result-cache is set */
+    private String mBuildFingerprint = null;
     /**
-     * A {@link ResultForwarder} that will forward a logcat snapshot on each failed test.
+     * the shared model of the build the tests to run were built from, held while they may run,
+     * so concurrent invocations of the same build share it
      */
-    private static class FailedTestLogcatGenerator extends ResultForwarder {
-        private ITestDevice mDevice;
-        private int mNumLogcatBytes;
-
-        public FailedTestLogcatGenerator(ITestInvocationListener listener, ITestDevice device,
-                int maxLogcatBytes) {
-            super(listener);
-            mDevice = device;
-            mNumLogcatBytes = maxLogcatBytes;
-        }
-
-        @Override
-        public void testFailed(TestFailure status, TestIdentifier test, String trace) {
-            super.testFailed(status, test, trace);
-            // sleep a small amount of time to ensure test failure stack trace makes it into logcat
-            // capture
-            RunUtil.getDefault().sleep(10);
-            InputStreamSource logSource = mDevice.getLogcat(mNumLogcatBytes);
-            super.testLog(String.format("logcat-%s_%s", test.getClassName(), test.getTestName()),
-                    LogDataType.TEXT, logSource);
-            logSource.cancel();
-        }
-    }
-
+    private CtsBuildModel mBuildModel = null;
     /**
-     * A {@link ResultForwarder} that will forward a screenshot on test failures.
+     * the results of previous sessions, read for the history lookups of {@link #split()} and the
+     * result cache
      */
-    private static class FailedTestScreenshotGenerator extends ResultForwarder {
-        private ITestDevice mDevice;
-
-        public FailedTestScreenshotGenerator(ITestInvocationListener listener,
-                ITestDevice device) {
-            super(listener);
-            mDevice = device;
-        }
-
-        @Override
-        public void testFailed(TestFailure status, TestIdentifier test, String trace) {
-            super.testFailed(status, test, trace);
-
-            try {
-                InputStreamSource screenSource = mDevice.getScreenshot();
-                super.testLog(String.format("screenshot-%s_%s", test.getClassName(),
-                        test.getTestName()), LogDataType.PNG, screenSource);
-                screenSource.cancel();
-            } catch (DeviceNotAvailableException e) {
-                // TODO: rethrow this somehow
-                CLog.e("Device %s became unavailable while capturing screenshot, %s",
-                        mDevice.getSerialNumber(), e.toString());
-            }
-        }
-    }
-
-    /** list of remaining tests to execute */
-    private List<TestPackage> mRemainingTestPkgs = null;
+    private ITestResultRepo mHistoryRepo = null;
+    /** the profile of the current run, reported to the result reporter when it ends */
+    private PhaseProfiler mProfiler = new PhaseProfiler();
 
     private CtsBuildHelper mCtsBuild = null;
     private IBuildInfo mBuildInfo = null;
@@ -353,6 +431,67 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         mMethodName = methodName;
     }
 
+    /**
+     * Set the number of shards to split the tests into.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setShards(int shards) {
+        mShards = shards;
+    }
+
+    /**
+     * Set the flag to balance shards using historical package run times.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setShardByRuntime(boolean shardByRuntime) {
+        mShardByRuntime = shardByRuntime;
+    }
+
+    /**
+     * Set the flag to split large test packages by class when sharding.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setSplitLargePackages(boolean splitLargePackages) {
+        mSplitLargePackages = splitLargePackages;
+    }
+
+    /**
+     * Set the flag to use a shared queue of test packages when sharding.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setDynamicSharding(boolean dynamicSharding) {
+        mDynamicSharding = dynamicSharding;
+    }
+
+    /**
+     * Set the flag to install the apks of the next test package while the current one runs.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setPipelineInstall(boolean pipelineInstall) {
+        mPipelineInstall = pipelineInstall;
+    }
+
+    /**
+     * Set the flag to disable device reboots between test packages.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setDisableReboot(boolean disableReboot) {
+        mDisableReboot = disableReboot;
+    }
+
+    /**
+     * Exposed for unit testing
+     */
+    boolean isRebootDisabled() {
+        return mDisableReboot;
+    }
+
     /**
      * Sets the test session id to continue.
      * <p/>
@@ -399,58 +538,112 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             throw new IllegalArgumentException("missing device");
         }
 
+        mProfiler = new PhaseProfiler();
         if (mRemainingTestPkgs == null) {
             checkFields();
-            mRemainingTestPkgs = buildTestsToRun();
+            PhaseProfiler.Span buildSpan = mProfiler.start(PhaseProfiler.BUILD_TESTS);
+            try {
+                mRemainingTestPkgs = buildTestsToRun();
+            } finally {
+                buildSpan.end();
+            }
+        }
+        if (mPackageQueue != null && mShardFinished) {
+            // this shard is being resumed, it can take tests from the queue again
+            mPackageQueue.shardResumed();
+            mShardFinished = false;
         }
-        if (mBugreport) {
-            FailedTestBugreportGenerator bugListener = new FailedTestBugreportGenerator(listener,
-                    getDevice());
-            listener = bugListener;
+        if (mPackageQueue != null) {
+            mDeviceModel = getDevice().getProperty("ro.product.model");
+            mPackageQueue.registerDeviceModel(this, mDeviceModel);
         }
-        if (mScreenshotOnFailures) {
-            FailedTestScreenshotGenerator screenListener = new FailedTestScreenshotGenerator(
-                    listener, getDevice());
-            listener = screenListener;
+        ListenerBus listenerBus = null;
+        if (mAsyncListeners) {
+            listenerBus = new ListenerBus(mListenerQueueSize, listener);
+            listener = listenerBus;
         }
-        if (mLogcatOnFailures) {
-            FailedTestLogcatGenerator logcatListener = new FailedTestLogcatGenerator(
-                    listener, getDevice(), mMaxLogcatBytes);
-            listener = logcatListener;
+        FailureArtifactCapture failureCapture = null;
+        if (mBugreport || mScreenshotOnFailures || mLogcatOnFailures) {
+            if (mFailureCaptureBudget == null) {
+                mFailureCaptureBudget = new FailureArtifactCapture.Budget(mFailureCaptureMaxBytes,
+                        mFailureCaptureMaxTimeMs);
+            }
+            failureCapture = new FailureArtifactCapture(listener, getDevice(),
+                    mFailureCaptureBudget, mLogcatOnFailures, mMaxLogcatBytes,
+                    mScreenshotOnFailures, mBugreport);
+            failureCapture.setPhaseProfiler(mProfiler);
+            if (mLogcatOnFailures && mStreamLogcat) {
+                mLogcatBuffer = new LogcatRingBuffer(getDevice(), mLogcatBufferBytes);
+                mLogcatBuffer.start();
+                failureCapture.setLogcatBuffer(mLogcatBuffer);
+            }
+            listener = failureCapture;
         }
 
         // collect and install the prerequisiteApks first, to save time when multiple test
         // packages are using the same prerequisite apk (I'm looking at you, CtsTestStubs!)
-        Collection<String> prerequisiteApks = getPrerequisiteApks(mRemainingTestPkgs);
-        Collection<String> uninstallPackages = getPrerequisitePackageNames(mRemainingTestPkgs);
+        mInstallCache = mUseApkInstallCache ?
+                new ApkInstallCache(getDevice(), mInvalidateApkInstallCache,
+                        DigestCache.getCache(mCtsBuild.getCacheDir())) : null;
+        mCollectedTestsCache = mCacheCollectedTests ? new CollectedTestsCache(
+                new File(mCtsBuild.getCacheDir(), "collected-tests")) : null;
+        if (mUseResultCache) {
+            if (mResultCache == null) {
+                mResultCache = getResultCache();
+                mHistoryRepo = null;
+            }
+            mBuildFingerprint = getDevice().getProperty("ro.build.fingerprint");
+        }
+        List<TestPackage> scheduledTestPkgs = getScheduledTestPackages();
+        Map<String, String> prerequisiteApks = getPrerequisiteApks(scheduledTestPkgs);
+        Collection<String> uninstallPackages = getPrerequisitePackageNames(scheduledTestPkgs);
         ResultFilter filter = new ResultFilter(listener, mRemainingTestPkgs);
+        // use a single thread, so at most one package is staged ahead of the current one
+        ExecutorService installExecutor = mPipelineInstall ?
+                Executors.newSingleThreadExecutor() : null;
 
         try {
             installPrerequisiteApks(prerequisiteApks);
 
             // always collect the device info, even for resumed runs, since test will likely be
             // running on a different device
-            collectDeviceInfo(getDevice(), mCtsBuild, listener);
-            if (mRemainingTestPkgs.size() > 1 && !mDisableReboot) {
+            PhaseProfiler.Span deviceInfoSpan = mProfiler.start(PhaseProfiler.DEVICE_INFO);
+            try {
+                collectDeviceInfo(getDevice(), mCtsBuild, listener);
+            } finally {
+                deviceInfoSpan.end();
+            }
+            if (scheduledTestPkgs.size() > 1 && !mDisableReboot) {
                 Log.i(LOG_TAG, "Initial reboot for multiple packages");
                 rebootDevice();
             }
             mPrevRebootTime = System.currentTimeMillis();
 
+            pollPackageQueue(filter);
             while (!mRemainingTestPkgs.isEmpty()) {
                 TestPackage knownTests = mRemainingTestPkgs.get(0);
 
                 IRemoteTest test = knownTests.getTestForPackage();
-                if (test instanceof IDeviceTest) {
-                    ((IDeviceTest)test).setDevice(getDevice());
-                }
-                if (test instanceof IBuildReceiver) {
-                    ((IBuildReceiver)test).setBuild(mBuildInfo);
-                }
+                prepareTest(knownTests);
 
                 forwardPackageDetails(knownTests.getPackageDef(), listener);
-                test.run(filter);
+                String cachedSession = getCachedSession(knownTests);
+                if (cachedSession != null) {
+                    replayCachedResults(knownTests, cachedSession, filter);
+                } else {
+                    Future<?> stagingTask = stageNextPackage(installExecutor);
+                    PhaseProfiler.Span runSpan = mProfiler.start(PhaseProfiler.PACKAGE_RUN,
+                            knownTests.getTestRunName());
+                    try {
+                        test.run(filter);
+                    } finally {
+                        runSpan.end();
+                        // never reboot or start the next package while it is being installed
+                        waitForStaging(stagingTask);
+                    }
+                }
                 mRemainingTestPkgs.remove(0);
+                pollPackageQueue(filter);
                 if (mRemainingTestPkgs.size() > 0) {
                     rebootIfNecessary(knownTests, mRemainingTestPkgs.get(0));
                     // remove artifacts like status bar from the previous test.
@@ -471,32 +664,179 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             uninstallPrequisiteApks(uninstallPackages);
 
         } finally {
+            if (installExecutor != null) {
+                installExecutor.shutdown();
+            }
+            if (mPackageQueue != null) {
+                // if this is the last shard running, take the tests that will never be run, so
+                // they are reported as not executed
+                mShardFinished = true;
+                for (TestPackage testPkg : mPackageQueue.shardFinished(this)) {
+                    mRemainingTestPkgs.add(testPkg);
+                    filter.addTestPackage(testPkg);
+                }
+            }
             filter.reportUnexecutedTests();
+            if (failureCapture != null) {
+                failureCapture.shutdown();
+            }
+            reportProfile(listener);
+            if (listenerBus != null) {
+                // the results must all be reported before the invocation ends
+                listenerBus.shutdown();
+            }
+            if (mLogcatBuffer != null) {
+                mLogcatBuffer.stop();
+                mLogcatBuffer = null;
+            }
+            releaseBuildModel();
+        }
+    }
+
+    /**
+     * Report the profile of this run to the result reporter, as a log named
+     * {@link PhaseProfiler#LOG_NAME}.
+     */
+    private void reportProfile(ITestInvocationListener listener) {
+        ByteArrayInputStreamSource profileSource = new ByteArrayInputStreamSource(
+                mProfiler.toJson().getBytes(Charset.forName("UTF-8")));
+        try {
+            listener.testLog(PhaseProfiler.LOG_NAME, LogDataType.TEXT, profileSource);
+        } finally {
+            profileSource.cancel();
+        }
+    }
+
+    /**
+     * Return the list of test packages this test may run. When using dynamic sharding, this
+     * includes all the test packages in the shared queue.
+     */
+    private List<TestPackage> getScheduledTestPackages() {
+        if (mPackageQueue == null) {
+            return mRemainingTestPkgs;
+        }
+        Set<TestPackage> testPkgs = new LinkedHashSet<TestPackage>(mRemainingTestPkgs);
+        testPkgs.addAll(mPackageQueue.getAllPackages());
+        return new ArrayList<TestPackage>(testPkgs);
+    }
+
+    /**
+     * Take the next test package to run from the shared queue, if this test has run all its
+     * assigned packages. When pipelining installs, the package after that is also taken, so it
+     * can be staged.
+     *
+     * @param filter the {@link ResultFilter} to add the package's known tests to
+     */
+    private void pollPackageQueue(ResultFilter filter) {
+        if (mPackageQueue == null) {
+            return;
+        }
+        int packagesWanted = mPipelineInstall ? 2 : 1;
+        while (mRemainingTestPkgs.size() < packagesWanted) {
+            TestPackage testPkg = mPackageQueue.poll(mPackageQueue.isSlowDevice(mDeviceModel));
+            if (testPkg == null) {
+                return;
+            }
+            Log.i(LOG_TAG, String.format("Taking test package %s from queue, %d packages left",
+                    testPkg.getTestRunName(), mPackageQueue.size()));
+            mRemainingTestPkgs.add(testPkg);
+            filter.addTestPackage(testPkg);
+        }
+    }
+
+    /**
+     * Give the test of a test package the device and build it needs to run.
+     */
+    private void prepareTest(TestPackage testPkg) {
+        IRemoteTest test = testPkg.getTestForPackage();
+        if (test instanceof IDeviceTest) {
+            ((IDeviceTest)test).setDevice(getDevice());
+        }
+        if (test instanceof IBuildReceiver) {
+            ((IBuildReceiver)test).setBuild(mBuildInfo);
+        }
+        if (test instanceof InstrumentationApkTest) {
+            ((InstrumentationApkTest)test).setApkInstallCache(mInstallCache);
+            ((InstrumentationApkTest)test).setCollectedTestsCache(mCollectedTestsCache);
+            ((InstrumentationApkTest)test).setPhaseProfiler(mProfiler, testPkg.getTestRunName());
+        }
+    }
+
+    /**
+     * Start installing the apks of the test package after the current one in the background.
+     * <p/>
+     * The next package is not staged if it installs any of the same apks as the current package,
+     * since that would disrupt the current package's run.
+     *
+     * @param installExecutor the {@link ExecutorService} to install with, or <code>null</code> if
+     *            installs are not pipelined
+     * @return the {@link Future} of the install, or <code>null</code> if nothing was staged
+     */
+    private Future<?> stageNextPackage(ExecutorService installExecutor) {
+        if (installExecutor == null || mRemainingTestPkgs.size() < 2) {
+            return null;
+        }
+        IRemoteTest currentTest = mRemainingTestPkgs.get(0).getTestForPackage();
+        IRemoteTest nextTest = mRemainingTestPkgs.get(1).getTestForPackage();
+        if (!(nextTest instanceof InstrumentationApkTest)) {
+            return null;
+        }
+        final InstrumentationApkTest apkTest = (InstrumentationApkTest)nextTest;
+        if (getCachedSession(mRemainingTestPkgs.get(1)) != null) {
+            // the next package will not be run
+            return null;
+        }
+        if (currentTest instanceof InstrumentationApkTest && !Collections.disjoint(
+                ((InstrumentationApkTest)currentTest).getInstallPackageNames(),
+                apkTest.getInstallPackageNames())) {
+            return null;
+        }
+        prepareTest(mRemainingTestPkgs.get(1));
+        return installExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws DeviceNotAvailableException {
+                apkTest.stageApks();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Wait for a background install started by {@link #stageNextPackage(ExecutorService)} to
+     * complete.
+     * <p/>
+     * Failures are only logged. The apks will be installed again when the staged package runs,
+     * and any failure will be reported then.
+     */
+    private void waitForStaging(Future<?> stagingTask) {
+        if (stagingTask == null) {
+            return;
+        }
+        try {
+            stagingTask.get();
+        } catch (ExecutionException e) {
+            CLog.w("Failed to install next test package ahead of time: %s",
+                    e.getCause().toString());
+        } catch (InterruptedException e) {
+            CLog.w("Interrupted while installing next test package");
         }
     }
 
     private void rebootIfNecessary(TestPackage testFinished, TestPackage testToRun)
             throws DeviceNotAvailableException {
-        // If there comes spurious failure like INJECT_EVENTS for a package,
-        // reboot it before running it.
-        // Also reboot after package which is know to leave pop-up behind
-        final List<String> rebootAfterList = Arrays.asList(
-                "CtsMediaTestCases",
-                "CtsAccessibilityTestCases");
-        final List<String> rebootBeforeList = Arrays.asList(
-                "CtsAnimationTestCases",
-                "CtsGraphicsTestCases",
-                "CtsViewTestCases",
-                "CtsWidgetTestCases" );
         long intervalInMSec = mRebootIntervalMin * 60 * 1000;
         if (mDevice.getSerialNumber().startsWith("emulator-")) {
             return;
         }
         if (!mDisableReboot) {
             long currentTime = System.currentTimeMillis();
-            if (((currentTime - mPrevRebootTime) > intervalInMSec) ||
-                    rebootAfterList.contains(testFinished.getPackageDef().getName()) ||
-                    rebootBeforeList.contains(testToRun.getPackageDef().getName()) ) {
+            // splits of the same package run back to back only need a reboot around the whole
+            // package
+            boolean samePackage = testFinished.getPackageDef().getUri().equals(
+                    testToRun.getPackageDef().getUri());
+            if (((currentTime - mPrevRebootTime) > intervalInMSec) || (!samePackage &&
+                    (REBOOT_AFTER_PACKAGES.contains(testFinished.getPackageDef().getName()) ||
+                    REBOOT_BEFORE_PACKAGES.contains(testToRun.getPackageDef().getName())))) {
                 Log.i(LOG_TAG,
                         String.format("Rebooting after running package %s, before package %s",
                                 testFinished.getPackageDef().getName(),
@@ -507,8 +847,26 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         }
     }
 
+    /**
+     * Return <code>true</code> if running the given test package causes a device reboot.
+     */
+    static boolean isRebootProne(TestPackage testPkg) {
+        String name = testPkg.getPackageDef().getName();
+        return REBOOT_AFTER_PACKAGES.contains(name) || REBOOT_BEFORE_PACKAGES.contains(name);
+    }
+
     private void rebootDevice() throws DeviceNotAvailableException {
+        PhaseProfiler.Span span = mProfiler.start(PhaseProfiler.REBOOT);
+        try {
+            doRebootDevice();
+        } finally {
+            span.end();
+        }
+    }
+
+    private void doRebootDevice() throws DeviceNotAvailableException {
         final int TIMEOUT_MS = 10 * 60 * 1000;
+        long rebootStartTime = System.currentTimeMillis();
         TestDeviceOptions options = mDevice.getOptions();
         // store default value and increase time-out for reboot
         int rebootTimeout = options.getRebootTimeout();
@@ -517,6 +875,9 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         options.setOnlineTimeout(TIMEOUT_MS);
         mDevice.setOptions(options);
 
+        if (mLogcatBuffer != null) {
+            mLogcatBuffer.stop();
+        }
         mDevice.reboot();
 
         // restore default values
@@ -524,21 +885,32 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         options.setOnlineTimeout(onlineTimeout);
         mDevice.setOptions(options);
         Log.i(LOG_TAG, "Rebooting done");
-        try {
-            Thread.sleep(mRebootWaitTimeMSec);
-        } catch (InterruptedException e) {
-            Log.i(LOG_TAG, "Boot wait interrupted");
+        if (mFixedRebootWait) {
+            try {
+                Thread.sleep(mRebootWaitTimeMSec);
+            } catch (InterruptedException e) {
+                Log.i(LOG_TAG, "Boot wait interrupted");
+            }
+        } else {
+            new DeviceReadinessProbe(mDevice).waitForReady(mRebootWaitTimeMSec);
+        }
+        mRebootReadyTime = System.currentTimeMillis() - rebootStartTime;
+        if (mLogcatBuffer != null) {
+            mLogcatBuffer.start();
         }
     }
 
     private void changeToHomeScreen() throws DeviceNotAvailableException {
         final String homeCmd = "input keyevent 3";
 
-        mDevice.executeShellCommand(homeCmd);
+        PhaseProfiler.Span span = mProfiler.start(PhaseProfiler.HOME_SCREEN);
         try {
+            mDevice.executeShellCommand(homeCmd);
             Thread.sleep(1000);
         } catch (InterruptedException e) {
             //ignore
+        } finally {
+            span.end();
         }
     }
     /**
@@ -549,6 +921,12 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         try {
             ITestPackageRepo testRepo = createTestCaseRepo();
             Collection<ITestPackageDef> testPkgDefs = getTestPackagesToRun(testRepo);
+            // hash the packages' apks and jars in the background while their tests are created
+            for (ITestPackageDef testPkgDef : testPkgDefs) {
+                if (testPkgDef instanceof TestPackageDef) {
+                    ((TestPackageDef)testPkgDef).prefetchDigest(mCtsBuild.getTestCasesDir());
+                }
+            }
 
             for (ITestPackageDef testPkgDef : testPkgDefs) {
                 addTestPackage(testPkgList, testPkgDef);
@@ -666,32 +1044,48 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
     }
 
     /**
-     * Return the list of unique prerequisite apks to install
+     * Return the unique prerequisite apks to install, mapped to their Android package names
      * @param testPackages
      */
-    private Collection<String> getPrerequisiteApks(List<TestPackage> testPackages) {
-        Set<String> apkNames = new HashSet<String>();
+    private Map<String, String> getPrerequisiteApks(List<TestPackage> testPackages) {
+        Map<String, String> apkNames = new HashMap<String, String>();
         for (TestPackage testPkg : testPackages) {
             String apkName = testPkg.mPackageDef.getTargetApkName();
             if (apkName != null) {
-                apkNames.add(apkName);
+                apkNames.put(apkName, testPkg.mPackageDef.getTargetPackageName());
             }
         }
         return apkNames;
     }
 
     /**
-     * Install the collection of test apk file names
+     * Install the prerequisite test apks
      *
-     * @param prerequisiteApks
+     * @param prerequisiteApks a {@link Map} of apk file name to Android package name
      * @throws DeviceNotAvailableException
      */
-    private void installPrerequisiteApks(Collection<String> prerequisiteApks)
+    private void installPrerequisiteApks(Map<String, String> prerequisiteApks)
             throws DeviceNotAvailableException {
-        for (String apkName : prerequisiteApks) {
+        PhaseProfiler.Span span = mProfiler.start(PhaseProfiler.PREREQUISITE_INSTALL);
+        try {
+            doInstallPrerequisiteApks(prerequisiteApks);
+        } finally {
+            span.end();
+        }
+    }
+
+    private void doInstallPrerequisiteApks(Map<String, String> prerequisiteApks)
+            throws DeviceNotAvailableException {
+        for (Map.Entry<String, String> apkEntry : prerequisiteApks.entrySet()) {
+            String apkName = apkEntry.getKey();
             try {
                 File apkFile = mCtsBuild.getTestApp(apkName);
-                String errorCode = getDevice().installPackage(apkFile, true);
+                String errorCode;
+                if (mInstallCache != null && apkEntry.getValue() != null) {
+                    errorCode = mInstallCache.installPackage(apkFile, apkEntry.getValue());
+                } else {
+                    errorCode = getDevice().installPackage(apkFile, true);
+                }
                 if (errorCode != null) {
                     CLog.e("Failed to install %s. Reason: %s", apkName, errorCode);
                 }
@@ -708,8 +1102,17 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
      */
     private void uninstallPrequisiteApks(Collection<String> uninstallPackages)
             throws DeviceNotAvailableException {
-        for (String pkgName : uninstallPackages) {
-            getDevice().uninstallPackage(pkgName);
+        if (mInstallCache != null) {
+            // leave the apks installed, for reuse by later runs
+            return;
+        }
+        PhaseProfiler.Span span = mProfiler.start(PhaseProfiler.UNINSTALL);
+        try {
+            for (String pkgName : uninstallPackages) {
+                getDevice().uninstallPackage(pkgName);
+            }
+        } finally {
+            span.end();
         }
     }
 
@@ -722,19 +1125,50 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             return null;
         }
         checkFields();
-        List<TestPackage> allTests = buildTestsToRun();
+        try {
+            if (mUseResultCache) {
+                // build the cache once for all the shards
+                mResultCache = getResultCache();
+            }
+            return createShards(buildTestsToRun());
+        } finally {
+            // the shards hold their own references to the build model
+            releaseBuildModel();
+            mHistoryRepo = null;
+        }
+    }
+
+    /**
+     * Split the given test packages among shards.
+     *
+     * @return the shards, or <code>null</code> if the tests cannot be sharded
+     */
+    private Collection<IRemoteTest> createShards(List<TestPackage> allTests) {
+        Map<String, Long> runtimes = null;
+        if (mShardByRuntime || mSplitLargePackages || mDynamicSharding) {
+            runtimes = getPackageRuntimeHistory();
+        }
+        if (mSplitLargePackages) {
+            allTests = splitLargePackages(allTests, runtimes);
+        }
 
         if (allTests.size() <= 1) {
             Log.w(LOG_TAG, "no tests to shard!");
             return null;
         }
 
+        if (mDynamicSharding) {
+            return createDynamicShards(allTests, runtimes);
+        }
+        if (mShardByRuntime) {
+            return distributeByRuntime(allTests, runtimes);
+        }
+
         // treat shardQueue as a circular queue, to sequentially distribute tests among shards
         Queue<IRemoteTest> shardQueue = new LinkedList<IRemoteTest>();
         // don't create more shards than the number of tests we have!
         for (int i = 0; i < mShards && i < allTests.size(); i++) {
-            CtsTest shard = new CtsTest();
-            shard.mRemainingTestPkgs = new LinkedList<TestPackage>();
+            CtsTest shard = createShard();
             shardQueue.add(shard);
         }
         while (!allTests.isEmpty()) {
@@ -746,6 +1180,277 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         return shardQueue;
     }
 
+    /**
+     * Create a shard with no test packages yet, and the same options as this test.
+     */
+    private CtsTest createShard() {
+        CtsTest shard = new CtsTest();
+        try {
+            OptionCopier.copyOptions(this, shard);
+        } catch (ConfigurationException e) {
+            // should never happen, the shard has the same options
+            CLog.e("Failed to copy options to shard: %s", e.getMessage());
+        }
+        shard.mRemainingTestPkgs = new LinkedList<TestPackage>();
+        shard.mResultCache = mResultCache;
+        if (mBuildModel != null) {
+            shard.mBuildModel = mBuildModel.retain();
+        }
+        return shard;
+    }
+
+    /**
+     * Distribute the test packages among shards so that each shard has a similar estimated run
+     * time.
+     * <p/>
+     * Uses a longest-processing-time-first strategy: packages are sorted by decreasing estimated
+     * cost, and each one is assigned to the shard with the lowest total cost so far.
+     *
+     * @param allTests the {@link TestPackage}s to distribute
+     * @param runtimes the recorded package run times, keyed by package uri
+     * @return the shards
+     */
+    private Collection<IRemoteTest> distributeByRuntime(List<TestPackage> allTests,
+            Map<String, Long> runtimes) {
+        Map<TestPackage, Long> costs = estimatePackageCosts(allTests, runtimes);
+        List<TestPackage> sortedTests = sortByDecreasingCost(allTests, costs);
+
+        // don't create more shards than the number of tests we have!
+        int numShards = Math.min(mShards, sortedTests.size());
+        List<IRemoteTest> shards = new ArrayList<IRemoteTest>(numShards);
+        long[] shardCosts = new long[numShards];
+        for (int i = 0; i < numShards; i++) {
+            CtsTest shard = createShard();
+            shards.add(shard);
+        }
+        for (TestPackage testPkg : sortedTests) {
+            int leastLoaded = 0;
+            for (int i = 1; i < numShards; i++) {
+                if (shardCosts[i] < shardCosts[leastLoaded]) {
+                    leastLoaded = i;
+                }
+            }
+            ((CtsTest)shards.get(leastLoaded)).mRemainingTestPkgs.add(testPkg);
+            shardCosts[leastLoaded] += costs.get(testPkg);
+        }
+        for (int i = 0; i < numShards; i++) {
+            CLog.i("Shard %d has %d packages, estimated cost %d", i,
+                    ((CtsTest)shards.get(i)).mRemainingTestPkgs.size(), shardCosts[i]);
+        }
+        return shards;
+    }
+
+    /**
+     * Create shards that all take their test packages from a single shared queue.
+     * <p/>
+     * The most expensive packages are queued first, so the cheap ones fill in the gaps at the end
+     * of the run.
+     *
+     * @param allTests the {@link TestPackage}s to run
+     * @param runtimes the recorded package run times, keyed by package uri
+     * @return the shards
+     */
+    private Collection<IRemoteTest> createDynamicShards(List<TestPackage> allTests,
+            Map<String, Long> runtimes) {
+        List<TestPackage> sortedTests = sortByDecreasingCost(allTests,
+                estimatePackageCosts(allTests, runtimes));
+        // don't create more shards than the number of tests we have!
+        int numShards = Math.min(mShards, sortedTests.size());
+        TestPackageQueue packageQueue = new TestPackageQueue(sortedTests, numShards);
+        if (mDeviceSpeedAware) {
+            packageQueue.setTestDurationsByModel(getTestDurationHistory());
+        }
+        List<IRemoteTest> shards = new ArrayList<IRemoteTest>(numShards);
+        for (int i = 0; i < numShards; i++) {
+            CtsTest shard = createShard();
+            shard.mPackageQueue = packageQueue;
+            shards.add(shard);
+        }
+        return shards;
+    }
+
+    /**
+     * Return a copy of the given test packages, sorted by decreasing cost. Packages with equal
+     * cost keep their original order.
+     */
+    private List<TestPackage> sortByDecreasingCost(List<TestPackage> testPkgs,
+            final Map<TestPackage, Long> costs) {
+        List<TestPackage> sortedTests = new ArrayList<TestPackage>(testPkgs);
+        Collections.sort(sortedTests, new Comparator<TestPackage>() {
+            @Override
+            public int compare(TestPackage pkg0, TestPackage pkg1) {
+                return costs.get(pkg1).compareTo(costs.get(pkg0));
+            }
+        });
+        return sortedTests;
+    }
+
+    /**
+     * Split the test packages that are estimated to cost more than an evenly balanced shard into
+     * several packages, each running a range of the package's test classes.
+     *
+     * @param testPkgs the {@link TestPackage}s to split
+     * @param runtimes the recorded package run times, keyed by package uri
+     * @return the new list of {@link TestPackage}s
+     */
+    private List<TestPackage> splitLargePackages(List<TestPackage> testPkgs,
+            Map<String, Long> runtimes) {
+        Map<TestPackage, Long> costs = estimatePackageCosts(testPkgs, runtimes);
+        long totalCost = 0;
+        for (Long cost : costs.values()) {
+            totalCost += cost;
+        }
+        long shardCost = Math.max(1, totalCost / mShards);
+
+        List<TestPackage> splitPkgs = new LinkedList<TestPackage>();
+        for (TestPackage testPkg : testPkgs) {
+            long numSplits = Math.min(mShards, (costs.get(testPkg) + shardCost - 1) / shardCost);
+            Collection<ITestPackageDef> splitDefs = null;
+            if (numSplits > 1) {
+                splitDefs = testPkg.getPackageDef().splitByClass((int)numSplits);
+            }
+            if (splitDefs == null) {
+                splitPkgs.add(testPkg);
+                continue;
+            }
+            CLog.i("Splitting test package %s into %d packages", testPkg.getTestRunName(),
+                    splitDefs.size());
+            for (ITestPackageDef splitDef : splitDefs) {
+                addTestPackage(splitPkgs, splitDef);
+            }
+        }
+        return splitPkgs;
+    }
+
+    /**
+     * Estimate the relative cost of running each of the given test packages.
+     * <p/>
+     * Packages run in previous sessions are costed by their recorded run time. Other packages are
+     * costed by their number of tests, scaled by the average time per test of the packages with
+     * a recorded run time. If there is no history at all, the raw number of tests is used.
+     *
+     * @param testPkgs the {@link TestPackage}s to estimate
+     * @param runtimes the recorded package run times, keyed by package uri
+     * @return a {@link Map} of {@link TestPackage} to estimated cost
+     */
+    private Map<TestPackage, Long> estimatePackageCosts(List<TestPackage> testPkgs,
+            Map<String, Long> runtimes) {
+        // a package that has been split by class is represented by several TestPackages with the
+        // same run name. They share the package's run time in proportion to their test counts.
+        // Count every package as at least one test, so empty packages still get a cost
+        Map<String, Long> runTestCounts = new HashMap<String, Long>();
+        for (TestPackage testPkg : testPkgs) {
+            Long count = runTestCounts.get(testPkg.getTestRunName());
+            long numTests = Math.max(1, testPkg.getKnownTests().size());
+            runTestCounts.put(testPkg.getTestRunName(), count == null ? numTests :
+                    count + numTests);
+        }
+        long knownTime = 0;
+        long knownTestCount = 0;
+        for (Map.Entry<String, Long> runEntry : runTestCounts.entrySet()) {
+            Long runtime = runtimes.get(runEntry.getKey());
+            if (runtime != null) {
+                knownTime += runtime;
+                knownTestCount += runEntry.getValue();
+            }
+        }
+        double msPerTest = knownTestCount > 0 ? (double)knownTime / knownTestCount : 1;
+
+        Map<TestPackage, Long> costs = new HashMap<TestPackage, Long>(testPkgs.size());
+        for (TestPackage testPkg : testPkgs) {
+            long numTests = Math.max(1, testPkg.getKnownTests().size());
+            Long runtime = runtimes.get(testPkg.getTestRunName());
+            double cost;
+            if (runtime != null) {
+                cost = (double)runtime * numTests / runTestCounts.get(testPkg.getTestRunName());
+            } else {
+                cost = numTests * msPerTest;
+            }
+            costs.put(testPkg, Math.max(1, Math.round(cost)));
+        }
+        return costs;
+    }
+
+    /**
+     * Return the run times of test packages recorded in previous sessions, keyed by package uri.
+     * <p/>
+     * Exposed for unit testing
+     */
+    Map<String, Long> getPackageRuntimeHistory() {
+        return getHistoryRepo().getPackageRuntimes(mShardHistorySessions);
+    }
+
+    /**
+     * Return the {@link ResultCache} built from previous sessions.
+     * <p/>
+     * Exposed for unit testing
+     */
+    ResultCache getResultCache() {
+        return new ResultCache(getHistoryRepo(), mResultCacheSessions);
+    }
+
+    /**
+     * Return the name of an earlier session whose results can be reused for the given package.
+     *
+     * @return the session name, or <code>null</code> if the package must be run
+     */
+    private String getCachedSession(TestPackage testPkg) {
+        if (mResultCache == null || mBuildFingerprint == null) {
+            return null;
+        }
+        return mResultCache.lookup(testPkg.getPackageDef().getDigest(), mBuildFingerprint,
+                testPkg.getKnownTests());
+    }
+
+    /**
+     * Report the known tests of the given package as passed, with the metric telling the result
+     * reporter to reuse the results of the given earlier session.
+     */
+    private void replayCachedResults(TestPackage testPkg, String sessionName,
+            ITestInvocationListener listener) {
+        Log.i(LOG_TAG, String.format("Skipping %s, all tests passed in session %s",
+                testPkg.getTestRunName(), sessionName));
+        Map<String, String> emptyMetrics = Collections.emptyMap();
+        listener.testRunStarted(testPkg.getTestRunName(), testPkg.getKnownTests().size());
+        for (TestIdentifier test : testPkg.getKnownTests()) {
+            listener.testStarted(test);
+            listener.testEnded(test, emptyMetrics);
+        }
+        Map<String, String> metrics = new HashMap<String, String>(1);
+        metrics.put(PACKAGE_CACHED_METRIC, sessionName);
+        listener.testRunEnded(0, metrics);
+    }
+
+    /**
+     * Return the average test durations recorded in previous sessions, keyed by device model.
+     * <p/>
+     * Exposed for unit testing
+     */
+    Map<String, Double> getTestDurationHistory() {
+        return getHistoryRepo().getTestDurationsByModel(mShardHistorySessions);
+    }
+
+    /**
+     * Get the {@link ITestResultRepo} of previous sessions used for the history lookups of a
+     * {@link #split()} and for the {@link ResultCache}, which reads each session once for all of
+     * them.
+     */
+    private ITestResultRepo getHistoryRepo() {
+        if (mHistoryRepo == null) {
+            mHistoryRepo = new TestResultRepo(mCtsBuild.getResultsDir());
+        }
+        return mHistoryRepo;
+    }
+
+    /**
+     * Return the list of test packages remaining to be run.
+     * <p/>
+     * Exposed for unit testing
+     */
+    List<TestPackage> getRemainingTestPackages() {
+        return mRemainingTestPkgs;
+    }
+
     /**
      * Runs the device info collector instrumentation on device, and forwards it to test listeners
      * as run metrics.
@@ -767,7 +1472,20 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
      * Exposed for unit testing
      */
     ITestPackageRepo createTestCaseRepo() {
-        return new TestPackageRepo(mCtsBuild.getTestCasesDir(), mIncludeKnownFailures);
+        if (mBuildModel == null) {
+            mBuildModel = CtsBuildModel.acquire(mCtsBuild, mIncludeKnownFailures);
+        }
+        return mBuildModel.getTestPackageRepo();
+    }
+
+    /**
+     * Release the shared {@link CtsBuildModel} this test holds, if any.
+     */
+    private void releaseBuildModel() {
+        if (mBuildModel != null) {
+            mBuildModel.release();
+            mBuildModel = null;
+        }
     }
 
     /**
@@ -838,14 +1556,19 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
     }
 
     /**
-     * Forward the digest and package name to the listener as a metric
+     * Forward the digest and package name to the listener as a metric. If the device was rebooted
+     * before this package, the time taken for the device to become ready is also forwarded.
      *
      * @param listener
      */
     private void forwardPackageDetails(ITestPackageDef def, ITestInvocationListener listener) {
-        Map<String, String> metrics = new HashMap<String, String>(2);
+        Map<String, String> metrics = new HashMap<String, String>(3);
         metrics.put(PACKAGE_NAME_METRIC, def.getName());
         metrics.put(PACKAGE_DIGEST_METRIC, def.getDigest());
+        if (mRebootReadyTime >= 0) {
+            metrics.put(REBOOT_READY_TIME_METRIC, Long.toString(mRebootReadyTime));
+            mRebootReadyTime = -1;
+        }
         listener.testRunStarted(def.getUri(), 0);
         listener.testRunEnded(0, metrics);
     }
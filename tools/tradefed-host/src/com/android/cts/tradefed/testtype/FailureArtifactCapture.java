@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.device.LogcatRingBuffer;
+import com.android.cts.tradefed.util.PhaseProfiler;
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.ResultForwarder;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link ResultForwarder} that captures logcat, screenshot and bugreport artifacts for failed
+ * tests.
+ * <p/>
+ * Screenshots and logcats are captured on the listener thread as soon as a test fails, so they
+ * show the state of the device at the failure, and are forwarded with {@link #testLog(String,
+ * LogDataType, InputStreamSource)} right away. Bugreports take minutes, so they are captured on a
+ * background thread, and forwarded on later test events, and at the latest when the test run
+ * ends. Each artifact is named after the test it was captured for.
+ * <p/>
+ * If a {@link LogcatRingBuffer} is set, the logcat of a failed test is taken from the buffer,
+ * from when the test started to when it ended, instead of from the device. The logcat is
+ * captured when the failed test ends, so the slice holds the whole log of the test.
+ * <p/>
+ * At most one bugreport is captured per failing test class in each test run. Once the
+ * {@link Budget} is used up, no more artifacts are captured.
+ */
+class FailureArtifactCapture extends ResultForwarder {
+
+    /**
+     * The limits on the total size of the captured artifacts and the time spent capturing them.
+     * Shared by all the {@link FailureArtifactCapture}s of an invocation.
+     */
+    static class Budget {
+        private final long mMaxBytes;
+        private final long mMaxTimeMs;
+        private long mBytes = 0;
+        private long mTimeMs = 0;
+        private boolean mExhaustedLogged = false;
+
+        /**
+         * @param maxBytes the maximum total size of the captured artifacts
+         * @param maxTimeMs the maximum total time in ms to spend capturing artifacts
+         */
+        Budget(long maxBytes, long maxTimeMs) {
+            mMaxBytes = maxBytes;
+            mMaxTimeMs = maxTimeMs;
+        }
+
+        synchronized boolean isExhausted() {
+            boolean exhausted = mBytes >= mMaxBytes || mTimeMs >= mMaxTimeMs;
+            if (exhausted && !mExhaustedLogged) {
+                CLog.w("Failure artifact budget used up after capturing %d bytes in %d ms, " +
+                        "not capturing more artifacts", mBytes, mTimeMs);
+                mExhaustedLogged = true;
+            }
+            return exhausted;
+        }
+
+        synchronized void charge(long bytes, long timeMs) {
+            mBytes += bytes;
+            mTimeMs += timeMs;
+        }
+    }
+
+    /** a captured artifact, ready to be forwarded */
+    private static class Artifact {
+        final String mName;
+        final LogDataType mType;
+        final byte[] mData;
+
+        Artifact(String name, LogDataType type, byte[] data) {
+            mName = name;
+            mType = type;
+            mData = data;
+        }
+    }
+
+    private final ITestDevice mDevice;
+    private final Budget mBudget;
+    private final boolean mCaptureLogcat;
+    private final int mMaxLogcatBytes;
+    private final boolean mCaptureScreenshot;
+    private final boolean mCaptureBugreport;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    /** the bugreport captures not yet forwarded, in the order they were requested */
+    private final LinkedList<Future<Artifact>> mPendingCaptures =
+            new LinkedList<Future<Artifact>>();
+    /** the classes a bugreport has been captured for in the current test run */
+    private final Set<String> mBugreportClasses = new HashSet<String>();
+    private LogcatRingBuffer mLogcatBuffer = null;
+    private PhaseProfiler mProfiler = new PhaseProfiler();
+    /** the mark in {@link #mLogcatBuffer} taken when the current test started */
+    private long mTestStartMark = 0;
+    /** the name of the current test if it failed and its logcat is still to be captured */
+    private String mLogcatTestName = null;
+
+    /**
+     * Create a {@link FailureArtifactCapture}.
+     *
+     * @param listener the {@link ITestInvocationListener} to forward results and artifacts to
+     * @param device the {@link ITestDevice} to capture artifacts from
+     * @param budget the {@link Budget} to charge captures to
+     * @param captureLogcat <code>true</code> to capture a logcat snapshot for each failed test
+     * @param maxLogcatBytes the maximum size of each logcat snapshot
+     * @param captureScreenshot <code>true</code> to capture a screenshot for each failed test
+     * @param captureBugreport <code>true</code> to capture a bugreport for each failing class
+     */
+    FailureArtifactCapture(ITestInvocationListener listener, ITestDevice device, Budget budget,
+            boolean captureLogcat, int maxLogcatBytes, boolean captureScreenshot,
+            boolean captureBugreport) {
+        super(listener);
+        mDevice = device;
+        mBudget = budget;
+        mCaptureLogcat = captureLogcat;
+        mMaxLogcatBytes = maxLogcatBytes;
+        mCaptureScreenshot = captureScreenshot;
+        mCaptureBugreport = captureBugreport;
+    }
+
+    /**
+     * Set the {@link LogcatRingBuffer} to take the logcat of failed tests from.
+     */
+    void setLogcatBuffer(LogcatRingBuffer logcatBuffer) {
+        mLogcatBuffer = logcatBuffer;
+    }
+
+    /**
+     * Set the {@link PhaseProfiler} to record the time spent capturing artifacts in.
+     */
+    void setPhaseProfiler(PhaseProfiler profiler) {
+        mProfiler = profiler;
+    }
+
+    @Override
+    public void testRunStarted(String runName, int testCount) {
+        forwardCompletedCaptures(false);
+        mBugreportClasses.clear();
+        super.testRunStarted(runName, testCount);
+    }
+
+    @Override
+    public void testStarted(TestIdentifier test) {
+        // in case the previous test failed without ending
+        captureLogcat();
+        forwardCompletedCaptures(false);
+        if (mLogcatBuffer != null) {
+            mTestStartMark = mLogcatBuffer.mark();
+        }
+        super.testStarted(test);
+    }
+
+    @Override
+    public void testFailed(TestFailure status, TestIdentifier test, String trace) {
+        super.testFailed(status, test, trace);
+        String testName = String.format("%s_%s", test.getClassName(), test.getTestName());
+        if (mCaptureLogcat) {
+            // captured when the test ends, see captureLogcat()
+            mLogcatTestName = testName;
+        }
+        if (mCaptureScreenshot) {
+            forwardArtifact(capture(String.format("screenshot-%s", testName), LogDataType.PNG,
+                    new Callable<InputStreamSource>() {
+                        @Override
+                        public InputStreamSource call() throws DeviceNotAvailableException {
+                            return mDevice.getScreenshot();
+                        }
+                    }));
+        }
+        if (mCaptureBugreport && mBugreportClasses.add(test.getClassName())) {
+            requestCapture(String.format("bug-%s", testName), LogDataType.TEXT,
+                    new Callable<InputStreamSource>() {
+                        @Override
+                        public InputStreamSource call() {
+                            return mDevice.getBugreport();
+                        }
+                    });
+        }
+    }
+
+    @Override
+    public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        captureLogcat();
+        super.testEnded(test, testMetrics);
+        forwardCompletedCaptures(false);
+    }
+
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        // a failed test that never ended, e.g. because the instrumentation crashed
+        captureLogcat();
+        // forward all of the run's artifacts before the run is reported as complete
+        forwardCompletedCaptures(true);
+        super.testRunEnded(elapsedTime, runMetrics);
+    }
+
+    /**
+     * Wait for all pending captures, forward their artifacts, and stop the capture thread.
+     */
+    void shutdown() {
+        forwardCompletedCaptures(true);
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Capture and forward the logcat of the current test if it failed.
+     */
+    private void captureLogcat() {
+        if (mLogcatTestName == null) {
+            return;
+        }
+        String name = String.format("logcat-%s", mLogcatTestName);
+        mLogcatTestName = null;
+        forwardArtifact(capture(name, LogDataType.TEXT, new Callable<InputStreamSource>() {
+            @Override
+            public InputStreamSource call() {
+                if (mLogcatBuffer != null && mLogcatBuffer.isStreaming()) {
+                    return mLogcatBuffer.getLog(mTestStartMark, mLogcatBuffer.mark(),
+                            mMaxLogcatBytes);
+                }
+                return mDevice.getLogcat(mMaxLogcatBytes);
+            }
+        }));
+    }
+
+    /**
+     * Queue a capture on the capture thread, unless the budget is used up.
+     */
+    private void requestCapture(final String name, final LogDataType type,
+            final Callable<InputStreamSource> source) {
+        if (mBudget.isExhausted()) {
+            return;
+        }
+        mPendingCaptures.add(mExecutor.submit(new Callable<Artifact>() {
+            @Override
+            public Artifact call() {
+                return capture(name, type, source);
+            }
+        }));
+    }
+
+    /**
+     * Capture an artifact, unless the budget is used up.
+     *
+     * @return the captured {@link Artifact}, or <code>null</code> if nothing was captured
+     */
+    private Artifact capture(String name, LogDataType type, Callable<InputStreamSource> source) {
+        if (mBudget.isExhausted()) {
+            return null;
+        }
+        long startTime = System.currentTimeMillis();
+        PhaseProfiler.Span span = mProfiler.start(PhaseProfiler.ARTIFACT_CAPTURE);
+        InputStreamSource dataSource = null;
+        InputStream dataStream = null;
+        try {
+            dataSource = source.call();
+            if (dataSource == null) {
+                return null;
+            }
+            dataStream = dataSource.createInputStream();
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            StreamUtil.copyStreams(dataStream, data);
+            mBudget.charge(data.size(), System.currentTimeMillis() - startTime);
+            return new Artifact(name, type, data.toByteArray());
+        } catch (DeviceNotAvailableException e) {
+            CLog.e("Device %s became unavailable while capturing %s, %s",
+                    mDevice.getSerialNumber(), name, e.toString());
+        } catch (Exception e) {
+            CLog.e("Failed to capture %s: %s", name, e.toString());
+        } finally {
+            StreamUtil.closeStream(dataStream);
+            if (dataSource != null) {
+                dataSource.cancel();
+            }
+            span.end();
+        }
+        return null;
+    }
+
+    /**
+     * Forward the artifacts of completed captures, in the order the captures were requested.
+     *
+     * @param waitForPending if <code>true</code>, wait for all pending captures to complete
+     */
+    private void forwardCompletedCaptures(boolean waitForPending) {
+        Iterator<Future<Artifact>> iter = mPendingCaptures.iterator();
+        while (iter.hasNext()) {
+            Future<Artifact> capture = iter.next();
+            if (!waitForPending && !capture.isDone()) {
+                return;
+            }
+            iter.remove();
+            Artifact artifact = null;
+            try {
+                artifact = capture.get();
+            } catch (InterruptedException e) {
+                CLog.e(e);
+            } catch (ExecutionException e) {
+                CLog.e(e);
+            }
+            forwardArtifact(artifact);
+        }
+    }
+
+    /**
+     * Forward a captured artifact, if any.
+     */
+    private void forwardArtifact(Artifact artifact) {
+        if (artifact != null) {
+            ByteArrayInputStreamSource dataSource =
+                    new ByteArrayInputStreamSource(artifact.mData);
+            super.testLog(artifact.mName, artifact.mType, dataSource);
+            dataSource.cancel();
+        }
+    }
+}
@@ -100,6 +100,20 @@ public interface ITestPackageDef {
      */
     public void setClassName(String className, String methodName);
 
+    /**
+     * Split this test package into smaller packages, each running a contiguous range of its test
+     * classes.
+     * <p/>
+     * Each returned package has the same uri as this package, so results can be merged back
+     * under a single package entry. More packages than requested may be returned, so that no
+     * package runs too many classes to pass on a command line.
+     *
+     * @param numSplits the number of packages to split into
+     * @return the {@link Collection} of split packages, or <code>null</code> if this package
+     *         cannot be split
+     */
+    public Collection<ITestPackageDef> splitByClass(int numSplits);
+
     /**
      * Return the file name of this package's instrumentation target apk.
      *
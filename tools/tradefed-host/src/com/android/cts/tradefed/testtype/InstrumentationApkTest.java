@@ -16,22 +16,47 @@
 package com.android.cts.tradefed.testtype;
 
 import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.cts.tradefed.device.ApkInstallCache;
+import com.android.cts.tradefed.util.PhaseProfiler;
 import com.android.ddmlib.Log;
+import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.ResultForwarder;
 import com.android.tradefed.testtype.IBuildReceiver;
 import com.android.tradefed.testtype.InstrumentationTest;
 
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 import junit.framework.Assert;
 
 /**
  * A {@link InstrumentationTest] that will install CTS apks before test execution,
  * and uninstall on execution completion.
+ * <p/>
+ * The apks can optionally be installed ahead of time with {@link #stageApks()}.
+ * <p/>
+ * If an {@link ApkInstallCache} is set, apks that are already installed are not reinstalled, and
+ * apks are left installed after execution so later runs can reuse them.
+ * <p/>
+ * If a {@link CollectedTestsCache} is set, the tests found by a complete run are cached on the
+ * host. Later runs that find all their expected tests in the cache skip the test collection pass,
+ * running the instrumentation directly. If the instrumentation crashes, the cached tests that did
+ * not run are re-run as usual.
+ * <p/>
+ * The install, test collection, test execution and uninstall phases are recorded in the
+ * {@link PhaseProfiler} set with {@link #setPhaseProfiler(PhaseProfiler)}.
  */
 public class InstrumentationApkTest extends InstrumentationTest implements IBuildReceiver {
 
@@ -42,6 +67,25 @@ public class InstrumentationApkTest extends InstrumentationTest implements IBuil
     private Collection<String> mUninstallPackages = new ArrayList<String>();
 
     private CtsBuildHelper mCtsBuild = null;
+    /** the device the apks have been installed on ahead of time, if any */
+    private ITestDevice mStagedDevice = null;
+    private ApkInstallCache mInstallCache = null;
+    private CollectedTestsCache mCollectedTestsCache = null;
+    /** the key of this test's entry in {@link #mCollectedTestsCache} */
+    private String mCollectedTestsKey = null;
+    /** the tests this test is expected to run */
+    private Collection<TestIdentifier> mExpectedTests = null;
+    /** the instrumentation settings, recorded to run the instrumentation without collection */
+    private String mRunName = null;
+    private String mClassName = null;
+    private String mMethodName = null;
+    private String mTestPackageName = null;
+    private int mTestTimeout = 0;
+    /** <code>true</code> once this test has run, so later runs are resumed runs */
+    private boolean mHasRun = false;
+    private PhaseProfiler mProfiler = new PhaseProfiler();
+    /** the test package name this test's phases are recorded under */
+    private String mProfileName = null;
 
     /**
      * {@inheritDoc}
@@ -62,21 +106,333 @@ public class InstrumentationApkTest extends InstrumentationTest implements IBuil
         mUninstallPackages.add(packageName);
     }
 
+    /**
+     * Set the {@link ApkInstallCache} to install apks with.
+     */
+    public void setApkInstallCache(ApkInstallCache installCache) {
+        mInstallCache = installCache;
+    }
+
+    /**
+     * Set the {@link CollectedTestsCache} to read and store this test's collected tests with.
+     */
+    public void setCollectedTestsCache(CollectedTestsCache cache) {
+        mCollectedTestsCache = cache;
+    }
+
+    /**
+     * Set the key of this test's entry in the {@link CollectedTestsCache}.
+     *
+     * @param key the cache key. It must change whenever the tests collected by this test could
+     *            change.
+     * @param expectedTests the tests this test is expected to run
+     */
+    public void setCollectedTestsKey(String key, Collection<TestIdentifier> expectedTests) {
+        mCollectedTestsKey = key;
+        mExpectedTests = expectedTests;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setRunName(String runName) {
+        super.setRunName(runName);
+        mRunName = runName;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setClassName(String className) {
+        super.setClassName(className);
+        mClassName = className;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setMethodName(String methodName) {
+        super.setMethodName(methodName);
+        mMethodName = methodName;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setTestPackageName(String testPackageName) {
+        super.setTestPackageName(testPackageName);
+        mTestPackageName = testPackageName;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setTestTimeout(int timeout) {
+        super.setTestTimeout(timeout);
+        mTestTimeout = timeout;
+    }
+
+    /**
+     * Set the {@link PhaseProfiler} to record the phases of this test in.
+     *
+     * @param profiler the {@link PhaseProfiler}
+     * @param packageName the test package name to record the phases under
+     */
+    public void setPhaseProfiler(PhaseProfiler profiler, String packageName) {
+        mProfiler = profiler;
+        mProfileName = packageName;
+    }
+
+    /**
+     * Get the Android package names of the apks this test installs.
+     */
+    public Collection<String> getInstallPackageNames() {
+        return mUninstallPackages;
+    }
+
+    /**
+     * Install this test's apks ahead of {@link #run(ITestInvocationListener)}, e.g. while the
+     * previous test is still running. Installing also performs the dexopt of the apks, so they
+     * are ready to run.
+     * <p/>
+     * The device and build must already be set.
+     *
+     * @throws DeviceNotAvailableException
+     */
+    public void stageApks() throws DeviceNotAvailableException {
+        installApks();
+        mStagedDevice = getDevice();
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void run(final ITestInvocationListener listener)
             throws DeviceNotAvailableException {
+        // a resumed run may be on a different device than the apks were staged on
+        if (mStagedDevice == null || mStagedDevice != getDevice()) {
+            installApks();
+        }
+        // the apks are uninstalled after this run, so a resumed run must install them again
+        mStagedDevice = null;
+        // a resumed run only runs the tests the previous run left, which the super class tracks
+        boolean resumed = mHasRun;
+        mHasRun = true;
+        runInstrumentation(listener, resumed);
+        if (mInstallCache != null) {
+            // leave the apks installed, for reuse by later runs
+            return;
+        }
+        PhaseProfiler.Span span = mProfiler.start(PhaseProfiler.UNINSTALL, mProfileName);
+        try {
+            for (String packageName : mUninstallPackages) {
+                Log.d(LOG_TAG, String.format("Uninstalling %s on %s", packageName,
+                        getDevice().getSerialNumber()));
+                getDevice().uninstallPackage(packageName);
+            }
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Run the instrumentation, recording its test collection and test execution phases.
+     * <p/>
+     * Exposed for unit testing
+     *
+     * @param listener the {@link ITestInvocationListener} to report results to
+     * @param resumed <code>true</code> if this is a resumed run
+     * @throws DeviceNotAvailableException
+     */
+    void runInstrumentation(ITestInvocationListener listener, boolean resumed)
+            throws DeviceNotAvailableException {
+        PhaseTracker tracker = new PhaseTracker(listener);
+        try {
+            if (mCollectedTestsCache != null && mCollectedTestsKey != null && !resumed) {
+                runWithCollectedTestsCache(tracker);
+            } else {
+                super.run(tracker);
+            }
+        } finally {
+            tracker.end();
+        }
+    }
+
+    /**
+     * Run the tests, skipping the test collection pass if all the expected tests are known to be
+     * in the apk. Stores the tests found by a complete run in the cache.
+     */
+    private void runWithCollectedTestsCache(ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        Collection<TestIdentifier> cachedTests = mCollectedTestsCache.getTests(mCollectedTestsKey);
+        if (cachedTests == null || !cachedTests.containsAll(mExpectedTests)) {
+            TestCollector collector = new TestCollector(listener);
+            super.run(collector);
+            if (collector.isComplete() && collector.getTests().containsAll(mExpectedTests)) {
+                mCollectedTestsCache.putTests(mCollectedTestsKey, collector.getTests());
+            }
+            return;
+        }
+        Log.d(LOG_TAG, String.format("Skipping test collection for %s, using cached tests",
+                getPackageName()));
+        // the super class always collects the tests before running them, so run the
+        // instrumentation directly
+        TestCollector collector = new TestCollector(listener);
+        getDevice().runInstrumentationTests(createTestRunner(), collector);
+        // re-run the expected tests that did not run, e.g. after an instrumentation crash, in the
+        // order the instrumentation runs them
+        Set<TestIdentifier> expectedTests = new HashSet<TestIdentifier>(mExpectedTests);
+        Collection<TestIdentifier> remainingTests = new ArrayList<TestIdentifier>();
+        for (TestIdentifier test : cachedTests) {
+            if (expectedTests.contains(test) && !collector.getTests().contains(test)) {
+                remainingTests.add(test);
+            }
+        }
+        if (!remainingTests.isEmpty()) {
+            Log.w(LOG_TAG, String.format("%d tests of %s did not run, re-running them",
+                    remainingTests.size(), getPackageName()));
+            setTestsToRun(remainingTests, false);
+            super.run(listener);
+        }
+    }
+
+    /**
+     * Create the {@link IRemoteAndroidTestRunner} to run this test's instrumentation with,
+     * configured the way the super class configures its own.
+     * <p/>
+     * Exposed for unit testing
+     */
+    IRemoteAndroidTestRunner createTestRunner() {
+        IRemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(getPackageName(),
+                getRunnerName(), getDevice().getIDevice());
+        runner.setRunName(mRunName);
+        if (mClassName != null && mMethodName != null) {
+            runner.setMethodName(mClassName, mMethodName);
+        } else if (mClassName != null) {
+            runner.setClassName(mClassName);
+        } else if (mTestPackageName != null) {
+            runner.setTestPackageName(mTestPackageName);
+        }
+        if (mTestTimeout > 0) {
+            runner.setMaxtimeToOutputResponse(mTestTimeout);
+        }
+        return runner;
+    }
+
+    /**
+     * A {@link ResultForwarder} that splits the run into its test collection and test execution
+     * phases. The instrumentation only reports the test run as started once the tests have been
+     * collected, so everything up to the first test run start is collection.
+     */
+    private class PhaseTracker extends ResultForwarder {
+        private PhaseProfiler.Span mSpan;
+        private boolean mExecuting = false;
+
+        PhaseTracker(ITestInvocationListener listener) {
+            super(listener);
+            mSpan = mProfiler.start(PhaseProfiler.TEST_COLLECTION, mProfileName);
+        }
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+            if (!mExecuting) {
+                mSpan.end();
+                mSpan = mProfiler.start(PhaseProfiler.TEST_EXECUTION, mProfileName);
+                mExecuting = true;
+            }
+            super.testRunStarted(runName, testCount);
+        }
+
+        /**
+         * End the current phase.
+         */
+        void end() {
+            mSpan.end();
+        }
+    }
+
+    /**
+     * A {@link ResultForwarder} that records the tests that were run.
+     */
+    private static class TestCollector extends ResultForwarder {
+        private final Set<TestIdentifier> mTests = new LinkedHashSet<TestIdentifier>();
+        private boolean mRunEnded = false;
+        private boolean mRunFailed = false;
+
+        TestCollector(ITestInvocationListener listener) {
+            super(listener);
+        }
+
+        @Override
+        public void testStarted(TestIdentifier test) {
+            super.testStarted(test);
+            mTests.add(test);
+        }
+
+        @Override
+        public void testRunFailed(String errorMessage) {
+            super.testRunFailed(errorMessage);
+            mRunFailed = true;
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+            super.testRunEnded(elapsedTime, runMetrics);
+            mRunEnded = true;
+        }
+
+        /**
+         * Return <code>true</code> if the run ended without failing.
+         */
+        boolean isComplete() {
+            return mRunEnded && !mRunFailed;
+        }
+
+        Set<TestIdentifier> getTests() {
+            return mTests;
+        }
+    }
+
+    /**
+     * Install this test's apks on the device.
+     * <p/>
+     * Exposed for unit testing
+     *
+     * @throws DeviceNotAvailableException
+     */
+    void installApks() throws DeviceNotAvailableException {
         Assert.assertNotNull("missing device", getDevice());
         Assert.assertNotNull("missing build", mCtsBuild);
 
+        PhaseProfiler.Span span = mProfiler.start(PhaseProfiler.PACKAGE_INSTALL, mProfileName);
+        try {
+            doInstallApks();
+        } finally {
+            span.end();
+        }
+    }
+
+    private void doInstallApks() throws DeviceNotAvailableException {
+        Iterator<String> packageNames = mUninstallPackages.iterator();
         for (String apkFileName : mInstallFileNames) {
+            String packageName = packageNames.next();
             Log.d(LOG_TAG, String.format("Installing %s on %s", apkFileName,
                     getDevice().getSerialNumber()));
             try {
-                String installCode = getDevice().installPackage(mCtsBuild.getTestApp(apkFileName),
-                        true);
+                String installCode;
+                if (mInstallCache != null) {
+                    installCode = mInstallCache.installPackage(mCtsBuild.getTestApp(apkFileName),
+                            packageName);
+                } else {
+                    installCode = getDevice().installPackage(mCtsBuild.getTestApp(apkFileName),
+                            true);
+                }
                 Assert.assertNull(String.format("Failed to install %s on %s. Reason: %s",
                         apkFileName, getDevice().getSerialNumber(), installCode), installCode);
 
@@ -84,11 +440,5 @@ public class InstrumentationApkTest extends InstrumentationTest implements IBuil
                 Assert.fail(String.format("Could not find file %s", apkFileName));
             }
         }
-        super.run(listener);
-        for (String packageName : mUninstallPackages) {
-            Log.d(LOG_TAG, String.format("Uninstalling %s on %s", packageName,
-                    getDevice().getSerialNumber()));
-            getDevice().uninstallPackage(packageName);
-        }
     }
 }
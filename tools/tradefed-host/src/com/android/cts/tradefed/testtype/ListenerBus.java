@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.TestSummary;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * An {@link ITestInvocationListener} that delivers events to its listeners asynchronously.
+ * <p/>
+ * Each listener has its own bounded queue and delivery thread, so events reach each listener in
+ * the order they were reported, and a slow listener neither delays the others nor the reporting
+ * thread, until its queue is full. {@link #testRunEnded(long, Map)} and
+ * {@link #invocationEnded(long)} wait for every listener to have handled all events so far, as
+ * does {@link #flush()}.
+ * <p/>
+ * The time each listener takes to handle events, and how long events wait in its queue, are
+ * recorded in a {@link LatencyMetrics} per listener, and logged on {@link #shutdown()}.
+ */
+class ListenerBus implements ITestInvocationListener {
+
+    /** an event to deliver to a listener */
+    private interface Event {
+        void deliver(ITestInvocationListener listener);
+    }
+
+    /** the latency of the event deliveries to a listener */
+    static class LatencyMetrics {
+        private long mEvents = 0;
+        private long mTotalHandleTimeNs = 0;
+        private long mMaxHandleTimeNs = 0;
+        private long mMaxQueueTimeNs = 0;
+
+        synchronized void record(long queueTimeNs, long handleTimeNs) {
+            mEvents++;
+            mTotalHandleTimeNs += handleTimeNs;
+            mMaxHandleTimeNs = Math.max(mMaxHandleTimeNs, handleTimeNs);
+            mMaxQueueTimeNs = Math.max(mMaxQueueTimeNs, queueTimeNs);
+        }
+
+        synchronized long getEvents() {
+            return mEvents;
+        }
+
+        /** @return the mean time in ms the listener took to handle an event */
+        synchronized double getMeanHandleTimeMs() {
+            return mEvents == 0 ? 0 : mTotalHandleTimeNs / 1e6 / mEvents;
+        }
+
+        /** @return the longest time in ms the listener took to handle an event */
+        synchronized double getMaxHandleTimeMs() {
+            return mMaxHandleTimeNs / 1e6;
+        }
+
+        /** @return the longest time in ms an event waited in the listener's queue */
+        synchronized double getMaxQueueTimeMs() {
+            return mMaxQueueTimeNs / 1e6;
+        }
+    }
+
+    /** a queued event, and when it was queued */
+    private static class QueuedEvent {
+        final Event mEvent;
+        final long mQueueTimeNs;
+
+        QueuedEvent(Event event) {
+            mEvent = event;
+            mQueueTimeNs = System.nanoTime();
+        }
+    }
+
+    /** the event that stops a delivery thread */
+    private static final QueuedEvent STOP = new QueuedEvent(null);
+
+    /** delivers the queued events of a listener on a thread of its own */
+    private static class Delivery extends Thread {
+        final ITestInvocationListener mListener;
+        final BlockingQueue<QueuedEvent> mQueue;
+        final LatencyMetrics mMetrics = new LatencyMetrics();
+
+        Delivery(ITestInvocationListener listener, int queueCapacity) {
+            super(String.format("ListenerBus-%s", listener.getClass().getSimpleName()));
+            setDaemon(true);
+            mListener = listener;
+            mQueue = new ArrayBlockingQueue<QueuedEvent>(queueCapacity);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                QueuedEvent queuedEvent;
+                try {
+                    queuedEvent = mQueue.take();
+                } catch (InterruptedException e) {
+                    CLog.e(e);
+                    continue;
+                }
+                if (queuedEvent == STOP) {
+                    return;
+                }
+                long startTimeNs = System.nanoTime();
+                try {
+                    queuedEvent.mEvent.deliver(mListener);
+                } catch (RuntimeException e) {
+                    // a listener failing must not stop the delivery to it of later events
+                    CLog.e("%s failed to handle event", mListener.getClass().getSimpleName());
+                    CLog.e(e);
+                }
+                long endTimeNs = System.nanoTime();
+                mMetrics.record(startTimeNs - queuedEvent.mQueueTimeNs, endTimeNs - startTimeNs);
+            }
+        }
+
+        void post(QueuedEvent event) {
+            while (true) {
+                try {
+                    mQueue.put(event);
+                    return;
+                } catch (InterruptedException e) {
+                    CLog.e(e);
+                }
+            }
+        }
+    }
+
+    private final List<Delivery> mDeliveries = new ArrayList<Delivery>();
+    private boolean mShutdown = false;
+
+    /**
+     * Create a {@link ListenerBus}, and start its delivery threads.
+     *
+     * @param queueCapacity the maximum number of events queued for each listener. Once a
+     *            listener's queue is full, reporting an event waits for room in it.
+     * @param listeners the {@link ITestInvocationListener}s to deliver events to
+     */
+    ListenerBus(int queueCapacity, ITestInvocationListener... listeners) {
+        for (ITestInvocationListener listener : listeners) {
+            Delivery delivery = new Delivery(listener, queueCapacity);
+            mDeliveries.add(delivery);
+            delivery.start();
+        }
+    }
+
+    /**
+     * Wait until every listener has handled all the events reported so far.
+     */
+    void flush() {
+        if (mShutdown) {
+            return;
+        }
+        final CountDownLatch barrier = new CountDownLatch(mDeliveries.size());
+        post(new Event() {
+            @Override
+            public void deliver(ITestInvocationListener listener) {
+                barrier.countDown();
+            }
+        });
+        while (true) {
+            try {
+                barrier.await();
+                return;
+            } catch (InterruptedException e) {
+                CLog.e(e);
+            }
+        }
+    }
+
+    /**
+     * Deliver the outstanding events, stop the delivery threads and log the latency metrics of
+     * each listener. Events reported after this are dropped.
+     */
+    void shutdown() {
+        if (mShutdown) {
+            return;
+        }
+        for (Delivery delivery : mDeliveries) {
+            delivery.post(STOP);
+        }
+        for (Delivery delivery : mDeliveries) {
+            try {
+                delivery.join();
+            } catch (InterruptedException e) {
+                CLog.e(e);
+            }
+        }
+        mShutdown = true;
+        for (Map.Entry<ITestInvocationListener, LatencyMetrics> entry :
+                getLatencyMetrics().entrySet()) {
+            LatencyMetrics metrics = entry.getValue();
+            CLog.i("%s handled %d events: mean %.2f ms, max %.2f ms, max queue delay %.2f ms",
+                    entry.getKey().getClass().getSimpleName(), metrics.getEvents(),
+                    metrics.getMeanHandleTimeMs(), metrics.getMaxHandleTimeMs(),
+                    metrics.getMaxQueueTimeMs());
+        }
+    }
+
+    /**
+     * @return the {@link LatencyMetrics} of each listener
+     */
+    Map<ITestInvocationListener, LatencyMetrics> getLatencyMetrics() {
+        Map<ITestInvocationListener, LatencyMetrics> metrics =
+                new HashMap<ITestInvocationListener, LatencyMetrics>();
+        for (Delivery delivery : mDeliveries) {
+            metrics.put(delivery.mListener, delivery.mMetrics);
+        }
+        return metrics;
+    }
+
+    private void post(Event event) {
+        if (mShutdown) {
+            CLog.w("Dropping event reported after the listener bus was shut down");
+            return;
+        }
+        for (Delivery delivery : mDeliveries) {
+            delivery.post(new QueuedEvent(event));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationStarted(final IBuildInfo buildInfo) {
+        post(new Event() {
+            @Override
+            public void deliver(ITestInvocationListener listener) {
+                listener.invocationStarted(buildInfo);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The log data is copied before this returns, since the source may be cancelled as soon as
+     * it does.
+     */
+    @Override
+    public void testLog(final String dataName, final LogDataType dataType,
+            InputStreamSource dataStream) {
+        InputStream stream = null;
+        final byte[] data;
+        try {
+            stream = dataStream.createInputStream();
+            ByteArrayOutputStream dataCopy = new ByteArrayOutputStream();
+            StreamUtil.copyStreams(stream, dataCopy);
+            data = dataCopy.toByteArray();
+        } catch (IOException e) {
+            CLog.e("Failed to read log %s: %s", dataName, e.toString());
+            return;
+        } finally {
+            StreamUtil.closeStream(stream);
+        }
+        post(new Event() {
+            @Override
+            public void deliver(ITestInvocationListener listener) {
+                ByteArrayInputStreamSource source = new ByteArrayInputStreamSource(data);
+                try {
+                    listener.testLog(dataName, dataType, source);
+                } finally {
+                    source.cancel();
+                }
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationEnded(final long elapsedTime) {
+        post(new Event() {
+            @Override
+            public void deliver(ITestInvocationListener listener) {
+                listener.invocationEnded(elapsedTime);
+            }
+        });
+        flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationFailed(final Throwable cause) {
+        post(new Event() {
+            @Override
+            public void deliver(ITestInvocationListener listener) {
+                listener.invocationFailed(cause);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestSummary getSummary() {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStarted(final String runName, final int testCount) {
+        post(new Event() {
+            @Override
+            public void deliver(ITestInvocationListener listener) {
+                listener.testRunStarted(runName, testCount);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted(final TestIdentifier test) {
+        post(new Event() {
+            @Override
+            public void deliver(ITestInvocationListener listener) {
+                listener.testStarted(test);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testFailed(final TestFailure status, final TestIdentifier test,
+            final String trace) {
+        post(new Event() {
+            @Override
+            public void deliver(ITestInvocationListener listener) {
+                listener.testFailed(status, test, trace);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded(final TestIdentifier test, Map<String, String> metrics) {
+        // the reporter may reuse the map once this returns
+        final Map<String, String> testMetrics = copyMetrics(metrics);
+        post(new Event() {
+            @Override
+            public void deliver(ITestInvocationListener listener) {
+                listener.testEnded(test, testMetrics);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunFailed(final String errorMessage) {
+        post(new Event() {
+            @Override
+            public void deliver(ITestInvocationListener listener) {
+                listener.testRunFailed(errorMessage);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStopped(final long elapsedTime) {
+        post(new Event() {
+            @Override
+            public void deliver(ITestInvocationListener listener) {
+                listener.testRunStopped(elapsedTime);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Waits for every listener to have handled the run, so a test run is complete everywhere
+     * before the next one starts.
+     */
+    @Override
+    public void testRunEnded(final long elapsedTime, Map<String, String> metrics) {
+        final Map<String, String> runMetrics = copyMetrics(metrics);
+        post(new Event() {
+            @Override
+            public void deliver(ITestInvocationListener listener) {
+                listener.testRunEnded(elapsedTime, runMetrics);
+            }
+        });
+        flush();
+    }
+
+    private static Map<String, String> copyMetrics(Map<String, String> metrics) {
+        return metrics == null ? null : new HashMap<String, String>(metrics);
+    }
+}
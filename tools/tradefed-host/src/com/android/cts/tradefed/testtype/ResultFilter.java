@@ -21,11 +21,10 @@ import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.ResultForwarder;
 
-import java.util.Collection;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -35,11 +34,15 @@ import java.util.Map;
  * <p/>
  * It will only report test results for expected tests, and at end of invocation, will report the
  * set of expected tests that were not executed.
+ * <p/>
+ * The known and remaining tests of each test run are kept as {@link BitSet}s of
+ * {@link TestIdRegistry} ids.
  */
 class ResultFilter extends ResultForwarder {
 
-    private final Map<String, Collection<TestIdentifier>> mKnownTestsMap;
-    private final Map<String, Collection<TestIdentifier>> mRemainingTestsMap;
+    private final TestIdRegistry mRegistry = TestIdRegistry.getInstance();
+    private final Map<String, BitSet> mKnownTestsMap;
+    private final Map<String, BitSet> mRemainingTestsMap;
     private String mCurrentTestRun = null;
 
     /**
@@ -50,16 +53,36 @@ class ResultFilter extends ResultForwarder {
     ResultFilter(ITestInvocationListener listener, List<TestPackage> testPackages) {
         super(listener);
 
-        mKnownTestsMap = new HashMap<String, Collection<TestIdentifier>>();
+        mKnownTestsMap = new HashMap<String, BitSet>();
         // use LinkedHashMap for predictable test order
-        mRemainingTestsMap = new LinkedHashMap<String, Collection<TestIdentifier>>();
+        mRemainingTestsMap = new LinkedHashMap<String, BitSet>();
 
         for (TestPackage testPkg : testPackages) {
-            mKnownTestsMap.put(testPkg.getTestRunName(), new HashSet<TestIdentifier>(
-                    testPkg.getKnownTests()));
-            mRemainingTestsMap.put(testPkg.getTestRunName(), new LinkedHashSet<TestIdentifier>(
-                    testPkg.getKnownTests()));
+            addTestPackage(testPkg);
+        }
+    }
+
+    /**
+     * Add the known tests of given {@link TestPackage} to this filter.
+     * <p/>
+     * A package that has been split by class is represented by several {@link TestPackage}s with
+     * the same test run name. Their known tests are merged.
+     */
+    void addTestPackage(TestPackage testPkg) {
+        String runName = testPkg.getTestRunName();
+        BitSet pkgTests = mRegistry.getIds(testPkg.getKnownTests());
+        BitSet knownTests = mKnownTestsMap.get(runName);
+        if (knownTests == null) {
+            knownTests = new BitSet();
+            mKnownTestsMap.put(runName, knownTests);
         }
+        knownTests.or(pkgTests);
+        BitSet remainingTests = mRemainingTestsMap.get(runName);
+        if (remainingTests == null) {
+            remainingTests = new BitSet();
+            mRemainingTestsMap.put(runName, remainingTests);
+        }
+        remainingTests.or(pkgTests);
     }
 
     /**
@@ -110,7 +133,8 @@ class ResultFilter extends ResultForwarder {
      */
     private boolean isKnownTest(TestIdentifier test) {
         if (mCurrentTestRun != null && mKnownTestsMap.containsKey(mCurrentTestRun)) {
-            return mKnownTestsMap.get(mCurrentTestRun).contains(test);
+            int id = mRegistry.findId(test);
+            return id >= 0 && mKnownTestsMap.get(mCurrentTestRun).get(id);
         }
         return false;
     }
@@ -121,7 +145,10 @@ class ResultFilter extends ResultForwarder {
      */
     private void removeExecutedTest(TestIdentifier test) {
         if (mCurrentTestRun != null && mRemainingTestsMap.containsKey(mCurrentTestRun)) {
-             mRemainingTestsMap.get(mCurrentTestRun).remove(test);
+            int id = mRegistry.findId(test);
+            if (id >= 0) {
+                mRemainingTestsMap.get(mCurrentTestRun).clear(id);
+            }
         }
     }
 
@@ -129,10 +156,13 @@ class ResultFilter extends ResultForwarder {
      * Report the set of expected tests that were not executed
      */
     public void reportUnexecutedTests() {
-        for (Map.Entry<String, Collection<TestIdentifier>> entry : mRemainingTestsMap.entrySet()) {
+        for (Map.Entry<String, BitSet> entry : mRemainingTestsMap.entrySet()) {
             if (!entry.getValue().isEmpty()) {
-                super.testRunStarted(entry.getKey(), entry.getValue().size());
-                for (TestIdentifier test : entry.getValue()) {
+                List<TestIdentifier> remainingTests = mRegistry.getTests(entry.getValue());
+                // report in the same order as the tests are run
+                Collections.sort(remainingTests, TestFilter.TEST_ID_COMPARATOR);
+                super.testRunStarted(entry.getKey(), remainingTests.size());
+                for (TestIdentifier test : remainingTests) {
                     // an unexecuted test is currently reported as a 'testStarted' event without a
                     // 'testEnded'. TODO: consider adding an explict API for reporting an unexecuted
                     // test
@@ -19,6 +19,7 @@ package com.android.cts.tradefed.testtype;
 import com.android.ddmlib.testrunner.TestIdentifier;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -28,11 +29,26 @@ import java.util.Set;
 
 /**
  * Filter for {@link TestIdentifier}s.
+ * <p/>
+ * Excluded tests are kept as a {@link BitSet} of {@link TestIdRegistry} ids.
  */
 public class TestFilter {
 
     private final Set<String> mExcludedClasses;
-    private final Set<TestIdentifier> mExcludedTests;
+    /**
+     * A {@link Comparator} for {@link TestIdentifier} that compares using
+     * {@link TestIdentifier#toString()}
+     */
+    static final Comparator<TestIdentifier> TEST_ID_COMPARATOR = new Comparator<TestIdentifier>() {
+        @Override
+        public int compare(TestIdentifier o1, TestIdentifier o2) {
+            return o1.toString().compareTo(o2.toString());
+        }
+    };
+
+    private final TestIdRegistry mRegistry = TestIdRegistry.getInstance();
+    private final BitSet mExcludedTests;
+    private final Set<String> mIncludedClasses;
     private String mIncludedClass = null;
     private String mIncludedMethod = null;
 
@@ -41,7 +57,21 @@ public class TestFilter {
      */
     public TestFilter() {
         mExcludedClasses = new HashSet<String>();
-        mExcludedTests = new HashSet<TestIdentifier>();
+        mExcludedTests = new BitSet();
+        mIncludedClasses = new HashSet<String>();
+    }
+
+    /**
+     * Creates a {@link TestFilter} with the same rules as given filter.
+     *
+     * @param filter the {@link TestFilter} to copy
+     */
+    public TestFilter(TestFilter filter) {
+        mExcludedClasses = new HashSet<String>(filter.mExcludedClasses);
+        mExcludedTests = (BitSet)filter.mExcludedTests.clone();
+        mIncludedClasses = new HashSet<String>(filter.mIncludedClasses);
+        mIncludedClass = filter.mIncludedClass;
+        mIncludedMethod = filter.mIncludedMethod;
     }
 
     /**
@@ -57,7 +87,14 @@ public class TestFilter {
      * Adds a test class to the filter. All tests in this class should be excluded.
      */
     public void addExcludedTest(TestIdentifier test) {
-        mExcludedTests.add(test);
+        mExcludedTests.set(mRegistry.getId(test));
+    }
+
+    /**
+     * Adds tests to the filter. All the given tests should be excluded.
+     */
+    public void addExcludedTests(Collection<TestIdentifier> tests) {
+        mExcludedTests.or(mRegistry.getIds(tests));
     }
 
     /**
@@ -73,9 +110,28 @@ public class TestFilter {
      * Get the tests to exclude.
      * <p/>
      * Exposed for unit testing
+     *
+     * @return a new {@link List} of the excluded tests
+     */
+    List<TestIdentifier> getExcludedTests() {
+        return mRegistry.getTests(mExcludedTests);
+    }
+
+    /**
+     * Adds a test class to the set of classes that should pass this filter. If any classes are
+     * added, tests in all other classes will be excluded.
      */
-    Set<TestIdentifier> getExcludedTests() {
-        return mExcludedTests;
+    public void addIncludedClass(String className) {
+        mIncludedClasses.add(className);
+    }
+
+    /**
+     * Get the test classes to exclusively include.
+     *
+     * @return the set of class names, empty if no classes have been added
+     */
+    public Set<String> getIncludedClasses() {
+        return mIncludedClasses;
     }
 
     /**
@@ -103,6 +159,10 @@ public class TestFilter {
                 // skip
                 continue;
             }
+            if (!mIncludedClasses.isEmpty() && !mIncludedClasses.contains(test.getClassName())) {
+                // skip
+                continue;
+            }
             if (mIncludedMethod != null && !test.getTestName().equals(mIncludedMethod)) {
                 // skip
                 continue;
@@ -111,13 +171,14 @@ public class TestFilter {
                 // skip
                 continue;
             }
-            if (mExcludedTests.contains(test)) {
+            int id = mRegistry.findId(test);
+            if (id >= 0 && mExcludedTests.get(id)) {
                 // skip
                 continue;
             }
             filteredTests.add(test);
         }
-        Collections.sort(filteredTests, new TestIdComparator());
+        Collections.sort(filteredTests, TEST_ID_COMPARATOR);
         return filteredTests;
     }
 
@@ -127,16 +188,4 @@ public class TestFilter {
     public boolean hasExclusion() {
         return !mExcludedClasses.isEmpty() || !mExcludedTests.isEmpty();
     }
-
-    /**
-     * A {@link Comparator} for {@link TestIdentifier} that compares using
-     * {@link TestIdentifier#toString()}
-     */
-    private class TestIdComparator implements Comparator<TestIdentifier> {
-
-        @Override
-        public int compare(TestIdentifier o1, TestIdentifier o2) {
-            return o1.toString().compareTo(o2.toString());
-        }
-    }
 }
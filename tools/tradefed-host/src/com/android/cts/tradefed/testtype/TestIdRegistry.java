@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns {@link TestIdentifier}s, assigning each distinct test a dense integer id.
+ * <p/>
+ * The registry is shared by all invocations in the process, so each test is held once, with its
+ * class name shared by the other tests of the class. Sets of tests can then be kept as
+ * {@link BitSet}s of ids. Ids are never released; the registry grows to the number of distinct
+ * tests seen, which is bounded by the size of the test suite.
+ */
+public class TestIdRegistry {
+
+    private static final TestIdRegistry sInstance = new TestIdRegistry();
+
+    private final Map<TestIdentifier, Integer> mIds =
+            new ConcurrentHashMap<TestIdentifier, Integer>();
+    /** the registered tests, indexed by id. Guarded by this */
+    private final List<TestIdentifier> mTests = new ArrayList<TestIdentifier>();
+    /** the interned class names. Guarded by this */
+    private final Map<String, String> mClassNames = new HashMap<String, String>();
+
+    /**
+     * Create an empty {@link TestIdRegistry}.
+     * <p/>
+     * Exposed for unit testing
+     */
+    TestIdRegistry() {
+    }
+
+    /**
+     * Get the registry shared by the process.
+     */
+    public static TestIdRegistry getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Get the id of the given test, registering it if needed.
+     */
+    public int getId(TestIdentifier test) {
+        Integer id = mIds.get(test);
+        if (id != null) {
+            return id;
+        }
+        return register(test);
+    }
+
+    /**
+     * Get the id of the given test, without registering it.
+     *
+     * @return the id, or -1 if the test has not been registered
+     */
+    public int findId(TestIdentifier test) {
+        Integer id = mIds.get(test);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Get the registered test with the given id.
+     */
+    public synchronized TestIdentifier getTest(int id) {
+        return mTests.get(id);
+    }
+
+    /**
+     * Get the shared instance of the given test, registering it if needed.
+     */
+    public TestIdentifier intern(TestIdentifier test) {
+        return getTest(getId(test));
+    }
+
+    /**
+     * Get the set of ids of the given tests, registering them if needed.
+     */
+    public BitSet getIds(Collection<TestIdentifier> tests) {
+        BitSet ids = new BitSet();
+        for (TestIdentifier test : tests) {
+            ids.set(getId(test));
+        }
+        return ids;
+    }
+
+    /**
+     * Get the tests with the given ids, in id order.
+     */
+    public synchronized List<TestIdentifier> getTests(BitSet ids) {
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>(ids.cardinality());
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            tests.add(mTests.get(id));
+        }
+        return tests;
+    }
+
+    private synchronized int register(TestIdentifier test) {
+        Integer id = mIds.get(test);
+        if (id != null) {
+            // registered by another thread in the meantime
+            return id;
+        }
+        String className = mClassNames.get(test.getClassName());
+        if (className == null) {
+            className = test.getClassName();
+            mClassNames.put(className, className);
+        }
+        TestIdentifier internedTest = new TestIdentifier(className, test.getTestName());
+        id = mTests.size();
+        mTests.add(internedTest);
+        mIds.put(internedTest, id);
+        return id;
+    }
+}
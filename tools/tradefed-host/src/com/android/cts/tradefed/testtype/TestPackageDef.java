@@ -16,6 +16,7 @@
 
 package com.android.cts.tradefed.testtype;
 
+import com.android.cts.tradefed.util.DigestCache;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.log.LogUtil.CLog;
@@ -24,6 +25,8 @@ import com.android.tradefed.testtype.InstrumentationTest;
 import com.android.tradefed.util.StreamUtil;
 
 import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -32,8 +35,14 @@ import java.io.InputStream;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Container for CTS test info.
@@ -56,6 +65,12 @@ class TestPackageDef implements ITestPackageDef {
 
     private static final String SIGNATURE_TEST_METHOD = "testSignature";
     private static final String SIGNATURE_TEST_CLASS = "android.tests.sigtest.SignatureTest";
+    /**
+     * the maximum number of classes in a package split by class. The classes of an
+     * instrumentation split are passed to am instrument as a single comma separated argument,
+     * which must fit in the adb shell command line of older platforms
+     */
+    static final int MAX_CLASSES_PER_SPLIT = 20;
 
     private String mUri = null;
     private String mAppNameSpace = null;
@@ -67,6 +82,7 @@ class TestPackageDef implements ITestPackageDef {
     private boolean mIsSignatureTest = false;
     private String mTestPackageName = null;
     private String mDigest = null;
+    private DigestCache mDigestCache = null;
 
     // use a LinkedHashSet for predictable iteration insertion-order, and fast
     // lookups
@@ -250,7 +266,8 @@ class TestPackageDef implements ITestPackageDef {
             instrTest.setClassName(SIGNATURE_TEST_CLASS);
             instrTest.setMethodName(SIGNATURE_TEST_METHOD);
             // set expected tests to the single signature test
-            TestIdentifier t = new TestIdentifier(SIGNATURE_TEST_CLASS, SIGNATURE_TEST_METHOD);
+            TestIdentifier t = TestIdRegistry.getInstance().intern(
+                    new TestIdentifier(SIGNATURE_TEST_CLASS, SIGNATURE_TEST_METHOD));
             mTests.clear();
             mTests.add(t);
             // mName means 'apk file name' for instrumentation tests
@@ -283,7 +300,12 @@ class TestPackageDef implements ITestPackageDef {
         instrTest.setPackageName(mAppNameSpace);
         instrTest.setRunnerName(mRunner);
         instrTest.setTestPackageName(mTestPackageName);
-        instrTest.setClassName(mClassName);
+        String className = mClassName;
+        if (className == null && !mExcludedTestFilter.getIncludedClasses().isEmpty()) {
+            // this package has been split by class, only run this split's classes
+            className = join(mExcludedTestFilter.getIncludedClasses(), ",");
+        }
+        instrTest.setClassName(className);
         instrTest.setMethodName(mMethodName);
         instrTest.setTestsToRun(mTests,
                 !mExcludedTestFilter.hasExclusion()
@@ -291,6 +313,8 @@ class TestPackageDef implements ITestPackageDef {
         // mName means 'apk file name' for instrumentation tests
         instrTest.addInstallApk(String.format("%s.apk", mName), mAppNameSpace);
         mDigest = generateDigest(testCaseDir, String.format("%s.apk", mName));
+        instrTest.setCollectedTestsKey(String.format("%s:%s:%s:%s", mDigest, mRunner, className,
+                mMethodName), getIncludedTests());
         if (mTests.size() > 1000) {
             // TODO: hack, large test suites can take longer to collect tests, increase timeout
             instrTest.setCollectsTestsShellTimeout(10 * 60 * 1000);
@@ -298,6 +322,37 @@ class TestPackageDef implements ITestPackageDef {
         return instrTest;
     }
 
+    /**
+     * Get the tests of this package that are in the included classes, if any.
+     */
+    private Collection<TestIdentifier> getIncludedTests() {
+        Set<String> includedClasses = mExcludedTestFilter.getIncludedClasses();
+        if (includedClasses.isEmpty()) {
+            return mTests;
+        }
+        List<TestIdentifier> includedTests = new ArrayList<TestIdentifier>();
+        for (TestIdentifier test : mTests) {
+            if (includedClasses.contains(test.getClassName())) {
+                includedTests.add(test);
+            }
+        }
+        return includedTests;
+    }
+
+    /**
+     * Join the given strings with a separator.
+     */
+    private static String join(Collection<String> strings, String separator) {
+        StringBuilder builder = new StringBuilder();
+        for (String string : strings) {
+            if (builder.length() > 0) {
+                builder.append(separator);
+            }
+            builder.append(string);
+        }
+        return builder.toString();
+    }
+
     /**
      * Populates given {@link UiAutomatorJarTest} with data from the package xml.
      *
@@ -330,6 +385,196 @@ class TestPackageDef implements ITestPackageDef {
         return mExcludedTestFilter.filter(mTests);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ITestPackageDef> splitByClass(int numSplits) {
+        if (numSplits <= 1 || mClassName != null || !canSplitByClass()) {
+            return null;
+        }
+        // count the tests to run in each class. Filtered tests are sorted, so each class's tests
+        // are contiguous
+        Collection<TestIdentifier> tests = filterTests();
+        Map<String, Integer> classTestCounts = new LinkedHashMap<String, Integer>();
+        for (TestIdentifier test : tests) {
+            Integer count = classTestCounts.get(test.getClassName());
+            classTestCounts.put(test.getClassName(), count == null ? 1 : count + 1);
+        }
+        if (classTestCounts.size() <= 1) {
+            return null;
+        }
+        numSplits = Math.min(numSplits, classTestCounts.size());
+        numSplits = Math.max(numSplits,
+                (classTestCounts.size() + MAX_CLASSES_PER_SPLIT - 1) / MAX_CLASSES_PER_SPLIT);
+
+        List<ITestPackageDef> splits = new ArrayList<ITestPackageDef>(numSplits);
+        TestPackageDef currentSplit = null;
+        long assignedTests = 0;
+        int remainingClasses = classTestCounts.size();
+        int splitClasses = 0;
+        for (Map.Entry<String, Integer> classEntry : classTestCounts.entrySet()) {
+            if (currentSplit == null) {
+                currentSplit = copyForSplit();
+                splits.add(currentSplit);
+                splitClasses = 0;
+            }
+            currentSplit.mExcludedTestFilter.addIncludedClass(classEntry.getKey());
+            assignedTests += classEntry.getValue();
+            remainingClasses--;
+            splitClasses++;
+            // move on to the next split once this one has its share of the tests or is full, or
+            // when there are only enough classes left to give one to each remaining split
+            int remainingSplits = numSplits - splits.size();
+            if (splitClasses >= MAX_CLASSES_PER_SPLIT || (remainingSplits > 0 &&
+                    (assignedTests * numSplits >= (long)tests.size() * splits.size() ||
+                    remainingClasses <= remainingSplits))) {
+                currentSplit = null;
+            }
+        }
+        return splits;
+    }
+
+    /**
+     * Return <code>true</code> if the test created for this package can be restricted to an
+     * arbitrary set of test classes.
+     */
+    private boolean canSplitByClass() {
+        if (HOST_SIDE_ONLY_TEST.equals(mTestType) || VM_HOST_TEST.equals(mTestType)) {
+            return true;
+        }
+        // only plain instrumentation packages are supported. The other test types either don't
+        // have class level control, or have special setup
+        return !mIsSignatureTest && !NATIVE_TEST.equals(mTestType)
+                && !WRAPPED_NATIVE_TEST.equals(mTestType) && !ACCESSIBILITY_TEST.equals(mTestType)
+                && !ACCESSIBILITY_SERVICE_TEST.equals(mTestType) && !DISPLAY_TEST.equals(mTestType)
+                && !UIAUTOMATOR_TEST.equals(mTestType);
+    }
+
+    /**
+     * Create a copy of this package, with its own copy of the test filter.
+     */
+    private TestPackageDef copyForSplit() {
+        TestPackageDef copy = copyDefinition();
+        copy.mClassName = mClassName;
+        copy.mMethodName = mMethodName;
+        copy.mExcludedTestFilter = new TestFilter(mExcludedTestFilter);
+        return copy;
+    }
+
+    /**
+     * Create a copy of the definition parsed from the package xml, without any of the dynamic
+     * options. The copy shares the tests of this package.
+     */
+    TestPackageDef copyDefinition() {
+        TestPackageDef copy = new TestPackageDef();
+        copy.mUri = mUri;
+        copy.mAppNameSpace = mAppNameSpace;
+        copy.mName = mName;
+        copy.mRunner = mRunner;
+        copy.mIsVMHostTest = mIsVMHostTest;
+        copy.mTestType = mTestType;
+        copy.mJarPath = mJarPath;
+        copy.mIsSignatureTest = mIsSignatureTest;
+        copy.mTestPackageName = mTestPackageName;
+        copy.mTests = mTests;
+        copy.mTestClasses = mTestClasses;
+        copy.mTargetBinaryName = mTargetBinaryName;
+        copy.mTargetNameSpace = mTargetNameSpace;
+        copy.mTimeoutInMins = mTimeoutInMins;
+        copy.mDigestCache = mDigestCache;
+        return copy;
+    }
+
+    /**
+     * Make the tests of this package read-only, so they can be shared by the copies made with
+     * {@link #copyDefinition()}.
+     */
+    void freeze() {
+        mTests = Collections.unmodifiableCollection(mTests);
+        mTestClasses = Collections.unmodifiableCollection(mTestClasses);
+    }
+
+    /**
+     * Write the definition parsed from the package xml, for reading back with
+     * {@link #read(DataInput)}. The dynamic options are not written.
+     * <p/>
+     * The tests are written grouped by class, in their original order.
+     */
+    void write(DataOutput out) throws IOException {
+        writeString(out, mUri);
+        writeString(out, mAppNameSpace);
+        writeString(out, mName);
+        writeString(out, mRunner);
+        writeString(out, mTestType);
+        writeString(out, mJarPath);
+        out.writeBoolean(mIsSignatureTest);
+        writeString(out, mTestPackageName);
+        writeString(out, mTargetBinaryName);
+        writeString(out, mTargetNameSpace);
+        out.writeInt(mTimeoutInMins);
+        // each run of tests of the same class is written as the class name, the number of tests
+        // and their names
+        List<List<TestIdentifier>> classRuns = new ArrayList<List<TestIdentifier>>();
+        List<TestIdentifier> classRun = null;
+        for (TestIdentifier test : mTests) {
+            if (classRun == null || !classRun.get(0).getClassName().equals(test.getClassName())) {
+                classRun = new ArrayList<TestIdentifier>();
+                classRuns.add(classRun);
+            }
+            classRun.add(test);
+        }
+        out.writeInt(classRuns.size());
+        for (List<TestIdentifier> run : classRuns) {
+            out.writeUTF(run.get(0).getClassName());
+            out.writeInt(run.size());
+            for (TestIdentifier test : run) {
+                out.writeUTF(test.getTestName());
+            }
+        }
+    }
+
+    /**
+     * Read a definition written by {@link #write(DataOutput)}.
+     */
+    static TestPackageDef read(DataInput in) throws IOException {
+        TestPackageDef def = new TestPackageDef();
+        def.mUri = readString(in);
+        def.mAppNameSpace = readString(in);
+        def.mName = readString(in);
+        def.mRunner = readString(in);
+        def.mTestType = readString(in);
+        def.mJarPath = readString(in);
+        def.mIsSignatureTest = in.readBoolean();
+        def.mTestPackageName = readString(in);
+        def.mTargetBinaryName = readString(in);
+        def.mTargetNameSpace = readString(in);
+        def.mTimeoutInMins = in.readInt();
+        int numClassRuns = in.readInt();
+        for (int i = 0; i < numClassRuns; i++) {
+            String className = in.readUTF();
+            def.mTestClasses.add(className);
+            int numTests = in.readInt();
+            for (int j = 0; j < numTests; j++) {
+                // intern like the parser does, so the tests are known to the registry
+                def.mTests.add(TestIdRegistry.getInstance().intern(
+                        new TestIdentifier(className, in.readUTF())));
+            }
+        }
+        return def;
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -346,6 +591,13 @@ class TestPackageDef implements ITestPackageDef {
         return mTestClasses.contains(className);
     }
 
+    /**
+     * Get the names of the classes of the tests in this package.
+     */
+    Collection<String> getTestClasses() {
+        return mTestClasses;
+    }
+
     /**
      * Add a {@link TestIdentifier} to the list of tests in this package.
      *
@@ -377,6 +629,40 @@ class TestPackageDef implements ITestPackageDef {
         return mDigest;
     }
 
+    /**
+     * Set the {@link DigestCache} to get the digest of the package's apk or jar from.
+     */
+    void setDigestCache(DigestCache digestCache) {
+        mDigestCache = digestCache;
+    }
+
+    /**
+     * Start computing the digest of the package's apk or jar in the background, so it is ready
+     * when the test is created. Does nothing if the package has no {@link DigestCache}.
+     *
+     * @param testCaseDir the directory of the test case files
+     */
+    void prefetchDigest(File testCaseDir) {
+        String fileName = getDigestFileName();
+        if (mDigestCache != null && fileName != null) {
+            mDigestCache.prefetch(new File(testCaseDir, fileName));
+        }
+    }
+
+    /**
+     * Get the name of the file whose digest {@link #createTest(File)} generates, or
+     * <code>null</code> if it does not generate one.
+     */
+    private String getDigestFileName() {
+        if (HOST_SIDE_ONLY_TEST.equals(mTestType) || VM_HOST_TEST.equals(mTestType)) {
+            return mJarPath;
+        } else if (NATIVE_TEST.equals(mTestType) || WRAPPED_NATIVE_TEST.equals(mTestType) ||
+                UIAUTOMATOR_TEST.equals(mTestType)) {
+            return null;
+        }
+        return String.format("%s.apk", mName);
+    }
+
     /**
      * Generate a sha1sum digest for a file.
      * <p/>
@@ -387,6 +673,12 @@ class TestPackageDef implements ITestPackageDef {
      * @return a hex {@link String} of the digest
      */
     String generateDigest(File fileDir, String fileName) {
+        if (mDigestCache != null) {
+            String digest = mDigestCache.getDigest(new File(fileDir, fileName));
+            if (digest != null) {
+                return digest;
+            }
+        }
         final String algorithm = "SHA-1";
         InputStream fileStream = null;
         DigestInputStream d = null;
@@ -397,7 +689,7 @@ class TestPackageDef implements ITestPackageDef {
             byte[] buffer = new byte[8196];
             while (d.read(buffer) != -1) {
             }
-            return toHexString(md.digest());
+            return DigestCache.toHexString(md.digest());
         } catch (NoSuchAlgorithmException e) {
             return algorithm + " not found";
         } catch (IOException e) {
@@ -419,18 +711,4 @@ class TestPackageDef implements ITestPackageDef {
         fileStream = new BufferedInputStream(new FileInputStream(new File(fileDir, fileName)));
         return fileStream;
     }
-
-    /**
-     * Convert the given byte array into a lowercase hex string.
-     *
-     * @param arr The array to convert.
-     * @return The hex encoded string.
-     */
-    private String toHexString(byte[] arr) {
-        StringBuffer buf = new StringBuffer(arr.length * 2);
-        for (byte b : arr) {
-            buf.append(String.format("%02x", b & 0xFF));
-        }
-        return buf.toString();
-    }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.testtype.CtsTest.TestPackage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A thread-safe queue of {@link TestPackage}s shared by a set of {@link CtsTest} shards.
+ * <p/>
+ * Each shard takes its next package from the queue when it becomes free, so devices that finish
+ * early keep working instead of waiting on slower devices.
+ * <p/>
+ * If the typical test duration of each device model is known, devices that are much slower than
+ * the rest of the pool take the cheapest packages from the end of the queue, and avoid packages
+ * that require a device reboot.
+ * <p/>
+ * The queue also tracks the shards that have not yet finished running. When the last one
+ * finishes, any packages left in the queue are handed to it, so they are reported as not executed
+ * and can be run by a resumed or continued session.
+ */
+class TestPackageQueue {
+
+    /** a device is slow if its tests take this much longer than the pool average */
+    private static final double SLOW_DEVICE_FACTOR = 1.25;
+
+    private final List<TestPackage> mAllPackages;
+    private final LinkedList<TestPackage> mQueue;
+    private int mUnfinishedShards;
+    private Map<String, Double> mTestDurations = new HashMap<String, Double>();
+    /** the model of the device each unfinished shard is running on */
+    private final Map<CtsTest, String> mDeviceModels = new HashMap<CtsTest, String>();
+
+    /**
+     * Create a {@link TestPackageQueue}.
+     *
+     * @param testPackages the {@link TestPackage}s to run, in the order they should be taken
+     * @param numShards the number of shards that will take packages from this queue
+     */
+    TestPackageQueue(Collection<TestPackage> testPackages, int numShards) {
+        mAllPackages = Collections.unmodifiableList(new ArrayList<TestPackage>(testPackages));
+        mQueue = new LinkedList<TestPackage>(testPackages);
+        mUnfinishedShards = numShards;
+    }
+
+    /**
+     * Get all the {@link TestPackage}s originally added to this queue.
+     */
+    List<TestPackage> getAllPackages() {
+        return mAllPackages;
+    }
+
+    /**
+     * Set the average test duration of each device model, used to identify slow devices.
+     *
+     * @param testDurations a {@link Map} of device model to average test duration in ms
+     */
+    synchronized void setTestDurationsByModel(Map<String, Double> testDurations) {
+        mTestDurations = new HashMap<String, Double>(testDurations);
+    }
+
+    /**
+     * Register the model of the device a shard is taking packages from this queue on. Replaces
+     * the model the shard registered before, e.g. when it is resumed on another device. The model
+     * is unregistered when the shard finishes.
+     *
+     * @param shard the shard
+     * @param model the device model
+     */
+    synchronized void registerDeviceModel(CtsTest shard, String model) {
+        mDeviceModels.put(shard, model);
+    }
+
+    /**
+     * Determine if the given device model is much slower than the average of the registered
+     * devices.
+     *
+     * @param model the device model
+     * @return <code>true</code> if the model is known to be slow
+     */
+    synchronized boolean isSlowDevice(String model) {
+        Double duration = mTestDurations.get(model);
+        if (duration == null) {
+            return false;
+        }
+        double totalDuration = 0;
+        int knownDevices = 0;
+        for (String deviceModel : mDeviceModels.values()) {
+            Double deviceDuration = mTestDurations.get(deviceModel);
+            if (deviceDuration != null) {
+                totalDuration += deviceDuration;
+                knownDevices++;
+            }
+        }
+        if (knownDevices <= 1) {
+            return false;
+        }
+        return duration > (totalDuration / knownDevices) * SLOW_DEVICE_FACTOR;
+    }
+
+    /**
+     * Take the next {@link TestPackage} to run.
+     *
+     * @return the {@link TestPackage} or <code>null</code> if the queue is empty
+     */
+    synchronized TestPackage poll() {
+        return mQueue.poll();
+    }
+
+    /**
+     * Take the next {@link TestPackage} to run on a device.
+     * <p/>
+     * Slow devices take the cheapest package that does not require a reboot, from the end of
+     * the queue. Reboot-prone packages are only given to slow devices when nothing else is left.
+     *
+     * @param slowDevice <code>true</code> if the device is slow
+     * @return the {@link TestPackage} or <code>null</code> if the queue is empty
+     */
+    synchronized TestPackage poll(boolean slowDevice) {
+        if (!slowDevice) {
+            return mQueue.poll();
+        }
+        Iterator<TestPackage> iter = mQueue.descendingIterator();
+        while (iter.hasNext()) {
+            TestPackage testPkg = iter.next();
+            if (!CtsTest.isRebootProne(testPkg)) {
+                iter.remove();
+                return testPkg;
+            }
+        }
+        return mQueue.pollLast();
+    }
+
+    /**
+     * Get the number of {@link TestPackage}s waiting to be run.
+     */
+    synchronized int size() {
+        return mQueue.size();
+    }
+
+    /**
+     * Notify that a shard which previously finished is running again, e.g. because it has been
+     * resumed on another device.
+     */
+    synchronized void shardResumed() {
+        mUnfinishedShards++;
+    }
+
+    /**
+     * Notify that a shard has stopped running, either because it completed or because its device
+     * became unavailable.
+     *
+     * @param shard the shard
+     * @return the {@link TestPackage}s left in the queue if this was the last unfinished shard,
+     *         otherwise an empty list
+     */
+    synchronized List<TestPackage> shardFinished(CtsTest shard) {
+        mDeviceModels.remove(shard);
+        mUnfinishedShards--;
+        List<TestPackage> leftOver = new ArrayList<TestPackage>();
+        if (mUnfinishedShards <= 0) {
+            leftOver.addAll(mQueue);
+            mQueue.clear();
+        }
+        return leftOver;
+    }
+}
@@ -15,46 +15,110 @@
  */
 package com.android.cts.tradefed.testtype;
 
+import com.android.cts.tradefed.util.DigestCache;
 import com.android.ddmlib.Log;
+import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Retrieves CTS test package definitions from the repository.
+ * <p/>
+ * The package xml files are parsed in parallel. If a cache directory is given, the parsed
+ * definitions are also stored in a binary index there, keyed by xml file path, size and
+ * modification time, so later repos only parse the xml files that changed.
+ * <p/>
+ * A repo is read-only once created, so it can be shared by concurrent invocations, see
+ * {@link CtsBuildModel}. Each {@link #getTestPackage(String)} call returns a new
+ * {@link ITestPackageDef} with its own filter and options, sharing the tests of the package.
  */
 public class TestPackageRepo implements ITestPackageRepo {
 
     private static final String LOG_TAG = "TestCaseRepo";
 
+    static final String INDEX_FILE_NAME = "test-package-index";
+    private static final int INDEX_MAGIC = 0x43545049; // "CTPI"
+    private static final int INDEX_VERSION = 1;
+
+    /** an xml file's entry in the index */
+    private static class IndexEntry {
+        final long mSize;
+        final long mLastModified;
+        /** the definition parsed from the file, or <code>null</code> if it has none */
+        final TestPackageDef mDef;
+
+        IndexEntry(long size, long lastModified, TestPackageDef def) {
+            mSize = size;
+            mLastModified = lastModified;
+            mDef = def;
+        }
+
+        boolean matches(File xmlFile) {
+            return mSize == xmlFile.length() && mLastModified == xmlFile.lastModified();
+        }
+    }
+
     private final File mTestCaseDir;
 
     /** mapping of uri to test definition */
     private final Map<String, TestPackageDef> mTestMap;
 
+    /** mapping of test class name to the uri of the package it is in */
+    private final Map<String, String> mClassMap = new HashMap<String, String>();
+
     private final boolean mIncludeKnownFailures;
 
+    /** the index file, or <code>null</code> if the index is not used */
+    private final File mIndexFile;
+
     /**
      * Creates a {@link TestPackageRepo}, initialized from provided repo files
      *
      * @param testCaseDir directory containing all test case definition xml and build files
      */
     public TestPackageRepo(File testCaseDir, boolean includeKnownFailures) {
+        this(testCaseDir, includeKnownFailures, null);
+    }
+
+    /**
+     * Creates a {@link TestPackageRepo}, initialized from provided repo files and the index in
+     * the given cache directory
+     *
+     * @param testCaseDir directory containing all test case definition xml and build files
+     * @param cacheDir the directory to keep the index in, or <code>null</code> to not use one.
+     *            Created if it does not exist.
+     */
+    public TestPackageRepo(File testCaseDir, boolean includeKnownFailures, File cacheDir) {
         mTestCaseDir = testCaseDir;
         mTestMap = new Hashtable<String, TestPackageDef>();
         mIncludeKnownFailures = includeKnownFailures;
+        mIndexFile = cacheDir == null ? null : new File(cacheDir, INDEX_FILE_NAME);
         parse(mTestCaseDir);
+        buildClassMap();
     }
 
     /**
@@ -62,30 +126,181 @@ public class TestPackageRepo implements ITestPackageRepo {
      */
     private void parse(File dir) {
         File[] xmlFiles = dir.listFiles(new XmlFilter());
+        if (xmlFiles == null) {
+            Log.e(LOG_TAG, String.format("Could not list test case dir %s",
+                    dir.getAbsolutePath()));
+            return;
+        }
+        Map<String, IndexEntry> index = readIndex();
+        Map<String, IndexEntry> newIndex = new LinkedHashMap<String, IndexEntry>();
+        Map<File, Future<TestPackageDef>> parseTasks =
+                new LinkedHashMap<File, Future<TestPackageDef>>();
+        ExecutorService executor = null;
         for (File xmlFile : xmlFiles) {
-            parseTestFromXml(xmlFile);
+            IndexEntry entry = index.get(xmlFile.getAbsolutePath());
+            if (entry != null && entry.matches(xmlFile)) {
+                newIndex.put(xmlFile.getAbsolutePath(), entry);
+                continue;
+            }
+            if (executor == null) {
+                executor = Executors.newFixedThreadPool(Math.min(xmlFiles.length,
+                        Runtime.getRuntime().availableProcessors()));
+            }
+            final File fileToParse = xmlFile;
+            parseTasks.put(xmlFile, executor.submit(new Callable<TestPackageDef>() {
+                @Override
+                public TestPackageDef call() throws FileNotFoundException, ParseException {
+                    return parseTestFromXml(fileToParse);
+                }
+            }));
         }
-    }
-
-    private void parseTestFromXml(File xmlFile)  {
-        TestPackageXmlParser parser = new TestPackageXmlParser(mIncludeKnownFailures);
         try {
-            parser.parse(createStreamFromFile(xmlFile));
-            TestPackageDef def = parser.getTestPackageDef();
+            for (Map.Entry<File, Future<TestPackageDef>> task : parseTasks.entrySet()) {
+                File xmlFile = task.getKey();
+                try {
+                    newIndex.put(xmlFile.getAbsolutePath(), new IndexEntry(xmlFile.length(),
+                            xmlFile.lastModified(), task.getValue().get()));
+                } catch (ExecutionException e) {
+                    logParseFailure(xmlFile, e.getCause());
+                } catch (InterruptedException e) {
+                    Log.e(LOG_TAG, String.format("Interrupted while parsing test case xml file %s",
+                            xmlFile.getAbsolutePath()));
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        DigestCache digestCache = DigestCache.getCache(
+                mIndexFile == null ? null : mIndexFile.getParentFile());
+        for (Map.Entry<String, IndexEntry> entry : newIndex.entrySet()) {
+            TestPackageDef def = entry.getValue().mDef;
             if (def != null) {
+                def.freeze();
+                def.setDigestCache(digestCache);
                 mTestMap.put(def.getUri(), def);
             } else {
                 Log.w(LOG_TAG, String.format("Could not find test package info in xml file %s",
-                        xmlFile.getAbsolutePath()));
+                        entry.getKey()));
             }
-        } catch (FileNotFoundException e) {
+        }
+        if (!parseTasks.isEmpty() || newIndex.size() != index.size()) {
+            writeIndex(newIndex);
+        }
+    }
+
+    private TestPackageDef parseTestFromXml(File xmlFile)
+            throws FileNotFoundException, ParseException {
+        TestPackageXmlParser parser = new TestPackageXmlParser(mIncludeKnownFailures);
+        parser.parse(createStreamFromFile(xmlFile));
+        return parser.getTestPackageDef();
+    }
+
+    private void logParseFailure(File xmlFile, Throwable cause) {
+        if (cause instanceof FileNotFoundException) {
             Log.e(LOG_TAG, String.format("Could not find test case xml file %s",
                     xmlFile.getAbsolutePath()));
-            Log.e(LOG_TAG, e);
-        } catch (ParseException e) {
+        } else {
             Log.e(LOG_TAG, String.format("Failed to parse test case xml file %s",
                     xmlFile.getAbsolutePath()));
-            Log.e(LOG_TAG, e);
+        }
+        Log.e(LOG_TAG, cause);
+    }
+
+    /**
+     * Builds mClassMap from mTestMap. A class found in several packages is mapped to the first
+     * package by name.
+     */
+    private void buildClassMap() {
+        List<String> uris = new ArrayList<String>(mTestMap.keySet());
+        Collections.sort(uris);
+        for (String uri : uris) {
+            for (String className : mTestMap.get(uri).getTestClasses()) {
+                if (!mClassMap.containsKey(className)) {
+                    mClassMap.put(className, uri);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the index, keyed by xml file path. An index that is missing, unreadable or was built
+     * with a different known failures setting is ignored.
+     */
+    private Map<String, IndexEntry> readIndex() {
+        Map<String, IndexEntry> index = new HashMap<String, IndexEntry>();
+        if (mIndexFile == null || !mIndexFile.exists()) {
+            return index;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION ||
+                    in.readBoolean() != mIncludeKnownFailures) {
+                return index;
+            }
+            int numEntries = in.readInt();
+            for (int i = 0; i < numEntries; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                TestPackageDef def = in.readBoolean() ? TestPackageDef.read(in) : null;
+                index.put(path, new IndexEntry(size, lastModified, def));
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, String.format("Failed to read test package index %s: %s",
+                    mIndexFile.getAbsolutePath(), e.toString()));
+            index.clear();
+        } finally {
+            StreamUtil.closeStream(in);
+        }
+        return index;
+    }
+
+    /**
+     * Write the index. It is written to a temporary file first, so a concurrent repo never reads
+     * a partly written index.
+     */
+    private void writeIndex(Map<String, IndexEntry> index) {
+        if (mIndexFile == null) {
+            return;
+        }
+        mIndexFile.getParentFile().mkdirs();
+        File tmpFile = null;
+        DataOutputStream out = null;
+        try {
+            tmpFile = File.createTempFile(INDEX_FILE_NAME, ".tmp", mIndexFile.getParentFile());
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeBoolean(mIncludeKnownFailures);
+            out.writeInt(index.size());
+            for (Map.Entry<String, IndexEntry> entry : index.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().mSize);
+                out.writeLong(entry.getValue().mLastModified);
+                out.writeBoolean(entry.getValue().mDef != null);
+                if (entry.getValue().mDef != null) {
+                    entry.getValue().mDef.write(out);
+                }
+            }
+            out.close();
+            if (!tmpFile.renameTo(mIndexFile)) {
+                // renaming over an existing file fails on some platforms
+                mIndexFile.delete();
+                if (!tmpFile.renameTo(mIndexFile)) {
+                    throw new IOException("could not rename temporary file");
+                }
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, String.format("Failed to write test package index %s: %s",
+                    mIndexFile.getAbsolutePath(), e.toString()));
+        } finally {
+            StreamUtil.closeStream(out);
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
         }
     }
 
@@ -118,7 +333,8 @@ public class TestPackageRepo implements ITestPackageRepo {
      */
     @Override
     public ITestPackageDef getTestPackage(String testUri) {
-        return mTestMap.get(testUri);
+        TestPackageDef def = mTestMap.get(testUri);
+        return def == null ? null : def.copyDefinition();
     }
 
     /**
@@ -126,12 +342,7 @@ public class TestPackageRepo implements ITestPackageRepo {
      */
     @Override
     public String findPackageForTest(String testClassName) {
-        for (Map.Entry<String, TestPackageDef> entry : mTestMap.entrySet()) {
-            if (entry.getValue().isKnownTestClass(testClassName)) {
-                return entry.getKey();
-            }
-        }
-        return null;
+        return mClassMap.get(testClassName);
     }
 
     /**
@@ -129,8 +129,10 @@ public class TestPackageXmlParser extends AbstractXmlParser {
                     if (timeoutStr != null) {
                         timeout = Integer.parseInt(timeoutStr);
                     }
-                    TestIdentifier testId = new TestIdentifier(classNameBuilder.toString(),
-                            methodName);
+                    // share a single instance of each test across the packages and plans that
+                    // reference it
+                    TestIdentifier testId = TestIdRegistry.getInstance().intern(
+                            new TestIdentifier(classNameBuilder.toString(), methodName));
                     boolean isKnownFailure = "failure".equals(attributes.getValue("expectation"));
                     if (!isKnownFailure || mIncludeKnownFailures) {
                         mPackageDef.addTest(testId, timeout);
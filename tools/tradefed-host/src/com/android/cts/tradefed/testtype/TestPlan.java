@@ -159,7 +159,7 @@ public class TestPlan extends AbstractXmlParser implements ITestPlan {
     public void addExcludedTests(String uri, Collection<TestIdentifier> excludedTests) {
         TestFilter filter = mUriExcludedTestsMap.get(uri);
         if (filter != null) {
-            filter.getExcludedTests().addAll(excludedTests);
+            filter.addExcludedTests(excludedTests);
         } else {
             throw new IllegalArgumentException(String.format("Could not find package %s", uri));
         }
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A cache of the SHA-1 digests of files, such as the CTS test apks and jars.
+ * <p/>
+ * Digests are keyed by the canonical path of the file, and are only used while the file keeps
+ * the size and modification time it had when it was hashed. A cache with a cache directory
+ * records its digests in the {@link #CACHE_FILE_NAME} file there, so they survive the process.
+ * <p/>
+ * {@link #prefetch(File)} starts hashing a file on a background thread, so the digest is ready
+ * or in progress by the time {@link #getDigest(File)} is called. Files are hashed through
+ * memory-mapped reads.
+ */
+public class DigestCache {
+
+    static final String CACHE_FILE_NAME = "file-digests.txt";
+
+    /** the size of the file regions mapped at a time */
+    private static final int MAP_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** the caches of the process, keyed by cache directory */
+    private static final Map<File, DigestCache> sCaches = new HashMap<File, DigestCache>();
+
+    /** a cached digest */
+    private static class Entry {
+        final long mSize;
+        final long mLastModified;
+        final String mDigest;
+
+        Entry(long size, long lastModified, String digest) {
+            mSize = size;
+            mLastModified = lastModified;
+            mDigest = digest;
+        }
+    }
+
+    /** the cache file, or <code>null</code> if the digests are not persisted */
+    private final File mCacheFile;
+    /** the cached digests, keyed by canonical path */
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    /** the digests being computed in the background, keyed by canonical path */
+    private final Map<String, Future<String>> mPending = new HashMap<String, Future<String>>();
+    private ExecutorService mExecutor = null;
+
+    /**
+     * Create a {@link DigestCache}, loading the digests recorded in the given file.
+     * <p/>
+     * Exposed for unit testing, use {@link #getCache(File)} otherwise.
+     *
+     * @param cacheFile the file to record digests in, or <code>null</code> to only keep them in
+     *            memory
+     */
+    DigestCache(File cacheFile) {
+        mCacheFile = cacheFile;
+        if (mCacheFile != null) {
+            load();
+        }
+    }
+
+    /**
+     * Get the cache of the process for the given cache directory.
+     *
+     * @param cacheDir the directory to record digests in, or <code>null</code> for a cache that
+     *            only keeps them in memory
+     */
+    public static DigestCache getCache(File cacheDir) {
+        synchronized (sCaches) {
+            DigestCache cache = sCaches.get(cacheDir);
+            if (cache == null) {
+                cache = new DigestCache(cacheDir == null ? null :
+                        new File(cacheDir, CACHE_FILE_NAME));
+                sCaches.put(cacheDir, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Start computing the digest of the given file in the background, unless it is cached or
+     * already being computed.
+     */
+    public void prefetch(final File file) {
+        final String path = getPath(file);
+        synchronized (this) {
+            if (getCachedDigest(path, file) != null || mPending.containsKey(path)) {
+                return;
+            }
+            if (mExecutor == null) {
+                mExecutor = Executors.newFixedThreadPool(
+                        Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, "DigestCache");
+                                // never keep the process alive just to hash files
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+            }
+            mPending.put(path, mExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return computeAndStore(path, file);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Get the digest of the given file, waiting for it to be computed if it is not cached.
+     *
+     * @return the hex SHA-1 digest, or <code>null</code> if it could not be computed
+     */
+    public String getDigest(File file) {
+        String path = getPath(file);
+        Future<String> task;
+        synchronized (this) {
+            String digest = getCachedDigest(path, file);
+            if (digest != null) {
+                return digest;
+            }
+            task = mPending.get(path);
+        }
+        if (task == null) {
+            return computeAndStore(path, file);
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            CLog.e(e);
+        } catch (InterruptedException e) {
+            CLog.w("Interrupted while computing digest of %s", path);
+        }
+        return null;
+    }
+
+    /**
+     * Compute the SHA-1 digest of a file, without caching it.
+     *
+     * @return the hex digest, or <code>null</code> if it could not be computed
+     */
+    public static String computeDigest(File file) {
+        FileInputStream fileStream = null;
+        try {
+            fileStream = new FileInputStream(file);
+            FileChannel channel = fileStream.getChannel();
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_CHUNK_SIZE) {
+                md.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_CHUNK_SIZE, size - position)));
+            }
+            return toHexString(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            CLog.e(e);
+        } catch (IOException e) {
+            CLog.e(e);
+        } finally {
+            StreamUtil.closeStream(fileStream);
+        }
+        return null;
+    }
+
+    /**
+     * Convert the given bytes into a lowercase hex string.
+     */
+    public static String toHexString(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private String computeAndStore(String path, File file) {
+        // take the stamp before hashing, so a file changing while it is hashed is never cached
+        // under its new stamp
+        long size = file.length();
+        long lastModified = file.lastModified();
+        String digest = computeDigest(file);
+        synchronized (this) {
+            mPending.remove(path);
+            if (digest != null) {
+                Entry entry = new Entry(size, lastModified, digest);
+                mEntries.put(path, entry);
+                record(path, entry);
+            }
+        }
+        return digest;
+    }
+
+    private String getCachedDigest(String path, File file) {
+        Entry entry = mEntries.get(path);
+        if (entry != null && entry.mSize == file.length() &&
+                entry.mLastModified == file.lastModified()) {
+            return entry.mDigest;
+        }
+        return null;
+    }
+
+    private static String getPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Append an entry to the cache file.
+     */
+    private void record(String path, Entry entry) {
+        if (mCacheFile == null) {
+            return;
+        }
+        Writer writer = null;
+        try {
+            mCacheFile.getParentFile().mkdirs();
+            writer = new OutputStreamWriter(new FileOutputStream(mCacheFile, true), "UTF-8");
+            writer.write(formatEntry(path, entry));
+        } catch (IOException e) {
+            CLog.w("Failed to record digest in %s: %s", mCacheFile, e.toString());
+        } finally {
+            StreamUtil.closeStream(writer);
+        }
+    }
+
+    private static String formatEntry(String path, Entry entry) {
+        return String.format("%s\t%d\t%d\t%s\n", entry.mDigest, entry.mSize, entry.mLastModified,
+                path);
+    }
+
+    /**
+     * Load the entries of the cache file. Later entries for a path replace earlier ones, and
+     * malformed lines, e.g. from an interrupted write, are skipped. The file is compacted when
+     * most of its lines are replaced entries.
+     */
+    private void load() {
+        if (!mCacheFile.exists()) {
+            return;
+        }
+        int numLines = 0;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mCacheFile),
+                    "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                numLines++;
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 4 || fields[0].length() != 40) {
+                    continue;
+                }
+                try {
+                    mEntries.put(fields[3], new Entry(Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), fields[0]));
+                } catch (NumberFormatException e) {
+                    // skip the malformed line
+                }
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to read digests from %s: %s", mCacheFile, e.toString());
+        } finally {
+            StreamUtil.closeStream(reader);
+        }
+        if (numLines > 2 * mEntries.size() + 100) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the cache file with only the current entries.
+     */
+    private void compact() {
+        File tmpFile = null;
+        Writer writer = null;
+        try {
+            tmpFile = File.createTempFile(CACHE_FILE_NAME, ".tmp", mCacheFile.getParentFile());
+            writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                writer.write(formatEntry(entry.getKey(), entry.getValue()));
+            }
+            writer.close();
+            if (!tmpFile.renameTo(mCacheFile)) {
+                CLog.w("Failed to compact digest cache %s", mCacheFile);
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to compact digest cache %s: %s", mCacheFile, e.toString());
+        } finally {
+            StreamUtil.closeStream(writer);
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records where the time of an invocation goes, phase by phase.
+ * <p/>
+ * Each timed piece of work is a {@link Span}, started with {@link #start(String)} or
+ * {@link #start(String, String)} and ended in a finally block. The spans are aggregated per phase
+ * and, for spans of a test package, per package. Spans may be recorded from any thread.
+ * <p/>
+ * Along with the phase timings, {@link #toJson()} reports the host JVM's garbage collections
+ * since the profiler was created, its heap usage, and where the JVM supports it, the bytes
+ * allocated by the thread of each span.
+ */
+public class PhaseProfiler {
+
+    /** the name of the log a harness profile is reported to the result reporter with */
+    public static final String LOG_NAME = "phase_profile";
+
+    /** phases */
+    public static final String BUILD_TESTS = "buildTestsToRun";
+    public static final String PREREQUISITE_INSTALL = "prerequisiteInstall";
+    public static final String DEVICE_INFO = "collectDeviceInfo";
+    public static final String REBOOT = "reboot";
+    public static final String HOME_SCREEN = "changeToHomeScreen";
+    public static final String PACKAGE_RUN = "packageRun";
+    public static final String PACKAGE_INSTALL = "packageInstall";
+    public static final String TEST_COLLECTION = "instrumentationCollection";
+    public static final String TEST_EXECUTION = "testExecution";
+    public static final String UNINSTALL = "uninstall";
+    public static final String ARTIFACT_CAPTURE = "artifactCapture";
+    public static final String REPORT_WRITING = "reportWriting";
+
+    /** the aggregated spans of a phase */
+    private static class PhaseStats {
+        int mCount = 0;
+        long mTotalNs = 0;
+        long mMaxNs = 0;
+        /** the bytes allocated during the spans, or -1 if unknown */
+        long mAllocatedBytes = 0;
+
+        void add(long durationNs, long allocatedBytes) {
+            mCount++;
+            mTotalNs += durationNs;
+            mMaxNs = Math.max(mMaxNs, durationNs);
+            if (allocatedBytes < 0 || mAllocatedBytes < 0) {
+                mAllocatedBytes = -1;
+            } else {
+                mAllocatedBytes += allocatedBytes;
+            }
+        }
+    }
+
+    /**
+     * A timed piece of work. {@link #end()} must be called when the work is done.
+     */
+    public final class Span {
+        private final String mPhase;
+        private final String mPackageName;
+        private final long mStartNs;
+        private final long mStartAllocatedBytes;
+        private boolean mEnded = false;
+
+        private Span(String phase, String packageName) {
+            mPhase = phase;
+            mPackageName = packageName;
+            mStartAllocatedBytes = getThreadAllocatedBytes();
+            mStartNs = System.nanoTime();
+        }
+
+        /**
+         * End the span and record it. Calls after the first are ignored.
+         */
+        public void end() {
+            if (mEnded) {
+                return;
+            }
+            mEnded = true;
+            long durationNs = System.nanoTime() - mStartNs;
+            long allocatedBytes = -1;
+            if (mStartAllocatedBytes >= 0) {
+                allocatedBytes = getThreadAllocatedBytes() - mStartAllocatedBytes;
+            }
+            record(mPhase, mPackageName, durationNs, allocatedBytes);
+        }
+    }
+
+    private final long mStartNs = System.nanoTime();
+    /** the collection count and time of each garbage collector when the profiler was created */
+    private final Map<String, long[]> mGcBaseline = getGcCounters();
+    private final Map<String, PhaseStats> mPhases = new LinkedHashMap<String, PhaseStats>();
+    /** the phases of each test package, keyed by package name */
+    private final Map<String, Map<String, PhaseStats>> mPackages =
+            new LinkedHashMap<String, Map<String, PhaseStats>>();
+
+    /**
+     * Start a span of a phase that is not specific to a test package.
+     */
+    public Span start(String phase) {
+        return new Span(phase, null);
+    }
+
+    /**
+     * Start a span of a phase of a test package.
+     *
+     * @param phase the phase
+     * @param packageName the name of the test package, or <code>null</code>
+     */
+    public Span start(String phase, String packageName) {
+        return new Span(phase, packageName);
+    }
+
+    private synchronized void record(String phase, String packageName, long durationNs,
+            long allocatedBytes) {
+        getStats(mPhases, phase).add(durationNs, allocatedBytes);
+        if (packageName != null) {
+            Map<String, PhaseStats> packagePhases = mPackages.get(packageName);
+            if (packagePhases == null) {
+                packagePhases = new LinkedHashMap<String, PhaseStats>();
+                mPackages.put(packageName, packagePhases);
+            }
+            getStats(packagePhases, phase).add(durationNs, allocatedBytes);
+        }
+    }
+
+    private static PhaseStats getStats(Map<String, PhaseStats> phases, String phase) {
+        PhaseStats stats = phases.get(phase);
+        if (stats == null) {
+            stats = new PhaseStats();
+            phases.put(phase, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Get the number of recorded spans of a phase.
+     */
+    public synchronized int getCount(String phase) {
+        PhaseStats stats = mPhases.get(phase);
+        return stats == null ? 0 : stats.mCount;
+    }
+
+    /**
+     * Get the total time in ms of the recorded spans of a phase.
+     */
+    public synchronized long getTotalTimeMs(String phase) {
+        PhaseStats stats = mPhases.get(phase);
+        return stats == null ? 0 : stats.mTotalNs / 1000000;
+    }
+
+    /**
+     * Get the profile as a JSON object: the wall time since the profiler was created, the stats
+     * of each phase, overall and per test package, the garbage collections and the heap usage.
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"wallTimeMs\":");
+        json.append((System.nanoTime() - mStartNs) / 1000000);
+        json.append(",\"phases\":");
+        appendPhases(json, mPhases);
+        json.append(",\"packages\":{");
+        boolean first = true;
+        for (Map.Entry<String, Map<String, PhaseStats>> packageEntry : mPackages.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            appendString(json, packageEntry.getKey());
+            json.append(':');
+            appendPhases(json, packageEntry.getValue());
+        }
+        json.append("},\"gc\":{");
+        first = true;
+        for (Map.Entry<String, long[]> gcEntry : getGcCounters().entrySet()) {
+            long[] baseline = mGcBaseline.get(gcEntry.getKey());
+            long count = gcEntry.getValue()[0] - (baseline == null ? 0 : baseline[0]);
+            long timeMs = gcEntry.getValue()[1] - (baseline == null ? 0 : baseline[1]);
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            appendString(json, gcEntry.getKey());
+            json.append(String.format(":{\"count\":%d,\"timeMs\":%d}", count, timeMs));
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        json.append(String.format("},\"heap\":{\"usedBytes\":%d,\"committedBytes\":%d," +
+                "\"maxBytes\":%d}}", heap.getUsed(), heap.getCommitted(), heap.getMax()));
+        return json.toString();
+    }
+
+    private static void appendPhases(StringBuilder json, Map<String, PhaseStats> phases) {
+        json.append('{');
+        boolean first = true;
+        for (Map.Entry<String, PhaseStats> phaseEntry : phases.entrySet()) {
+            PhaseStats stats = phaseEntry.getValue();
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            appendString(json, phaseEntry.getKey());
+            json.append(String.format(":{\"count\":%d,\"totalMs\":%d,\"maxMs\":%d",
+                    stats.mCount, stats.mTotalNs / 1000000, stats.mMaxNs / 1000000));
+            if (stats.mAllocatedBytes >= 0) {
+                json.append(String.format(",\"allocatedBytes\":%d", stats.mAllocatedBytes));
+            }
+            json.append('}');
+        }
+        json.append('}');
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\');
+                json.append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int)c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * Get the collection count and time in ms of each garbage collector, keyed by name.
+     */
+    private static Map<String, long[]> getGcCounters() {
+        Map<String, long[]> counters = new LinkedHashMap<String, long[]>();
+        List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+        for (GarbageCollectorMXBean gcBean : gcBeans) {
+            counters.put(gcBean.getName(), new long[] {
+                    Math.max(gcBean.getCollectionCount(), 0),
+                    Math.max(gcBean.getCollectionTime(), 0)});
+        }
+        return counters;
+    }
+
+    /**
+     * Get the bytes allocated so far by the current thread, or -1 if the JVM does not track them.
+     */
+    private static long getThreadAllocatedBytes() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreadBean =
+                    (com.sun.management.ThreadMXBean)threadBean;
+            if (sunThreadBean.isThreadAllocatedMemorySupported() &&
+                    sunThreadBean.isThreadAllocatedMemoryEnabled()) {
+                return sunThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
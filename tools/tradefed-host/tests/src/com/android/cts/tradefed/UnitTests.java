@@ -15,19 +15,40 @@
  */
 package com.android.cts.tradefed;
 
+import com.android.cts.tradefed.device.ApkInstallCacheTest;
+import com.android.cts.tradefed.device.DeviceReadinessProbeTest;
+import com.android.cts.tradefed.device.LogcatRingBufferTest;
 import com.android.cts.tradefed.result.CtsXmlResultReporterTest;
 import com.android.cts.tradefed.result.DeviceInfoResultTest;
+import com.android.cts.tradefed.result.LogStoreTest;
+import com.android.cts.tradefed.result.ResultCacheTest;
+import com.android.cts.tradefed.result.ResultContainerTest;
+import com.android.cts.tradefed.result.ResultJournalTest;
+import com.android.cts.tradefed.result.SessionIndexTest;
+import com.android.cts.tradefed.result.SessionZipWriterTest;
 import com.android.cts.tradefed.result.TestPackageResultTest;
 import com.android.cts.tradefed.result.TestResultsTest;
+import com.android.cts.tradefed.result.TestStatusReaderTest;
 import com.android.cts.tradefed.result.TestSummaryXmlTest;
 import com.android.cts.tradefed.result.TestTest;
+import com.android.cts.tradefed.testtype.CollectedTestsCacheTest;
+import com.android.cts.tradefed.testtype.CtsBuildModelTest;
 import com.android.cts.tradefed.testtype.CtsTestTest;
+import com.android.cts.tradefed.testtype.FailureArtifactCaptureTest;
+import com.android.cts.tradefed.testtype.InstrumentationApkTestTest;
 import com.android.cts.tradefed.testtype.JarHostTestTest;
+import com.android.cts.tradefed.testtype.ListenerBusTest;
+import com.android.cts.tradefed.testtype.ResultFilterTest;
 import com.android.cts.tradefed.testtype.TestFilterTest;
+import com.android.cts.tradefed.testtype.TestIdRegistryTest;
 import com.android.cts.tradefed.testtype.TestPackageDefTest;
+import com.android.cts.tradefed.testtype.TestPackageQueueTest;
+import com.android.cts.tradefed.testtype.TestPackageRepoTest;
 import com.android.cts.tradefed.testtype.TestPackageXmlParserTest;
 import com.android.cts.tradefed.testtype.TestPlanTest;
 import com.android.cts.tradefed.testtype.WrappedGTestResultParserTest;
+import com.android.cts.tradefed.util.DigestCacheTest;
+import com.android.cts.tradefed.util.PhaseProfilerTest;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -43,22 +64,47 @@ public class UnitTests extends TestSuite {
     public UnitTests() {
         super();
 
+        // device package
+        addTestSuite(ApkInstallCacheTest.class);
+        addTestSuite(DeviceReadinessProbeTest.class);
+        addTestSuite(LogcatRingBufferTest.class);
+
         // result package
         addTestSuite(CtsXmlResultReporterTest.class);
         addTestSuite(DeviceInfoResultTest.class);
+        addTestSuite(LogStoreTest.class);
+        addTestSuite(ResultCacheTest.class);
+        addTestSuite(ResultContainerTest.class);
+        addTestSuite(ResultJournalTest.class);
+        addTestSuite(SessionIndexTest.class);
+        addTestSuite(SessionZipWriterTest.class);
         addTestSuite(TestPackageResultTest.class);
         addTestSuite(TestResultsTest.class);
+        addTestSuite(TestStatusReaderTest.class);
         addTestSuite(TestSummaryXmlTest.class);
         addTestSuite(TestTest.class);
 
         // testtype package
+        addTestSuite(CollectedTestsCacheTest.class);
+        addTestSuite(CtsBuildModelTest.class);
         addTestSuite(CtsTestTest.class);
+        addTestSuite(FailureArtifactCaptureTest.class);
+        addTestSuite(InstrumentationApkTestTest.class);
         addTestSuite(JarHostTestTest.class);
+        addTestSuite(ListenerBusTest.class);
+        addTestSuite(ResultFilterTest.class);
         addTestSuite(TestFilterTest.class);
+        addTestSuite(TestIdRegistryTest.class);
         addTestSuite(TestPackageDefTest.class);
+        addTestSuite(TestPackageQueueTest.class);
+        addTestSuite(TestPackageRepoTest.class);
         addTestSuite(TestPackageXmlParserTest.class);
         addTestSuite(TestPlanTest.class);
         addTestSuite(WrappedGTestResultParserTest.class);
+
+        // util package
+        addTestSuite(DigestCacheTest.class);
+        addTestSuite(PhaseProfilerTest.class);
     }
 
     public static Test suite() {
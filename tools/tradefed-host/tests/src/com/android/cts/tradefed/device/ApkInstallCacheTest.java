@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.device;
+
+import com.android.cts.tradefed.util.DigestCache;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.io.File;
+
+/**
+ * Unit tests for {@link ApkInstallCache}.
+ */
+public class ApkInstallCacheTest extends TestCase {
+
+    private static final String PACKAGE_NAME = "com.example.test";
+    /** the sha1sum of "hello" */
+    private static final String APK_DIGEST = "aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d";
+    private static final String QUERY_CMD = String.format(
+            "pm path %s; cat /data/local/tmp/cts-apk-cache/%s", PACKAGE_NAME, PACKAGE_NAME);
+    private static final String REMOVE_MARKER_CMD = String.format(
+            "rm /data/local/tmp/cts-apk-cache/%s", PACKAGE_NAME);
+    private static final String WRITE_MARKER_CMD = String.format(
+            "mkdir -p /data/local/tmp/cts-apk-cache; echo %s > /data/local/tmp/cts-apk-cache/%s",
+            APK_DIGEST, PACKAGE_NAME);
+    private static final String PACKAGE_PATH = String.format("package:/data/app/%s-1.apk\n",
+            PACKAGE_NAME);
+
+    private ITestDevice mMockDevice;
+    private File mApkFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        mApkFile = FileUtil.createTempFile("test", ".apk");
+        FileUtil.writeToFile("hello", mApkFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mApkFile.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Test that the install is skipped when the package is installed and its marker holds the
+     * apk's digest.
+     */
+    public void testInstallPackage_markerHit() throws DeviceNotAvailableException {
+        EasyMock.expect(mMockDevice.executeShellCommand(QUERY_CMD)).andReturn(
+                PACKAGE_PATH + APK_DIGEST + "\n");
+        EasyMock.replay(mMockDevice);
+        assertNull(createCache(false).installPackage(mApkFile, PACKAGE_NAME));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that the apk is installed when the marker holds the digest of another apk.
+     */
+    public void testInstallPackage_digestMismatch() throws DeviceNotAvailableException {
+        EasyMock.expect(mMockDevice.executeShellCommand(QUERY_CMD)).andReturn(
+                PACKAGE_PATH + "2aae6c35c94fcfb415dbe95f408b9ce91ee846ed\n");
+        expectInstall(null);
+        EasyMock.expect(mMockDevice.executeShellCommand(WRITE_MARKER_CMD)).andReturn("");
+        EasyMock.replay(mMockDevice);
+        assertNull(createCache(false).installPackage(mApkFile, PACKAGE_NAME));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that the apk is installed when the package is missing, even if its marker was left
+     * behind.
+     */
+    public void testInstallPackage_missingPackage() throws DeviceNotAvailableException {
+        EasyMock.expect(mMockDevice.executeShellCommand(QUERY_CMD)).andReturn(APK_DIGEST + "\n");
+        expectInstall(null);
+        EasyMock.expect(mMockDevice.executeShellCommand(WRITE_MARKER_CMD)).andReturn("");
+        EasyMock.replay(mMockDevice);
+        assertNull(createCache(false).installPackage(mApkFile, PACKAGE_NAME));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that no marker is written when the install fails.
+     */
+    public void testInstallPackage_failed() throws DeviceNotAvailableException {
+        EasyMock.expect(mMockDevice.executeShellCommand(QUERY_CMD)).andReturn("");
+        expectInstall("INSTALL_FAILED_INSUFFICIENT_STORAGE");
+        EasyMock.replay(mMockDevice);
+        assertEquals("INSTALL_FAILED_INSUFFICIENT_STORAGE",
+                createCache(false).installPackage(mApkFile, PACKAGE_NAME));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that an invalidating cache reinstalls the package the first time without querying
+     * the device, and trusts its own install afterwards.
+     */
+    public void testInstallPackage_invalidate() throws DeviceNotAvailableException {
+        expectInstall(null);
+        EasyMock.expect(mMockDevice.executeShellCommand(WRITE_MARKER_CMD)).andReturn("");
+        EasyMock.expect(mMockDevice.executeShellCommand(QUERY_CMD)).andReturn(
+                PACKAGE_PATH + APK_DIGEST + "\n");
+        EasyMock.replay(mMockDevice);
+        ApkInstallCache cache = createCache(true);
+        assertNull(cache.installPackage(mApkFile, PACKAGE_NAME));
+        assertNull(cache.installPackage(mApkFile, PACKAGE_NAME));
+        EasyMock.verify(mMockDevice);
+    }
+
+    private ApkInstallCache createCache(boolean invalidate) {
+        return new ApkInstallCache(mMockDevice, invalidate, DigestCache.getCache(null));
+    }
+
+    private void expectInstall(String result) throws DeviceNotAvailableException {
+        EasyMock.expect(mMockDevice.executeShellCommand(REMOVE_MARKER_CMD)).andReturn("");
+        EasyMock.expect(mMockDevice.installPackage(mApkFile, true)).andReturn(result);
+    }
+}
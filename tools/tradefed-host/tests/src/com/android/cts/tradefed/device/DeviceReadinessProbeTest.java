@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.device;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.IRunUtil;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+/**
+ * Unit tests for {@link DeviceReadinessProbe}.
+ */
+public class DeviceReadinessProbeTest extends TestCase {
+
+    private static final String BOOT_COMPLETED_PROP = "sys.boot_completed";
+    private static final String PM_CMD = "pm path android";
+    private static final String WINDOW_CMD = "dumpsys window windows";
+    private static final String CPU_CMD = "cat /proc/stat";
+
+    private static final String PM_READY = "package:/system/framework/framework-res.apk\n";
+    private static final String LAUNCHER_FOCUSED = "WINDOW MANAGER WINDOWS\n" +
+            "  mCurrentFocus=Window{41b2 u0 com.android.launcher/com.android.launcher2.Launcher}\n";
+    /** cpu totals of 1000, 800 of them idle */
+    private static final String CPU_STAT_1 = "cpu  100 0 100 800 0 0 0 0 0 0\n" +
+            "cpu0 100 0 100 800 0 0 0 0 0 0\n";
+    /** 98% idle since {@link #CPU_STAT_1} */
+    private static final String CPU_STAT_IDLE = "cpu  110 0 110 1780 0 0 0 0 0 0\n";
+    /** 10% idle since {@link #CPU_STAT_IDLE} */
+    private static final String CPU_STAT_BUSY = "cpu  600 0 500 1880 0 0 0 0 0 0\n";
+
+    private ITestDevice mMockDevice;
+    private IRunUtil mMockRunUtil;
+    private DeviceReadinessProbe mProbe;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        mMockRunUtil = EasyMock.createMock(IRunUtil.class);
+        mProbe = new DeviceReadinessProbe(mMockDevice) {
+            @Override
+            IRunUtil getRunUtil() {
+                return mMockRunUtil;
+            }
+        };
+    }
+
+    /**
+     * Test checking the boot completed property.
+     */
+    public void testIsBootCompleted() throws DeviceNotAvailableException {
+        EasyMock.expect(mMockDevice.getProperty(BOOT_COMPLETED_PROP)).andReturn(null);
+        EasyMock.expect(mMockDevice.getProperty(BOOT_COMPLETED_PROP)).andReturn("0");
+        EasyMock.expect(mMockDevice.getProperty(BOOT_COMPLETED_PROP)).andReturn("1\n");
+        EasyMock.replay(mMockDevice);
+        assertFalse(mProbe.isBootCompleted());
+        assertFalse(mProbe.isBootCompleted());
+        assertTrue(mProbe.isBootCompleted());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test checking that the package manager responds.
+     */
+    public void testIsPackageManagerReady() throws DeviceNotAvailableException {
+        EasyMock.expect(mMockDevice.executeShellCommand(PM_CMD)).andReturn(
+                "Error: Could not access the Package Manager.  Is the system running?\n");
+        EasyMock.expect(mMockDevice.executeShellCommand(PM_CMD)).andReturn(PM_READY);
+        EasyMock.replay(mMockDevice);
+        assertFalse(mProbe.isPackageManagerReady());
+        assertTrue(mProbe.isPackageManagerReady());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test checking the focused window, which must exist and not be an error dialog.
+     */
+    public void testIsWindowFocused() throws DeviceNotAvailableException {
+        EasyMock.expect(mMockDevice.executeShellCommand(WINDOW_CMD)).andReturn(
+                "WINDOW MANAGER WINDOWS\n");
+        EasyMock.expect(mMockDevice.executeShellCommand(WINDOW_CMD)).andReturn(
+                "  mCurrentFocus=null\n");
+        EasyMock.expect(mMockDevice.executeShellCommand(WINDOW_CMD)).andReturn(
+                "  mCurrentFocus=Window{41c3 u0 Application Not Responding: com.android.phone}\n");
+        EasyMock.expect(mMockDevice.executeShellCommand(WINDOW_CMD)).andReturn(LAUNCHER_FOCUSED);
+        EasyMock.replay(mMockDevice);
+        assertFalse(mProbe.isWindowFocused());
+        assertFalse(mProbe.isWindowFocused());
+        assertFalse(mProbe.isWindowFocused());
+        assertTrue(mProbe.isWindowFocused());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that the CPU is settled once it is mostly idle between two samples.
+     */
+    public void testIsCpuSettled() throws DeviceNotAvailableException {
+        EasyMock.expect(mMockDevice.executeShellCommand(CPU_CMD)).andReturn(CPU_STAT_1);
+        EasyMock.expect(mMockDevice.executeShellCommand(CPU_CMD)).andReturn(CPU_STAT_IDLE);
+        EasyMock.expect(mMockDevice.executeShellCommand(CPU_CMD)).andReturn(CPU_STAT_BUSY);
+        EasyMock.replay(mMockDevice);
+        // usage can only be measured from the second sample on
+        assertFalse(mProbe.isCpuSettled());
+        assertTrue(mProbe.isCpuSettled());
+        assertFalse(mProbe.isCpuSettled());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that an unreadable or malformed /proc/stat does not block readiness.
+     */
+    public void testIsCpuSettled_unreadable() throws DeviceNotAvailableException {
+        EasyMock.expect(mMockDevice.executeShellCommand(CPU_CMD)).andReturn(
+                "/proc/stat: Permission denied\n");
+        EasyMock.expect(mMockDevice.executeShellCommand(CPU_CMD)).andReturn("cpu  100 abc 200\n");
+        EasyMock.replay(mMockDevice);
+        assertTrue(mProbe.isCpuSettled());
+        assertTrue(mProbe.isCpuSettled());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that the device is ready once every check passes, polling until the CPU usage can be
+     * measured.
+     */
+    public void testWaitForReady() throws DeviceNotAvailableException {
+        EasyMock.expect(mMockDevice.executeShellCommand(CPU_CMD)).andReturn(CPU_STAT_1);
+        EasyMock.expect(mMockDevice.executeShellCommand(CPU_CMD)).andReturn(CPU_STAT_IDLE);
+        EasyMock.expect(mMockDevice.getProperty(BOOT_COMPLETED_PROP)).andStubReturn("1");
+        EasyMock.expect(mMockDevice.executeShellCommand(PM_CMD)).andStubReturn(PM_READY);
+        EasyMock.expect(mMockDevice.executeShellCommand(WINDOW_CMD)).andStubReturn(
+                LAUNCHER_FOCUSED);
+        mMockRunUtil.sleep(EasyMock.anyLong());
+        EasyMock.replay(mMockDevice, mMockRunUtil);
+        assertTrue(mProbe.waitForReady(60 * 1000));
+        EasyMock.verify(mMockDevice, mMockRunUtil);
+    }
+
+    /**
+     * Test that waiting gives up once the timeout expires, e.g. when boot never completes.
+     */
+    public void testWaitForReady_timeout() throws DeviceNotAvailableException {
+        EasyMock.expect(mMockDevice.executeShellCommand(CPU_CMD)).andStubReturn("");
+        EasyMock.expect(mMockDevice.getProperty(BOOT_COMPLETED_PROP)).andStubReturn("0");
+        mMockRunUtil.sleep(EasyMock.anyLong());
+        EasyMock.expectLastCall().andStubAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                Thread.sleep(10);
+                return null;
+            }
+        });
+        EasyMock.replay(mMockDevice, mMockRunUtil);
+        long startTime = System.currentTimeMillis();
+        assertFalse(mProbe.waitForReady(100));
+        assertTrue(System.currentTimeMillis() - startTime >= 100);
+        EasyMock.verify(mMockDevice, mMockRunUtil);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.device;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.IRunUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link LogcatRingBuffer}.
+ */
+public class LogcatRingBufferTest extends TestCase {
+
+    private static final String LINE1 = "01-23 12:34:56.100  100  100 I Tag: first";
+    private static final String LINE2 = "01-23 12:34:57.200  100  100 I Tag: second";
+    private static final String LINE3 = "01-23 12:34:57.200  100  101 I Tag: third";
+    private static final String LINE4 = "01-23 12:34:58.300  100  100 I Tag: fourth";
+
+    private ITestDevice mMockDevice;
+    private IRunUtil mMockRunUtil;
+    private LogcatRingBuffer mBuffer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createNiceMock(ITestDevice.class);
+        mMockRunUtil = EasyMock.createNiceMock(IRunUtil.class);
+        mBuffer = createBuffer(1024);
+    }
+
+    /**
+     * Test that the log between two marks is returned, without the lines received before or
+     * after.
+     */
+    public void testGetLog() throws IOException {
+        mBuffer.addLines(new String[] {"a", "b"});
+        long startMark = mBuffer.mark();
+        mBuffer.addLines(new String[] {"c", "d"});
+        long endMark = mBuffer.mark();
+        mBuffer.addLines(new String[] {"e"});
+        assertEquals(2, startMark);
+        assertEquals(4, endMark);
+        assertEquals("c\nd\n", getLog(startMark, endMark, 1024));
+        assertEquals("", getLog(endMark, endMark, 1024));
+    }
+
+    /**
+     * Test that a log larger than the requested size keeps its oldest lines.
+     */
+    public void testGetLog_trimmed() throws IOException {
+        mBuffer.addLines(new String[] {"aaaa", "bbbb", "cccc"});
+        assertEquals("aaaa\nbbbb\n", getLog(0, mBuffer.mark(), 12));
+    }
+
+    /**
+     * Test that the oldest lines are dropped when the buffer is full, and that marks keep
+     * counting.
+     */
+    public void testAddLines_full() throws IOException {
+        mBuffer = createBuffer(10);
+        mBuffer.addLines(new String[] {"aaaa", "bbbb", "cccc"});
+        assertEquals(3, mBuffer.mark());
+        assertEquals("bbbb\ncccc\n", getLog(0, mBuffer.mark(), 1024));
+        assertEquals("cccc\n", getLog(2, mBuffer.mark(), 1024));
+    }
+
+    /**
+     * Test that a reconnected stream skips the lines it already received, including the ones
+     * with the timestamp of the last received line.
+     */
+    public void testStreamLogcat_reconnect() throws Exception {
+        expectLogcat(new OutputAnswer(false, LINE1, LINE2));
+        expectLogcat(new OutputAnswer(true, "--------- beginning of main", LINE1, LINE2, LINE3,
+                LINE4));
+        EasyMock.replay(mMockDevice, mMockRunUtil);
+        streamUntilEnded();
+        EasyMock.verify(mMockDevice);
+        assertEquals(String.format("%s\n%s\n%s\n%s\n", LINE1, LINE2, LINE3, LINE4),
+                getLog(0, mBuffer.mark(), 1024));
+    }
+
+    /**
+     * Test that the lines received before are skipped across a year boundary, where their
+     * timestamps are after the new lines'.
+     */
+    public void testStreamLogcat_reconnectNewYear() throws Exception {
+        String line1 = "12-31 23:59:59.100  100  100 I Tag: last year";
+        String line2 = "01-01 00:00:00.200  100  100 I Tag: this year";
+        expectLogcat(new OutputAnswer(false, line1));
+        expectLogcat(new OutputAnswer(true, line1, line2));
+        EasyMock.replay(mMockDevice, mMockRunUtil);
+        streamUntilEnded();
+        EasyMock.verify(mMockDevice);
+        assertEquals(String.format("%s\n%s\n", line1, line2), getLog(0, mBuffer.mark(), 1024));
+    }
+
+    /**
+     * Test that streaming is given up when logcat keeps ending without output, e.g. when it
+     * fails with its usage message.
+     */
+    public void testStreamLogcat_failed() throws Exception {
+        mMockDevice.executeShellCommand(EasyMock.eq("logcat -v threadtime"),
+                (IShellOutputReceiver)EasyMock.anyObject(), EasyMock.eq(0), EasyMock.eq(0));
+        EasyMock.expectLastCall().andAnswer(new OutputAnswer(false,
+                "Unrecognized Option", "Usage: logcat [options] [filterspecs]")).times(3);
+        EasyMock.replay(mMockDevice, mMockRunUtil);
+        streamUntilEnded();
+        EasyMock.verify(mMockDevice);
+        assertEquals(0, mBuffer.mark());
+    }
+
+    /**
+     * An {@link IAnswer} that sends the given lines to the receiver of a shell command.
+     */
+    private static class OutputAnswer implements IAnswer<Object> {
+        private final boolean mDisconnect;
+        private final String[] mOutputLines;
+
+        /**
+         * @param disconnect if <code>true</code>, the device becomes unavailable after the output
+         * @param outputLines the lines to output
+         */
+        OutputAnswer(boolean disconnect, String... outputLines) {
+            mDisconnect = disconnect;
+            mOutputLines = outputLines;
+        }
+
+        @Override
+        public Object answer() throws Throwable {
+            IShellOutputReceiver receiver = (IShellOutputReceiver)EasyMock.getCurrentArguments()[1];
+            for (String line : mOutputLines) {
+                byte[] data = (line + "\n").getBytes("UTF-8");
+                receiver.addOutput(data, 0, data.length);
+            }
+            receiver.flush();
+            if (mDisconnect) {
+                throw new DeviceNotAvailableException();
+            }
+            return null;
+        }
+    }
+
+    private void expectLogcat(OutputAnswer answer) throws DeviceNotAvailableException {
+        mMockDevice.executeShellCommand(EasyMock.eq("logcat -v threadtime"),
+                (IShellOutputReceiver)EasyMock.anyObject(), EasyMock.eq(0), EasyMock.eq(0));
+        EasyMock.expectLastCall().andAnswer(answer);
+    }
+
+    /**
+     * Start streaming, and wait for the stream to end.
+     */
+    private void streamUntilEnded() throws InterruptedException {
+        mBuffer.start();
+        long startTime = System.currentTimeMillis();
+        while (mBuffer.isStreaming() && System.currentTimeMillis() - startTime < 5 * 1000) {
+            Thread.sleep(10);
+        }
+        assertFalse(mBuffer.isStreaming());
+    }
+
+    private LogcatRingBuffer createBuffer(int maxBytes) {
+        return new LogcatRingBuffer(mMockDevice, maxBytes) {
+            @Override
+            IRunUtil getRunUtil() {
+                return mMockRunUtil;
+            }
+        };
+    }
+
+    private String getLog(long startMark, long endMark, int maxBytes) throws IOException {
+        InputStreamSource source = mBuffer.getLog(startMark, endMark, maxBytes);
+        try {
+            return StreamUtil.getStringFromStream(source.createInputStream());
+        } finally {
+            source.cancel();
+        }
+    }
+}
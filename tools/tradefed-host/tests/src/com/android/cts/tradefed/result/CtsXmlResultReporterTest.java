@@ -15,10 +15,13 @@
  */
 package com.android.cts.tradefed.result;
 
+import com.android.cts.tradefed.util.PhaseProfiler;
 import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.build.IFolderBuildInfo;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.result.XmlResultReporter;
 import com.android.tradefed.util.FileUtil;
 
@@ -152,6 +155,30 @@ public class CtsXmlResultReporterTest extends TestCase {
         assertTrue(output.contains(failureTag));
     }
 
+    /**
+     * Test that the profiles reported by the tests are written to the profile file, along with
+     * the reporter's own, instead of being saved as logs.
+     */
+    public void testPhaseProfile() throws IOException {
+        final String harnessProfile = "{\"wallTimeMs\":1}";
+        mResultReporter.invocationStarted(mMockBuild);
+        mResultReporter.testLog(PhaseProfiler.LOG_NAME, LogDataType.TEXT,
+                new ByteArrayInputStreamSource(harnessProfile.getBytes()));
+        mResultReporter.invocationEnded(1);
+        File profileFile = null;
+        for (File sessionDir : mReportDir.listFiles()) {
+            File file = new File(sessionDir, CtsXmlResultReporter.PROFILE_FILE_NAME);
+            if (file.exists()) {
+                profileFile = file;
+            }
+        }
+        assertNotNull(profileFile);
+        String profile = FileUtil.readStringFromFile(profileFile);
+        assertTrue(profile, profile.startsWith(String.format("{\"harness\":[%s],\"report\":",
+                harnessProfile)));
+        assertTrue(profile, profile.contains("\"reportWriting\":{\"count\":1,"));
+    }
+
     /**
      * Gets the output produced, stripping it of extraneous whitespace characters.
      */
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Unit tests for {@link LogStore}.
+ */
+public class LogStoreTest extends TestCase {
+
+    private File mLogDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLogDir = FileUtil.createTempDir("logs");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mLogDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that overlapping text logs share chunks, and are read back as they were saved.
+     */
+    public void testSave_text() throws Exception {
+        String log1 = createLog(0, 2000);
+        String log2 = createLog(100, 2100);
+        LogStore store = new LogStore(mLogDir);
+        String name1 = store.save("logcat-testFoo", LogDataType.TEXT, log1.getBytes("UTF-8"));
+        long size = getObjectsSize();
+        String name2 = store.save("logcat-testBar", LogDataType.TEXT, log2.getBytes("UTF-8"));
+        // most of the second log is shared with the first
+        assertTrue(getObjectsSize() - size < size / 2);
+
+        assertEquals(log1, readLog(store, name1));
+        assertEquals(log2, readLog(store, name2));
+        // the logs are found again when the store is reopened
+        store = new LogStore(mLogDir);
+        assertEquals(2, store.getLogNames().size());
+        assertEquals(log2, readLog(store, name2));
+    }
+
+    /**
+     * Test that the stored logs are extracted to files of their own.
+     */
+    public void testExtractLogs() throws Exception {
+        String log = createLog(0, 100);
+        LogStore store = new LogStore(mLogDir);
+        String logName = store.save("logcat-testFoo", LogDataType.TEXT, log.getBytes("UTF-8"));
+        File destDir = new File(mLogDir, "extracted");
+        assertEquals(1, LogStore.extractLogs(mLogDir, destDir));
+        assertEquals(log, FileUtil.readStringFromFile(new File(destDir, logName)));
+    }
+
+    /**
+     * Test that screenshots with the same pixels are stored once.
+     */
+    public void testSave_screenshot() throws Exception {
+        LogStore store = new LogStore(mLogDir);
+        store.save("screenshot-testFoo", LogDataType.PNG, createImage(0xff0000));
+        store.save("screenshot-testBar", LogDataType.PNG, createImage(0xff0000));
+        assertEquals(1, getNumObjects());
+        store.save("screenshot-testBaz", LogDataType.PNG, createImage(0x00ff00));
+        assertEquals(2, getNumObjects());
+    }
+
+    private String createLog(int firstLine, int lastLine) {
+        StringBuilder log = new StringBuilder();
+        for (int i = firstLine; i < lastLine; i++) {
+            log.append(String.format("01-01 00:00:%02d.000  %d  %d I Test: line %d\n", i % 60,
+                    100 + i % 7, 200 + i % 13, i));
+        }
+        return log.toString();
+    }
+
+    private byte[] createImage(int rgb) throws Exception {
+        BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < 4; x++) {
+            for (int y = 0; y < 4; y++) {
+                image.setRGB(x, y, rgb);
+            }
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", data);
+        return data.toByteArray();
+    }
+
+    private long getObjectsSize() {
+        long size = 0;
+        for (File object : new File(mLogDir, LogStore.OBJECTS_DIR_NAME).listFiles()) {
+            size += object.length();
+        }
+        return size;
+    }
+
+    private int getNumObjects() {
+        return new File(mLogDir, LogStore.OBJECTS_DIR_NAME).list().length;
+    }
+
+    private String readLog(LogStore store, String logName) throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        store.copyLog(logName, log);
+        return log.toString("UTF-8");
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ResultCache}.
+ */
+public class ResultCacheTest extends TestCase {
+
+    private static final String FINGERPRINT = "fingerprint";
+    private static final String DIGEST = "digest";
+    private static final TestIdentifier PASS_TEST = new TestIdentifier("com.example.Foo", "pass");
+    private static final TestIdentifier FAIL_TEST = new TestIdentifier("com.example.Foo", "fail");
+
+    private ITestResultRepo mMockRepo;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockRepo = EasyMock.createMock(ITestResultRepo.class);
+        List<ITestSummary> summaries = new ArrayList<ITestSummary>();
+        summaries.add(EasyMock.createMock(ITestSummary.class));
+        EasyMock.expect(mMockRepo.getSummaries()).andStubReturn(summaries);
+        EasyMock.expect(mMockRepo.getBuildFingerprint(0)).andStubReturn(FINGERPRINT);
+        Map<String, Collection<TestIdentifier>> passedTests =
+                new HashMap<String, Collection<TestIdentifier>>();
+        passedTests.put(DIGEST, Collections.singletonList(PASS_TEST));
+        EasyMock.expect(mMockRepo.getPassedTestsByDigest(0)).andStubReturn(passedTests);
+        EasyMock.expect(mMockRepo.getReportDir(0)).andStubReturn(new File("session"));
+        EasyMock.replay(mMockRepo);
+    }
+
+    /**
+     * Test that the session is found when all the tests to run passed.
+     */
+    public void testLookup_hit() {
+        ResultCache cache = new ResultCache(mMockRepo, 5);
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        tests.add(PASS_TEST);
+        assertEquals("session", cache.lookup(DIGEST, FINGERPRINT, tests));
+    }
+
+    /**
+     * Test that nothing is found when a test to run failed, or the package or build changed.
+     */
+    public void testLookup_miss() {
+        ResultCache cache = new ResultCache(mMockRepo, 5);
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        tests.add(PASS_TEST);
+        assertNull(cache.lookup("otherdigest", FINGERPRINT, tests));
+        assertNull(cache.lookup(DIGEST, "otherfingerprint", tests));
+        tests.add(FAIL_TEST);
+        assertNull(cache.lookup(DIGEST, FINGERPRINT, tests));
+    }
+}
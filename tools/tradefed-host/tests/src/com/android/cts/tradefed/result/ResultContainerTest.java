@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Unit tests for {@link ResultContainer}.
+ */
+public class ResultContainerTest extends TestCase {
+
+    private static final String HEAD = "<TestResult>";
+    private static final String PKG_A =
+        "<TestPackage name=\"a\" appPackageName=\"pkgA\" digest=\"dig\" >" +
+            "<TestSuite name=\"com\" >" +
+                "<TestCase name=\"FooTest\" >" +
+                    "<Test name=\"testFoo\" result=\"pass\" />" +
+                "</TestCase>" +
+            "</TestSuite>" +
+        "</TestPackage>";
+    private static final String PKG_B =
+        "<TestPackage name=\"b\" appPackageName=\"pkgB\" digest=\"dig\" />";
+    private static final String TAIL = "</TestResult>";
+
+    private File mContainerFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContainerFile = FileUtil.createTempFile("result", ".ctsr");
+        ResultContainer.Writer writer =
+                new ResultContainer.Writer(new FileOutputStream(mContainerFile));
+        writer.write(HEAD.getBytes("UTF-8"));
+        writer.startBlock("pkgA");
+        writer.write(PKG_A.getBytes("UTF-8"));
+        writer.startBlock("pkgB");
+        writer.write(PKG_B.getBytes("UTF-8"));
+        writer.startBlock("");
+        writer.write(TAIL.getBytes("UTF-8"));
+        writer.close();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContainerFile.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Test that the blocks of a container read back as the XML they were written from.
+     */
+    public void testOpenXml() throws Exception {
+        ResultContainer container = new ResultContainer(mContainerFile);
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        InputStream xmlStream = container.openXml();
+        try {
+            StreamUtil.copyStreams(xmlStream, xml);
+        } finally {
+            xmlStream.close();
+        }
+        assertEquals(HEAD + PKG_A + PKG_B + TAIL, xml.toString("UTF-8"));
+    }
+
+    /**
+     * Test converting a container to plain XML.
+     */
+    public void testWriteXml() throws Exception {
+        File xmlFile = FileUtil.createTempFile("result", ".xml");
+        try {
+            new ResultContainer(mContainerFile).writeXml(xmlFile);
+            assertEquals(HEAD + PKG_A + PKG_B + TAIL, FileUtil.readStringFromFile(xmlFile));
+        } finally {
+            xmlFile.delete();
+        }
+    }
+
+    /**
+     * Test reading a single package from a container.
+     */
+    public void testReadPackage() throws Exception {
+        ResultContainer container = new ResultContainer(mContainerFile);
+        TestPackageResult pkgResult = container.readPackage("pkgA");
+        assertEquals("pkgA", pkgResult.getAppPackageName());
+        assertEquals(1, pkgResult.countTests(CtsTestStatus.PASS));
+        assertNotNull(container.readPackage("pkgB"));
+        assertNull(container.readPackage("pkgC"));
+    }
+
+    /**
+     * Test that a container without its index is rejected.
+     */
+    public void testOpen_truncated() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(mContainerFile, "rw");
+        try {
+            raf.setLength(raf.length() - 4);
+        } finally {
+            raf.close();
+        }
+        try {
+            new ResultContainer(mContainerFile);
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
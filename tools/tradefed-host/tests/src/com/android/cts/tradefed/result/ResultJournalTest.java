@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ResultJournal}.
+ */
+public class ResultJournalTest extends TestCase {
+
+    private static final TestIdentifier TEST = new TestIdentifier("com.example.Foo", "bar");
+
+    private File mReportDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mReportDir = FileUtil.createTempDir("journal");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mReportDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that written events are read back, including fields with separators and nulls.
+     */
+    public void testWriteRead() throws IOException {
+        ResultJournal journal = new ResultJournal(mReportDir);
+        journal.writeSessionStarted("plan", "start", null);
+        journal.writeTestStarted(TEST, 1000);
+        journal.writeTestFailed(TEST, "line1\n\tat line2\\");
+        Map<String, String> metrics = new HashMap<String, String>();
+        metrics.put("key", "value");
+        journal.writeRunEnded(metrics);
+        journal.close();
+
+        List<String[]> events = ResultJournal.readEvents(mReportDir);
+        assertEquals(4, events.size());
+        assertEquals(ResultJournal.SESSION_STARTED, events.get(0)[0]);
+        assertNull(events.get(0)[3]);
+        assertEquals(TEST.getTestName(), events.get(1)[2]);
+        assertEquals("line1\n\tat line2\\", events.get(2)[3]);
+        assertEquals(ResultJournal.RUN_ENDED, events.get(3)[0]);
+        assertEquals("key", events.get(3)[1]);
+        assertEquals("value", events.get(3)[2]);
+    }
+
+    /**
+     * Test that a partially written last event is ignored.
+     */
+    public void testRead_partialEvent() throws IOException {
+        ResultJournal journal = new ResultJournal(mReportDir);
+        journal.writeRunStarted("run", 1);
+        journal.close();
+        FileOutputStream stream = new FileOutputStream(ResultJournal.getJournalFile(mReportDir),
+                true);
+        stream.write("testStarted\tcom.exa".getBytes("UTF-8"));
+        stream.close();
+
+        List<String[]> events = ResultJournal.readEvents(mReportDir);
+        assertEquals(1, events.size());
+        assertEquals(ResultJournal.RUN_STARTED, events.get(0)[0]);
+    }
+}
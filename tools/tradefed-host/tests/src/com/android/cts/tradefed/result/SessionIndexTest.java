@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link SessionIndex}.
+ */
+public class SessionIndexTest extends TestCase {
+
+    private File mResultsDir;
+    private File mSessionDir;
+    private File mResultFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResultsDir = FileUtil.createTempDir("results");
+        mSessionDir = new File(mResultsDir, "2013.01.01_00.00.00");
+        mSessionDir.mkdir();
+        mResultFile = new File(mSessionDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME);
+        FileUtil.writeToFile(TestSummaryXmlTest.TEST_DATA, mResultFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mResultsDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that a saved summary is read back from the index.
+     */
+    public void testGetSummary_indexed() throws IOException {
+        new SessionIndex(mResultsDir).update(mSessionDir);
+        assertTrue(new File(mResultsDir, SessionIndex.INDEX_FILE_NAME).exists());
+
+        // change the result file without changing its size or modification time, so the
+        // original summary can only come from the index
+        long modified = mResultFile.lastModified();
+        FileUtil.writeToFile(TestSummaryXmlTest.TEST_DATA.replace("failed=\"1\"",
+                "failed=\"7\""), mResultFile);
+        mResultFile.setLastModified(modified);
+        ITestSummary summary = new SessionIndex(mResultsDir).getSummary(3, mSessionDir);
+        assertEquals(3, summary.getId());
+        assertEquals(mSessionDir.getName(), summary.getTimestamp());
+        assertEquals(5, summary.getNumFailed());
+        assertEquals(2, summary.getNumIncomplete());
+        assertEquals(3, summary.getNumPassed());
+    }
+
+    /**
+     * Test that the summary is parsed again when the result file has changed.
+     */
+    public void testGetSummary_changed() throws IOException {
+        new SessionIndex(mResultsDir).update(mSessionDir);
+        FileUtil.writeToFile("<TestResult><Summary failed=\"0\" notExecuted=\"0\" " +
+                "pass=\"10\" timeout=\"0\"/></TestResult>", mResultFile);
+        ITestSummary summary = new SessionIndex(mResultsDir).getSummary(0, mSessionDir);
+        assertEquals(0, summary.getNumFailed());
+        assertEquals(10, summary.getNumPassed());
+    }
+
+    /**
+     * Test that an index that is up to date is not saved, so the lock is not even taken.
+     */
+    public void testSave_unchanged() throws IOException {
+        new SessionIndex(mResultsDir).update(mSessionDir);
+        File lockFile = new File(mResultsDir, SessionIndex.LOCK_FILE_NAME);
+        lockFile.delete();
+
+        SessionIndex index = new SessionIndex(mResultsDir);
+        index.getSummary(0, mSessionDir);
+        index.save();
+        assertFalse(lockFile.exists());
+    }
+
+    /**
+     * Test that the entries of deleted sessions are dropped from the index.
+     */
+    public void testSave_deletedSession() throws IOException {
+        File otherSessionDir = new File(mResultsDir, "2013.01.02_00.00.00");
+        otherSessionDir.mkdir();
+        FileUtil.writeToFile(TestSummaryXmlTest.TEST_DATA,
+                new File(otherSessionDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME));
+        new SessionIndex(mResultsDir).update(mSessionDir);
+        new SessionIndex(mResultsDir).update(otherSessionDir);
+        FileUtil.recursiveDelete(otherSessionDir);
+
+        new SessionIndex(mResultsDir).save();
+        String indexContents = FileUtil.readStringFromFile(
+                new File(mResultsDir, SessionIndex.INDEX_FILE_NAME));
+        assertTrue(indexContents.contains(mSessionDir.getName()));
+        assertFalse(indexContents.contains(otherSessionDir.getName()));
+    }
+
+    /**
+     * Test that two indexes loaded before either was saved do not lose each other's entries.
+     */
+    public void testUpdate_concurrent() throws IOException {
+        File otherSessionDir = new File(mResultsDir, "2013.01.02_00.00.00");
+        otherSessionDir.mkdir();
+        FileUtil.writeToFile(TestSummaryXmlTest.TEST_DATA,
+                new File(otherSessionDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME));
+        SessionIndex index = new SessionIndex(mResultsDir);
+        SessionIndex otherIndex = new SessionIndex(mResultsDir);
+        index.update(mSessionDir);
+        otherIndex.update(otherSessionDir);
+
+        String indexContents = FileUtil.readStringFromFile(
+                new File(mResultsDir, SessionIndex.INDEX_FILE_NAME));
+        assertTrue(indexContents.contains(mSessionDir.getName()));
+        assertTrue(indexContents.contains(otherSessionDir.getName()));
+    }
+}
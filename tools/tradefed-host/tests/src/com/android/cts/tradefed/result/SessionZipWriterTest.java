@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Unit tests for {@link SessionZipWriter}.
+ */
+public class SessionZipWriterTest extends TestCase {
+
+    private File mTmpDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = FileUtil.createTempDir("zip");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTmpDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that entries added from files, directories and data can be read back from the zip.
+     */
+    public void testClose() throws Exception {
+        File dir = new File(mTmpDir, "session");
+        File subDir = new File(dir, "sub");
+        subDir.mkdirs();
+        FileUtil.writeToFile("result", new File(dir, "testResult.xml"));
+        FileUtil.writeToFile("", new File(subDir, "empty.txt"));
+        File zipFile = new File(mTmpDir, "session.zip");
+
+        SessionZipWriter writer = new SessionZipWriter(zipFile, 9, 2);
+        for (int i = 0; i < 20; i++) {
+            writer.addData(String.format("session/logs/log%d.txt", i),
+                    String.format("log %d", i).getBytes("UTF-8"));
+        }
+        writer.addDir("session/", dir);
+        writer.close();
+
+        assertFalse(new File(mTmpDir, "session.zip.tmp").exists());
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            assertEquals(22, zip.size());
+            assertEquals("result", readEntry(zip, "session/testResult.xml"));
+            assertEquals("", readEntry(zip, "session/sub/empty.txt"));
+            assertEquals("log 7", readEntry(zip, "session/logs/log7.txt"));
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Test that the entries of an earlier zip can be carried over.
+     */
+    public void testAddEntriesFrom() throws Exception {
+        File oldZipFile = new File(mTmpDir, "old.zip");
+        SessionZipWriter writer = new SessionZipWriter(oldZipFile, 1, 1);
+        writer.addData("session/logs/log.txt", "log".getBytes("UTF-8"));
+        writer.addData("session/testResult.xml", "result".getBytes("UTF-8"));
+        writer.close();
+
+        File zipFile = new File(mTmpDir, "session.zip");
+        writer = new SessionZipWriter(zipFile, 1, 1);
+        writer.addEntriesFrom(oldZipFile, "session/logs/");
+        writer.close();
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            assertEquals(1, zip.size());
+            assertEquals("log", readEntry(zip, "session/logs/log.txt"));
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Test that already compressed files are stored rather than deflated again.
+     */
+    public void testClose_storesCompressedFiles() throws Exception {
+        File zipFile = new File(mTmpDir, "session.zip");
+        SessionZipWriter writer = new SessionZipWriter(zipFile, 9, 1);
+        writer.addData("session/logs/log.txt.gz", "gzipped".getBytes("UTF-8"));
+        writer.addData("session/logs/log.txt", "text".getBytes("UTF-8"));
+        writer.close();
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            assertEquals(ZipEntry.STORED, zip.getEntry("session/logs/log.txt.gz").getMethod());
+            assertEquals("gzipped", readEntry(zip, "session/logs/log.txt.gz"));
+            assertEquals(ZipEntry.DEFLATED, zip.getEntry("session/logs/log.txt").getMethod());
+            assertEquals("text", readEntry(zip, "session/logs/log.txt"));
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Test that entries beyond the zip's entry limit are left out, and the other entries are
+     * kept.
+     */
+    public void testClose_tooManyEntries() throws Exception {
+        File zipFile = new File(mTmpDir, "session.zip");
+        SessionZipWriter writer = new SessionZipWriter(zipFile, 1, 2);
+        byte[] data = new byte[0];
+        for (int i = 0; i <= SessionZipWriter.MAX_ENTRIES; i++) {
+            writer.addData(String.format("session/logs/log%d.txt", i), data);
+        }
+        writer.close();
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            assertEquals(SessionZipWriter.MAX_ENTRIES, zip.size());
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Test that an invalid compression level is rejected.
+     */
+    public void testInvalidLevel() throws Exception {
+        try {
+            new SessionZipWriter(new File(mTmpDir, "session.zip"), 10, 1);
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private String readEntry(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        assertNotNull(entry);
+        InputStream stream = zip.getInputStream(entry);
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            StreamUtil.copyStreams(stream, data);
+            return data.toString("UTF-8");
+        } finally {
+            stream.close();
+        }
+    }
+}
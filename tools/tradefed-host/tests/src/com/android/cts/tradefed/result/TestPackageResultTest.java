@@ -42,4 +42,49 @@ public class TestPackageResultTest extends TestCase {
         assertEquals(1, tests.size());
         assertEquals(includedTest, tests.iterator().next());
     }
+
+    /**
+     * Test that the suite hierarchy reflects tests inserted after it was first built.
+     */
+    public void testGetTestSuites() {
+        TestPackageResult pkgResult = new TestPackageResult();
+        pkgResult.insertTest(new TestIdentifier("com.example.FooTest", "testFoo"));
+        TestSuite comSuite = pkgResult.getTestSuites().iterator().next();
+        assertEquals("com", comSuite.getName());
+        assertEquals(1, comSuite.getTestSuites().iterator().next().getTestCases().size());
+
+        TestIdentifier barTest = new TestIdentifier("com.example.BarTest", "testBar");
+        Test bar = pkgResult.insertTest(barTest);
+        assertSame(bar, pkgResult.findTest(barTest));
+        comSuite = pkgResult.getTestSuites().iterator().next();
+        TestSuite exampleSuite = comSuite.getTestSuites().iterator().next();
+        assertEquals("example", exampleSuite.getName());
+        assertEquals(2, exampleSuite.getTestCases().size());
+    }
+
+    /**
+     * Test that the elapsed time covers the tests and the short gaps between them, but not the
+     * gap between two invocations of a continued session.
+     */
+    public void testGetElapsedTime() {
+        TestPackageResult pkgResult = new TestPackageResult();
+        long startTime = 1000 * 1000;
+        addTest(pkgResult, "testFirst", startTime, startTime + 1000);
+        // overlaps the first test, then leaves a 500 ms gap
+        addTest(pkgResult, "testOverlap", startTime + 500, startTime + 1500);
+        addTest(pkgResult, "testSecond", startTime + 2000, startTime + 3000);
+        long resumeTime = startTime + 3000 + TestPackageResult.MAX_TEST_GAP_MS + 1;
+        addTest(pkgResult, "testResumed", resumeTime, resumeTime + 1000);
+        // not executed tests are stamped when the run is finalized
+        pkgResult.insertTest(new TestIdentifier("com.example.ExampleTest", "testNotExecuted"))
+                .setTimes(resumeTime + 60 * 1000, resumeTime + 60 * 1000);
+        assertEquals(4000, pkgResult.getElapsedTime());
+    }
+
+    private void addTest(TestPackageResult pkgResult, String name, long startTime,
+            long endTime) {
+        Test test = pkgResult.insertTest(new TestIdentifier("com.example.ExampleTest", name));
+        test.setResultStatus(CtsTestStatus.PASS);
+        test.setTimes(startTime, endTime);
+    }
 }
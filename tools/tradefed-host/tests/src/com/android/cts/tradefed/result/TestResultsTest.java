@@ -15,9 +15,23 @@
  */
 package com.android.cts.tradefed.result;
 
+import com.android.cts.tradefed.testtype.CtsTest;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
+import org.kxml2.io.KXmlSerializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Unit tests for {@link TestResults} parsing.
@@ -103,4 +117,115 @@ public class TestResultsTest extends junit.framework.TestCase {
         assertEquals("msg", exampleTest.getMessage());
         assertEquals("at ExampleTest.testExample()", exampleTest.getStackTrace());
     }
+
+    /**
+     * Test that spooled packages are serialized exactly as they would be from memory, and are
+     * read back when accessed.
+     */
+    public void testSpoolPackage() throws Exception {
+        File spoolDir = FileUtil.createTempDir("spool");
+        try {
+            TestResults results = createResults();
+            String expectedOutput = serialize(results);
+
+            results = createResults();
+            results.setSpoolDir(spoolDir);
+            results.spoolPackages();
+            assertEquals(0, results.getPackages().size());
+            assertEquals(1, results.countTests(CtsTestStatus.FAIL));
+            assertEquals(1, results.countTests("pkgB", CtsTestStatus.PASS));
+            assertEquals(expectedOutput, serialize(results));
+
+            TestPackageResult pkg = results.getPackage("pkgA");
+            assertNotNull(pkg);
+            assertEquals(1, pkg.countTests(CtsTestStatus.FAIL));
+            assertEquals(1, results.getPackages().size());
+            assertEquals(expectedOutput, serialize(results));
+        } finally {
+            FileUtil.recursiveDelete(spoolDir);
+        }
+    }
+
+    /**
+     * Test that results written to a {@link ResultContainer} convert back to the same XML, and
+     * that each package can be read back on its own.
+     */
+    public void testSerialize_container() throws Exception {
+        File containerFile = FileUtil.createTempFile("result", ".ctsr");
+        try {
+            TestResults results = createResults();
+            String expectedOutput = serialize(results);
+
+            OutputStream stream = new ResultContainer.Writer(new FileOutputStream(containerFile));
+            try {
+                serialize(results, stream);
+            } finally {
+                stream.close();
+            }
+            ResultContainer container = new ResultContainer(containerFile);
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            InputStream xmlStream = container.openXml();
+            StreamUtil.copyStreams(xmlStream, xml);
+            xmlStream.close();
+            String output = xml.toString("UTF-8");
+            assertEquals(expectedOutput, output.substring(output.indexOf("<TestPackage")));
+
+            TestPackageResult pkg = container.readPackage("pkgA");
+            assertEquals(1, pkg.countTests(CtsTestStatus.FAIL));
+            assertNotNull(container.readPackage("pkgB"));
+            assertNull(container.readPackage("pkgC"));
+        } finally {
+            containerFile.delete();
+        }
+    }
+
+    /**
+     * Test that the reboot ready time reported before a package is serialized, and read back.
+     */
+    public void testSerialize_rebootReadyTime() throws Exception {
+        TestResults results = createResults();
+        Map<String, String> metrics = new HashMap<String, String>();
+        metrics.put(CtsTest.REBOOT_READY_TIME_METRIC, "1234");
+        results.getPackage("pkgA").populateMetrics(metrics);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        serialize(results, stream);
+
+        TestResults parsedResults = new TestResults();
+        parsedResults.parse(new StringReader(stream.toString("UTF-8")));
+        assertEquals("1234", parsedResults.getPackage("pkgA").getRebootReadyTime());
+        assertNull(parsedResults.getPackage("pkgB").getRebootReadyTime());
+    }
+
+    private TestResults createResults() {
+        TestResults results = new TestResults();
+        TestIdentifier failTest = new TestIdentifier("com.example.FooTest", "testFail");
+        TestPackageResult pkgA = results.getOrCreatePackage("pkgA");
+        pkgA.insertTest(failTest);
+        pkgA.reportTestFailure(failTest, CtsTestStatus.FAIL, "trace\nmore trace");
+        pkgA.reportTestEnded(failTest);
+        pkgA.findTest(failTest).setTimes("st", "et");
+        TestIdentifier passTest = new TestIdentifier("com.example.BarTest", "testPass");
+        TestPackageResult pkgB = results.getOrCreatePackage("pkgB");
+        pkgB.insertTest(passTest);
+        pkgB.reportTestEnded(passTest);
+        pkgB.findTest(passTest).setTimes("st", "et");
+        return results;
+    }
+
+    private String serialize(TestResults results) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        serialize(results, stream);
+        // ignore the host and build dependent elements before the packages
+        String output = stream.toString("UTF-8");
+        return output.substring(output.indexOf("<TestPackage"));
+    }
+
+    private void serialize(TestResults results, OutputStream stream) throws IOException {
+        KXmlSerializer serializer = new KXmlSerializer();
+        serializer.setOutput(stream, "UTF-8");
+        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        serializer.startTag(null, "TestResult");
+        results.serialize(serializer, stream);
+        serializer.endDocument();
+    }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.Collection;
+
+/**
+ * Unit tests for {@link TestStatusReader}.
+ */
+public class TestStatusReaderTest extends TestCase {
+
+    private static final String RESULT =
+        "<TestResult>" +
+            "<TestPackage name=\"pkgName\" appPackageName=\"appPkgName\" digest=\"dig\" >" +
+                "<TestSuite name=\"com\" >" +
+                    "<TestSuite name=\"example\" >" +
+                        "<TestCase name=\"ExampleTest\" >" +
+                            "<Test name=\"testFail\" result=\"fail\" >" +
+                                "<FailedScene message=\"msg\" >" +
+                                    "<StackTrace>at ExampleTest.testFail()</StackTrace>" +
+                                "</FailedScene>" +
+                            "</Test>" +
+                            "<Test name=\"testPass\" result=\"pass\" />" +
+                        "</TestCase>" +
+                    "</TestSuite>" +
+                    "<TestCase name=\"OtherTest\" >" +
+                        "<Test name=\"testNotExecuted\" result=\"notExecuted\" />" +
+                    "</TestCase>" +
+                "</TestSuite>" +
+            "</TestPackage>" +
+            "<TestPackage name=\"pkg2\" appPackageName=\"appPkg2\" digest=\"dig\" >" +
+                "<TestSuite name=\"foo\" >" +
+                    "<TestCase name=\"FooTest\" >" +
+                        "<Test name=\"testFoo\" result=\"pass\" />" +
+                    "</TestCase>" +
+                "</TestSuite>" +
+            "</TestPackage>" +
+        "</TestResult>";
+
+    /**
+     * Test that only tests with the given status are returned, with their full class names.
+     */
+    public void testGetTests() throws Exception {
+        TestStatusReader reader = new TestStatusReader(CtsTestStatus.FAIL);
+        reader.parse(new StringReader(RESULT));
+        assertEquals(2, reader.getTests().size());
+        Collection<TestIdentifier> tests = reader.getTests().get("appPkgName");
+        assertEquals(1, tests.size());
+        assertEquals(new TestIdentifier("com.example.ExampleTest", "testFail"),
+                tests.iterator().next());
+        assertTrue(reader.getTests().get("appPkg2").isEmpty());
+
+        reader = new TestStatusReader(CtsTestStatus.NOT_EXECUTED);
+        reader.parse(new StringReader(RESULT));
+        assertEquals(new TestIdentifier("com.OtherTest", "testNotExecuted"),
+                reader.getTests().get("appPkgName").iterator().next());
+    }
+
+    /**
+     * Test counting tests by status.
+     */
+    public void testCountTests() throws Exception {
+        TestStatusReader reader = new TestStatusReader(null);
+        reader.parse(new StringReader(RESULT));
+        assertEquals(2, reader.countTests(CtsTestStatus.PASS));
+        assertEquals(1, reader.countTests("appPkgName", CtsTestStatus.PASS));
+        assertEquals(1, reader.countTests("appPkgName", CtsTestStatus.FAIL));
+        assertEquals(1, reader.countTests(CtsTestStatus.NOT_EXECUTED));
+        assertTrue(reader.getTests().get("appPkg2").isEmpty());
+    }
+
+    /**
+     * Test recording the times of the executed tests and the device model.
+     */
+    public void testGetElapsedTimes() throws Exception {
+        long startTime = 1000 * 1000 * 1000;
+        String result =
+            "<TestResult>" +
+                "<DeviceInfo>" +
+                    "<BuildInfo build_model=\"Nexus\" />" +
+                "</DeviceInfo>" +
+                "<TestPackage name=\"pkgName\" appPackageName=\"appPkgName\" >" +
+                    "<TestSuite name=\"com\" >" +
+                        "<TestCase name=\"ExampleTest\" >" +
+                            getTestXml("testPass", "pass", startTime, startTime + 2000) +
+                            getTestXml("testFail", "fail", startTime + 3000, startTime + 4000) +
+                            getTestXml("testNotExecuted", "notExecuted", startTime + 60 * 1000,
+                                    startTime + 60 * 1000) +
+                        "</TestCase>" +
+                    "</TestSuite>" +
+                "</TestPackage>" +
+            "</TestResult>";
+        TestStatusReader reader = new TestStatusReader(null, true);
+        reader.parse(new StringReader(result));
+        assertEquals(Long.valueOf(4000), reader.getElapsedTimes().get("appPkgName"));
+        assertEquals("Nexus", reader.getDeviceModel());
+
+        reader = new TestStatusReader(null);
+        reader.parse(new StringReader(RESULT));
+        assertNull(reader.getDeviceModel());
+    }
+
+    /**
+     * Test reading the build fingerprint, the package digests and the packages with performance
+     * results.
+     */
+    public void testGetDigest() throws Exception {
+        String result =
+            "<TestResult>" +
+                "<DeviceInfo>" +
+                    "<BuildInfo build_fingerprint=\"vendor/product:4.4/KRT16M\" />" +
+                "</DeviceInfo>" +
+                "<Summary failed=\"0\" notExecuted=\"0\" pass=\"2\" />" +
+                "<TestPackage name=\"pkgName\" appPackageName=\"appPkgName\" digest=\"dig\" >" +
+                    "<TestSuite name=\"com\" >" +
+                        "<TestCase name=\"ExampleTest\" >" +
+                            "<Test name=\"testPerf\" result=\"pass\" >" +
+                                "<Summary message=\"msg\" scoreType=\"higherBetter\" " +
+                                        "score=\"1.0\" />" +
+                            "</Test>" +
+                        "</TestCase>" +
+                    "</TestSuite>" +
+                "</TestPackage>" +
+                "<TestPackage name=\"pkg2\" appPackageName=\"appPkg2\" >" +
+                    "<TestSuite name=\"foo\" >" +
+                        "<TestCase name=\"FooTest\" >" +
+                            "<Test name=\"testFoo\" result=\"pass\" />" +
+                        "</TestCase>" +
+                    "</TestSuite>" +
+                "</TestPackage>" +
+            "</TestResult>";
+        TestStatusReader reader = new TestStatusReader(CtsTestStatus.PASS);
+        reader.parse(new StringReader(result));
+        assertEquals("vendor/product:4.4/KRT16M", reader.getBuildFingerprint());
+        assertEquals("dig", reader.getDigest("appPkgName"));
+        assertNull(reader.getDigest("appPkg2"));
+        assertTrue(reader.hasPerfResults("appPkgName"));
+        assertFalse(reader.hasPerfResults("appPkg2"));
+    }
+
+    private String getTestXml(String name, String result, long startTime, long endTime) {
+        return String.format("<Test name=\"%s\" result=\"%s\" starttime=\"%s\" " +
+                "endtime=\"%s\" />", name, result, TimeUtil.getTimestamp(startTime),
+                TimeUtil.getTimestamp(endTime));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Unit tests for {@link CollectedTestsCache}.
+ */
+public class CollectedTestsCacheTest extends TestCase {
+
+    private File mCacheDir;
+    private CollectedTestsCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = FileUtil.createTempDir("collected-tests");
+        // use a sub directory, to verify it is created on demand
+        mCache = new CollectedTestsCache(new File(mCacheDir, "cache"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mCacheDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that stored tests are returned for the same key, and not for other keys.
+     */
+    public void testPutGet() {
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        tests.add(new TestIdentifier("com.example.FooTest", "testFoo"));
+        tests.add(new TestIdentifier("com.example.FooTest$Inner", "testBar"));
+        mCache.putTests("digest:runner", tests);
+
+        Collection<TestIdentifier> cachedTests = mCache.getTests("digest:runner");
+        assertNotNull(cachedTests);
+        assertEquals(2, cachedTests.size());
+        assertTrue(cachedTests.containsAll(tests));
+        assertNull(mCache.getTests("otherdigest:runner"));
+    }
+
+    /**
+     * Test that storing tests replaces the existing entry.
+     */
+    public void testPut_replace() {
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        tests.add(new TestIdentifier("com.example.FooTest", "testFoo"));
+        mCache.putTests("key", tests);
+        tests.clear();
+        tests.add(new TestIdentifier("com.example.BarTest", "testBar"));
+        mCache.putTests("key", tests);
+
+        Collection<TestIdentifier> cachedTests = mCache.getTests("key");
+        assertEquals(1, cachedTests.size());
+        assertTrue(cachedTests.contains(new TestIdentifier("com.example.BarTest", "testBar")));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link CtsBuildModel}.
+ */
+public class CtsBuildModelTest extends TestCase {
+
+    private static final String PACKAGE_XML =
+        "<TestPackage appNameSpace=\"com.example\" appPackageName=\"android.example\" " +
+        "name=\"CtsExampleTestCases\" runner=\"android.test.InstrumentationTestRunner\" >\n" +
+        "    <TestSuite name=\"com\" >\n" +
+        "        <TestCase name=\"ExampleTest\" >\n" +
+        "            <Test name=\"testFoo\" />\n" +
+        "        </TestCase>\n" +
+        "    </TestSuite>\n" +
+        "</TestPackage>";
+
+    private File mRootDir;
+    private CtsBuildHelper mBuild;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRootDir = FileUtil.createTempDir("cts-build");
+        mBuild = new CtsBuildHelper(mRootDir);
+        mBuild.getTestCasesDir().mkdirs();
+        FileUtil.writeToFile(PACKAGE_XML, new File(mBuild.getTestCasesDir(),
+                "CtsExampleTestCases.xml"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mRootDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that the invocations of a build share its model while any of them holds it.
+     */
+    public void testAcquire_shared() {
+        int modelCount = CtsBuildModel.getModelCount();
+        CtsBuildModel model = CtsBuildModel.acquire(mBuild, false);
+        assertSame(model, CtsBuildModel.acquire(new CtsBuildHelper(mRootDir), false));
+        assertEquals(modelCount + 1, CtsBuildModel.getModelCount());
+        model.release();
+        assertEquals(modelCount + 1, CtsBuildModel.getModelCount());
+        model.release();
+        assertEquals(modelCount, CtsBuildModel.getModelCount());
+        CtsBuildModel newModel = CtsBuildModel.acquire(mBuild, false);
+        assertNotSame(model, newModel);
+        newModel.release();
+    }
+
+    /**
+     * Test that a model including known failures is not shared with one that does not.
+     */
+    public void testAcquire_knownFailures() {
+        CtsBuildModel model = CtsBuildModel.acquire(mBuild, false);
+        CtsBuildModel knownFailuresModel = CtsBuildModel.acquire(mBuild, true);
+        assertNotSame(model, knownFailuresModel);
+        model.release();
+        knownFailuresModel.release();
+    }
+
+    /**
+     * Test that a model is rebuilt when the package xml files change, and that the stale model
+     * stays usable by its holders.
+     */
+    public void testAcquire_changed() throws IOException {
+        CtsBuildModel model = CtsBuildModel.acquire(mBuild, false);
+        FileUtil.writeToFile(PACKAGE_XML.replace("ExampleTest", "ExampleTest2"),
+                new File(mBuild.getTestCasesDir(), "CtsExampleTestCases.xml"));
+        CtsBuildModel newModel = CtsBuildModel.acquire(mBuild, false);
+        assertNotSame(model, newModel);
+        assertEquals("android.example",
+                newModel.getTestPackageRepo().findPackageForTest("com.ExampleTest2"));
+        assertEquals("android.example",
+                model.getTestPackageRepo().findPackageForTest("com.ExampleTest"));
+        model.release();
+        newModel.release();
+    }
+
+    /**
+     * Test that a shard's reference keeps the model shared after the invocation releases it.
+     */
+    public void testRetain() {
+        int modelCount = CtsBuildModel.getModelCount();
+        CtsBuildModel model = CtsBuildModel.acquire(mBuild, false);
+        CtsBuildModel shardModel = model.retain();
+        model.release();
+        assertSame(model, CtsBuildModel.acquire(mBuild, false));
+        model.release();
+        shardModel.release();
+        assertEquals(modelCount, CtsBuildModel.getModelCount());
+    }
+}
@@ -18,6 +18,7 @@ package com.android.cts.tradefed.testtype;
 import com.android.cts.tradefed.build.StubCtsBuildHelper;
 import com.android.cts.tradefed.result.PlanCreator;
 import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
@@ -34,6 +35,12 @@ import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit tests for {@link CtsTest}.
@@ -50,6 +57,7 @@ public class CtsTestTest extends TestCase {
     private StubCtsBuildHelper mStubBuildHelper;
     private ITestPackageDef mMockPackageDef;
     private IRemoteTest mMockTest;
+    private Map<String, Long> mPackageRuntimes;
 
     private static final String PLAN_NAME = "CTS";
 
@@ -66,6 +74,7 @@ public class CtsTestTest extends TestCase {
         mStubBuildHelper = new StubCtsBuildHelper();
         mMockPackageDef = EasyMock.createMock(ITestPackageDef.class);
         mMockTest = EasyMock.createMock(IRemoteTest.class);
+        mPackageRuntimes = new HashMap<String, Long>();
 
         mCtsTest = new CtsTest() {
             @Override
@@ -88,6 +97,11 @@ public class CtsTestTest extends TestCase {
                 // return empty stream, not used
                 return new ByteArrayInputStream(new byte[0]);
             }
+
+            @Override
+            Map<String, Long> getPackageRuntimeHistory() {
+                return mPackageRuntimes;
+            }
         };
         mCtsTest.setDevice(mMockDevice);
         mCtsTest.setBuildHelper(mStubBuildHelper);
@@ -211,6 +225,247 @@ public class CtsTestTest extends TestCase {
         verifyMocks();
     }
 
+    /**
+     * Test that the shards created by {@link CtsTest#split()} keep the options of the test.
+     */
+    public void testSplit_copiesOptions() {
+        mCtsTest.setShards(2);
+        mCtsTest.setDisableReboot(true);
+        addShardPackage("a", 1);
+        addShardPackage("b", 1);
+        EasyMock.replay(mMockRepo);
+
+        Collection<IRemoteTest> shards = mCtsTest.split();
+        assertEquals(2, shards.size());
+        for (IRemoteTest shard : shards) {
+            assertTrue(((CtsTest)shard).isRebootDisabled());
+        }
+    }
+
+    /**
+     * Test {@link CtsTest#split()} when --shard-by-runtime is specified, and all packages have
+     * a recorded run time.
+     */
+    public void testSplit_byRuntime() {
+        mCtsTest.setShards(2);
+        mCtsTest.setShardByRuntime(true);
+        addShardPackage("a", 1);
+        addShardPackage("b", 1);
+        addShardPackage("c", 1);
+        mPackageRuntimes.put("a", 100L);
+        mPackageRuntimes.put("b", 60L);
+        mPackageRuntimes.put("c", 50L);
+        EasyMock.replay(mMockRepo);
+
+        // round-robin would put a and c together; expect b and c to share a shard instead
+        Iterator<IRemoteTest> shards = mCtsTest.split().iterator();
+        assertShardPackages(shards.next(), "a");
+        assertShardPackages(shards.next(), "b", "c");
+        assertFalse(shards.hasNext());
+    }
+
+    /**
+     * Test {@link CtsTest#split()} when --shard-by-runtime is specified, and there is no run time
+     * history. Expect the number of tests in each package to be used instead.
+     */
+    public void testSplit_byRuntimeNoHistory() {
+        mCtsTest.setShards(2);
+        mCtsTest.setShardByRuntime(true);
+        addShardPackage("a", 2);
+        addShardPackage("b", 5);
+        addShardPackage("c", 3);
+        EasyMock.replay(mMockRepo);
+
+        Iterator<IRemoteTest> shards = mCtsTest.split().iterator();
+        assertShardPackages(shards.next(), "b");
+        assertShardPackages(shards.next(), "c", "a");
+        assertFalse(shards.hasNext());
+    }
+
+    /**
+     * Test that with --pipeline-install, the apks of the next package are installed while the
+     * current package runs, and not installed again when it runs.
+     */
+    public void testRun_pipelineInstall() throws DeviceNotAvailableException {
+        StagedApkTest firstTest = new StagedApkTest();
+        StagedApkTest nextTest = new StagedApkTest();
+        firstTest.mWaitForStaging = nextTest.mStaged;
+        addStagedPackage("a", firstTest);
+        addStagedPackage("b", nextTest);
+        mCtsTest.setPipelineInstall(true);
+        mCtsTest.setDisableReboot(true);
+        expectNextPackage(mMockDevice);
+
+        replayMocks();
+        mCtsTest.run(mMockListener);
+        verifyMocks();
+        assertTrue(firstTest.mNextStagedDuringRun);
+        assertEquals(1, firstTest.mInstallDevices.size());
+        assertEquals(1, nextTest.mInstallDevices.size());
+        assertSame(mMockDevice, nextTest.mInstallDevices.get(0));
+        assertEquals(1, nextTest.mRunCount);
+    }
+
+    /**
+     * Test that a package whose staging failed installs its apks when it runs.
+     */
+    public void testRun_pipelineInstallFailed() throws DeviceNotAvailableException {
+        StagedApkTest firstTest = new StagedApkTest();
+        StagedApkTest nextTest = new StagedApkTest();
+        firstTest.mWaitForStaging = nextTest.mStaged;
+        nextTest.mFailInstalls = 1;
+        addStagedPackage("a", firstTest);
+        addStagedPackage("b", nextTest);
+        mCtsTest.setPipelineInstall(true);
+        mCtsTest.setDisableReboot(true);
+        expectNextPackage(mMockDevice);
+
+        replayMocks();
+        mCtsTest.run(mMockListener);
+        verifyMocks();
+        assertTrue(firstTest.mNextStagedDuringRun);
+        // the failed staging attempt, then the install before the run
+        assertEquals(2, nextTest.mInstallDevices.size());
+        assertEquals(1, nextTest.mRunCount);
+    }
+
+    /**
+     * Test that a package staged on one device installs its apks again when the run is resumed
+     * on another device.
+     */
+    public void testRun_pipelineInstallDeviceChanged() throws DeviceNotAvailableException {
+        StagedApkTest firstTest = new StagedApkTest();
+        StagedApkTest nextTest = new StagedApkTest();
+        firstTest.mWaitForStaging = nextTest.mStaged;
+        firstTest.mFailRuns = 1;
+        addStagedPackage("a", firstTest);
+        addStagedPackage("b", nextTest);
+        mCtsTest.setPipelineInstall(true);
+        mCtsTest.setDisableReboot(true);
+        ITestDevice newDevice = EasyMock.createMock(ITestDevice.class);
+        expectNextPackage(newDevice);
+
+        replayMocks(newDevice);
+        try {
+            mCtsTest.run(mMockListener);
+            fail("Did not throw DeviceNotAvailableException");
+        } catch (DeviceNotAvailableException e) {
+            // expected
+        }
+        assertTrue(firstTest.mNextStagedDuringRun);
+        // resume on another device, without staging again
+        mCtsTest.setPipelineInstall(false);
+        mCtsTest.setDevice(newDevice);
+        mCtsTest.run(mMockListener);
+        verifyMocks(newDevice);
+        assertEquals(2, nextTest.mInstallDevices.size());
+        assertSame(mMockDevice, nextTest.mInstallDevices.get(0));
+        assertSame(newDevice, nextTest.mInstallDevices.get(1));
+        assertEquals(1, nextTest.mRunCount);
+    }
+
+    /**
+     * An {@link InstrumentationApkTest} that records its installs and runs instead of performing
+     * them on a device.
+     */
+    private static class StagedApkTest extends InstrumentationApkTest {
+        /** counted down once the apks have been installed, or failed to */
+        final CountDownLatch mStaged = new CountDownLatch(1);
+        final List<ITestDevice> mInstallDevices = new ArrayList<ITestDevice>();
+        /** the staging of the next package to wait for while running, if any */
+        CountDownLatch mWaitForStaging = null;
+        boolean mNextStagedDuringRun = false;
+        int mFailInstalls = 0;
+        int mFailRuns = 0;
+        int mRunCount = 0;
+
+        @Override
+        public void setBuild(IBuildInfo build) {
+            // ignore, nothing is installed from the build
+        }
+
+        @Override
+        void installApks() {
+            synchronized (mInstallDevices) {
+                mInstallDevices.add(getDevice());
+            }
+            mStaged.countDown();
+            if (mFailInstalls > 0) {
+                mFailInstalls--;
+                throw new RuntimeException("install failed");
+            }
+        }
+
+        @Override
+        void runInstrumentation(ITestInvocationListener listener, boolean resumed)
+                throws DeviceNotAvailableException {
+            if (mWaitForStaging != null) {
+                try {
+                    mNextStagedDuringRun = mWaitForStaging.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // leave as not staged
+                }
+            }
+            if (mFailRuns > 0) {
+                mFailRuns--;
+                throw new DeviceNotAvailableException();
+            }
+            mRunCount++;
+        }
+    }
+
+    /**
+     * Add a package with given uri, run by the given {@link StagedApkTest}.
+     */
+    private void addStagedPackage(String uri, StagedApkTest test) {
+        mCtsTest.addPackageName(uri);
+        ITestPackageDef packageDef = EasyMock.createNiceMock(ITestPackageDef.class);
+        EasyMock.expect(packageDef.getUri()).andStubReturn(uri);
+        EasyMock.expect(packageDef.getName()).andStubReturn(uri);
+        EasyMock.expect(packageDef.getDigest()).andStubReturn("digest");
+        EasyMock.expect(packageDef.getTests()).andStubReturn(new ArrayList<TestIdentifier>());
+        EasyMock.expect(packageDef.createTest((File)EasyMock.anyObject())).andStubReturn(test);
+        EasyMock.replay(packageDef);
+        EasyMock.expect(mMockRepo.getTestPackage(uri)).andReturn(packageDef);
+    }
+
+    /**
+     * Set EasyMock expectations for moving on to the next package on the given device.
+     */
+    private void expectNextPackage(ITestDevice device) throws DeviceNotAvailableException {
+        EasyMock.expect(device.getSerialNumber()).andStubReturn("serial");
+        EasyMock.expect(device.executeShellCommand("input keyevent 3")).andReturn("");
+    }
+
+    /**
+     * Add a package with given uri and number of tests to be run and split.
+     */
+    private void addShardPackage(String uri, int numTests) {
+        mCtsTest.addPackageName(uri);
+        ITestPackageDef packageDef = EasyMock.createNiceMock(ITestPackageDef.class);
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>(numTests);
+        for (int i = 0; i < numTests; i++) {
+            tests.add(new TestIdentifier("com.example.Test", "test" + i));
+        }
+        EasyMock.expect(packageDef.getUri()).andStubReturn(uri);
+        EasyMock.expect(packageDef.getTests()).andStubReturn(tests);
+        EasyMock.expect(packageDef.createTest((File)EasyMock.anyObject())).andStubReturn(
+                EasyMock.createNiceMock(IRemoteTest.class));
+        EasyMock.replay(packageDef);
+        EasyMock.expect(mMockRepo.getTestPackage(uri)).andReturn(packageDef);
+    }
+
+    /**
+     * Assert that the given shard contains the test packages with given uris, in order.
+     */
+    private void assertShardPackages(IRemoteTest shard, String... uris) {
+        List<CtsTest.TestPackage> testPkgs = ((CtsTest)shard).getRemainingTestPackages();
+        assertEquals(uris.length, testPkgs.size());
+        for (int i = 0; i < uris.length; i++) {
+            assertEquals(uris[i], testPkgs.get(i).getTestRunName());
+        }
+    }
+
     /**
      * Set EasyMock expectations for parsing {@link #PLAN_NAME}
      */
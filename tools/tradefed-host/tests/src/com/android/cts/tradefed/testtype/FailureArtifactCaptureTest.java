@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.device.LogcatRingBuffer;
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.HashMap;
+
+/**
+ * Unit tests for {@link FailureArtifactCapture}.
+ */
+public class FailureArtifactCaptureTest extends TestCase {
+
+    private static final String RUN_NAME = "run";
+    private static final TestIdentifier TEST1 = new TestIdentifier("FooTest", "test1");
+    private static final TestIdentifier TEST2 = new TestIdentifier("FooTest", "test2");
+
+    private ITestDevice mMockDevice;
+    private ITestInvocationListener mMockListener;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createNiceMock(ITestDevice.class);
+        mMockListener = EasyMock.createMock(ITestInvocationListener.class);
+    }
+
+    /**
+     * Test that only one bugreport is captured for failures in the same class, and that it is
+     * forwarded before the run ends.
+     */
+    public void testBugreport_onePerClass() {
+        EasyMock.expect(mMockDevice.getBugreport()).andReturn(
+                new ByteArrayInputStreamSource("bugreport".getBytes()));
+        mMockListener.testRunStarted(RUN_NAME, 2);
+        mMockListener.testStarted(TEST1);
+        mMockListener.testFailed(TestFailure.FAILURE, TEST1, "trace");
+        mMockListener.testLog(EasyMock.eq("bug-FooTest_test1"), EasyMock.eq(LogDataType.TEXT),
+                (InputStreamSource)EasyMock.anyObject());
+        mMockListener.testEnded(TEST1, new HashMap<String, String>());
+        mMockListener.testStarted(TEST2);
+        mMockListener.testFailed(TestFailure.FAILURE, TEST2, "trace");
+        mMockListener.testEnded(TEST2, new HashMap<String, String>());
+        mMockListener.testRunEnded(0, new HashMap<String, String>());
+        EasyMock.replay(mMockDevice, mMockListener);
+
+        FailureArtifactCapture capture = new FailureArtifactCapture(mMockListener, mMockDevice,
+                new FailureArtifactCapture.Budget(1024, 60 * 1000), false, 0, false, true);
+        capture.testRunStarted(RUN_NAME, 2);
+        capture.testStarted(TEST1);
+        capture.testFailed(TestFailure.FAILURE, TEST1, "trace");
+        capture.testEnded(TEST1, new HashMap<String, String>());
+        capture.testStarted(TEST2);
+        capture.testFailed(TestFailure.FAILURE, TEST2, "trace");
+        capture.testEnded(TEST2, new HashMap<String, String>());
+        capture.testRunEnded(0, new HashMap<String, String>());
+        capture.shutdown();
+        EasyMock.verify(mMockDevice, mMockListener);
+    }
+
+    /**
+     * Test that the screenshot of a failed test is captured and forwarded right away, before the
+     * test ends.
+     */
+    public void testScreenshot_capturedOnFailure() throws DeviceNotAvailableException {
+        EasyMock.expect(mMockDevice.getScreenshot()).andReturn(
+                new ByteArrayInputStreamSource("screenshot".getBytes()));
+        mMockListener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        mMockListener.testRunStarted(RUN_NAME, 1);
+        mMockListener.testStarted(TEST1);
+        mMockListener.testFailed(TestFailure.FAILURE, TEST1, "trace");
+        mMockListener.testLog(EasyMock.eq("screenshot-FooTest_test1"),
+                EasyMock.eq(LogDataType.PNG), (InputStreamSource)EasyMock.anyObject());
+        mMockListener.testEnded(TEST1, new HashMap<String, String>());
+        mMockListener.testRunEnded(0, new HashMap<String, String>());
+        EasyMock.replay(mMockDevice, mMockListener);
+
+        FailureArtifactCapture capture = new FailureArtifactCapture(mMockListener, mMockDevice,
+                new FailureArtifactCapture.Budget(1024, 60 * 1000), false, 0, true, false);
+        capture.testRunStarted(RUN_NAME, 1);
+        capture.testStarted(TEST1);
+        capture.testFailed(TestFailure.FAILURE, TEST1, "trace");
+        capture.testEnded(TEST1, new HashMap<String, String>());
+        capture.testRunEnded(0, new HashMap<String, String>());
+        capture.shutdown();
+        EasyMock.verify(mMockDevice, mMockListener);
+    }
+
+    /**
+     * Test that no artifacts are captured once the budget is used up.
+     */
+    public void testBudget_exhausted() {
+        FailureArtifactCapture.Budget budget = new FailureArtifactCapture.Budget(10, 60 * 1000);
+        budget.charge(10, 0);
+        mMockListener.testRunStarted(RUN_NAME, 1);
+        mMockListener.testStarted(TEST1);
+        mMockListener.testFailed(TestFailure.FAILURE, TEST1, "trace");
+        mMockListener.testEnded(TEST1, new HashMap<String, String>());
+        mMockListener.testRunEnded(0, new HashMap<String, String>());
+        // the device is a strict mock here, so any capture attempt fails the test
+        mMockDevice = EasyMock.createStrictMock(ITestDevice.class);
+        EasyMock.replay(mMockDevice, mMockListener);
+
+        FailureArtifactCapture capture = new FailureArtifactCapture(mMockListener, mMockDevice,
+                budget, true, 1024, true, true);
+        capture.testRunStarted(RUN_NAME, 1);
+        capture.testStarted(TEST1);
+        capture.testFailed(TestFailure.FAILURE, TEST1, "trace");
+        capture.testEnded(TEST1, new HashMap<String, String>());
+        capture.testRunEnded(0, new HashMap<String, String>());
+        capture.shutdown();
+        EasyMock.verify(mMockDevice, mMockListener);
+    }
+
+    /**
+     * Test that the logcat of a failed test is sliced from when the test started to when it
+     * ended, and forwarded before the next test starts.
+     */
+    public void testLogcat_slicedToTest() {
+        final long[] mark = {2};
+        final long[] slice = new long[2];
+        LogcatRingBuffer buffer = new LogcatRingBuffer(mMockDevice, 1024) {
+            @Override
+            public long mark() {
+                return mark[0];
+            }
+
+            @Override
+            public boolean isStreaming() {
+                return true;
+            }
+
+            @Override
+            public InputStreamSource getLog(long startMark, long endMark, int maxBytes) {
+                slice[0] = startMark;
+                slice[1] = endMark;
+                return new ByteArrayInputStreamSource("logcat".getBytes());
+            }
+        };
+        mMockListener.testRunStarted(RUN_NAME, 2);
+        mMockListener.testStarted(TEST1);
+        mMockListener.testFailed(TestFailure.FAILURE, TEST1, "trace");
+        mMockListener.testEnded(TEST1, new HashMap<String, String>());
+        mMockListener.testLog(EasyMock.eq("logcat-FooTest_test1"), EasyMock.eq(LogDataType.TEXT),
+                (InputStreamSource)EasyMock.anyObject());
+        mMockListener.testStarted(TEST2);
+        mMockListener.testEnded(TEST2, new HashMap<String, String>());
+        mMockListener.testRunEnded(0, new HashMap<String, String>());
+        EasyMock.replay(mMockDevice, mMockListener);
+
+        FailureArtifactCapture capture = new FailureArtifactCapture(mMockListener, mMockDevice,
+                new FailureArtifactCapture.Budget(1024, 60 * 1000), true, 1024, false, false);
+        capture.setLogcatBuffer(buffer);
+        capture.testRunStarted(RUN_NAME, 2);
+        capture.testStarted(TEST1);
+        mark[0] = 5;
+        capture.testFailed(TestFailure.FAILURE, TEST1, "trace");
+        mark[0] = 7;
+        capture.testEnded(TEST1, new HashMap<String, String>());
+        mark[0] = 20;
+        capture.testStarted(TEST2);
+        capture.testEnded(TEST2, new HashMap<String, String>());
+        capture.testRunEnded(0, new HashMap<String, String>());
+        capture.shutdown();
+        EasyMock.verify(mMockDevice, mMockListener);
+        assertEquals(2, slice[0]);
+        assertEquals(7, slice[1]);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link InstrumentationApkTest}.
+ */
+public class InstrumentationApkTestTest extends TestCase {
+
+    private static final String RUN_NAME = "android.example";
+    private static final String CACHE_KEY = "digest:runner:null:null";
+    private static final TestIdentifier FOO_1 = new TestIdentifier("com.example.FooTest", "test1");
+    private static final TestIdentifier FOO_2 = new TestIdentifier("com.example.FooTest", "test2");
+
+    private File mCacheDir;
+    private ITestDevice mMockDevice;
+    private IRemoteAndroidTestRunner mMockRunner;
+    private ITestInvocationListener mMockListener;
+    private InstrumentationApkTest mTest;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = FileUtil.createTempDir("collected-tests");
+        mMockDevice = EasyMock.createStrictMock(ITestDevice.class);
+        // a strict mock without expectations, so enabling the log only collection mode fails
+        mMockRunner = EasyMock.createStrictMock(IRemoteAndroidTestRunner.class);
+        mMockListener = EasyMock.createNiceMock(ITestInvocationListener.class);
+        mTest = new InstrumentationApkTest() {
+            @Override
+            IRemoteAndroidTestRunner createTestRunner() {
+                return mMockRunner;
+            }
+        };
+        mTest.setDevice(mMockDevice);
+        mTest.setRunName(RUN_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mCacheDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that a cache hit runs the instrumentation once, without a test collection run.
+     */
+    public void testRunInstrumentation_cacheHit() throws DeviceNotAvailableException {
+        List<TestIdentifier> tests = Arrays.asList(FOO_1, FOO_2);
+        CollectedTestsCache cache = new CollectedTestsCache(mCacheDir);
+        cache.putTests(CACHE_KEY, tests);
+        mTest.setCollectedTestsCache(cache);
+        mTest.setCollectedTestsKey(CACHE_KEY, tests);
+        mTest.setTestsToRun(tests, true);
+
+        EasyMock.expect(mMockDevice.runInstrumentationTests(EasyMock.eq(mMockRunner),
+                (ITestRunListener)EasyMock.anyObject())).andAnswer(new IAnswer<Boolean>() {
+                    @Override
+                    public Boolean answer() throws Throwable {
+                        ITestRunListener listener =
+                                (ITestRunListener)EasyMock.getCurrentArguments()[1];
+                        Map<String, String> metrics = Collections.emptyMap();
+                        listener.testRunStarted(RUN_NAME, 2);
+                        for (TestIdentifier test : new TestIdentifier[] {FOO_1, FOO_2}) {
+                            listener.testStarted(test);
+                            listener.testEnded(test, metrics);
+                        }
+                        listener.testRunEnded(10, metrics);
+                        return Boolean.TRUE;
+                    }
+                });
+        mMockListener.testRunStarted(RUN_NAME, 2);
+        mMockListener.testStarted(FOO_1);
+        mMockListener.testStarted(FOO_2);
+        EasyMock.replay(mMockDevice, mMockRunner, mMockListener);
+        mTest.runInstrumentation(mMockListener, false);
+        EasyMock.verify(mMockDevice, mMockRunner, mMockListener);
+    }
+}
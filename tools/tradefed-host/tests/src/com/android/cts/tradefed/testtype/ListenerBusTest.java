@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ListenerBus}.
+ */
+public class ListenerBusTest extends TestCase {
+
+    private static final String RUN_NAME = "run";
+    private static final TestIdentifier TEST = new TestIdentifier("FooTest", "testFoo");
+
+    /**
+     * Test that each listener gets all events in order, and has handled the run once
+     * testRunEnded returns.
+     */
+    public void testDelivery() {
+        Map<String, String> emptyMap = new HashMap<String, String>();
+        ITestInvocationListener[] listeners = new ITestInvocationListener[2];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = EasyMock.createStrictMock(ITestInvocationListener.class);
+            listeners[i].testRunStarted(RUN_NAME, 1);
+            listeners[i].testStarted(TEST);
+            listeners[i].testFailed(TestFailure.FAILURE, TEST, "trace");
+            listeners[i].testLog(EasyMock.eq("log"), EasyMock.eq(LogDataType.TEXT),
+                    (InputStreamSource)EasyMock.anyObject());
+            listeners[i].testEnded(TEST, emptyMap);
+            listeners[i].testRunEnded(1, emptyMap);
+            EasyMock.replay(listeners[i]);
+        }
+        ListenerBus bus = new ListenerBus(2, listeners);
+        bus.testRunStarted(RUN_NAME, 1);
+        bus.testStarted(TEST);
+        bus.testFailed(TestFailure.FAILURE, TEST, "trace");
+        ByteArrayInputStreamSource logSource = new ByteArrayInputStreamSource("log".getBytes());
+        bus.testLog("log", LogDataType.TEXT, logSource);
+        // the source can be cancelled as soon as testLog returns
+        logSource.cancel();
+        bus.testEnded(TEST, emptyMap);
+        bus.testRunEnded(1, emptyMap);
+        for (ITestInvocationListener listener : listeners) {
+            EasyMock.verify(listener);
+        }
+        bus.shutdown();
+    }
+
+    /**
+     * Test that the latency of each listener is recorded, and that a listener failing does not
+     * stop later events reaching it.
+     */
+    public void testLatencyMetrics() {
+        ITestInvocationListener listener = EasyMock.createMock(ITestInvocationListener.class);
+        listener.testRunStarted(RUN_NAME, 0);
+        EasyMock.expectLastCall().andThrow(new RuntimeException());
+        listener.testRunEnded(1, null);
+        EasyMock.replay(listener);
+        ListenerBus bus = new ListenerBus(10, listener);
+        bus.testRunStarted(RUN_NAME, 0);
+        bus.testRunEnded(1, null);
+        bus.shutdown();
+        EasyMock.verify(listener);
+        // two events, and the barrier of testRunEnded
+        assertEquals(3, bus.getLatencyMetrics().get(listener).getEvents());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.testtype.CtsTest.TestPackage;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.result.ITestInvocationListener;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ResultFilter}.
+ */
+public class ResultFilterTest extends TestCase {
+
+    private static final String RUN_NAME = "android.example";
+
+    private static final TestIdentifier FOO_1 = new TestIdentifier("com.example.FooTest", "test1");
+    private static final TestIdentifier FOO_2 = new TestIdentifier("com.example.FooTest", "test2");
+    private static final TestIdentifier BAR_1 = new TestIdentifier("com.example.BarTest", "test1");
+    private static final TestIdentifier UNKNOWN =
+            new TestIdentifier("com.example.UnknownTest", "test1");
+
+    private ITestInvocationListener mMockListener;
+    private Map<String, String> mMetrics;
+    private CtsTest mCtsTest;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockListener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        mMetrics = new HashMap<String, String>();
+        mCtsTest = new CtsTest();
+    }
+
+    /**
+     * Test that the class shards of a package, added to the filter one after the other, report
+     * into a single run, and that only the tests no shard executed are reported as unexecuted.
+     */
+    public void testAddTestPackage_classShards() {
+        TestPackage fooShard = createTestPackage(FOO_1, FOO_2);
+        TestPackage barShard = createTestPackage(BAR_1);
+        mMockListener.testRunStarted(RUN_NAME, 1);
+        mMockListener.testStarted(FOO_1);
+        mMockListener.testEnded(FOO_1, mMetrics);
+        mMockListener.testRunEnded(10, mMetrics);
+        mMockListener.testRunStarted(RUN_NAME, 1);
+        mMockListener.testStarted(BAR_1);
+        mMockListener.testEnded(BAR_1, mMetrics);
+        mMockListener.testRunEnded(10, mMetrics);
+        // the test of the first shard that did not run
+        mMockListener.testRunStarted(RUN_NAME, 1);
+        mMockListener.testStarted(FOO_2);
+        mMockListener.testRunEnded(EasyMock.eq(0L), EasyMock.<Map<String, String>>anyObject());
+        EasyMock.replay(mMockListener);
+
+        ResultFilter filter = new ResultFilter(mMockListener,
+                Collections.singletonList(fooShard));
+        // the second shard is taken once the first one has run, e.g. from a shared queue
+        runTests(filter, FOO_1);
+        filter.addTestPackage(barShard);
+        runTests(filter, BAR_1);
+        filter.reportUnexecutedTests();
+        EasyMock.verify(mMockListener);
+    }
+
+    /**
+     * Test that a test unknown to every shard of the package is not reported, and that nothing
+     * is reported as unexecuted once all the shards have run.
+     */
+    public void testAddTestPackage_allExecuted() {
+        mMockListener.testRunStarted(RUN_NAME, 3);
+        mMockListener.testStarted(FOO_1);
+        mMockListener.testEnded(FOO_1, mMetrics);
+        mMockListener.testStarted(FOO_2);
+        mMockListener.testEnded(FOO_2, mMetrics);
+        mMockListener.testStarted(BAR_1);
+        mMockListener.testEnded(BAR_1, mMetrics);
+        mMockListener.testRunEnded(10, mMetrics);
+        EasyMock.replay(mMockListener);
+
+        List<TestPackage> testPkgs = new ArrayList<TestPackage>();
+        testPkgs.add(createTestPackage(FOO_1, FOO_2));
+        testPkgs.add(createTestPackage(BAR_1));
+        ResultFilter filter = new ResultFilter(mMockListener, testPkgs);
+        filter.testRunStarted(RUN_NAME, 3);
+        reportTest(filter, FOO_1);
+        reportTest(filter, UNKNOWN);
+        reportTest(filter, FOO_2);
+        reportTest(filter, BAR_1);
+        filter.testRunEnded(10, mMetrics);
+        filter.reportUnexecutedTests();
+        EasyMock.verify(mMockListener);
+    }
+
+    /**
+     * Create a class shard of the {@link #RUN_NAME} package, with the given known tests.
+     */
+    private TestPackage createTestPackage(TestIdentifier... knownTests) {
+        ITestPackageDef packageDef = EasyMock.createNiceMock(ITestPackageDef.class);
+        EasyMock.expect(packageDef.getUri()).andStubReturn(RUN_NAME);
+        EasyMock.replay(packageDef);
+        return mCtsTest.new TestPackage(packageDef, null, Arrays.asList(knownTests));
+    }
+
+    /**
+     * Report a run of the given tests to the filter.
+     */
+    private void runTests(ResultFilter filter, TestIdentifier... tests) {
+        filter.testRunStarted(RUN_NAME, tests.length);
+        for (TestIdentifier test : tests) {
+            reportTest(filter, test);
+        }
+        filter.testRunEnded(10, mMetrics);
+    }
+
+    private void reportTest(ResultFilter filter, TestIdentifier test) {
+        filter.testStarted(test);
+        filter.testEnded(test, mMetrics);
+    }
+}
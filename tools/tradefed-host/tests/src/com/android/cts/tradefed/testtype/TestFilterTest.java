@@ -86,6 +86,16 @@ public class TestFilterTest extends TestCase {
         assertEquals(TEST2, iter.next());
     }
 
+    /**
+     * Test {@link TestFilter#filter(java.util.Collection)} with a class set inclusion rule
+     */
+    public void testFilter_includeClasses() {
+        mFilter.addIncludedClass(TEST3.getClassName());
+        Collection<TestIdentifier> filteredList = mFilter.filter(mTestList);
+        assertEquals(1, filteredList.size());
+        assertEquals(TEST3, filteredList.iterator().next());
+    }
+
     /**
      * Test {@link TestFilter#filter(java.util.Collection)} with at class
      */
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Unit tests for {@link TestIdRegistry}.
+ */
+public class TestIdRegistryTest extends TestCase {
+
+    /**
+     * Test that equal tests get the same id and instance, and distinct tests distinct ids.
+     */
+    public void testGetId() {
+        TestIdRegistry registry = new TestIdRegistry();
+        TestIdentifier foo = new TestIdentifier("com.example.ExampleTest", "testFoo");
+        TestIdentifier bar = new TestIdentifier("com.example.ExampleTest", "testBar");
+        assertEquals(-1, registry.findId(foo));
+        int fooId = registry.getId(foo);
+        int barId = registry.getId(bar);
+        assertTrue(fooId != barId);
+        assertEquals(fooId, registry.getId(new TestIdentifier("com.example.ExampleTest",
+                "testFoo")));
+        assertEquals(fooId, registry.findId(foo));
+        assertSame(registry.intern(foo), registry.getTest(fooId));
+        // tests of the same class share the class name
+        assertSame(registry.getTest(fooId).getClassName(),
+                registry.getTest(barId).getClassName());
+    }
+
+    /**
+     * Test converting collections of tests to and from id sets.
+     */
+    public void testGetIds() {
+        TestIdRegistry registry = new TestIdRegistry();
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        tests.add(new TestIdentifier("com.example.ExampleTest", "testFoo"));
+        tests.add(new TestIdentifier("com.example.ExampleTest", "testBar"));
+        BitSet ids = registry.getIds(tests);
+        assertEquals(2, ids.cardinality());
+        assertEquals(tests, registry.getTests(ids));
+    }
+}
@@ -15,9 +15,13 @@
  */
 package com.android.cts.tradefed.testtype;
 
+import com.android.ddmlib.testrunner.TestIdentifier;
+
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
+import java.util.Collection;
+import java.util.Iterator;
 
 import junit.framework.TestCase;
 
@@ -43,4 +47,76 @@ public class TestPackageDefTest extends TestCase {
 
     }
 
+    /**
+     * Test {@link TestPackageDef#splitByClass(int)} splits the package into contiguous class
+     * ranges with a similar number of tests.
+     */
+    public void testSplitByClass() {
+        TestPackageDef def = createHostTestPackage();
+        def.addTest(new TestIdentifier("com.example.ATest", "test1"), -1);
+        def.addTest(new TestIdentifier("com.example.ATest", "test2"), -1);
+        def.addTest(new TestIdentifier("com.example.BTest", "test1"), -1);
+        def.addTest(new TestIdentifier("com.example.CTest", "test1"), -1);
+
+        Collection<ITestPackageDef> splits = def.splitByClass(2);
+        assertEquals(2, splits.size());
+        Iterator<ITestPackageDef> iter = splits.iterator();
+        ITestPackageDef split = iter.next();
+        assertEquals(def.getUri(), split.getUri());
+        split.createTest(new File("unused"));
+        assertEquals(2, split.getTests().size());
+        assertTrue(split.isKnownTest(new TestIdentifier("com.example.ATest", "test2")));
+        split = iter.next();
+        split.createTest(new File("unused"));
+        assertEquals(2, split.getTests().size());
+        assertTrue(split.isKnownTest(new TestIdentifier("com.example.BTest", "test1")));
+        assertTrue(split.isKnownTest(new TestIdentifier("com.example.CTest", "test1")));
+    }
+
+    /**
+     * Test {@link TestPackageDef#splitByClass(int)} creates more splits than requested when
+     * needed to keep the number of classes of each split within the limit.
+     */
+    public void testSplitByClass_maxClasses() {
+        TestPackageDef def = createHostTestPackage();
+        int numClasses = TestPackageDef.MAX_CLASSES_PER_SPLIT * 2 + 5;
+        for (int i = 0; i < numClasses; i++) {
+            def.addTest(new TestIdentifier(String.format("com.example.Test%03d", i), "test1"),
+                    -1);
+        }
+
+        Collection<ITestPackageDef> splits = def.splitByClass(2);
+        assertEquals(3, splits.size());
+        int totalTests = 0;
+        for (ITestPackageDef split : splits) {
+            split.createTest(new File("unused"));
+            assertTrue(split.getTests().size() <= TestPackageDef.MAX_CLASSES_PER_SPLIT);
+            totalTests += split.getTests().size();
+        }
+        assertEquals(numClasses, totalTests);
+    }
+
+    /**
+     * Test {@link TestPackageDef#splitByClass(int)} does not split a package with a single class.
+     */
+    public void testSplitByClass_singleClass() {
+        TestPackageDef def = createHostTestPackage();
+        def.addTest(new TestIdentifier("com.example.ATest", "test1"), -1);
+        def.addTest(new TestIdentifier("com.example.ATest", "test2"), -1);
+        assertNull(def.splitByClass(2));
+    }
+
+    private TestPackageDef createHostTestPackage() {
+        TestPackageDef def = new TestPackageDef() {
+            @Override
+            InputStream getFileStream(File dir, String fileName) {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+        };
+        def.setUri("com.example");
+        def.setName("CtsExampleTestCases");
+        def.setTestType(TestPackageDef.HOST_SIDE_ONLY_TEST);
+        def.setJarPath("CtsExampleTestCases.jar");
+        return def;
+    }
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.testtype.CtsTest.TestPackage;
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link TestPackageQueue}.
+ */
+public class TestPackageQueueTest extends TestCase {
+
+    private TestPackage mPackage1;
+    private TestPackage mPackage2;
+    private TestPackage mPackage3;
+    private TestPackageQueue mQueue;
+    private CtsTest mShard1;
+    private CtsTest mShard2;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        CtsTest ctsTest = new CtsTest();
+        mPackage1 = ctsTest.new TestPackage(null, null, new ArrayList<TestIdentifier>());
+        mPackage2 = ctsTest.new TestPackage(null, null, new ArrayList<TestIdentifier>());
+        mPackage3 = ctsTest.new TestPackage(null, null, new ArrayList<TestIdentifier>());
+        List<TestPackage> testPkgs = new ArrayList<TestPackage>();
+        testPkgs.add(mPackage1);
+        testPkgs.add(mPackage2);
+        testPkgs.add(mPackage3);
+        mQueue = new TestPackageQueue(testPkgs, 2);
+        mShard1 = new CtsTest();
+        mShard2 = new CtsTest();
+    }
+
+    /**
+     * Test that packages are taken from {@link TestPackageQueue#poll()} in order.
+     */
+    public void testPoll() {
+        assertEquals(mPackage1, mQueue.poll());
+        assertEquals(mPackage2, mQueue.poll());
+        assertEquals(mPackage3, mQueue.poll());
+        assertNull(mQueue.poll());
+        assertEquals(3, mQueue.getAllPackages().size());
+    }
+
+    /**
+     * Test that the packages left in the queue are only handed out when the last shard finishes.
+     */
+    public void testShardFinished() {
+        assertEquals(mPackage1, mQueue.poll());
+        assertTrue(mQueue.shardFinished(mShard1).isEmpty());
+        List<TestPackage> leftOver = mQueue.shardFinished(mShard2);
+        assertEquals(2, leftOver.size());
+        assertEquals(mPackage2, leftOver.get(0));
+        assertEquals(mPackage3, leftOver.get(1));
+        assertNull(mQueue.poll());
+    }
+
+    /**
+     * Test that a resumed shard is counted as unfinished again.
+     */
+    public void testShardResumed() {
+        assertTrue(mQueue.shardFinished(mShard1).isEmpty());
+        assertEquals(3, mQueue.shardFinished(mShard2).size());
+        mQueue.shardResumed();
+        mQueue.shardResumed();
+        assertTrue(mQueue.shardFinished(mShard1).isEmpty());
+    }
+
+    /**
+     * Test that a slow device takes the last package in the queue that doesn't need a reboot,
+     * while other devices take packages from the front.
+     */
+    public void testPoll_slowDevice() {
+        CtsTest ctsTest = new CtsTest();
+        TestPackage bigPkg = createPackage(ctsTest, "CtsBigTestCases");
+        TestPackage smallPkg = createPackage(ctsTest, "CtsSmallTestCases");
+        TestPackage rebootPkg = createPackage(ctsTest, "CtsWidgetTestCases");
+        List<TestPackage> testPkgs = new ArrayList<TestPackage>();
+        testPkgs.add(bigPkg);
+        testPkgs.add(smallPkg);
+        testPkgs.add(rebootPkg);
+        TestPackageQueue queue = new TestPackageQueue(testPkgs, 2);
+        Map<String, Double> durations = new HashMap<String, Double>();
+        durations.put("fast", 100.0);
+        durations.put("slow", 300.0);
+        queue.setTestDurationsByModel(durations);
+        queue.registerDeviceModel(mShard1, "fast");
+        queue.registerDeviceModel(mShard2, "slow");
+
+        assertFalse(queue.isSlowDevice("fast"));
+        assertTrue(queue.isSlowDevice("slow"));
+        assertFalse(queue.isSlowDevice("unknown"));
+        assertEquals(smallPkg, queue.poll(true));
+        assertEquals(bigPkg, queue.poll(false));
+        // only a reboot-prone package left, expect slow device to take it anyway
+        assertEquals(rebootPkg, queue.poll(true));
+    }
+
+    /**
+     * Test that each shard's device model counts once, however often the shard registers it,
+     * and stops counting once the shard finishes.
+     */
+    public void testRegisterDeviceModel_perShard() {
+        Map<String, Double> durations = new HashMap<String, Double>();
+        durations.put("fast", 100.0);
+        durations.put("slow", 140.0);
+        mQueue.setTestDurationsByModel(durations);
+        // e.g. a shard resumed twice on the same device
+        mQueue.registerDeviceModel(mShard1, "fast");
+        mQueue.registerDeviceModel(mShard1, "fast");
+        mQueue.registerDeviceModel(mShard1, "fast");
+        mQueue.registerDeviceModel(mShard2, "slow");
+        assertFalse(mQueue.isSlowDevice("slow"));
+
+        durations.put("slow", 300.0);
+        mQueue.setTestDurationsByModel(durations);
+        assertTrue(mQueue.isSlowDevice("slow"));
+        mQueue.shardFinished(mShard1);
+        // the only device left cannot be slower than the pool
+        assertFalse(mQueue.isSlowDevice("slow"));
+    }
+
+    private TestPackage createPackage(CtsTest ctsTest, String name) {
+        ITestPackageDef def = EasyMock.createNiceMock(ITestPackageDef.class);
+        EasyMock.expect(def.getName()).andStubReturn(name);
+        EasyMock.replay(def);
+        return ctsTest.new TestPackage(def, null, new ArrayList<TestIdentifier>());
+    }
+}
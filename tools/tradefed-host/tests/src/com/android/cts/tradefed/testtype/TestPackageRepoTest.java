@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link TestPackageRepo}.
+ */
+public class TestPackageRepoTest extends TestCase {
+
+    private static final String FOO_XML =
+        "<TestPackage appNameSpace=\"com.example.foo\" appPackageName=\"android.foo\" " +
+        "name=\"CtsFooTestCases\" runner=\"android.test.InstrumentationTestRunner\" >\n" +
+        "    <TestSuite name=\"com\" >\n" +
+        "        <TestCase name=\"FooTest\" >\n" +
+        "            <Test name=\"testFoo\" />\n" +
+        "            <Test name=\"testFoo2\" />\n" +
+        "        </TestCase>\n" +
+        "    </TestSuite>\n" +
+        "</TestPackage>";
+
+    private static final String BAR_XML =
+        "<TestPackage appNameSpace=\"com.example.bar\" appPackageName=\"android.bar\" " +
+        "name=\"CtsBarTestCases\" runner=\"android.test.InstrumentationTestRunner\" >\n" +
+        "    <TestSuite name=\"com\" >\n" +
+        "        <TestCase name=\"BarTest\" >\n" +
+        "            <Test name=\"testBar\" />\n" +
+        "        </TestCase>\n" +
+        "    </TestSuite>\n" +
+        "</TestPackage>";
+
+    private File mTestCaseDir;
+    private File mCacheDir;
+    /** the number of xml files parsed by the repos created by {@link #createRepo()} */
+    private AtomicInteger mParseCount;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestCaseDir = FileUtil.createTempDir("testcases");
+        mCacheDir = FileUtil.createTempDir("cache");
+        mParseCount = new AtomicInteger();
+        FileUtil.writeToFile(FOO_XML, new File(mTestCaseDir, "CtsFooTestCases.xml"));
+        FileUtil.writeToFile(BAR_XML, new File(mTestCaseDir, "CtsBarTestCases.xml"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTestCaseDir);
+        FileUtil.recursiveDelete(mCacheDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that the packages and test classes of the xml files are found.
+     */
+    public void testParse() {
+        TestPackageRepo repo = createRepo();
+        assertEquals(Arrays.asList("android.bar", "android.foo"), repo.getPackageNames());
+        assertEquals("android.foo", repo.findPackageForTest("com.FooTest"));
+        assertEquals("android.bar", repo.findPackageForTest("com.BarTest"));
+        assertNull(repo.findPackageForTest("com.BazTest"));
+        assertEquals(2, mParseCount.get());
+        assertTrue(new File(mCacheDir, TestPackageRepo.INDEX_FILE_NAME).exists());
+    }
+
+    /**
+     * Test that each request for a package gets its own definition, sharing the read-only tests
+     * of the package.
+     */
+    public void testGetTestPackage_copies() {
+        TestPackageRepo repo = createRepo();
+        ITestPackageDef def = repo.getTestPackage("android.foo");
+        ITestPackageDef otherDef = repo.getTestPackage("android.foo");
+        assertNotSame(def, otherDef);
+        assertSame(def.getTests(), otherDef.getTests());
+        try {
+            def.getTests().clear();
+            fail("UnsupportedOperationException not thrown");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        def.setClassName("com.FooTest", "testFoo");
+        def.createTest(mTestCaseDir);
+        assertEquals(2, otherDef.getTests().size());
+        assertEquals(2, repo.getTestPackage("android.foo").getTests().size());
+    }
+
+    /**
+     * Test that a later repo reads the definitions from the index instead of the xml files.
+     */
+    public void testIndex() {
+        createRepo();
+        mParseCount.set(0);
+        TestPackageRepo repo = createRepo();
+        assertEquals(0, mParseCount.get());
+        ITestPackageDef def = repo.getTestPackage("android.foo");
+        assertEquals("CtsFooTestCases", def.getName());
+        assertEquals("com.example.foo", ((TestPackageDef)def).getAppNameSpace());
+        assertEquals("android.test.InstrumentationTestRunner", ((TestPackageDef)def).getRunner());
+        Iterator<TestIdentifier> tests = def.getTests().iterator();
+        assertEquals(new TestIdentifier("com.FooTest", "testFoo"), tests.next());
+        assertEquals(new TestIdentifier("com.FooTest", "testFoo2"), tests.next());
+        assertFalse(tests.hasNext());
+        assertEquals("android.foo", repo.findPackageForTest("com.FooTest"));
+    }
+
+    /**
+     * Test that only the xml files that changed since the index was written are parsed again.
+     */
+    public void testIndex_changedFile() throws IOException {
+        createRepo();
+        mParseCount.set(0);
+        FileUtil.writeToFile(BAR_XML.replace("BarTest", "BarTest2"),
+                new File(mTestCaseDir, "CtsBarTestCases.xml"));
+        TestPackageRepo repo = createRepo();
+        assertEquals(1, mParseCount.get());
+        assertEquals("android.bar", repo.findPackageForTest("com.BarTest2"));
+        assertNull(repo.findPackageForTest("com.BarTest"));
+    }
+
+    /**
+     * Test that a package whose xml file was removed is no longer found.
+     */
+    public void testIndex_removedFile() {
+        createRepo();
+        new File(mTestCaseDir, "CtsBarTestCases.xml").delete();
+        TestPackageRepo repo = createRepo();
+        assertEquals(Arrays.asList("android.foo"), repo.getPackageNames());
+        assertNull(repo.findPackageForTest("com.BarTest"));
+    }
+
+    /**
+     * Test that a corrupt index is ignored.
+     */
+    public void testIndex_corrupt() throws IOException {
+        createRepo();
+        FileUtil.writeToFile("garbage", new File(mCacheDir, TestPackageRepo.INDEX_FILE_NAME));
+        mParseCount.set(0);
+        TestPackageRepo repo = createRepo();
+        assertEquals(2, mParseCount.get());
+        assertEquals("android.foo", repo.findPackageForTest("com.FooTest"));
+    }
+
+    private TestPackageRepo createRepo() {
+        return new TestPackageRepo(mTestCaseDir, false, mCacheDir) {
+            @Override
+            InputStream createStreamFromFile(File xmlFile) throws FileNotFoundException {
+                mParseCount.incrementAndGet();
+                return super.createStreamFromFile(xmlFile);
+            }
+        };
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link DigestCache}.
+ */
+public class DigestCacheTest extends TestCase {
+
+    /** the sha1sum of "hello" */
+    private static final String HELLO_DIGEST = "aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d";
+
+    private File mDir;
+    private File mFile;
+    private File mCacheFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = FileUtil.createTempDir("digest");
+        mFile = new File(mDir, "test.apk");
+        mCacheFile = new File(mDir, DigestCache.CACHE_FILE_NAME);
+        FileUtil.writeToFile("hello", mFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test the digest of a file.
+     */
+    public void testGetDigest() {
+        assertEquals(HELLO_DIGEST, new DigestCache(null).getDigest(mFile));
+        assertFalse(mCacheFile.exists());
+    }
+
+    /**
+     * Test that digests are recorded, and used by a later cache without hashing the file.
+     */
+    public void testGetDigest_persisted() throws IOException {
+        assertEquals(HELLO_DIGEST, new DigestCache(mCacheFile).getDigest(mFile));
+        assertTrue(mCacheFile.exists());
+        // change the content, keeping the size and modification time
+        long lastModified = mFile.lastModified();
+        FileUtil.writeToFile("jello", mFile);
+        mFile.setLastModified(lastModified);
+        assertEquals(HELLO_DIGEST, new DigestCache(mCacheFile).getDigest(mFile));
+    }
+
+    /**
+     * Test that the digest of a changed file is recomputed.
+     */
+    public void testGetDigest_changed() throws IOException {
+        DigestCache cache = new DigestCache(mCacheFile);
+        assertEquals(HELLO_DIGEST, cache.getDigest(mFile));
+        FileUtil.writeToFile("hello world", mFile);
+        assertEquals("2aae6c35c94fcfb415dbe95f408b9ce91ee846ed", cache.getDigest(mFile));
+        assertEquals("2aae6c35c94fcfb415dbe95f408b9ce91ee846ed",
+                new DigestCache(mCacheFile).getDigest(mFile));
+    }
+
+    /**
+     * Test that a corrupt cache file is ignored.
+     */
+    public void testGetDigest_corrupt() throws IOException {
+        FileUtil.writeToFile("garbage\n\t\t\t\n", mCacheFile);
+        assertEquals(HELLO_DIGEST, new DigestCache(mCacheFile).getDigest(mFile));
+    }
+
+    /**
+     * Test that the digest of a prefetched file is returned.
+     */
+    public void testPrefetch() {
+        DigestCache cache = new DigestCache(null);
+        cache.prefetch(mFile);
+        cache.prefetch(mFile);
+        assertEquals(HELLO_DIGEST, cache.getDigest(mFile));
+    }
+
+    /**
+     * Test that the digest of a missing file is <code>null</code>.
+     */
+    public void testGetDigest_missing() {
+        assertNull(new DigestCache(null).getDigest(new File(mDir, "missing.apk")));
+    }
+
+    /**
+     * Test the hex encoding of bytes.
+     */
+    public void testToHexString() {
+        assertEquals("00ff7f80", DigestCache.toHexString(new byte[] {0, -1, 127, -128}));
+    }
+}
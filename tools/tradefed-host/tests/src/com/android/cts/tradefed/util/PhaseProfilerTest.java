@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link PhaseProfiler}.
+ */
+public class PhaseProfilerTest extends TestCase {
+
+    private PhaseProfiler mProfiler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProfiler = new PhaseProfiler();
+    }
+
+    /**
+     * Test that the spans of a phase are aggregated, and that ending a span twice only records it
+     * once.
+     */
+    public void testSpans() throws InterruptedException {
+        PhaseProfiler.Span span = mProfiler.start(PhaseProfiler.REBOOT);
+        Thread.sleep(20);
+        span.end();
+        span.end();
+        mProfiler.start(PhaseProfiler.REBOOT).end();
+        assertEquals(2, mProfiler.getCount(PhaseProfiler.REBOOT));
+        assertTrue(mProfiler.getTotalTimeMs(PhaseProfiler.REBOOT) >= 20);
+        assertEquals(0, mProfiler.getCount(PhaseProfiler.HOME_SCREEN));
+        assertEquals(0, mProfiler.getTotalTimeMs(PhaseProfiler.HOME_SCREEN));
+    }
+
+    /**
+     * Test that the spans of a test package are reported both per phase and per package.
+     */
+    public void testToJson_packages() {
+        mProfiler.start(PhaseProfiler.PACKAGE_INSTALL, "android.app").end();
+        mProfiler.start(PhaseProfiler.PACKAGE_INSTALL, "android.os").end();
+        mProfiler.start(PhaseProfiler.BUILD_TESTS).end();
+        String json = mProfiler.toJson();
+        assertTrue(json, json.startsWith("{\"wallTimeMs\":"));
+        assertTrue(json, json.contains(
+                "\"phases\":{\"packageInstall\":{\"count\":2,\"totalMs\":"));
+        assertTrue(json, json.contains("\"buildTestsToRun\":{\"count\":1,"));
+        assertTrue(json, json.contains(
+                "\"packages\":{\"android.app\":{\"packageInstall\":{\"count\":1,"));
+        assertTrue(json, json.contains("\"android.os\":{\"packageInstall\":{\"count\":1,"));
+        assertTrue(json, json.contains("\"gc\":{"));
+        assertTrue(json, json.contains("\"heap\":{\"usedBytes\":"));
+        assertTrue(json, json.endsWith("}}"));
+    }
+
+    /**
+     * Test that names are escaped in the JSON.
+     */
+    public void testToJson_escaping() {
+        mProfiler.start(PhaseProfiler.TEST_EXECUTION, "a\"b\\c\n").end();
+        String json = mProfiler.toJson();
+        assertTrue(json, json.contains("\"a\\\"b\\\\c\\u000a\":{\"testExecution\":"));
+    }
+
+    /**
+     * Test that spans recorded from several threads are all counted.
+     */
+    public void testSpans_threads() throws InterruptedException {
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        mProfiler.start(PhaseProfiler.ARTIFACT_CAPTURE, "android.app").end();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400, mProfiler.getCount(PhaseProfiler.ARTIFACT_CAPTURE));
+    }
+}